@@ -0,0 +1,205 @@
+package sleet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the conversation of each client connection that a listener accepts.
+ * The conversations themselves use blocking I/O, so this class decides what
+ * kind of thread each one runs on and how many can run at once.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class ConnectionExecutor {
+	private static final Logger logger = Logger.getLogger(ConnectionExecutor.class.getName());
+
+	/**
+	 * The kinds of threads that the conversations can run on.
+	 */
+	public enum Mode {
+		/**
+		 * Creates a new platform thread for each connection.
+		 */
+		PLATFORM,
+
+		/**
+		 * Runs the connections on a fixed-size pool of platform threads.
+		 */
+		POOLED,
+
+		/**
+		 * Creates a new virtual thread for each connection (requires Java 21 or
+		 * later).
+		 */
+		VIRTUAL
+	}
+
+	private final Mode mode;
+	private final Executor executor;
+
+	/**
+	 * Limits the number of connections that can be handled at once (null for
+	 * no limit).
+	 */
+	private final Semaphore permits;
+
+	private final int maxConnections;
+
+	/**
+	 * @param mode the kind of threads to run the conversations on
+	 * @param name the name of the listener (used to name the threads)
+	 * @param poolSize the number of threads in the pool (only applies to
+	 * {@link Mode#POOLED})
+	 * @param maxConnections the maximum number of connections that can be
+	 * handled at once or zero for no limit. Once the limit is reached, the
+	 * listener stops accepting connections until one of the existing ones is
+	 * closed. With {@link Mode#POOLED}, each connection holds onto a thread
+	 * for as long as it is open, so the limit is never higher than the pool
+	 * size (otherwise, the extra connections would sit in the pool's queue
+	 * without being greeted).
+	 * @throws IllegalArgumentException if poolSize or maxConnections are out of
+	 * range
+	 * @throws IllegalStateException if virtual threads were requested, but are
+	 * not supported by this JVM
+	 */
+	public ConnectionExecutor(Mode mode, String name, int poolSize, int maxConnections) {
+		if (mode == Mode.POOLED && poolSize < 1) {
+			throw new IllegalArgumentException("Pool size must be a positive integer.");
+		}
+		if (maxConnections < 0) {
+			throw new IllegalArgumentException("Max connections cannot be negative.");
+		}
+
+		if (mode == Mode.POOLED && (maxConnections == 0 || maxConnections > poolSize)) {
+			maxConnections = poolSize;
+		}
+
+		this.mode = mode;
+		this.maxConnections = maxConnections;
+		permits = (maxConnections == 0) ? null : new Semaphore(maxConnections);
+
+		ThreadFactory threadFactory = new NamedThreadFactory(name);
+		switch (mode) {
+		case POOLED:
+			executor = Executors.newFixedThreadPool(poolSize, threadFactory);
+			break;
+		case VIRTUAL:
+			executor = newVirtualThreadExecutor();
+			break;
+		default:
+			executor = new ThreadPerTaskExecutor(threadFactory);
+			break;
+		}
+	}
+
+	/**
+	 * Creates an executor that creates a new platform thread for each
+	 * connection and has no connection limit.
+	 * @param name the name of the listener (used to name the threads)
+	 * @return the executor
+	 */
+	public static ConnectionExecutor platform(String name) {
+		return new ConnectionExecutor(Mode.PLATFORM, name, 0, 0);
+	}
+
+	/**
+	 * Runs a conversation. If the maximum number of connections are already
+	 * being handled, then this method blocks until one of them finishes.
+	 * @param conversation the conversation
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * for a connection to finish
+	 */
+	public void execute(final Runnable conversation) throws InterruptedException {
+		if (permits == null) {
+			executor.execute(conversation);
+			return;
+		}
+
+		if (!permits.tryAcquire()) {
+			logger.info("Connection limit of " + maxConnections + " reached.  Waiting for a connection to close...");
+			permits.acquire();
+		}
+
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						conversation.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the kind of threads the conversations run on.
+	 * @return the mode
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Creates an executor that runs each task on a new virtual thread. This is
+	 * done with reflection, since virtual threads are not available in the
+	 * version of Java that Sleet is compiled against.
+	 * @return the executor
+	 * @throws IllegalStateException if virtual threads are not supported by
+	 * this JVM
+	 */
+	private static Executor newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (Executor) method.invoke(null);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException("Virtual threads require Java 21 or later (running on Java " + System.getProperty("java.version") + ").");
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Could not create virtual thread executor.", e);
+			throw new IllegalStateException("Could not create virtual thread executor.", e);
+		}
+	}
+
+	/**
+	 * Starts a new thread for every task.
+	 */
+	private static class ThreadPerTaskExecutor implements Executor {
+		private final ThreadFactory threadFactory;
+
+		public ThreadPerTaskExecutor(ThreadFactory threadFactory) {
+			this.threadFactory = threadFactory;
+		}
+
+		@Override
+		public void execute(Runnable task) {
+			threadFactory.newThread(task).start();
+		}
+	}
+
+	/**
+	 * Names each thread after the listener it belongs to.
+	 */
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		public NamedThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable task) {
+			return new Thread(task, name + " connection " + count.incrementAndGet());
+		}
+	}
+}
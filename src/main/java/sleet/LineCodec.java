@@ -0,0 +1,352 @@
+package sleet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedList;
+
+/**
+ * Reads and writes CRLF-terminated lines at the byte level, for use with
+ * line-based protocols like SMTP and POP3.
+ * <p>
+ * Received bytes are held in a buffer and each line is handed out as a view of
+ * that buffer, so lines are never copied or decoded unless the caller
+ * asks for it (see {@link #toString(ByteBuffer)}). This means that the lines
+ * of an email message can be examined and dot-unstuffed without creating a
+ * String for each one.
+ * </p>
+ * <p>
+ * Outgoing lines are queued and written all at once with a gathering write
+ * when {@link #flush} is called, so a multi-line response costs a single
+ * write.
+ * </p>
+ * <p>
+ * All text is converted using ISO-8859-1, which maps every byte to exactly one
+ * character and back again. This guarantees that 8-bit data passes through
+ * the server unchanged, no matter what the platform's default character set
+ * is.
+ * </p>
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class LineCodec {
+	/**
+	 * The character set used to convert between bytes and text.
+	 */
+	public static final Charset charset = Charset.forName("ISO-8859-1");
+
+	private static final byte[] crlf = { '\r', '\n' };
+
+	/**
+	 * The least amount of free space the input buffer must have before reading
+	 * from a channel.
+	 */
+	private static final int minimumRead = 512;
+
+	/**
+	 * The default maximum line length. RFC 5321 limits lines to 1000 bytes,
+	 * but not every client follows this, so some slack is given.
+	 */
+	public static final int defaultMaxLineLength = 2048;
+
+	/**
+	 * The maximum number of bytes a line can have (not counting the newline).
+	 */
+	private final int maxLineLength;
+
+	/**
+	 * The size the input buffer starts out with and goes back to when it is
+	 * empty.
+	 */
+	private final int initialCapacity;
+
+	/**
+	 * The data that has been received, but not yet consumed. Kept in "read
+	 * mode" (the position is the start of the next line and the limit is the
+	 * end of the received data).
+	 */
+	private ByteBuffer in;
+
+	/**
+	 * The index in the input buffer where the search for the next newline
+	 * should start from, so that partial lines aren't searched more than once.
+	 */
+	private int scanned = 0;
+
+	/**
+	 * True if the line that is being received is too long and is being thrown
+	 * away.
+	 */
+	private boolean discarding = false;
+
+	/**
+	 * The data that has been queued, but not yet written.
+	 */
+	private final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+
+	public LineCodec() {
+		this(2048);
+	}
+
+	/**
+	 * @param initialCapacity the initial size of the input buffer (it grows if
+	 * a line does not fit)
+	 */
+	public LineCodec(int initialCapacity) {
+		this(initialCapacity, defaultMaxLineLength);
+	}
+
+	/**
+	 * @param initialCapacity the initial size of the input buffer (it grows if
+	 * a line does not fit)
+	 * @param maxLineLength the maximum number of bytes a line can have, not
+	 * counting the newline (when data is added with {@link #read}, the input
+	 * buffer never grows much larger than this)
+	 */
+	public LineCodec(int initialCapacity, int maxLineLength) {
+		this.maxLineLength = maxLineLength;
+		this.initialCapacity = initialCapacity;
+		in = ByteBuffer.allocate(initialCapacity);
+		in.flip();
+	}
+
+	/**
+	 * Reads data from a channel directly into the input buffer. The buffer is
+	 * only grown to make room for a partial line, so if the buffer is full of
+	 * lines that haven't been consumed yet, nothing is read. This way, a peer
+	 * that sends data faster than it is consumed can't make the buffer grow
+	 * without limit.
+	 * @param channel the channel to read from
+	 * @return the number of bytes read (zero if the buffer is full) or -1 if
+	 * the end of the stream was reached
+	 * @throws IOException if there's a problem reading from the channel
+	 */
+	public int read(ReadableByteChannel channel) throws IOException {
+		int unconsumed = in.remaining();
+		if (in.capacity() - unconsumed < minimumRead && unconsumed > maxLineLength + 1) {
+			//the unconsumed data holds at least one complete line (or the start of a line that is too long)
+			return 0;
+		}
+
+		prepareForWrite(minimumRead);
+		try {
+			return channel.read(in);
+		} finally {
+			in.flip();
+		}
+	}
+
+	/**
+	 * Adds data that was received by some other means to the input buffer.
+	 * @param data the data (all remaining bytes are consumed)
+	 */
+	public void decode(ByteBuffer data) {
+		prepareForWrite(data.remaining());
+		in.put(data);
+		in.flip();
+	}
+
+	/**
+	 * Gets the next complete line that was received. The line is a view of the
+	 * input buffer, so it is only valid until the next time data is added to
+	 * the codec.
+	 * <p>
+	 * Lines that are longer than the maximum line length are thrown away as
+	 * they arrive, so a peer can't make the input buffer grow without limit by
+	 * never sending a newline.
+	 * </p>
+	 * @return the line (without the newline) or null if a complete line has not
+	 * been received yet
+	 * @throws LineTooLongException if the line was too long (it is thrown away
+	 * and the next call returns the line after it)
+	 */
+	public ByteBuffer nextLine() throws LineTooLongException {
+		int start = in.position();
+		int limit = in.limit();
+		for (int i = Math.max(scanned, start); i < limit; i++) {
+			if (in.get(i) != '\n') {
+				continue;
+			}
+
+			in.position(i + 1);
+			scanned = i + 1;
+			if (discarding) {
+				//the end of a line that was too long
+				discarding = false;
+				throw new LineTooLongException(maxLineLength);
+			}
+
+			int end = i;
+			if (end > start && in.get(end - 1) == '\r') {
+				end--;
+			}
+
+			if (end - start > maxLineLength) {
+				throw new LineTooLongException(maxLineLength);
+			}
+
+			ByteBuffer line = in.duplicate();
+			line.position(start).limit(end);
+			return line.slice();
+		}
+
+		//(a partial line can end with the CR of its newline)
+		if (discarding || limit - start > maxLineLength + 1) {
+			//throw away the partial line until its newline arrives
+			discarding = true;
+			in.position(limit);
+		}
+		scanned = limit;
+		return null;
+	}
+
+	/**
+	 * Queues a line to be written.
+	 * @param line the line (without the newline)
+	 */
+	public void writeLine(String line) {
+		out.add(ByteBuffer.wrap(line.getBytes(charset)));
+		out.add(ByteBuffer.wrap(crlf));
+	}
+
+	/**
+	 * Queues raw data to be written.
+	 * @param data the data
+	 */
+	public void write(ByteBuffer data) {
+		out.add(data);
+	}
+
+	/**
+	 * Writes the queued data. If the channel supports gathering writes, then
+	 * everything is written with one call.
+	 * @param channel the channel to write to
+	 * @return true if all the queued data was written, false if the channel
+	 * could not accept all the data (only happens with non-blocking channels)
+	 * @throws IOException if there's a problem writing to the channel
+	 */
+	public boolean flush(WritableByteChannel channel) throws IOException {
+		while (!out.isEmpty()) {
+			long written;
+			if (channel instanceof GatheringByteChannel) {
+				ByteBuffer buffers[] = out.toArray(new ByteBuffer[out.size()]);
+				written = ((GatheringByteChannel) channel).write(buffers);
+			} else {
+				written = channel.write(out.getFirst());
+			}
+
+			while (!out.isEmpty() && !out.getFirst().hasRemaining()) {
+				out.removeFirst();
+			}
+
+			if (written == 0 && !out.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Determines if there is any queued data that hasn't been written yet.
+	 * @return true if there is unwritten data, false if not
+	 */
+	public boolean hasOutput() {
+		return !out.isEmpty();
+	}
+
+	/**
+	 * Determines if there is any received data that hasn't been consumed yet.
+	 * @return true if there is unconsumed data, false if not
+	 */
+	public boolean hasInput() {
+		return in.hasRemaining();
+	}
+
+	/**
+	 * Shrinks the input buffer back down to its initial size if it has grown
+	 * and all of its data has been consumed. This should be called when the
+	 * peer goes idle, so that the memory used by a large burst of data isn't
+	 * held onto for the rest of the connection.
+	 */
+	public void trim() {
+		if (in.hasRemaining() || in.capacity() <= initialCapacity) {
+			return;
+		}
+
+		in = ByteBuffer.allocate(initialCapacity);
+		in.flip();
+		scanned = 0;
+	}
+
+	/**
+	 * Determines if a line is the "." line that terminates the data of an SMTP
+	 * DATA command or a multi-line POP3 response.
+	 * @param line the line
+	 * @return true if it's the terminator, false if not
+	 */
+	public static boolean isTerminator(ByteBuffer line) {
+		return line.remaining() == 1 && line.get(line.position()) == '.';
+	}
+
+	/**
+	 * Removes the dot-stuffing from a line (if the line starts with ".", then
+	 * the "." is removed). This is done in place by moving the line's position
+	 * forward.
+	 * @param line the line
+	 * @return the same line
+	 */
+	public static ByteBuffer unstuff(ByteBuffer line) {
+		if (line.hasRemaining() && line.get(line.position()) == '.') {
+			line.position(line.position() + 1);
+		}
+		return line;
+	}
+
+	/**
+	 * Decodes a line into a string. The line's position is not changed.
+	 * @param line the line
+	 * @return the string
+	 */
+	public static String toString(ByteBuffer line) {
+		return appendTo(line, new StringBuilder(line.remaining())).toString();
+	}
+
+	/**
+	 * Decodes a line and appends it to a string builder. The line's position is
+	 * not changed.
+	 * @param line the line
+	 * @param sb the string builder
+	 * @return the string builder
+	 */
+	public static StringBuilder appendTo(ByteBuffer line, StringBuilder sb) {
+		for (int i = line.position(); i < line.limit(); i++) {
+			sb.append((char) (line.get(i) & 0xff));
+		}
+		return sb;
+	}
+
+	/**
+	 * Moves the unconsumed input to the start of the input buffer and puts the
+	 * buffer into "write mode", growing it if it doesn't have enough room.
+	 * @param needed the number of free bytes the buffer must have
+	 */
+	private void prepareForWrite(int needed) {
+		scanned -= in.position();
+		in.compact();
+		if (in.remaining() >= needed) {
+			return;
+		}
+
+		int capacity = in.capacity() * 2;
+		while (capacity - in.position() < needed) {
+			capacity *= 2;
+		}
+
+		ByteBuffer bigger = ByteBuffer.allocate(capacity);
+		in.flip();
+		bigger.put(in);
+		in = bigger;
+	}
+}
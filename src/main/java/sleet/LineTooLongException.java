@@ -0,0 +1,19 @@
+package sleet;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a peer sends a line that is longer than a {@link LineCodec}
+ * allows. The line is thrown away, so the conversation can continue with the
+ * next line.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+@SuppressWarnings("serial")
+public class LineTooLongException extends IOException {
+	/**
+	 * @param maxLineLength the maximum line length
+	 */
+	public LineTooLongException(int maxLineLength) {
+		super("Line too long (the maximum is " + maxLineLength + " bytes).");
+	}
+}
@@ -9,9 +9,11 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import sleet.admin.AdminConnectionListener;
-import sleet.db.DbDao;
+import sleet.db.DirbyDbDao;
 import sleet.db.DirbyEmbeddedDbDao;
 import sleet.db.DirbyMemoryDbDao;
+import sleet.db.FileMessageStore;
+import sleet.imap.IMAPConnectionListener;
 import sleet.pop3.POP3ConnectionListener;
 import sleet.smtp.MailSender;
 import sleet.smtp.SMTPConnectionListener;
@@ -30,7 +32,7 @@ public class Sleet {
 		Arguments arguments = new Arguments(args);
 		if (arguments.exists(null, "help")) {
 			System.out.println(appName + " v" + version);
-			System.out.println("Sleet is an SMTP server with support for the POP3 protocol.");
+			System.out.println("Sleet is an SMTP server with support for the POP3 and IMAP protocols.");
 			System.out.println();
 
 			System.out.println("ARGUMENTS==============");
@@ -47,11 +49,60 @@ public class Sleet {
 			System.out.println("--pop3-port=PORT");
 			System.out.println("The POP3 server port (defaults to 110).");
 			System.out.println();
+
+			System.out.println("--imap-port=PORT");
+			System.out.println("The IMAP server port (defaults to 143).");
+			System.out.println();
 			
 			System.out.println("--admin-port=PORT");
 			System.out.println("The Sleet admin console port (defaults to 2553).");
 			System.out.println();
 
+			System.out.println("--smtp-event-loops=NUM");
+			System.out.println("The number of threads that handle SMTP connections using non-blocking I/O, or");
+			System.out.println("0 to create a new thread for each connection (defaults to the number of");
+			System.out.println("processors).");
+			System.out.println();
+
+			System.out.println("--smtp-worker-threads=NUM");
+			System.out.println("The number of threads that handle the commands of the SMTP connections that");
+			System.out.println("the event loops read (defaults to 10).");
+			System.out.println();
+
+			System.out.println("--smtp-idle-timeout=SECONDS");
+			System.out.println("How long an SMTP connection handled by an event loop can go without the client");
+			System.out.println("sending or accepting any data before it is closed, or 0 for no limit (defaults");
+			System.out.println("to 300).");
+			System.out.println();
+
+			System.out.println("--executor=platform|pooled|virtual");
+			System.out.println("How the POP3, IMAP, and admin connections (and SMTP connections when");
+			System.out.println("--smtp-event-loops=0) are run. \"platform\" creates a new thread for each");
+			System.out.println("connection, \"pooled\" uses a fixed-size thread pool, and \"virtual\" creates a");
+			System.out.println("new virtual thread for each connection (requires Java 21 or later). Defaults to");
+			System.out.println("\"platform\".");
+			System.out.println();
+
+			System.out.println("--executor-pool-size=NUM");
+			System.out.println("The number of threads each listener has when --executor=pooled (defaults to");
+			System.out.println("100).");
+			System.out.println();
+
+			System.out.println("--max-connections=NUM");
+			System.out.println("The maximum number of connections each listener will handle at once, or 0 for");
+			System.out.println("no limit (defaults to 0). With --executor=pooled, the limit is never higher");
+			System.out.println("than --executor-pool-size.");
+			System.out.println();
+
+			System.out.println("--delivery-threads=NUM");
+			System.out.println("The number of threads that send emails to other servers (defaults to 20).");
+			System.out.println();
+
+			System.out.println("--delivery-connections-per-server=NUM");
+			System.out.println("The maximum number of connections that can be open to each remote SMTP server");
+			System.out.println("at once (defaults to 5).");
+			System.out.println();
+
 			System.out.println("--host-name=NAME [required]");
 			System.out.println("The host name of this server (e.g. myserver.com).");
 			System.out.println("This is what's used in email addresses destined for and coming from this server.");
@@ -62,6 +113,16 @@ public class Sleet {
 			System.out.println("database (defaults to \"sleet-db\").");
 			System.out.println();
 
+			System.out.println("--database-pool-size=NUM");
+			System.out.println("The maximum number of database connections (defaults to 10).");
+			System.out.println();
+
+			System.out.println("--message-store=PATH");
+			System.out.println("The directory where the contents of emails are stored or \"DB\" to store them");
+			System.out.println("in the database (defaults to \"sleet-messages\", or to \"DB\" if the database");
+			System.out.println("is in-memory).");
+			System.out.println();
+
 			System.out.println("--smtp-inbound-log=PATH");
 			System.out.println("The path to where inbound SMTP transactions are logged.");
 			System.out.println();
@@ -77,6 +138,10 @@ public class Sleet {
 			System.out.println("--pop3-log=PATH");
 			System.out.println("The path to where POP3 transactions are logged.");
 			System.out.println();
+
+			System.out.println("--imap-log=PATH");
+			System.out.println("The path to where IMAP transactions are logged.");
+			System.out.println();
 			
 			System.out.println("--admin-log=PATH");
 			System.out.println("The path to where Sleet admin console transactions are logged.");
@@ -98,7 +163,7 @@ public class Sleet {
 		}
 
 		//check for non-existant arguments
-		Set<String> validArgs = new HashSet<String>(Arrays.asList(new String[] { "smtp-port", "smtp-msa-port", "pop3-port", "admin-port", "host-name", "database", "smtp-inbound-log", "smtp-outbound-log", "smtp-msa-log", "pop3-log", "admin-log", "version", "help" }));
+		Set<String> validArgs = new HashSet<String>(Arrays.asList(new String[] { "smtp-port", "smtp-msa-port", "pop3-port", "imap-port", "admin-port", "smtp-event-loops", "smtp-worker-threads", "smtp-idle-timeout", "executor", "executor-pool-size", "max-connections", "delivery-threads", "delivery-connections-per-server", "host-name", "database", "database-pool-size", "message-store", "smtp-inbound-log", "smtp-outbound-log", "smtp-msa-log", "pop3-log", "imap-log", "admin-log", "version", "help" }));
 		Collection<String> invalidArgs = arguments.invalidArgs(validArgs);
 		if (!invalidArgs.isEmpty()) {
 			System.err.println("One or more non-existent arguments were specified:\n" + invalidArgs);
@@ -115,27 +180,74 @@ public class Sleet {
 		final int smtpPort = arguments.valueInt(null, "smtp-port", 25);
 		final int smtpMsaPort = arguments.valueInt(null, "smtp-msa-port", 587);
 		final int popPort = arguments.valueInt(null, "pop3-port", 110);
+		final int imapPort = arguments.valueInt(null, "imap-port", 143);
 		final int adminPort = arguments.valueInt(null, "admin-port", 2553);
+		Integer smtpEventLoops = arguments.valueInt(null, "smtp-event-loops");
+		Integer smtpWorkerThreads = arguments.valueInt(null, "smtp-worker-threads");
+		Integer smtpIdleTimeout = arguments.valueInt(null, "smtp-idle-timeout");
+
+		//determine how the connections are run
+		String executorModeStr = arguments.value(null, "executor", "platform");
+		ConnectionExecutor.Mode executorMode;
+		try {
+			executorMode = ConnectionExecutor.Mode.valueOf(executorModeStr.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			executorMode = null;
+			System.err.println("Invalid executor \"" + executorModeStr + "\".  Must be \"platform\", \"pooled\", or \"virtual\".");
+			System.exit(1);
+		}
+		int executorPoolSize = arguments.valueInt(null, "executor-pool-size", 100);
+		int maxConnections = arguments.valueInt(null, "max-connections", 0);
+		Integer deliveryThreads = arguments.valueInt(null, "delivery-threads");
+		Integer deliveryConnectionsPerServer = arguments.valueInt(null, "delivery-connections-per-server");
+		ConnectionExecutor smtpExecutor = null, smtpMsaExecutor = null, popExecutor = null, imapExecutor = null, adminExecutor = null;
+		try {
+			smtpExecutor = new ConnectionExecutor(executorMode, "SMTP MTA", executorPoolSize, maxConnections);
+			smtpMsaExecutor = new ConnectionExecutor(executorMode, "SMTP MSA", executorPoolSize, maxConnections);
+			popExecutor = new ConnectionExecutor(executorMode, "POP3", executorPoolSize, maxConnections);
+			imapExecutor = new ConnectionExecutor(executorMode, "IMAP", executorPoolSize, maxConnections);
+			adminExecutor = new ConnectionExecutor(executorMode, "Admin", executorPoolSize, maxConnections);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IllegalStateException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
 
 		String smtpInboundLog = arguments.value(null, "smtp-inbound-log");
 		String smtpOutboundLog = arguments.value(null, "smtp-outbound-log");
 		String smtpMsaLog = arguments.value(null, "smtp-msa-log");
 		String pop3Log = arguments.value(null, "pop3-log");
+		String imapLog = arguments.value(null, "imap-log");
 		String adminLog = arguments.value(null, "admin-log");
 
 		//connect to the database
 		String dbPath = arguments.value(null, "database", "sleet-db");
-		DbDao dao;
+		int dbPoolSize = arguments.valueInt(null, "database-pool-size", DirbyDbDao.defaultPoolSize);
+		DirbyDbDao dao;
 		if ("MEM".equals(dbPath)) {
-			dao = new DirbyMemoryDbDao();
+			dao = new DirbyMemoryDbDao(dbPoolSize);
 		} else {
 			File databaseDir = new File(dbPath);
-			dao = new DirbyEmbeddedDbDao(databaseDir);
+			dao = new DirbyEmbeddedDbDao(databaseDir, dbPoolSize);
+		}
+
+		//open the message store
+		String messageStorePath = arguments.value(null, "message-store", "MEM".equals(dbPath) ? "DB" : "sleet-messages");
+		if (!"DB".equals(messageStorePath)) {
+			dao.setMessageStore(new FileMessageStore(new File(messageStorePath)));
 		}
 
 		//start the mail sender
 		final MailSender mailSender = new MailSender(dao);
 		mailSender.setHostName(hostName);
+		if (deliveryThreads != null) {
+			mailSender.setDeliveryThreads(deliveryThreads);
+		}
+		if (deliveryConnectionsPerServer != null) {
+			mailSender.setMaxConnectionsPerServer(deliveryConnectionsPerServer);
+		}
 		if (smtpOutboundLog != null) {
 			mailSender.setTransactionLogFile(new File(smtpOutboundLog));
 		}
@@ -156,6 +268,7 @@ public class Sleet {
 		final POP3ConnectionListener popServer = new POP3ConnectionListener(dao);
 		popServer.setHostName(hostName);
 		popServer.setPort(popPort);
+		popServer.setExecutor(popExecutor);
 		if (pop3Log != null) {
 			popServer.setTransactionLogFile(new File(pop3Log));
 		}
@@ -172,10 +285,41 @@ public class Sleet {
 		};
 		popThread.start();
 
+		//start the IMAP server
+		final IMAPConnectionListener imapServer = new IMAPConnectionListener(dao);
+		imapServer.setHostName(hostName);
+		imapServer.setPort(imapPort);
+		imapServer.setExecutor(imapExecutor);
+		if (imapLog != null) {
+			imapServer.setTransactionLogFile(new File(imapLog));
+		}
+		Thread imapThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					imapServer.start();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "The IMAP server encountered an error.  Server terminated.", e);
+					throw new RuntimeException("Cannot start IMAP server on port " + imapPort + ".", e);
+				}
+			}
+		};
+		imapThread.start();
+
 		//start the SMTP server
 		final SMTPConnectionListener smtpServer = new SMTPConnectionListener(dao);
 		smtpServer.setHostName(hostName);
 		smtpServer.setPort(smtpPort);
+		if (smtpEventLoops != null) {
+			smtpServer.setEventLoops(smtpEventLoops);
+		}
+		if (smtpWorkerThreads != null) {
+			smtpServer.setWorkerThreads(smtpWorkerThreads);
+		}
+		if (smtpIdleTimeout != null) {
+			smtpServer.setIdleTimeout(smtpIdleTimeout * 1000L);
+		}
+		smtpServer.setExecutor(smtpExecutor);
 		if (smtpInboundLog != null) {
 			smtpServer.setTransactionLogFile(new File(smtpInboundLog));
 		}
@@ -196,6 +340,16 @@ public class Sleet {
 		final SMTPConnectionListener smtpMsaServer = new SMTPConnectionListener(dao, mailSender);
 		smtpMsaServer.setHostName(hostName);
 		smtpMsaServer.setPort(smtpMsaPort);
+		if (smtpEventLoops != null) {
+			smtpMsaServer.setEventLoops(smtpEventLoops);
+		}
+		if (smtpWorkerThreads != null) {
+			smtpMsaServer.setWorkerThreads(smtpWorkerThreads);
+		}
+		if (smtpIdleTimeout != null) {
+			smtpMsaServer.setIdleTimeout(smtpIdleTimeout * 1000L);
+		}
+		smtpMsaServer.setExecutor(smtpMsaExecutor);
 		if (smtpMsaLog != null) {
 			smtpMsaServer.setTransactionLogFile(new File(smtpMsaLog));
 		}
@@ -216,6 +370,8 @@ public class Sleet {
 		final AdminConnectionListener adminServer = new AdminConnectionListener(dao);
 		adminServer.setHostName(hostName);
 		adminServer.setPort(adminPort);
+		adminServer.setExecutor(adminExecutor);
+		adminServer.setMailSender(mailSender);
 		if (adminLog != null) {
 			adminServer.setTransactionLogFile(new File(adminLog));
 		}
@@ -21,7 +21,7 @@ import org.apache.commons.io.IOUtils;
 public class TransactionLog {
 	private final StringBuilder log = new StringBuilder();
 	private final DateFormat df = new SimpleDateFormat("yyyy-MMM-dd HH:mm:ss");
-	private final Date started = new Date();
+	private Date started = new Date();
 
 	/**
 	 * Logs a client message.
@@ -55,6 +55,15 @@ public class TransactionLog {
 		}
 	}
 
+	/**
+	 * Discards everything that has been logged so far (for example, after the
+	 * transcript has been written to a file), and starts the log over.
+	 */
+	public void clear() {
+		log.setLength(0);
+		started = new Date();
+	}
+
 	/**
 	 * Gets the entire transcript of the transaction.
 	 * @return the entire transcript of the transaction
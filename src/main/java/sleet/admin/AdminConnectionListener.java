@@ -6,18 +6,22 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import sleet.ConnectionExecutor;
 import sleet.db.DbDao;
+import sleet.db.DbDao.UnitOfWork;
 import sleet.db.User;
+import sleet.smtp.MailSender;
 
 /**
- * Listens for and handles admin console client connections. Forks each
- * client/server connection into its own thread.
+ * Listens for and handles admin console client connections. Each
+ * client/server connection is run by the listener's {@link ConnectionExecutor}.
  * @author Mike Angstadt [mike.angstadt@gmail.com]
  */
 public class AdminConnectionListener {
@@ -45,6 +49,17 @@ public class AdminConnectionListener {
 	 */
 	private File transactionLogFile;
 
+	/**
+	 * Runs the client connections.
+	 */
+	private ConnectionExecutor executor = ConnectionExecutor.platform("Admin");
+
+	/**
+	 * The mail sender that outbound delivery information is read from (null
+	 * if there isn't one).
+	 */
+	private MailSender mailSender;
+
 	/**
 	 * @param dao the database DAO
 	 */
@@ -96,6 +111,31 @@ public class AdminConnectionListener {
 		this.transactionLogFile = transactionLogFile;
 	}
 
+	/**
+	 * Sets the executor that runs the client connections.
+	 * @param executor the executor (defaults to one new thread per connection)
+	 * @throws IllegalStateException if the listener has already been started
+	 */
+	public void setExecutor(ConnectionExecutor executor) {
+		if (started) {
+			throw new IllegalStateException("Sleet admin console properties cannot be changed once the server starts.");
+		}
+		this.executor = executor;
+	}
+
+	/**
+	 * Sets the mail sender, so that the console can display information about
+	 * outbound deliveries.
+	 * @param mailSender the mail sender
+	 * @throws IllegalStateException if the listener has already been started
+	 */
+	public void setMailSender(MailSender mailSender) {
+		if (started) {
+			throw new IllegalStateException("Sleet admin console properties cannot be changed once the server starts.");
+		}
+		this.mailSender = mailSender;
+	}
+
 	/**
 	 * Starts the listener.
 	 * @throws IOException
@@ -110,13 +150,17 @@ public class AdminConnectionListener {
 		started = true;
 
 		ServerSocket serverSocket = new ServerSocket(port);
-		logger.info("Ready to receive Sleet admin console requests on port " + port + "...");
+		logger.info("Ready to receive Sleet admin console requests on port " + port + " (" + executor.getMode().name().toLowerCase() + " threads)...");
 
 		while (true) {
 			Socket socket = serverSocket.accept();
 			logger.info("Sleet admin console connection established with " + socket.getInetAddress().getHostAddress());
-			AdminConversation thread = new AdminConversation(socket);
-			thread.start();
+			try {
+				executor.execute(new AdminConversation(socket));
+			} catch (InterruptedException e) {
+				socket.close();
+				break;
+			}
 		}
 	}
 
@@ -124,7 +168,7 @@ public class AdminConnectionListener {
 	 * Handles a single client connection.
 	 * @author Mike Angstadt [mike.angstadt@gmail.com]
 	 */
-	private class AdminConversation extends Thread {
+	private class AdminConversation implements Runnable {
 		private final Socket socket;
 		private final AdminServerSocket serverSocket;
 
@@ -175,6 +219,10 @@ public class AdminConnectionListener {
 						writer.println("  Description: Deletes an existing user account.");
 						writer.println("  Parameters:");
 						writer.println("     username     the username of the account to delete.");
+						writer.println("DELIVERY_LIMITS");
+						writer.println("  Description: Displays the outbound sending limits that have been learned for");
+						writer.println("               each email host and remote SMTP server.");
+						writer.println("  Parameters:  none");
 						writer.println("SHUTDOWN");
 						writer.println("  Description: Shuts down the Sleet SMTP server.");
 						writer.println("  Parameters:  none");
@@ -215,21 +263,19 @@ public class AdminConnectionListener {
 								continue;
 							}
 
-							User user = new User();
+							final User user = new User();
 							user.username = username;
 							user.password = password;
 							user.fullName = fullName;
 
-							synchronized (dao) {
-								try {
+							dao.transaction(new UnitOfWork<Void>() {
+								@Override
+								public Void execute() throws SQLException {
 									dao.insertUser(user);
-									dao.commit();
-									serverSocket.sendSuccess("User \"" + username + "\" created.");
-								} catch (Exception e) {
-									dao.rollback();
-									throw e;
+									return null;
 								}
-							}
+							});
+							serverSocket.sendSuccess("User \"" + username + "\" created.");
 						} catch (Exception e) {
 							logger.log(Level.SEVERE, "Error creating user.", e);
 							serverSocket.sendError("Error creating user: " + e.getMessage());
@@ -242,7 +288,7 @@ public class AdminConnectionListener {
 
 						try {
 							//make sure user doesn't already exist
-							User user = dao.selectUser(username);
+							final User user = dao.selectUser(username);
 							if (user == null) {
 								serverSocket.sendError("User \"" + username + "\" does not exist.");
 								continue;
@@ -258,23 +304,20 @@ public class AdminConnectionListener {
 								user.fullName = newFullName;
 							}
 
-							synchronized (dao) {
-								try {
+							dao.transaction(new UnitOfWork<Void>() {
+								@Override
+								public Void execute() throws SQLException {
 									dao.updateUser(user);
-									dao.commit();
-									serverSocket.sendSuccess("User \"" + (newUsername == null ? username : newUsername) + "\" updated.");
-								} catch (Exception e) {
-									dao.rollback();
-									throw e;
+									return null;
 								}
-
-							}
+							});
+							serverSocket.sendSuccess("User \"" + (newUsername == null ? username : newUsername) + "\" updated.");
 						} catch (Exception e) {
 							logger.log(Level.SEVERE, "Error modifying user.", e);
 							serverSocket.sendError("Error modifying user: " + e.getMessage());
 						}
 					} else if ("DELETE_USER".equals(cmd)) {
-						String username = params.get("username");
+						final String username = params.get("username");
 
 						try {
 							if (!dao.doesMailboxExist(username)) {
@@ -282,20 +325,28 @@ public class AdminConnectionListener {
 								continue;
 							}
 
-							synchronized (dao) {
-								try {
+							dao.transaction(new UnitOfWork<Void>() {
+								@Override
+								public Void execute() throws SQLException {
 									dao.deleteUser(username);
-									dao.commit();
-									serverSocket.sendSuccess("User \"" + username + "\" deleted.");
-								} catch (Exception e) {
-									dao.rollback();
-									throw e;
+									return null;
 								}
-							}
+							});
+							serverSocket.sendSuccess("User \"" + username + "\" deleted.");
 						} catch (Exception e) {
 							logger.log(Level.SEVERE, "Error deleting user.", e);
 							serverSocket.sendError("Error deleting user: " + e.getMessage());
 						}
+					} else if ("DELIVERY_LIMITS".equals(cmd)) {
+						if (mailSender == null) {
+							serverSocket.sendError("Outbound delivery is not running.");
+							continue;
+						}
+
+						List<String> lines = new ArrayList<String>();
+						lines.add("Delivery limits:");
+						lines.addAll(mailSender.getDeliveryLimits());
+						serverSocket.sendSuccess(lines);
 					} else if ("SHUTDOWN".equals(cmd)) {
 						serverSocket.sendSuccess("Shutting down.");
 						shutdown = true;
@@ -0,0 +1,147 @@
+package sleet.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed-size pool of JDBC connections. Connections are opened lazily the
+ * first time they are needed and are re-used after they are released. Each
+ * connection keeps its own cache of prepared statements.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class ConnectionPool {
+	private static final Logger logger = Logger.getLogger(ConnectionPool.class.getName());
+
+	/**
+	 * How long to wait for a connection to become available before giving up.
+	 */
+	private static final long borrowTimeout = 30;
+
+	private final String jdbcUrl;
+	private final int maxSize;
+	private final int statementCacheSize;
+
+	/**
+	 * Statement cache counters of all the connections.
+	 */
+	private final AtomicLong statementCacheHits = new AtomicLong(), statementCacheMisses = new AtomicLong();
+
+	/**
+	 * Limits the number of connections that can be borrowed at once.
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * The connections that are open, but are not being used.
+	 */
+	private final BlockingQueue<PooledConnection> idle = new LinkedBlockingQueue<PooledConnection>();
+
+	/**
+	 * @param jdbcUrl the JDBC URL
+	 * @param maxSize the maximum number of connections
+	 * @param statementCacheSize the maximum number of prepared statements each
+	 * connection caches
+	 * @throws IllegalArgumentException if maxSize is not a positive integer
+	 */
+	public ConnectionPool(String jdbcUrl, int maxSize, int statementCacheSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Pool size must be a positive integer.");
+		}
+		this.jdbcUrl = jdbcUrl;
+		this.maxSize = maxSize;
+		this.statementCacheSize = statementCacheSize;
+		permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Gets a connection from the pool, opening a new one if necessary. If all
+	 * connections are in use, then this method blocks until one is released.
+	 * The connection must be given back with {@link #release}.
+	 * @return the connection
+	 * @throws SQLException if a new connection could not be opened or if no
+	 * connection became available in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		try {
+			if (!permits.tryAcquire(borrowTimeout, TimeUnit.SECONDS)) {
+				throw new SQLException("Timed out waiting for a database connection (pool size is " + maxSize + ").");
+			}
+		} catch (InterruptedException e) {
+			throw new SQLException("Interrupted while waiting for a database connection.", e);
+		}
+
+		try {
+			PooledConnection connection;
+			while ((connection = idle.poll()) != null) {
+				if (!connection.isClosed()) {
+					return connection;
+				}
+				connection.close();
+			}
+
+			Connection db = DriverManager.getConnection(jdbcUrl);
+			return new PooledConnection(db, statementCacheSize, statementCacheHits, statementCacheMisses);
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gives a connection back to the pool.
+	 * @param connection the connection
+	 */
+	public void release(PooledConnection connection) {
+		try {
+			if (connection.isClosed()) {
+				connection.close();
+			} else {
+				idle.add(connection);
+			}
+		} catch (SQLException e) {
+			logger.log(Level.WARNING, "Discarding broken database connection.", e);
+			connection.close();
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Gets the number of times a connection re-used a cached prepared
+	 * statement.
+	 * @return the number of cache hits
+	 */
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+
+	/**
+	 * Gets the number of times a connection had to prepare a statement because
+	 * it was not cached.
+	 * @return the number of cache misses
+	 */
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+
+	/**
+	 * Closes all the connections that are not being used.
+	 */
+	public void close() {
+		PooledConnection connection;
+		while ((connection = idle.poll()) != null) {
+			connection.close();
+		}
+	}
+}
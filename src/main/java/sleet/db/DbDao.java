@@ -1,15 +1,39 @@
 package sleet.db;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
- * Defines the data access object methods.
+ * Defines the data access object methods. Methods that modify the database
+ * should be called inside of a unit of work (see {@link #transaction}) so that
+ * their changes are committed or rolled back together. Methods that are called
+ * outside of a unit of work are committed as soon as they complete.
  * @author Mike Angstadt [mike.angstadt@gmail.com]
  */
 public interface DbDao {
+	/**
+	 * Runs a unit of work inside of a database transaction. The transaction is
+	 * committed if the unit of work completes successfully and rolled back if
+	 * it throws an exception. All DAO methods that the unit of work calls on
+	 * the current thread take part in the same transaction. If this method is
+	 * called while another unit of work is already running on the current
+	 * thread, then the new unit of work becomes part of the existing one. If
+	 * it is called from inside a DAO call that is not part of a unit of work
+	 * (such as the handler of a "foreach" method), then the unit of work runs
+	 * in its own transaction.
+	 * @param work the unit of work
+	 * @return the value returned by the unit of work
+	 * @throws SQLException if the unit of work throws an exception or the
+	 * transaction could not be committed
+	 */
+	<T> T transaction(UnitOfWork<T> work) throws SQLException;
+
 	/**
 	 * Gets the database schema version.
 	 * @return the version number
@@ -47,7 +71,17 @@ public interface DbDao {
 	void insertInboxEmail(Email email) throws SQLException;
 
 	/**
-	 * Adds the email to the outbox of the user who sent the email.
+	 * Adds emails to the inboxes of the users who are receiving them. The rows
+	 * are inserted in batches, so this is more efficient than calling
+	 * {@link #insertInboxEmail} for each email.
+	 * @param emails the emails that were received
+	 * @throws SQLException
+	 */
+	void insertInboxEmails(Collection<Email> emails) throws SQLException;
+
+	/**
+	 * Adds the email to the outbox of the user who sent the email. Nothing
+	 * happens if the email is already in the outbox.
 	 * @param email the email that was sent
 	 * @throws SQLException
 	 */
@@ -132,10 +166,10 @@ public interface DbDao {
 	/**
 	 * Gets all the emails in the user's inbox for a POP3 session.
 	 * @param user the user
-	 * @return the user's inbox emails
+	 * @return the user's inbox emails, newest first
 	 * @throws SQLException
 	 */
-	List<POPEmail> selectEmailsForPOP(User user) throws SQLException;
+	Maildrop selectMaildrop(User user) throws SQLException;
 
 	/**
 	 * Deletes emails from the user's inbox.
@@ -143,57 +177,205 @@ public interface DbDao {
 	 * @param emailIds the IDs of the emails to delete
 	 * @throws SQLException
 	 */
-	void deleteInboxEmails(User user, List<Integer> emailIds) throws SQLException;
+	void deleteInboxEmails(User user, int[] emailIds) throws SQLException;
+
+	/**
+	 * Adds the emails in the user's inbox that are newer than the last email
+	 * in an IMAP mailbox to the end of the mailbox. The IDs of the inbox rows
+	 * are used as the emails' unique IDs.
+	 * @param user the user
+	 * @param mailbox the mailbox (can be empty)
+	 * @return the number of emails that were added
+	 * @throws SQLException
+	 */
+	int selectInboxEmails(User user, Mailbox mailbox) throws SQLException;
+
+	/**
+	 * Marks emails in the user's inbox as read or unread.
+	 * @param user the user
+	 * @param uids the unique IDs of the emails (the IDs of the inbox rows)
+	 * @param seen true to mark them as read, false to mark them as unread
+	 * @throws SQLException
+	 */
+	void updateInboxSeen(User user, int[] uids, boolean seen) throws SQLException;
 
 	/**
-	 * Gets the body of an email.
+	 * Deletes emails from the user's inbox.
+	 * @param user the user
+	 * @param uids the unique IDs of the emails (the IDs of the inbox rows)
+	 * @throws SQLException
+	 */
+	void deleteInboxEmailsByUid(User user, int[] uids) throws SQLException;
+
+	/**
+	 * Registers a listener that is notified whenever emails are added to
+	 * users' inboxes.
+	 * @param listener the listener
+	 */
+	void addInboxListener(InboxListener listener);
+
+	/**
+	 * Unregisters an inbox listener.
+	 * @param listener the listener
+	 */
+	void removeInboxListener(InboxListener listener);
+
+	/**
+	 * Streams the data of an email, without loading it into memory. The
+	 * database connection is released before the handler is called, so the
+	 * handler can take as long as it needs (for example, to send the data to
+	 * a slow client).
 	 * @param emailId the email ID
-	 * @return the email's body or null if no email found
+	 * @param handler called with the email data
+	 * @return true if the email was found, false if not
 	 * @throws SQLException
-	 * @throws IOException
+	 * @throws IOException if the data couldn't be read or if the handler
+	 * throws an exception
 	 */
-	String selectEmailData(int emailId) throws SQLException, IOException;
+	boolean selectEmailData(int emailId, DataHandler handler) throws SQLException, IOException;
 
 	Email selectEmail(int emailId) throws SQLException, IOException;
 
 	void deleteEmail(Email email) throws SQLException;
 
+	/**
+	 * Deletes an email, but only if it isn't in anyone's inbox or outbox and
+	 * isn't waiting in the outbound queue.
+	 * @param email the email
+	 * @return true if the email was deleted, false if it is still being used
+	 * @throws SQLException
+	 */
+	boolean deleteEmailIfUnused(Email email) throws SQLException;
+
 	//Map<String, List<OutboundEmailGroup>> selectOutboundEmailGroups() throws SQLException, IOException;
 
 	/**
-	 * Selects the outbound email groups that should be sent.
-	 * @param transientRetryInterval
-	 * @param retryInterval
+	 * Selects every email in the outbound queue, without loading the emails
+	 * themselves. Only the ID, host, first attempt, and next attempt fields of
+	 * each group are populated. This is used to rebuild the in-memory outbound queue when
+	 * the server starts.
+	 * @return the outbound email groups, ordered by next attempt
+	 * @throws SQLException
+	 */
+	List<OutboundEmailGroup> selectOutboundQueue() throws SQLException;
+
+	/**
+	 * Selects outbound email groups, along with their emails. The groups are
+	 * loaded in batches, and an email that is going to multiple hosts is only
+	 * loaded once.
+	 * @param ids the IDs of the groups to select (IDs of groups that no longer
+	 * exist are ignored)
 	 * @return key = host name, value = outbound email groups that have
 	 * recipients belonging to that host
 	 * @throws SQLException
 	 * @throws IOException
 	 */
-	Map<String, List<OutboundEmailGroup>> selectOutboundEmailGroupsToSend(long transientRetryInterval, long retryInterval) throws SQLException, IOException;
+	Map<String, List<OutboundEmailGroup>> selectOutboundEmailGroups(Collection<Integer> ids) throws SQLException, IOException;
 
-	void updateOutboundEmailGroup(OutboundEmailGroup group) throws SQLException;
+	/**
+	 * Claims outbound email groups, so that no other thread or server sends
+	 * them at the same time. A group can only be claimed if nobody else has a
+	 * lease on it or if the lease has expired. Each group is claimed with a
+	 * single, conditional UPDATE statement, so two servers can never claim
+	 * the same group.
+	 * @param ids the IDs of the groups to claim
+	 * @param owner identifies who is claiming the groups
+	 * @param leaseExpires when the lease expires
+	 * @return the groups that still exist, with only the ID, next attempt,
+	 * and lease fields populated (a group was claimed if its lease owner is
+	 * equal to the given owner)
+	 * @throws SQLException
+	 */
+	List<OutboundEmailGroup> claimOutboundEmailGroups(Collection<Integer> ids, String owner, Date leaseExpires) throws SQLException;
 
-	void deleteOutboundEmailGroup(OutboundEmailGroup group) throws SQLException;
+	/**
+	 * Gives up the lease on outbound email groups without updating them.
+	 * @param ids the IDs of the groups
+	 * @param owner the owner of the lease (leases held by anyone else are not
+	 * touched)
+	 * @throws SQLException
+	 */
+	void releaseOutboundEmailGroups(Collection<Integer> ids, String owner) throws SQLException;
+
+	/**
+	 * Records a failed delivery attempt and gives up the lease on an outbound
+	 * email group. Nothing is changed if the given owner no longer holds the
+	 * lease.
+	 * @param group the group
+	 * @param owner the owner of the lease
+	 * @return true if the group was updated, false if the lease was lost
+	 * (another thread or server claimed the group after the lease expired)
+	 * @throws SQLException
+	 */
+	boolean updateOutboundEmailGroup(OutboundEmailGroup group, String owner) throws SQLException;
+
+	/**
+	 * Removes an outbound email group from the queue. Nothing is changed if
+	 * the given owner no longer holds the lease.
+	 * @param group the group
+	 * @param owner the owner of the lease
+	 * @return true if the group was deleted, false if the lease was lost
+	 * (another thread or server claimed the group after the lease expired)
+	 * @throws SQLException
+	 */
+	boolean deleteOutboundEmailGroup(OutboundEmailGroup group, String owner) throws SQLException;
 
 	void insertOutboundEmailGroup(OutboundEmailGroup group) throws SQLException;
 
 	/**
-	 * Commits the current database transaction.
+	 * Adds emails to the outbound queue. The recipients of all the groups are
+	 * inserted in a single batch.
+	 * @param groups the groups to insert
 	 * @throws SQLException
 	 */
-	void commit() throws SQLException;
+	void insertOutboundEmailGroups(Collection<OutboundEmailGroup> groups) throws SQLException;
 
 	/**
-	 * Rollsback the current database transaction.
+	 * Gets the message store that the data of emails is saved to.
+	 * @return the message store or null if email data is saved in the
+	 * database
 	 */
-	void rollback();
+	MessageStore getMessageStore();
 
 	/**
-	 * Closes the database connection.
+	 * Closes the database connections.
 	 * @throws SQLException
 	 */
 	void close() throws SQLException;
 
+	/**
+	 * A group of DAO calls that must be committed together.
+	 * @param <T> the type of value the unit of work returns
+	 */
+	interface UnitOfWork<T> {
+		/**
+		 * Performs the work.
+		 * @return the result of the work (can be null)
+		 * @throws SQLException
+		 */
+		T execute() throws SQLException;
+	}
+
+	interface DataHandler {
+		/**
+		 * Reads the data of an email.
+		 * @param data the email data, exactly as it is sent over the wire
+		 * (the reader is closed once this method returns)
+		 * @throws IOException
+		 */
+		void handle(Reader data) throws IOException;
+	}
+
+	interface InboxListener {
+		/**
+		 * Called once emails have been added to users' inboxes and the
+		 * changes have been committed. This is called from the thread that
+		 * added the emails, so it should return quickly.
+		 * @param usernames the users whose inboxes changed (in lower case)
+		 */
+		void emailsReceived(Set<String> usernames);
+	}
+
 	interface EmailHandler {
 		/**
 		 * Defines how to handle each email in the result set.
@@ -2,26 +2,36 @@ package sleet.db;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.StringReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
 import java.sql.Clob;
-import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.IOUtils;
 
 import sleet.ClasspathUtils;
+import sleet.email.DataSpool;
 import sleet.email.EmailAddress;
 import sleet.email.EmailData;
 
@@ -35,21 +45,66 @@ public abstract class DirbyDbDao implements DbDao {
 	/**
 	 * The current version of the database schema.
 	 */
-	private static final int schemaVersion = 1;
+	private static final int schemaVersion = 6;
 
 	/**
-	 * The database connection.
+	 * The default maximum number of database connections.
 	 */
-	private Connection db;
+	public static final int defaultPoolSize = 10;
+
+	/**
+	 * The maximum number of prepared statements each database connection
+	 * caches.
+	 */
+	private static final int statementCacheSize = 64;
+
+	/**
+	 * The number of IDs that go in the "IN" clause of each query that loads
+	 * outbound emails. Every query has this many parameters (the unused ones
+	 * are set to -1) so that the same prepared statement can be cached and
+	 * re-used.
+	 */
+	private static final int outboundPageSize = 50;
+
+	/**
+	 * The database connections.
+	 */
+	private ConnectionPool pool;
+
+	/**
+	 * The connection that the current thread is using (if any).
+	 */
+	private final ThreadLocal<BoundConnection> bound = new ThreadLocal<BoundConnection>();
+
+	/**
+	 * Where the data of new emails is saved or null to save it in the
+	 * database.
+	 */
+	private MessageStore messageStore;
+
+	/**
+	 * The message store keys that are referred to by emails whose units of
+	 * work haven't finished yet (key = message store key, value = number of
+	 * emails). Their data must not be deleted, even if no committed rows refer
+	 * to it yet.
+	 */
+	private final Map<String, Integer> pinnedKeys = new HashMap<String, Integer>();
+
+	/**
+	 * The listeners that are notified when emails are added to users'
+	 * inboxes.
+	 */
+	private final List<InboxListener> inboxListeners = new CopyOnWriteArrayList<InboxListener>();
 
 	/**
 	 * Connects to the database and creates the database from scratch if it
 	 * doesn't exist.
 	 * @param jdbcUrl the JDBC URL
 	 * @param create true to create the database schema, false not to
+	 * @param poolSize the maximum number of database connections
 	 * @throws SQLException
 	 */
-	protected void init(String jdbcUrl, boolean create) throws SQLException {
+	protected void init(String jdbcUrl, boolean create, int poolSize) throws SQLException {
 		logger.info("Starting database...");
 
 		//shutdown Derby when the program terminates
@@ -73,182 +128,342 @@ public abstract class DirbyDbDao implements DbDao {
 			throw new SQLException("Database driver not on classpath.", e);
 		}
 
-		//create the connection
+		//create the connection pool
 		if (create) {
 			jdbcUrl += ";create=true";
 		}
-		db = DriverManager.getConnection(jdbcUrl);
-		db.setAutoCommit(false); // default is true
+		pool = new ConnectionPool(jdbcUrl, poolSize, statementCacheSize);
 
 		//create tables if database doesn't exist
 		if (create) {
 			logger.info("Database not found.  Creating the database...");
-			String sql = null;
-			SQLStatementReader in = null;
-			String schemaFileName = "schema.sql";
-			Statement statement = null;
-			try {
-				in = new SQLStatementReader(new InputStreamReader(ClasspathUtils.getResourceAsStream(schemaFileName, getClass())));
-				statement = db.createStatement();
-				while ((sql = in.readStatement()) != null) {
-					statement.execute(sql);
-				}
-				sql = null;
-				insertDbVersion(schemaVersion);
-			} catch (IOException e) {
-				throw new SQLException("Error creating database.", e);
-			} catch (SQLException e) {
-				if (sql == null){
-					throw e;
+			transaction(new UnitOfWork<Void>() {
+				@Override
+				public Void execute() throws SQLException {
+					createSchema();
+					return null;
 				}
-				throw new SQLException("Error executing SQL statement: " + sql, e);
-			} finally {
-				IOUtils.closeQuietly(in);
-				if (statement != null) {
-					try {
-						statement.close();
-					} catch (SQLException e) {
-						//ignore
-					}
-				}
-			}
-			commit();
+			});
 		} else {
 			//update the database schema if it's not up to date
-			int version = selectDbVersion();
+			final int version = selectDbVersion();
 			if (version < schemaVersion) {
 				logger.info("Database schema out of date.  Upgrading from version " + version + " to " + schemaVersion + ".");
-				String sql = null;
-				Statement statement = null;
-				try {
-					statement = db.createStatement();
-					while (version < schemaVersion) {
-						logger.info("Performing schema update from version " + version + " to " + (version + 1) + ".");
-						
-						String script = "migrate-" + version + "-" + (version + 1) + ".sql";
-						SQLStatementReader in = null;
-						try{
-							in = new SQLStatementReader(new InputStreamReader(ClasspathUtils.getResourceAsStream(script, getClass())));
-							while ((sql = in.readStatement()) != null) {
-								statement.execute(sql);
-							}
-							sql = null;
-						} finally {
-							IOUtils.closeQuietly(in);
-						}
-						
-						version++;
+				transaction(new UnitOfWork<Void>() {
+					@Override
+					public Void execute() throws SQLException {
+						migrateSchema(version);
+						return null;
 					}
-					updateDbVersion(schemaVersion);
-				} catch (IOException e) {
-					rollback();
-					throw new SQLException("Error updating database schema.", e);
-				} catch (SQLException e) {
-					rollback();
-					if (sql == null){
-						throw e;
+				});
+			}
+		}
+	}
+
+	/**
+	 * Creates the database tables.
+	 * @throws SQLException
+	 */
+	private void createSchema() throws SQLException {
+		String sql = null;
+		SQLStatementReader in = null;
+		String schemaFileName = "schema.sql";
+		Statement statement = null;
+		PooledConnection db = connection();
+		try {
+			in = new SQLStatementReader(new InputStreamReader(ClasspathUtils.getResourceAsStream(schemaFileName, getClass())));
+			statement = db.createStatement();
+			while ((sql = in.readStatement()) != null) {
+				statement.execute(sql);
+			}
+			sql = null;
+			insertDbVersion(schemaVersion);
+		} catch (IOException e) {
+			throw new SQLException("Error creating database.", e);
+		} catch (SQLException e) {
+			if (sql == null){
+				throw e;
+			}
+			throw new SQLException("Error executing SQL statement: " + sql, e);
+		} finally {
+			IOUtils.closeQuietly(in);
+			db.closeStatements(statement);
+			release();
+		}
+	}
+
+	/**
+	 * Updates the database schema to the latest version.
+	 * @param version the current schema version
+	 * @throws SQLException
+	 */
+	private void migrateSchema(int version) throws SQLException {
+		String sql = null;
+		Statement statement = null;
+		PooledConnection db = connection();
+		try {
+			statement = db.createStatement();
+			while (version < schemaVersion) {
+				logger.info("Performing schema update from version " + version + " to " + (version + 1) + ".");
+				
+				String script = "migrate-" + version + "-" + (version + 1) + ".sql";
+				SQLStatementReader in = null;
+				try{
+					in = new SQLStatementReader(new InputStreamReader(ClasspathUtils.getResourceAsStream(script, getClass())));
+					while ((sql = in.readStatement()) != null) {
+						statement.execute(sql);
 					}
-					throw new SQLException("Error executing SQL statement during schema update: " + sql, e);
+					sql = null;
 				} finally {
-					if (statement != null) {
-						try {
-							statement.close();
-						} catch (SQLException e) {
-							//ignore
-						}
-					}
+					IOUtils.closeQuietly(in);
 				}
-				commit();
+				
+				version++;
+			}
+			updateDbVersion(schemaVersion);
+		} catch (IOException e) {
+			throw new SQLException("Error updating database schema.", e);
+		} catch (SQLException e) {
+			if (sql == null){
+				throw e;
 			}
+			throw new SQLException("Error executing SQL statement during schema update: " + sql, e);
+		} finally {
+			db.closeStatements(statement);
+			release();
 		}
 	}
-	
+
+	@Override
+	public <T> T transaction(UnitOfWork<T> work) throws SQLException {
+		BoundConnection outer = bound.get();
+		if (outer != null && outer.transaction) {
+			//join the unit of work that is already running
+			return work.execute();
+		}
+
+		/*
+		 * If the thread is in the middle of an auto-commit DAO call (for
+		 * example, a callback of a "foreach" method), then that connection
+		 * can't take part in the unit of work, since every statement it runs is
+		 * committed right away. Put it aside and give the unit of work its own
+		 * connection.
+		 */
+		PooledConnection db = pool.borrow();
+		BoundConnection binding = new BoundConnection(db);
+		binding.transaction = true;
+		bound.set(binding);
+		boolean committed = false;
+		try {
+			db.setAutoCommit(false);
+			binding.depth++;
+			T result = work.execute();
+			db.commit();
+			committed = true;
+			return result;
+		} catch (SQLException e) {
+			rollback(db);
+			throw e;
+		} catch (RuntimeException e) {
+			rollback(db);
+			throw e;
+		} finally {
+			if (outer == null) {
+				bound.remove();
+			} else {
+				bound.set(outer);
+			}
+			pool.release(db);
+
+			if (committed) {
+				run(binding.afterCommit);
+			}
+			run(binding.afterCompletion);
+		}
+	}
+
 	@Override
 	public int selectDbVersion() throws SQLException {
 		PreparedStatement statement = null;
+		PooledConnection db = connection();
 		try {
 			statement = db.prepareStatement("SELECT db_schema_version FROM sleet");
 			ResultSet rs = statement.executeQuery();
 			return rs.next() ? rs.getInt("db_schema_version") : 0;
 		} finally {
-			closeStatements(statement);
+			db.closeStatements(statement);
+			release();
 		}
 	}
 	
 	@Override
 	public void updateDbVersion(int version) throws SQLException {
 		PreparedStatement statement = null;
+		PooledConnection db = connection();
 		try {
 			statement = db.prepareStatement("UPDATE sleet SET db_schema_version = ?");
 			statement.setInt(1, version);
 			statement.execute();
 		} finally {
-			closeStatements(statement);
+			db.closeStatements(statement);
+			release();
 		}
 	}
 	
 	@Override
 	public void insertDbVersion(int version) throws SQLException {
 		PreparedStatement statement = null;
+		PooledConnection db = connection();
 		try {
 			statement = db.prepareStatement("INSERT INTO sleet (db_schema_version) VALUES (?)");
 			statement.setInt(1, version);
 			statement.execute();
 		} finally {
-			closeStatements(statement);
+			db.closeStatements(statement);
+			release();
 		}
 	}
 
 	@Override
 	public void insertEmail(Email email) throws SQLException {
+		insertEmails(Arrays.asList(email));
+	}
+
+	/**
+	 * Inserts emails. The emails are inserted one at a time (so their
+	 * generated IDs can be retrieved), but their recipients are all inserted
+	 * in a single batch.
+	 * @param emails the emails to insert
+	 * @throws SQLException
+	 */
+	private void insertEmails(Collection<Email> emails) throws SQLException {
 		PreparedStatement insertEmail = null;
 		PreparedStatement insertRecipient = null;
+		PooledConnection db = connection();
 		try {
-			//insert the email
-			insertEmail = db.prepareStatement("INSERT INTO emails (sender, data) VALUES (?, ?)", Statement.RETURN_GENERATED_KEYS);
-			insertEmail.setString(1, email.sender.getAddress());
-			insertEmail.setClob(2, new StringReader(email.data.toData()));
-			insertEmail.execute();
+			//insert the emails
+			insertEmail = db.prepareStatement("INSERT INTO emails (sender, data, data_key, size, header_length, uid) VALUES (?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+			for (Email email : emails) {
+				insertEmail.setString(1, email.sender.getAddress());
+				insertEmail.setString(6, UUID.randomUUID().toString().replace("-", ""));
+
+				//stream the data so large emails are never fully loaded into memory
+				Reader data = null;
+				String key = null;
+				try {
+					MeasuringReader measurer;
+					if (messageStore == null) {
+						//the size has to be set before the data is streamed into the CLOB, so it is measured separately
+						measurer = new MeasuringReader(email.data.toDataReader());
+						try {
+							measurer.readToEnd();
+						} finally {
+							IOUtils.closeQuietly(measurer);
+						}
 
-			//get the value of row's generated ID
-			ResultSet rs = insertEmail.getGeneratedKeys();
-			rs.next();
-			email.id = rs.getInt(1);
+						data = email.data.toDataReader();
+						insertEmail.setClob(2, data);
+						insertEmail.setNull(3, Types.CHAR);
+					} else {
+						measurer = new MeasuringReader(email.data.toDataReader());
+						data = measurer;
+						key = putData(email.data, measurer);
+						insertEmail.setNull(2, Types.CLOB);
+						insertEmail.setString(3, key);
+					}
+					insertEmail.setLong(4, measurer.getSize());
+					insertEmail.setLong(5, measurer.getHeaderLength());
+					insertEmail.execute();
+				} catch (IOException e) {
+					throw new SQLException("Could not read email data.", e);
+				} finally {
+					IOUtils.closeQuietly(data);
+					if (key != null) {
+						final String pinnedKey = key;
+						afterCompletion(new Runnable() {
+							@Override
+							public void run() {
+								unpin(pinnedKey);
+							}
+						});
+					}
+				}
 
-			//insert each recipient into the database
+				//get the value of row's generated ID
+				ResultSet rs = insertEmail.getGeneratedKeys();
+				rs.next();
+				email.id = rs.getInt(1);
+				rs.close();
+			}
+
+			//insert the recipients of every email
 			insertRecipient = db.prepareStatement("INSERT INTO recipients (email_id, recipient) VALUES (?, ?)");
-			insertRecipient.setInt(1, email.id);
-			for (EmailAddress recipient : email.recipients) {
-				insertRecipient.setString(2, recipient.getAddress());
-				insertRecipient.execute();
+			for (Email email : emails) {
+				insertRecipient.setInt(1, email.id);
+				for (EmailAddress recipient : email.recipients) {
+					insertRecipient.setString(2, recipient.getAddress());
+					insertRecipient.addBatch();
+				}
 			}
+			insertRecipient.executeBatch();
 		} finally {
-			closeStatements(insertEmail, insertRecipient);
+			db.closeStatements(insertEmail, insertRecipient);
+			release();
 		}
 	}
 
 	@Override
 	public void insertInboxEmail(Email email) throws SQLException {
-		//insert the email into the database
-		if (email.id == null) {
-			insertEmail(email);
+		insertInboxEmails(Arrays.asList(email));
+	}
+
+	@Override
+	public void insertInboxEmails(Collection<Email> emails) throws SQLException {
+		//insert the emails into the database
+		List<Email> newEmails = new ArrayList<Email>();
+		for (Email email : emails) {
+			if (email.id == null) {
+				newEmails.add(email);
+			}
+		}
+		if (!newEmails.isEmpty()) {
+			insertEmails(newEmails);
 		}
 
+		final Set<String> usernames = new HashSet<String>();
 		PreparedStatement insertInbox = null;
+		PooledConnection db = connection();
 		try {
-			insertInbox = db.prepareStatement("INSERT INTO inbox_emails (email_id, received, user_id) VALUES (?, ?, ?)");
-			insertInbox.setInt(1, email.id);
-			insertInbox.setTimestamp(2, new java.sql.Timestamp(System.currentTimeMillis()));
-			for (EmailAddress recipient : email.recipients) {
-				String mailbox = recipient.getMailbox();
-				Integer userId = selectUserId(mailbox);
-				if (userId != null) {
-					insertInbox.setInt(3, userId);
-					insertInbox.execute();
+			//the user IDs are looked up by the INSERT statement itself
+			//recipients that do not belong to a user do not match any rows and are skipped
+			insertInbox = db.prepareStatement("INSERT INTO inbox_emails (email_id, received, user_id) SELECT CAST(? AS INTEGER), CAST(? AS TIMESTAMP), id FROM users WHERE username = ?");
+			insertInbox.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+			for (Email email : emails) {
+				insertInbox.setInt(1, email.id);
+				for (EmailAddress recipient : email.recipients) {
+					//all usernames are stored in lower case
+					String username = recipient.getMailbox().toLowerCase();
+					insertInbox.setString(3, username);
+					insertInbox.addBatch();
+					usernames.add(username);
 				}
 			}
+			insertInbox.executeBatch();
 		} finally {
-			closeStatements(insertInbox);
+			db.closeStatements(insertInbox);
+			release();
+		}
+
+		//the listeners query the new emails with their own connections, so they can only be told once the emails are committed
+		if (!inboxListeners.isEmpty()) {
+			afterCommit(new Runnable() {
+				@Override
+				public void run() {
+					for (InboxListener listener : inboxListeners) {
+						listener.emailsReceived(usernames);
+					}
+				}
+			});
 		}
 	}
 
@@ -260,35 +475,20 @@ public abstract class DirbyDbDao implements DbDao {
 		}
 
 		PreparedStatement insertOutbox = null;
+		PooledConnection db = connection();
 		try {
-			insertOutbox = db.prepareStatement("INSERT INTO outbox_emails (email_id, sent, user_id) VALUES (?, ?, ?)");
+			//an email can be added more than once (for example, once for each host it was sent to), but it only goes in the outbox once
+			insertOutbox = db.prepareStatement("INSERT INTO outbox_emails (email_id, sent, user_id) SELECT CAST(? AS INTEGER), CAST(? AS TIMESTAMP), id FROM users WHERE username = ? AND NOT EXISTS (SELECT 1 FROM outbox_emails WHERE email_id = ?)");
 			insertOutbox.setInt(1, email.id);
-			insertOutbox.setTimestamp(2, new java.sql.Timestamp(System.currentTimeMillis()));
+			insertOutbox.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
 
-			String mailbox = email.sender.getMailbox();
-			Integer userId = selectUserId(mailbox);
-			if (userId != null) {
-				insertOutbox.setInt(3, userId);
-				insertOutbox.execute();
-			}
+			//all usernames are stored in lower case
+			insertOutbox.setString(3, email.sender.getMailbox().toLowerCase());
+			insertOutbox.setInt(4, email.id);
+			insertOutbox.execute();
 		} finally {
-			closeStatements(insertOutbox);
-		}
-	}
-
-	private Integer selectUserId(String username) throws SQLException {
-		//all usernames are stored in lower case
-		username = username.toLowerCase();
-
-		PreparedStatement userQuery = null;
-		try {
-			//check for a user with this name
-			userQuery = db.prepareStatement("SELECT id FROM users WHERE username = ?");
-			userQuery.setString(1, username);
-			ResultSet rs = userQuery.executeQuery();
-			return rs.next() ? rs.getInt("id") : null;
-		} finally {
-			closeStatements(userQuery);
+			db.closeStatements(insertOutbox);
+			release();
 		}
 	}
 
@@ -296,6 +496,7 @@ public abstract class DirbyDbDao implements DbDao {
 	public Email selectEmail(int emailId) throws IOException, SQLException {
 		PreparedStatement selectEmail = null;
 		PreparedStatement selectRecipients = null;
+		PooledConnection db = connection();
 		try {
 			Email email = null;
 			selectEmail = db.prepareStatement("SELECT * FROM emails WHERE id = ?");
@@ -307,9 +508,7 @@ public abstract class DirbyDbDao implements DbDao {
 				email.id = emailRs.getInt("id");
 				email.sender = new EmailAddress(emailRs.getString("sender"));
 
-				Clob clob = emailRs.getClob("data");
-				email.data = new EmailData(IOUtils.toString(clob.getCharacterStream()));
-				clob.free();
+				email.data = new EmailData(readData(emailRs));
 
 				selectRecipients.setInt(1, email.id);
 				ResultSet recipRs = selectRecipients.executeQuery();
@@ -320,7 +519,8 @@ public abstract class DirbyDbDao implements DbDao {
 			}
 			return email;
 		} finally {
-			closeStatements(selectEmail, selectRecipients);
+			db.closeStatements(selectEmail, selectRecipients);
+			release();
 		}
 	}
 
@@ -342,6 +542,7 @@ public abstract class DirbyDbDao implements DbDao {
 	public void foreachEmail(EmailHandler handler) throws SQLException, IOException {
 		PreparedStatement selectEmails = null;
 		PreparedStatement selectRecipients = null;
+		PooledConnection db = connection();
 		try {
 			selectEmails = db.prepareStatement("SELECT * FROM emails");
 			selectRecipients = db.prepareStatement("SELECT recipient FROM recipients WHERE email_id = ?");
@@ -351,9 +552,7 @@ public abstract class DirbyDbDao implements DbDao {
 				email.id = emailsRs.getInt("id");
 				email.sender = new EmailAddress(emailsRs.getString("sender"));
 
-				Clob clob = emailsRs.getClob("data");
-				email.data = new EmailData(IOUtils.toString(clob.getCharacterStream()));
-				clob.free();
+				email.data = new EmailData(readData(emailsRs));
 
 				selectRecipients.setInt(1, email.id);
 				ResultSet recipRs = selectRecipients.executeQuery();
@@ -365,66 +564,261 @@ public abstract class DirbyDbDao implements DbDao {
 				handler.handleRow(email);
 			}
 		} finally {
-			closeStatements(selectEmails, selectRecipients);
+			db.closeStatements(selectEmails, selectRecipients);
+			release();
 		}
 	}
 
 	@Override
-	public List<POPEmail> selectEmailsForPOP(User user) throws SQLException {
+	public Maildrop selectMaildrop(User user) throws SQLException {
 		PreparedStatement selectEmails = null;
+		PooledConnection db = connection();
 		try {
-			selectEmails = db.prepareStatement("SELECT e.id, e.data FROM inbox_emails ie INNER JOIN emails e ON ie.email_id = e.id WHERE ie.user_id = ? ORDER BY ie.received DESC");
+			//only the narrow metadata columns are read, so the email data is never touched
+			selectEmails = db.prepareStatement("SELECT e.id, e.data_key, e.size, e.header_length, e.uid FROM inbox_emails ie INNER JOIN emails e ON ie.email_id = e.id WHERE ie.user_id = ? ORDER BY ie.received DESC");
 			selectEmails.setInt(1, user.id);
 			ResultSet emailsRs = selectEmails.executeQuery();
-			int popId = 1;
-			List<POPEmail> emails = new ArrayList<POPEmail>();
+			Maildrop maildrop = new Maildrop();
 			while (emailsRs.next()) {
-				POPEmail email = new POPEmail();
-				email.setDbId(emailsRs.getInt("id"));
-				email.setPopId(popId);
-				Clob body = emailsRs.getClob("data");
-				email.setSize(body.length());
-				body.free();
-				emails.add(email);
-				popId++;
+				int id = emailsRs.getInt("id");
+				String dataKey = emailsRs.getString("data_key");
+				String uid = emailsRs.getString("uid");
+
+				long headerLength = emailsRs.getLong("header_length");
+				if (emailsRs.wasNull()) {
+					headerLength = -1;
+				}
+
+				long size = selectSize(emailsRs, id, dataKey);
+				maildrop.add(id, size, headerLength, dataKey, uid);
 			}
-			return emails;
+			return maildrop;
 		} finally {
-			closeStatements(selectEmails);
+			db.closeStatements(selectEmails);
+			release();
+		}
+	}
+
+	/**
+	 * Gets the size of an email from the "size" column of a result set.
+	 * @param rs the result set
+	 * @param emailId the ID of the email
+	 * @param dataKey the key of the email's data in the message store or null
+	 * if it's stored in the database
+	 * @return the size
+	 * @throws SQLException
+	 */
+	private long selectSize(ResultSet rs, int emailId, String dataKey) throws SQLException {
+		long size = rs.getLong("size");
+		if (!rs.wasNull()) {
+			return size;
+		}
+
+		if (dataKey == null) {
+			//emails that were saved to the database before sizes were recorded
+			return measureEmail(emailId);
+		}
+
+		//emails that were saved to the message store before sizes were recorded
+		try {
+			return messageStore().size(dataKey) + 2;
+		} catch (IOException e) {
+			throw new SQLException("Could not get size of email " + emailId + ".", e);
 		}
 	}
 
+	/**
+	 * Measures an email that was saved to the database before sizes were
+	 * recorded, and records its size so that it only has to be measured once.
+	 * @param emailId the ID of the email
+	 * @return the size
+	 * @throws SQLException
+	 */
+	private long measureEmail(int emailId) throws SQLException {
+		PreparedStatement selectData = null;
+		PreparedStatement updateSize = null;
+		PooledConnection db = connection();
+		try {
+			selectData = db.prepareStatement("SELECT data FROM emails WHERE id = ?");
+			selectData.setInt(1, emailId);
+			ResultSet rs = selectData.executeQuery();
+			Reader data = rs.next() ? rs.getCharacterStream("data") : null;
+			if (data == null) {
+				return 0;
+			}
+
+			MeasuringReader measurer = new MeasuringReader(data);
+			try {
+				measurer.readToEnd();
+			} catch (IOException e) {
+				throw new SQLException("Could not measure email " + emailId + ".", e);
+			} finally {
+				IOUtils.closeQuietly(measurer);
+			}
+
+			updateSize = db.prepareStatement("UPDATE emails SET size = ?, header_length = ? WHERE id = ?");
+			updateSize.setLong(1, measurer.getSize());
+			updateSize.setLong(2, measurer.getHeaderLength());
+			updateSize.setInt(3, emailId);
+			updateSize.execute();
+
+			return measurer.getSize();
+		} finally {
+			db.closeStatements(selectData, updateSize);
+			release();
+		}
+	}
+
+	@Override
+	public int selectInboxEmails(User user, Mailbox mailbox) throws SQLException {
+		PreparedStatement selectEmails = null;
+		PooledConnection db = connection();
+		try {
+			selectEmails = db.prepareStatement("SELECT ie.id AS uid, ie.received, ie.seen, e.id, e.data_key, e.size FROM inbox_emails ie INNER JOIN emails e ON ie.email_id = e.id WHERE ie.user_id = ? AND ie.id > ? ORDER BY ie.id");
+			selectEmails.setInt(1, user.id);
+			selectEmails.setInt(2, mailbox.getLastUid());
+			ResultSet emailsRs = selectEmails.executeQuery();
+			int added = 0;
+			while (emailsRs.next()) {
+				int id = emailsRs.getInt("id");
+				String dataKey = emailsRs.getString("data_key");
+				long size = selectSize(emailsRs, id, dataKey);
+				long received = emailsRs.getTimestamp("received").getTime();
+				boolean seen = emailsRs.getInt("seen") != 0;
+
+				mailbox.add(emailsRs.getInt("uid"), id, size, received, dataKey, seen);
+				added++;
+			}
+			return added;
+		} finally {
+			db.closeStatements(selectEmails);
+			release();
+		}
+	}
+
+	@Override
+	public void updateInboxSeen(User user, int[] uids, boolean seen) throws SQLException {
+		PreparedStatement updateSeen = null;
+		PooledConnection db = connection();
+		try {
+			updateSeen = db.prepareStatement("UPDATE inbox_emails SET seen = ? WHERE user_id = ? AND id = ?");
+			updateSeen.setInt(1, seen ? 1 : 0);
+			updateSeen.setInt(2, user.id);
+			for (int uid : uids) {
+				updateSeen.setInt(3, uid);
+				updateSeen.addBatch();
+			}
+			updateSeen.executeBatch();
+		} finally {
+			db.closeStatements(updateSeen);
+			release();
+		}
+	}
+
+	@Override
+	public void deleteInboxEmailsByUid(User user, int[] uids) throws SQLException {
+		PreparedStatement deleteEmails = null;
+		PooledConnection db = connection();
+		try {
+			deleteEmails = db.prepareStatement("DELETE FROM inbox_emails WHERE user_id = ? AND id = ?");
+			deleteEmails.setInt(1, user.id);
+			for (int uid : uids) {
+				deleteEmails.setInt(2, uid);
+				deleteEmails.addBatch();
+			}
+			deleteEmails.executeBatch();
+		} finally {
+			db.closeStatements(deleteEmails);
+			release();
+		}
+	}
+
+	@Override
+	public void addInboxListener(InboxListener listener) {
+		inboxListeners.add(listener);
+	}
+
+	@Override
+	public void removeInboxListener(InboxListener listener) {
+		inboxListeners.remove(listener);
+	}
+
 	@Override
-	public void deleteInboxEmails(User user, List<Integer> emailIds) throws SQLException {
+	public void deleteInboxEmails(User user, int[] emailIds) throws SQLException {
 		PreparedStatement deleteEmails = null;
+		PooledConnection db = connection();
 		try {
 			deleteEmails = db.prepareStatement("DELETE FROM inbox_emails WHERE user_id = ? and email_id = ?");
 			deleteEmails.setInt(1, user.id);
-			for (Integer emailId : emailIds) {
+			for (int emailId : emailIds) {
 				deleteEmails.setInt(2, emailId);
-				deleteEmails.execute();
+				deleteEmails.addBatch();
 			}
+			deleteEmails.executeBatch();
 		} finally {
-			closeStatements(deleteEmails);
+			db.closeStatements(deleteEmails);
+			release();
 		}
 	}
 
 	@Override
-	public String selectEmailData(int emailId) throws SQLException, IOException {
-		PreparedStatement emailBody = null;
+	public boolean selectEmailData(int emailId, DataHandler handler) throws SQLException, IOException {
+		Reader reader = null;
+		DataSpool spool = null;
 		try {
-			emailBody = db.prepareStatement("SELECT data FROM emails WHERE id = ?");
-			emailBody.setInt(1, emailId);
-			ResultSet rs = emailBody.executeQuery();
-			if (rs.next()) {
-				Clob clob = rs.getClob("data");
-				String body = IOUtils.toString(clob.getCharacterStream());
-				clob.free();
-				return body;
+			PreparedStatement emailBody = null;
+			PooledConnection db = connection();
+			try {
+				emailBody = db.prepareStatement("SELECT data, data_key FROM emails WHERE id = ?");
+				emailBody.setInt(1, emailId);
+				ResultSet rs = emailBody.executeQuery();
+				if (!rs.next()) {
+					return false;
+				}
+
+				String key = rs.getString("data_key");
+				if (key == null) {
+					//the CLOB can only be read while the connection is held, so it is copied out first
+					//otherwise, a client that downloads the email slowly would keep the connection from being used by anyone else
+					spool = new DataSpool();
+					copyClob(rs.getClob("data"), spool);
+					reader = spool.openReader();
+				} else {
+					reader = messageStore().open(key);
+				}
+			} finally {
+				db.closeStatements(emailBody);
+				release();
 			}
-			return null;
+
+			handler.handle(reader);
+			return true;
 		} finally {
-			closeStatements(emailBody);
+			IOUtils.closeQuietly(reader);
+			if (spool != null) {
+				spool.close();
+			}
+		}
+	}
+
+	/**
+	 * Copies the contents of a CLOB to a spool and frees the CLOB.
+	 * @param clob the CLOB
+	 * @param spool the spool
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	private static void copyClob(Clob clob, DataSpool spool) throws SQLException, IOException {
+		Reader reader = clob.getCharacterStream();
+		try {
+			char buffer[] = new char[8192];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				spool.append(CharBuffer.wrap(buffer, 0, read));
+			}
+		} finally {
+			IOUtils.closeQuietly(reader);
+			clob.free();
 		}
 	}
 
@@ -432,6 +826,7 @@ public abstract class DirbyDbDao implements DbDao {
 	public void foreachInboxEmail(User user, EmailHandler handler) throws SQLException, IOException {
 		PreparedStatement selectEmails = null;
 		PreparedStatement selectRecipients = null;
+		PooledConnection db = connection();
 		try {
 			selectEmails = db.prepareStatement("SELECT e.* FROM inbox_emails ie INNER JOIN emails e ON ie.email_id = e.id WHERE ie.user_id = ?");
 			selectEmails.setInt(1, user.id);
@@ -442,9 +837,7 @@ public abstract class DirbyDbDao implements DbDao {
 				email.id = emailsRs.getInt("id");
 				email.sender = new EmailAddress(emailsRs.getString("sender"));
 
-				Clob clob = emailsRs.getClob("data");
-				email.data = new EmailData(IOUtils.toString(clob.getCharacterStream()));
-				clob.free();
+				email.data = new EmailData(readData(emailsRs));
 
 				selectRecipients.setInt(1, email.id);
 				ResultSet recipRs = selectRecipients.executeQuery();
@@ -456,7 +849,8 @@ public abstract class DirbyDbDao implements DbDao {
 				handler.handleRow(email);
 			}
 		} finally {
-			closeStatements(selectEmails, selectRecipients);
+			db.closeStatements(selectEmails, selectRecipients);
+			release();
 		}
 	}
 
@@ -467,6 +861,7 @@ public abstract class DirbyDbDao implements DbDao {
 
 		PreparedStatement userCount = null;
 		PreparedStatement mailingListCount = null;
+		PooledConnection db = connection();
 		try {
 			boolean exists;
 
@@ -488,7 +883,8 @@ public abstract class DirbyDbDao implements DbDao {
 
 			return exists;
 		} finally {
-			closeStatements(userCount, mailingListCount);
+			db.closeStatements(userCount, mailingListCount);
+			release();
 		}
 	}
 
@@ -498,6 +894,7 @@ public abstract class DirbyDbDao implements DbDao {
 		username = username.toLowerCase();
 
 		PreparedStatement userQuery = null;
+		PooledConnection db = connection();
 		try {
 			User user = null;
 			userQuery = db.prepareStatement("SELECT * FROM users WHERE username = ?");
@@ -512,7 +909,8 @@ public abstract class DirbyDbDao implements DbDao {
 			}
 			return user;
 		} finally {
-			closeStatements(userQuery);
+			db.closeStatements(userQuery);
+			release();
 		}
 	}
 
@@ -525,6 +923,7 @@ public abstract class DirbyDbDao implements DbDao {
 		//password = DigestUtils.md5Hex(password);
 
 		PreparedStatement userQuery = null;
+		PooledConnection db = connection();
 		try {
 			User user = null;
 			userQuery = db.prepareStatement("SELECT * FROM users WHERE username = ? AND password = ?");
@@ -540,7 +939,8 @@ public abstract class DirbyDbDao implements DbDao {
 			}
 			return user;
 		} finally {
-			closeStatements(userQuery);
+			db.closeStatements(userQuery);
+			release();
 		}
 	}
 
@@ -551,6 +951,7 @@ public abstract class DirbyDbDao implements DbDao {
 
 		List<User> users = new ArrayList<User>();
 		PreparedStatement userQuery = null;
+		PooledConnection db = connection();
 		try {
 			userQuery = db.prepareStatement("SELECT * FROM users WHERE username LIKE ? OR Lower(full_name) LIKE ?"); //username is already stored in lowercase in the database
 			userQuery.setString(1, "%" + text + "%");
@@ -567,13 +968,15 @@ public abstract class DirbyDbDao implements DbDao {
 			}
 			return users;
 		} finally {
-			closeStatements(userQuery);
+			db.closeStatements(userQuery);
+			release();
 		}
 	}
 
 	@Override
 	public void insertUser(User user) throws SQLException {
 		PreparedStatement insertUser = null;
+		PooledConnection db = connection();
 		try {
 			insertUser = db.prepareStatement("INSERT INTO users (username, password, full_name) VALUES (?, ?, ?)");
 			insertUser.setString(1, user.username);
@@ -581,13 +984,15 @@ public abstract class DirbyDbDao implements DbDao {
 			insertUser.setString(3, user.fullName);
 			insertUser.execute();
 		} finally {
-			closeStatements(insertUser);
+			db.closeStatements(insertUser);
+			release();
 		}
 	}
 
 	@Override
 	public void updateUser(User user) throws SQLException {
 		PreparedStatement updateUser = null;
+		PooledConnection db = connection();
 		try {
 			updateUser = db.prepareStatement("UPDATE users SET username = ?, password = ?, full_name = ? WHERE id = ?");
 			updateUser.setString(1, user.username);
@@ -596,19 +1001,22 @@ public abstract class DirbyDbDao implements DbDao {
 			updateUser.setInt(4, user.id);
 			updateUser.execute();
 		} finally {
-			closeStatements(updateUser);
+			db.closeStatements(updateUser);
+			release();
 		}
 	}
 
 	@Override
 	public void deleteUser(String username) throws SQLException {
 		PreparedStatement deleteUser = null;
+		PooledConnection db = connection();
 		try {
 			deleteUser = db.prepareStatement("DELETE FROM users WHERE username = ?");
 			deleteUser.setString(1, username);
 			deleteUser.execute();
 		} finally {
-			closeStatements(deleteUser);
+			db.closeStatements(deleteUser);
+			release();
 		}
 	}
 
@@ -616,6 +1024,7 @@ public abstract class DirbyDbDao implements DbDao {
 	public List<User> selectUsers() throws SQLException {
 		PreparedStatement selectUsers = null;
 		List<User> users = new ArrayList<User>();
+		PooledConnection db = connection();
 		try {
 			selectUsers = db.prepareStatement("SELECT * FROM users ORDER BY username");
 			ResultSet rs = selectUsers.executeQuery();
@@ -629,7 +1038,8 @@ public abstract class DirbyDbDao implements DbDao {
 			}
 			return users;
 		} finally {
-			closeStatements(selectUsers);
+			db.closeStatements(selectUsers);
+			release();
 		}
 	}
 
@@ -640,6 +1050,7 @@ public abstract class DirbyDbDao implements DbDao {
 
 		PreparedStatement mailingListQuery = null;
 		PreparedStatement userQuery = null;
+		PooledConnection db = connection();
 		try {
 			MailingList mailingList = null;
 
@@ -666,7 +1077,8 @@ public abstract class DirbyDbDao implements DbDao {
 
 			return mailingList;
 		} finally {
-			closeStatements(mailingListQuery, userQuery);
+			db.closeStatements(mailingListQuery, userQuery);
+			release();
 		}
 	}
 
@@ -724,60 +1136,131 @@ public abstract class DirbyDbDao implements DbDao {
 	//			}
 	//			return groups;
 	//		} finally {
-	//			closeStatements(groupQuery, recipientsQuery, emailQuery, failuresQuery);
+	//			db.closeStatements(groupQuery, recipientsQuery, emailQuery, failuresQuery);
 	//		}
 	//	}
 
 	@Override
-	public Map<String, List<OutboundEmailGroup>> selectOutboundEmailGroupsToSend(long transientRetryInterval, long retryInterval) throws SQLException, IOException {
-		PreparedStatement groupQuery = null;
-		PreparedStatement recipientsQuery = null;
-		PreparedStatement emailQuery = null;
-		PreparedStatement failuresQuery = null;
+	public List<OutboundEmailGroup> selectOutboundQueue() throws SQLException {
+		PreparedStatement selectQuery = null;
+		PooledConnection db = connection();
 		try {
-			Map<Integer, Email> emails = new HashMap<Integer, Email>();
-			Map<String, List<OutboundEmailGroup>> groups = new HashMap<String, List<OutboundEmailGroup>>();
-
-			groupQuery = db.prepareStatement("SELECT * FROM outbound_email_groups WHERE attempts = 0 OR (attempts < 3 AND prev_attempt < ?) OR (attempts >= 3 AND prev_attempt < ?)");
-			Timestamp ts = new Timestamp(System.currentTimeMillis() - transientRetryInterval);
-			groupQuery.setTimestamp(1, ts);
-			ts = new Timestamp(System.currentTimeMillis() - retryInterval);
-			groupQuery.setTimestamp(2, ts);
-
-			recipientsQuery = db.prepareStatement("SELECT recipient FROM outbound_email_recipients WHERE outbound_email_group_id = ?");
-			failuresQuery = db.prepareStatement("SELECT error FROM outbound_email_failures WHERE outbound_email_group_id = ? ORDER BY id");
-			emailQuery = db.prepareStatement("SELECT * FROM emails WHERE id = ?");
-			ResultSet groupRs = groupQuery.executeQuery();
-			while (groupRs.next()) {
+			List<OutboundEmailGroup> groups = new ArrayList<OutboundEmailGroup>();
+			selectQuery = db.prepareStatement("SELECT id, host, first_attempt, next_attempt FROM outbound_email_groups ORDER BY next_attempt");
+			ResultSet rs = selectQuery.executeQuery();
+			while (rs.next()) {
 				OutboundEmailGroup group = new OutboundEmailGroup();
+				group.id = rs.getInt("id");
+				group.host = rs.getString("host");
+				group.firstAttempt = rs.getTimestamp("first_attempt");
+				group.nextAttempt = rs.getTimestamp("next_attempt");
+				groups.add(group);
+			}
+			return groups;
+		} finally {
+			db.closeStatements(selectQuery);
+			release();
+		}
+	}
 
-				group.id = groupRs.getInt("id");
-				group.host = groupRs.getString("host");
-				group.attempts = groupRs.getInt("attempts");
-				group.firstAttempt = groupRs.getTimestamp("first_attempt");
-				group.prevAttempt = groupRs.getTimestamp("prev_attempt");
+	@Override
+	public Map<String, List<OutboundEmailGroup>> selectOutboundEmailGroups(Collection<Integer> ids) throws SQLException, IOException {
+		PreparedStatement groupQuery = null;
+		PreparedStatement failuresQuery = null;
+		PreparedStatement emailQuery = null;
+		PooledConnection db = connection();
+		try {
+			String in = inClause(outboundPageSize);
+			groupQuery = db.prepareStatement("SELECT g.id, g.email_id, g.host, g.attempts, g.first_attempt, g.prev_attempt, g.next_attempt, r.recipient FROM outbound_email_groups g LEFT JOIN outbound_email_recipients r ON r.outbound_email_group_id = g.id WHERE g.id IN " + in + " ORDER BY g.id, r.id");
+			failuresQuery = db.prepareStatement("SELECT outbound_email_group_id, error FROM outbound_email_failures WHERE outbound_email_group_id IN " + in + " ORDER BY id");
+			emailQuery = db.prepareStatement("SELECT e.id, e.sender, e.data, e.data_key, r.recipient FROM emails e LEFT JOIN recipients r ON r.email_id = e.id WHERE e.id IN " + in + " ORDER BY e.id, r.id");
+
+			//load the groups, along with their recipients and failures
+			Map<Integer, OutboundEmailGroup> groupsById = new LinkedHashMap<Integer, OutboundEmailGroup>();
+			Map<Integer, List<OutboundEmailGroup>> groupsByEmail = new LinkedHashMap<Integer, List<OutboundEmailGroup>>();
+			List<Integer> groupIds = new ArrayList<Integer>(ids);
+			for (int i = 0; i < groupIds.size(); i += outboundPageSize) {
+				List<Integer> page = groupIds.subList(i, Math.min(i + outboundPageSize, groupIds.size()));
+
+				setInClause(groupQuery, page);
+				ResultSet rs = groupQuery.executeQuery();
+				while (rs.next()) {
+					int id = rs.getInt("id");
+					OutboundEmailGroup group = groupsById.get(id);
+					if (group == null) {
+						group = new OutboundEmailGroup();
+						group.id = id;
+						group.host = rs.getString("host");
+						group.attempts = rs.getInt("attempts");
+						group.firstAttempt = rs.getTimestamp("first_attempt");
+						group.prevAttempt = rs.getTimestamp("prev_attempt");
+						group.nextAttempt = rs.getTimestamp("next_attempt");
+						groupsById.put(id, group);
+
+						int emailId = rs.getInt("email_id");
+						List<OutboundEmailGroup> emailGroups = groupsByEmail.get(emailId);
+						if (emailGroups == null) {
+							emailGroups = new ArrayList<OutboundEmailGroup>();
+							groupsByEmail.put(emailId, emailGroups);
+						}
+						emailGroups.add(group);
+					}
 
-				//get recipients
-				recipientsQuery.setInt(1, group.id);
-				ResultSet rs2 = recipientsQuery.executeQuery();
-				while (rs2.next()) {
-					group.recipients.add(new EmailAddress(rs2.getString("recipient")));
+					String recipient = rs.getString("recipient");
+					if (recipient != null) {
+						group.recipients.add(new EmailAddress(recipient));
+					}
+				}
+				rs.close();
+
+				setInClause(failuresQuery, page);
+				rs = failuresQuery.executeQuery();
+				while (rs.next()) {
+					OutboundEmailGroup group = groupsById.get(rs.getInt("outbound_email_group_id"));
+					if (group != null) {
+						group.failures.add(rs.getString("error"));
+					}
 				}
+				rs.close();
+			}
 
-				//get failures
-				failuresQuery.setInt(1, group.id);
-				rs2 = failuresQuery.executeQuery();
-				while (rs2.next()) {
-					group.failures.add(rs2.getString("error"));
+			//load the emails (an email that is going to multiple hosts is only loaded once)
+			List<Integer> emailIds = new ArrayList<Integer>(groupsByEmail.keySet());
+			for (int i = 0; i < emailIds.size(); i += outboundPageSize) {
+				List<Integer> page = emailIds.subList(i, Math.min(i + outboundPageSize, emailIds.size()));
+
+				setInClause(emailQuery, page);
+				ResultSet rs = emailQuery.executeQuery();
+				Email email = null;
+				while (rs.next()) {
+					int emailId = rs.getInt("id");
+					if (email == null || email.id != emailId) {
+						email = new Email();
+						email.id = emailId;
+						email.sender = new EmailAddress(rs.getString("sender"));
+
+						email.data = new EmailData(readData(rs));
+
+						for (OutboundEmailGroup group : groupsByEmail.get(emailId)) {
+							group.email = email;
+						}
+					}
+
+					String recipient = rs.getString("recipient");
+					if (recipient != null) {
+						email.recipients.add(new EmailAddress(recipient));
+					}
 				}
+				rs.close();
+			}
 
-				//get email
-				int emailId = groupRs.getInt("email_id");
-				Email email = emails.get(emailId);
-				if (email == null) {
-					email = selectEmail(emailId);
+			//group by host
+			Map<String, List<OutboundEmailGroup>> groups = new HashMap<String, List<OutboundEmailGroup>>();
+			for (OutboundEmailGroup group : groupsById.values()) {
+				if (group.email == null) {
+					//the email was deleted
+					continue;
 				}
-				group.email = email;
 
 				List<OutboundEmailGroup> list = groups.get(group.host);
 				if (list == null) {
@@ -788,34 +1271,142 @@ public abstract class DirbyDbDao implements DbDao {
 			}
 			return groups;
 		} finally {
-			closeStatements(groupQuery, recipientsQuery, emailQuery, failuresQuery);
+			db.closeStatements(groupQuery, failuresQuery, emailQuery);
+			release();
+		}
+	}
+
+	@Override
+	public List<OutboundEmailGroup> claimOutboundEmailGroups(Collection<Integer> ids, String owner, Date leaseExpires) throws SQLException {
+		PreparedStatement claimQuery = null;
+		PreparedStatement selectQuery = null;
+		PooledConnection db = connection();
+		try {
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			claimQuery = db.prepareStatement("UPDATE outbound_email_groups SET lease_owner = ?, lease_expires = ? WHERE id = ? AND (lease_owner IS NULL OR lease_owner = ? OR lease_expires < ?)");
+			for (Integer id : ids) {
+				claimQuery.setString(1, owner);
+				claimQuery.setTimestamp(2, new Timestamp(leaseExpires.getTime()));
+				claimQuery.setInt(3, id);
+				claimQuery.setString(4, owner);
+				claimQuery.setTimestamp(5, now);
+				claimQuery.addBatch();
+			}
+			claimQuery.executeBatch();
+
+			//see who ended up with each lease
+			List<OutboundEmailGroup> groups = new ArrayList<OutboundEmailGroup>(ids.size());
+			selectQuery = db.prepareStatement("SELECT id, next_attempt, lease_owner, lease_expires FROM outbound_email_groups WHERE id IN " + inClause(outboundPageSize));
+			List<Integer> groupIds = new ArrayList<Integer>(ids);
+			for (int i = 0; i < groupIds.size(); i += outboundPageSize) {
+				List<Integer> page = groupIds.subList(i, Math.min(i + outboundPageSize, groupIds.size()));
+
+				setInClause(selectQuery, page);
+				ResultSet rs = selectQuery.executeQuery();
+				while (rs.next()) {
+					OutboundEmailGroup group = new OutboundEmailGroup();
+					group.id = rs.getInt("id");
+					group.nextAttempt = rs.getTimestamp("next_attempt");
+					group.leaseOwner = rs.getString("lease_owner");
+					group.leaseExpires = rs.getTimestamp("lease_expires");
+					groups.add(group);
+				}
+				rs.close();
+			}
+			return groups;
+		} finally {
+			db.closeStatements(claimQuery, selectQuery);
+			release();
+		}
+	}
+
+	@Override
+	public void releaseOutboundEmailGroups(Collection<Integer> ids, String owner) throws SQLException {
+		PreparedStatement releaseQuery = null;
+		PooledConnection db = connection();
+		try {
+			releaseQuery = db.prepareStatement("UPDATE outbound_email_groups SET lease_owner = NULL, lease_expires = NULL WHERE id = ? AND lease_owner = ?");
+			for (Integer id : ids) {
+				releaseQuery.setInt(1, id);
+				releaseQuery.setString(2, owner);
+				releaseQuery.addBatch();
+			}
+			releaseQuery.executeBatch();
+		} finally {
+			db.closeStatements(releaseQuery);
+			release();
 		}
 	}
 
 	@Override
 	public void deleteEmail(Email email) throws SQLException {
+		deleteEmail(email, "DELETE FROM emails WHERE id = ?");
+	}
+
+	@Override
+	public boolean deleteEmailIfUnused(Email email) throws SQLException {
+		return deleteEmail(email, "DELETE FROM emails WHERE id = ? AND NOT EXISTS (SELECT 1 FROM inbox_emails WHERE email_id = emails.id) AND NOT EXISTS (SELECT 1 FROM outbox_emails WHERE email_id = emails.id) AND NOT EXISTS (SELECT 1 FROM outbound_email_groups WHERE email_id = emails.id)");
+	}
+
+	/**
+	 * Deletes an email, along with its data in the message store.
+	 * @param email the email
+	 * @param sql the DELETE statement (the email ID is its only parameter)
+	 * @return true if the email was deleted, false if not
+	 * @throws SQLException
+	 */
+	private boolean deleteEmail(Email email, String sql) throws SQLException {
+		PreparedStatement selectKey = null;
 		PreparedStatement deleteQuery = null;
+		PooledConnection db = connection();
 		try {
-			deleteQuery = db.prepareStatement("DELETE FROM emails WHERE email_id = ?");
+			selectKey = db.prepareStatement("SELECT data_key FROM emails WHERE id = ?");
+			selectKey.setInt(1, email.id);
+			ResultSet rs = selectKey.executeQuery();
+			final String key = rs.next() ? rs.getString("data_key") : null;
+			rs.close();
+
+			deleteQuery = db.prepareStatement(sql);
 			deleteQuery.setInt(1, email.id);
-			deleteQuery.execute();
+			if (deleteQuery.executeUpdate() == 0) {
+				return false;
+			}
+
+			if (key != null) {
+				//the data can't be deleted until the deletion of the row is committed
+				afterCommit(new Runnable() {
+					@Override
+					public void run() {
+						deleteDataIfUnused(key);
+					}
+				});
+			}
+			return true;
 		} finally {
-			closeStatements(deleteQuery);
+			db.closeStatements(selectKey, deleteQuery);
+			release();
 		}
 	}
 
 	@Override
-	public void updateOutboundEmailGroup(OutboundEmailGroup group) throws SQLException {
+	public boolean updateOutboundEmailGroup(OutboundEmailGroup group, String owner) throws SQLException {
 		PreparedStatement updateQuery = null;
 		PreparedStatement countFailuresQuery = null;
 		PreparedStatement insertFailureQuery = null;
 
+		PooledConnection db = connection();
 		try {
-			updateQuery = db.prepareStatement("UPDATE outbound_email_groups SET attempts = ?, prev_attempt = ? WHERE id = ?");
+			updateQuery = db.prepareStatement("UPDATE outbound_email_groups SET attempts = ?, first_attempt = ?, prev_attempt = ?, next_attempt = ?, lease_owner = NULL, lease_expires = NULL WHERE id = ? AND lease_owner = ?");
 			updateQuery.setInt(1, group.attempts);
-			updateQuery.setTimestamp(2, new Timestamp(group.prevAttempt.getTime()));
-			updateQuery.setInt(3, group.id);
-			updateQuery.execute();
+			updateQuery.setTimestamp(2, (group.firstAttempt == null) ? null : new Timestamp(group.firstAttempt.getTime()));
+			updateQuery.setTimestamp(3, new Timestamp(group.prevAttempt.getTime()));
+			updateQuery.setTimestamp(4, new Timestamp(group.nextAttempt.getTime()));
+			updateQuery.setInt(5, group.id);
+			updateQuery.setString(6, owner);
+			if (updateQuery.executeUpdate() == 0) {
+				//the lease expired and someone else claimed the email
+				return false;
+			}
 
 			countFailuresQuery = db.prepareStatement("SELECT Count(*) FROM outbound_email_failures WHERE outbound_email_group_id = ?");
 			countFailuresQuery.setInt(1, group.id);
@@ -827,90 +1418,382 @@ public abstract class DirbyDbDao implements DbDao {
 				insertFailureQuery.setInt(1, group.id);
 				while (count < group.failures.size()) {
 					insertFailureQuery.setString(2, group.failures.get(count));
-					insertFailureQuery.execute();
+					insertFailureQuery.addBatch();
 					count++;
 				}
+				insertFailureQuery.executeBatch();
 			}
+			return true;
 		} finally {
-			closeStatements(updateQuery, countFailuresQuery, insertFailureQuery);
+			db.closeStatements(updateQuery, countFailuresQuery, insertFailureQuery);
+			release();
 		}
 	}
 
 	@Override
-	public void deleteOutboundEmailGroup(OutboundEmailGroup group) throws SQLException {
+	public boolean deleteOutboundEmailGroup(OutboundEmailGroup group, String owner) throws SQLException {
 		PreparedStatement deleteQuery = null;
+		PooledConnection db = connection();
 		try {
-			deleteQuery = db.prepareStatement("DELETE FROM outbound_email_groups WHERE id = ?");
+			deleteQuery = db.prepareStatement("DELETE FROM outbound_email_groups WHERE id = ? AND lease_owner = ?");
 			deleteQuery.setInt(1, group.id);
-			deleteQuery.execute();
+			deleteQuery.setString(2, owner);
+			return deleteQuery.executeUpdate() > 0;
 		} finally {
-			closeStatements(deleteQuery);
+			db.closeStatements(deleteQuery);
+			release();
 		}
 	}
 
 	@Override
 	public void insertOutboundEmailGroup(OutboundEmailGroup group) throws SQLException {
+		insertOutboundEmailGroups(Arrays.asList(group));
+	}
+
+	@Override
+	public void insertOutboundEmailGroups(Collection<OutboundEmailGroup> groups) throws SQLException {
 		PreparedStatement insertGroup = null;
 		PreparedStatement insertFailure = null;
 		PreparedStatement insertRecipient = null;
+		PooledConnection db = connection();
 		try {
-			if (group.email.id == null) {
-				insertEmail(group.email);
-			}
+			//insert the groups one at a time so their generated IDs can be retrieved
+			insertGroup = db.prepareStatement("INSERT INTO outbound_email_groups (email_id, host, attempts, first_attempt, prev_attempt, next_attempt) VALUES (?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+			for (OutboundEmailGroup group : groups) {
+				if (group.email.id == null) {
+					insertEmail(group.email);
+				}
 
-			insertGroup = db.prepareStatement("INSERT INTO outbound_email_groups (email_id, host, attempts, first_attempt, prev_attempt) VALUES (?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-			insertGroup.setInt(1, group.email.id);
-			insertGroup.setString(2, group.host);
-			insertGroup.setInt(3, group.attempts);
-			insertGroup.setTimestamp(4, (group.firstAttempt == null) ? null : new Timestamp(group.firstAttempt.getTime()));
-			insertGroup.setTimestamp(5, (group.prevAttempt == null) ? null : new Timestamp(group.prevAttempt.getTime()));
-			insertGroup.execute();
+				insertGroup.setInt(1, group.email.id);
+				insertGroup.setString(2, group.host);
+				insertGroup.setInt(3, group.attempts);
+				insertGroup.setTimestamp(4, (group.firstAttempt == null) ? null : new Timestamp(group.firstAttempt.getTime()));
+				insertGroup.setTimestamp(5, (group.prevAttempt == null) ? null : new Timestamp(group.prevAttempt.getTime()));
+				if (group.nextAttempt == null) {
+					group.nextAttempt = new Date();
+				}
+				insertGroup.setTimestamp(6, new Timestamp(group.nextAttempt.getTime()));
+				insertGroup.execute();
 
-			//get the value of row's generated ID
-			ResultSet rs = insertGroup.getGeneratedKeys();
-			rs.next();
-			group.id = rs.getInt(1);
+				//get the value of row's generated ID
+				ResultSet rs = insertGroup.getGeneratedKeys();
+				rs.next();
+				group.id = rs.getInt(1);
+				rs.close();
+			}
 
-			//insert recipients
+			//insert the recipients of every group
 			insertRecipient = db.prepareStatement("INSERT INTO outbound_email_recipients (outbound_email_group_id, recipient) VALUES (?, ?)");
-			insertRecipient.setInt(1, group.id);
-			for (EmailAddress recipient : group.recipients) {
-				insertRecipient.setString(2, recipient.getAddress());
-				insertRecipient.execute();
+			for (OutboundEmailGroup group : groups) {
+				insertRecipient.setInt(1, group.id);
+				for (EmailAddress recipient : group.recipients) {
+					insertRecipient.setString(2, recipient.getAddress());
+					insertRecipient.addBatch();
+				}
 			}
-
-			//insert failures (but there probably aren't any because this group was just created)
-			if (!group.failures.isEmpty()) {
+			insertRecipient.executeBatch();
+
+			//insert failures (but there probably aren't any because these groups were just created)
+			boolean hasFailures = false;
+			for (OutboundEmailGroup group : groups) {
+				if (!group.failures.isEmpty()) {
+					hasFailures = true;
+					break;
+				}
+			}
+			if (hasFailures) {
 				insertFailure = db.prepareStatement("INSERT INTO outbound_email_failures (outbound_email_group_id, error) VALUES (?, ?)");
-				insertFailure.setInt(1, group.id);
-				for (String failure : group.failures) {
-					insertFailure.setString(2, failure);
-					insertFailure.execute();
+				for (OutboundEmailGroup group : groups) {
+					insertFailure.setInt(1, group.id);
+					for (String failure : group.failures) {
+						insertFailure.setString(2, failure);
+						insertFailure.addBatch();
+					}
 				}
+				insertFailure.executeBatch();
 			}
 		} finally {
-			closeStatements(insertGroup, insertFailure, insertRecipient);
+			db.closeStatements(insertGroup, insertFailure, insertRecipient);
+			release();
 		}
 	}
 
-	@Override
-	public void commit() throws SQLException {
-		db.commit();
+	/**
+	 * Sets where the data of new emails is saved. Emails that were already
+	 * saved stay where they are.
+	 * @param messageStore the message store or null to save the data in the
+	 * database
+	 */
+	public void setMessageStore(MessageStore messageStore) {
+		this.messageStore = messageStore;
 	}
 
 	@Override
-	public void rollback() {
+	public MessageStore getMessageStore() {
+		return messageStore;
+	}
+
+	/**
+	 * Reads the data of an email from a result set that has the "data" and
+	 * "data_key" columns of the "emails" table.
+	 * @param rs the result set
+	 * @return the email data
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	private String readData(ResultSet rs) throws SQLException, IOException {
+		String key = rs.getString("data_key");
+		if (key != null) {
+			Reader reader = messageStore().open(key);
+			try {
+				return IOUtils.toString(reader);
+			} finally {
+				IOUtils.closeQuietly(reader);
+			}
+		}
+
+		Clob clob = rs.getClob("data");
+		try {
+			return IOUtils.toString(clob.getCharacterStream());
+		} finally {
+			clob.free();
+		}
+	}
+
+	/**
+	 * Saves the data of an email to the message store. The key is pinned so
+	 * that the data can't be deleted before the email's row is committed. It
+	 * must be unpinned when the unit of work finishes.
+	 * @param data the email data
+	 * @param reader the email data as a stream
+	 * @return the key
+	 * @throws IOException if the data couldn't be saved
+	 */
+	private String putData(EmailData data, Reader reader) throws IOException {
+		String key = messageStore.put(reader);
+		pin(key);
+
+		//an existing copy of the data may have been deleted before the key was pinned
+		if (!messageStore.contains(key)) {
+			Reader again = data.toDataReader();
+			try {
+				messageStore.put(again);
+			} finally {
+				IOUtils.closeQuietly(again);
+			}
+		}
+		return key;
+	}
+
+	private void pin(String key) {
+		synchronized (pinnedKeys) {
+			Integer count = pinnedKeys.get(key);
+			pinnedKeys.put(key, (count == null) ? 1 : count + 1);
+		}
+	}
+
+	private void unpin(String key) {
+		synchronized (pinnedKeys) {
+			Integer count = pinnedKeys.get(key);
+			if (count == null || count <= 1) {
+				pinnedKeys.remove(key);
+			} else {
+				pinnedKeys.put(key, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * Deletes an email's data from the message store if no emails refer to it
+	 * anymore.
+	 * @param key the message store key
+	 */
+	private void deleteDataIfUnused(String key) {
+		PreparedStatement countQuery = null;
+		try {
+			//the connection is retrieved before taking the lock so that the lock is never held while waiting on the pool
+			PooledConnection db = connection();
+			try {
+				//holding the lock keeps other threads from pinning the key while it's being deleted
+				synchronized (pinnedKeys) {
+					if (pinnedKeys.containsKey(key)) {
+						return;
+					}
+
+					countQuery = db.prepareStatement("SELECT COUNT(*) FROM emails WHERE data_key = ?");
+					countQuery.setString(1, key);
+					ResultSet rs = countQuery.executeQuery();
+					rs.next();
+					if (rs.getInt(1) == 0) {
+						messageStore().delete(key);
+					}
+				}
+			} finally {
+				db.closeStatements(countQuery);
+				release();
+			}
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Could not delete unused email data " + key + " from the message store.", e);
+		}
+	}
+
+	/**
+	 * Gets the message store, for reading emails whose data is stored in it.
+	 * @return the message store
+	 * @throws IOException if no message store was set
+	 */
+	private MessageStore messageStore() throws IOException {
+		if (messageStore == null) {
+			throw new IOException("Email data is in the message store, but no message store is configured.");
+		}
+		return messageStore;
+	}
+
+	/**
+	 * Runs a task once the current unit of work is committed. If the thread is
+	 * not running a unit of work, then the task runs right away.
+	 * @param task the task
+	 */
+	private void afterCommit(Runnable task) {
+		BoundConnection binding = bound.get();
+		if (binding == null || !binding.transaction) {
+			task.run();
+		} else {
+			binding.afterCommit.add(task);
+		}
+	}
+
+	/**
+	 * Runs a task once the current unit of work is committed or rolled back.
+	 * If the thread is not running a unit of work, then the task runs right
+	 * away.
+	 * @param task the task
+	 */
+	private void afterCompletion(Runnable task) {
+		BoundConnection binding = bound.get();
+		if (binding == null || !binding.transaction) {
+			task.run();
+		} else {
+			binding.afterCompletion.add(task);
+		}
+	}
+
+	private static void run(List<Runnable> tasks) {
+		for (Runnable task : tasks) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.log(Level.WARNING, "Problem running task after unit of work.", e);
+			}
+		}
+	}
+
+	/**
+	 * Builds an "IN" clause.
+	 * @param size the number of parameters
+	 * @return the IN clause (e.g. "(?, ?, ?)")
+	 */
+	private static String inClause(int size) {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append('?');
+		}
+		return sb.append(')').toString();
+	}
+
+	/**
+	 * Sets the parameters of an "IN" clause that was created with
+	 * {@link #inClause}. Parameters that aren't needed are set to -1, which
+	 * never matches a row.
+	 * @param statement the statement
+	 * @param ids the IDs
+	 * @throws SQLException
+	 */
+	private static void setInClause(PreparedStatement statement, List<Integer> ids) throws SQLException {
+		for (int i = 0; i < outboundPageSize; i++) {
+			statement.setInt(i + 1, (i < ids.size()) ? ids.get(i) : -1);
+		}
+	}
+
+	/**
+	 * Gets the number of times a cached prepared statement was re-used.
+	 * @return the number of statement cache hits
+	 */
+	public long getStatementCacheHits() {
+		return pool.getStatementCacheHits();
+	}
+
+	/**
+	 * Gets the number of times a statement had to be prepared because it was
+	 * not in the cache.
+	 * @return the number of statement cache misses
+	 */
+	public long getStatementCacheMisses() {
+		return pool.getStatementCacheMisses();
+	}
+
+	/**
+	 * Gets the connection that the current thread should use. If the thread is
+	 * not running a unit of work, then a connection is borrowed from the pool
+	 * in auto-commit mode. Every call to this method must be followed by a call
+	 * to {@link #release}.
+	 * @return the connection
+	 * @throws SQLException if a connection could not be retrieved from the pool
+	 */
+	private PooledConnection connection() throws SQLException {
+		BoundConnection binding = bound.get();
+		if (binding == null) {
+			PooledConnection db = pool.borrow();
+			try {
+				db.setAutoCommit(true);
+			} catch (SQLException e) {
+				pool.release(db);
+				throw e;
+			}
+			binding = new BoundConnection(db);
+			bound.set(binding);
+		}
+
+		binding.depth++;
+		return binding.connection;
+	}
+
+	/**
+	 * Releases the connection that was retrieved with {@link #connection}. The
+	 * connection is returned to the pool once the outermost DAO call finishes.
+	 */
+	private void release() {
+		BoundConnection binding = bound.get();
+		binding.depth--;
+		if (binding.depth == 0) {
+			bound.remove();
+			pool.release(binding.connection);
+		}
+	}
+
+	/**
+	 * Rolls back a connection's transaction.
+	 * @param db the connection
+	 */
+	private void rollback(PooledConnection db) {
 		try {
 			db.rollback();
 		} catch (SQLException e) {
-			//exception is caught here instead of being thrown because ever time I catch the exception for rollback(), I just log the exception and continue on
-			//plus, an exception is unlikely to be thrown here anyway
+			//exception is caught here instead of being thrown because the original exception is more important
 			logger.log(Level.WARNING, "Problem rolling back transaction.", e);
 		}
 	}
 
 	@Override
 	public void close() throws SQLException {
+		if (pool != null) {
+			logger.info("Prepared statement cache: " + pool.getStatementCacheHits() + " hits, " + pool.getStatementCacheMisses() + " misses.");
+			pool.close();
+		}
+
 		try {
 			DriverManager.getConnection("jdbc:derby:;shutdown=true");
 		} catch (SQLException se) {
@@ -927,18 +1810,35 @@ public abstract class DirbyDbDao implements DbDao {
 	}
 
 	/**
-	 * Closes a list of Statements.
-	 * @param statements the statements to close (nulls are ignored)
+	 * A connection that is being used by a thread.
 	 */
-	private void closeStatements(Statement... statements) {
-		for (Statement statement : statements) {
-			if (statement != null) {
-				try {
-					statement.close();
-				} catch (SQLException e) {
-					//ignore
-				}
-			}
+	private static class BoundConnection {
+		private final PooledConnection connection;
+
+		/**
+		 * True if the connection is running a unit of work, false if it is in
+		 * auto-commit mode.
+		 */
+		private boolean transaction = false;
+
+		/**
+		 * The tasks to run once the unit of work is committed.
+		 */
+		private final List<Runnable> afterCommit = new ArrayList<Runnable>(0);
+
+		/**
+		 * The tasks to run once the unit of work is committed or rolled back.
+		 */
+		private final List<Runnable> afterCompletion = new ArrayList<Runnable>(0);
+
+		/**
+		 * The number of DAO calls on the thread's call stack that are using the
+		 * connection.
+		 */
+		private int depth = 0;
+
+		public BoundConnection(PooledConnection connection) {
+			this.connection = connection;
 		}
 	}
 }
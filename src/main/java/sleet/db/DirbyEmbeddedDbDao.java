@@ -13,8 +13,17 @@ public class DirbyEmbeddedDbDao extends DirbyDbDao {
 	 * @throws SQLException
 	 */
 	public DirbyEmbeddedDbDao(File databaseDir) throws SQLException {
+		this(databaseDir, defaultPoolSize);
+	}
+
+	/**
+	 * @param databaseDir the directory the database will be saved to
+	 * @param poolSize the maximum number of database connections
+	 * @throws SQLException
+	 */
+	public DirbyEmbeddedDbDao(File databaseDir, int poolSize) throws SQLException {
 		databaseDir = new File(databaseDir.getAbsolutePath());
 		System.setProperty("derby.system.home", databaseDir.getParentFile().getAbsolutePath());
-		init("jdbc:derby:" + databaseDir.getName(), !databaseDir.isDirectory());
+		init("jdbc:derby:" + databaseDir.getName(), !databaseDir.isDirectory(), poolSize);
 	}
 }
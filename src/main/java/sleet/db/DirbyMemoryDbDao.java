@@ -8,6 +8,24 @@ import java.sql.SQLException;
  */
 public class DirbyMemoryDbDao extends DirbyDbDao {
 	public DirbyMemoryDbDao() throws SQLException {
-		init("jdbc:derby:memory:sleet", true);
+		this(defaultPoolSize);
+	}
+
+	/**
+	 * @param poolSize the maximum number of database connections
+	 * @throws SQLException
+	 */
+	public DirbyMemoryDbDao(int poolSize) throws SQLException {
+		this("sleet", poolSize);
+	}
+
+	/**
+	 * @param name the name of the in-memory database (each name refers to a
+	 * different database)
+	 * @param poolSize the maximum number of database connections
+	 * @throws SQLException
+	 */
+	public DirbyMemoryDbDao(String name, int poolSize) throws SQLException {
+		init("jdbc:derby:memory:" + name, true, poolSize);
 	}
 }
@@ -0,0 +1,187 @@
+package sleet.db;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+
+import sleet.LineCodec;
+
+/**
+ * Stores the data of each email in its own file. The key of each email is the
+ * SHA-256 hash of its data, and the files are spread out over two levels of
+ * sub-directories based on the first four characters of the hash (for
+ * example, "ab/cd/abcd1234..."), so that no one directory gets too large.
+ * <p>
+ * The data is saved using the same character set that is used to read it off
+ * the wire (see {@link LineCodec#charset}), so each file contains the exact
+ * bytes that were received and can be written straight to a socket.
+ * </p>
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class FileMessageStore implements MessageStore {
+	private static final Pattern keyRegex = Pattern.compile("[0-9a-f]{64}");
+
+	private final File root;
+
+	/**
+	 * Holds the files that are being written. A file is moved into place once
+	 * its hash is known.
+	 */
+	private final File tempDir;
+
+	/**
+	 * @param root the directory to store the files in (created if it doesn't
+	 * exist)
+	 * @throws IOException if the directory couldn't be created
+	 */
+	public FileMessageStore(File root) throws IOException {
+		this.root = root;
+		tempDir = new File(root, "tmp");
+		if (!tempDir.isDirectory() && !tempDir.mkdirs()) {
+			throw new IOException("Could not create message store directory: " + tempDir.getAbsolutePath());
+		}
+
+		//remove any files that were left behind if the server crashed while writing them
+		File leftovers[] = tempDir.listFiles();
+		if (leftovers != null) {
+			for (File leftover : leftovers) {
+				leftover.delete();
+			}
+		}
+	}
+
+	@Override
+	public String put(Reader data) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//every JVM is required to support SHA-256
+			throw new RuntimeException(e);
+		}
+
+		File temp = File.createTempFile("message", null, tempDir);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				Writer writer = new OutputStreamWriter(new DigestOutputStream(out, digest), LineCodec.charset);
+				IOUtils.copy(data, writer);
+				writer.flush();
+
+				//make sure the data is on disk before the database refers to it
+				out.getFD().sync();
+			} finally {
+				IOUtils.closeQuietly(out);
+			}
+
+			String key = Hex.encodeHexString(digest.digest());
+			File file = file(key);
+			if (file.exists()) {
+				//an email with the same data is already stored
+				return key;
+			}
+
+			File dir = file.getParentFile();
+			if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+				throw new IOException("Could not create message store directory: " + dir.getAbsolutePath());
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return key;
+		} finally {
+			temp.delete();
+		}
+	}
+
+	@Override
+	public boolean contains(String key) {
+		return file(key).exists();
+	}
+
+	@Override
+	public Reader open(String key) throws IOException {
+		return open(key, 0);
+	}
+
+	@Override
+	public Reader open(String key, long offset) throws IOException {
+		FileInputStream in = new FileInputStream(file(key));
+		try {
+			in.getChannel().position(offset);
+		} catch (IOException e) {
+			IOUtils.closeQuietly(in);
+			throw e;
+		}
+		return new BufferedReader(new InputStreamReader(in, LineCodec.charset));
+	}
+
+	@Override
+	public long size(String key) throws IOException {
+		File file = file(key);
+		if (!file.exists()) {
+			throw new FileNotFoundException(file.getAbsolutePath());
+		}
+		return file.length();
+	}
+
+	@Override
+	public long transferTo(String key, WritableByteChannel channel) throws IOException {
+		return transferTo(key, 0, Long.MAX_VALUE, channel);
+	}
+
+	@Override
+	public long transferTo(String key, long position, long count, WritableByteChannel channel) throws IOException {
+		FileInputStream in = new FileInputStream(file(key));
+		try {
+			FileChannel fileChannel = in.getChannel();
+			long size = fileChannel.size();
+			long end = (count > size - position) ? size : position + count;
+			long cur = position;
+			while (cur < end) {
+				cur += fileChannel.transferTo(cur, end - cur, channel);
+			}
+			return Math.max(end - position, 0);
+		} finally {
+			IOUtils.closeQuietly(in);
+		}
+	}
+
+	@Override
+	public void delete(String key) throws IOException {
+		File file = file(key);
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not delete file: " + file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Gets the file that the data with the given key is stored in.
+	 * @param key the key
+	 * @return the file
+	 * @throws IllegalArgumentException if the key is not a SHA-256 hash
+	 */
+	private File file(String key) {
+		if (!keyRegex.matcher(key).matches()) {
+			throw new IllegalArgumentException("Invalid message store key: " + key);
+		}
+		File dir = new File(new File(root, key.substring(0, 2)), key.substring(2, 4));
+		return new File(dir, key);
+	}
+}
@@ -0,0 +1,230 @@
+package sleet.db;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The emails in a user's inbox, as seen by an IMAP session. Like
+ * {@link Maildrop}, the information on each email is kept in parallel arrays
+ * that are indexed by the email's message sequence number (minus one). The
+ * emails are in unique ID order, so unique IDs can be resolved with a binary
+ * search. New emails can be appended to the end as they arrive.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class Mailbox {
+	private int count = 0;
+	private int[] uids;
+	private int[] emailIds;
+	private long[] sizes;
+	private long[] received;
+	private String[] dataKeys;
+	private final BitSet seen = new BitSet();
+	private final BitSet deleted = new BitSet();
+
+	public Mailbox() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity the number of emails to allocate room for
+	 */
+	public Mailbox(int capacity) {
+		capacity = Math.max(capacity, 1);
+		uids = new int[capacity];
+		emailIds = new int[capacity];
+		sizes = new long[capacity];
+		received = new long[capacity];
+		dataKeys = new String[capacity];
+	}
+
+	/**
+	 * Adds an email to the end of the mailbox.
+	 * @param uid the unique ID of the email (must be greater than the unique
+	 * IDs of all the emails already in the mailbox)
+	 * @param emailId the database ID of the email data
+	 * @param size the size of the email (in octets)
+	 * @param received the time the email was received
+	 * @param dataKey the key of the email's data in the message store or null
+	 * if the data is stored in the database
+	 * @param seen true if the user has read the email, false if not
+	 * @return the message sequence number of the email
+	 */
+	public int add(int uid, int emailId, long size, long received, String dataKey, boolean seen) {
+		if (count > 0 && uid <= uids[count - 1]) {
+			throw new IllegalArgumentException("Unique IDs must be added in ascending order.");
+		}
+
+		if (count == uids.length) {
+			int capacity = count * 2;
+			uids = Arrays.copyOf(uids, capacity);
+			emailIds = Arrays.copyOf(emailIds, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+			this.received = Arrays.copyOf(this.received, capacity);
+			dataKeys = Arrays.copyOf(dataKeys, capacity);
+		}
+
+		uids[count] = uid;
+		emailIds[count] = emailId;
+		sizes[count] = size;
+		this.received[count] = received;
+		dataKeys[count] = dataKey;
+		this.seen.set(count, seen);
+		this.deleted.clear(count);
+		count++;
+		return count;
+	}
+
+	/**
+	 * Gets the number of emails in the mailbox. This is also the highest valid
+	 * message sequence number.
+	 * @return the number of emails
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Determines if a message sequence number refers to an email in the
+	 * mailbox.
+	 * @param seqNum the message sequence number
+	 * @return true if it's valid, false if not
+	 */
+	public boolean exists(int seqNum) {
+		return seqNum >= 1 && seqNum <= count;
+	}
+
+	/**
+	 * Finds the email with the given unique ID.
+	 * @param uid the unique ID
+	 * @return the message sequence number of the email or 0 if not found
+	 */
+	public int find(int uid) {
+		int index = Arrays.binarySearch(uids, 0, count, uid);
+		return (index < 0) ? 0 : index + 1;
+	}
+
+	/**
+	 * Finds the email with the smallest unique ID that is greater than or
+	 * equal to the given unique ID.
+	 * @param uid the unique ID
+	 * @return the message sequence number of the email or {@link #size()} + 1
+	 * if there is no such email
+	 */
+	public int ceiling(int uid) {
+		int index = Arrays.binarySearch(uids, 0, count, uid);
+		return (index < 0) ? -index : index + 1;
+	}
+
+	/**
+	 * Gets the unique ID of the most recently added email.
+	 * @return the unique ID or 0 if the mailbox is empty
+	 */
+	public int getLastUid() {
+		return (count == 0) ? 0 : uids[count - 1];
+	}
+
+	public int getUid(int seqNum) {
+		return uids[index(seqNum)];
+	}
+
+	public int getEmailId(int seqNum) {
+		return emailIds[index(seqNum)];
+	}
+
+	public long getSize(int seqNum) {
+		return sizes[index(seqNum)];
+	}
+
+	public long getReceived(int seqNum) {
+		return received[index(seqNum)];
+	}
+
+	/**
+	 * Gets the key of an email's data in the message store.
+	 * @param seqNum the message sequence number
+	 * @return the key or null if the data is stored in the database
+	 */
+	public String getDataKey(int seqNum) {
+		return dataKeys[index(seqNum)];
+	}
+
+	public boolean isSeen(int seqNum) {
+		return seen.get(index(seqNum));
+	}
+
+	public void setSeen(int seqNum, boolean seen) {
+		this.seen.set(index(seqNum), seen);
+	}
+
+	public boolean isDeleted(int seqNum) {
+		return deleted.get(index(seqNum));
+	}
+
+	public void setDeleted(int seqNum, boolean deleted) {
+		this.deleted.set(index(seqNum), deleted);
+	}
+
+	/**
+	 * Gets the number of emails that the user hasn't read.
+	 * @return the number of emails
+	 */
+	public int getUnseenCount() {
+		return count - seen.cardinality();
+	}
+
+	/**
+	 * Gets the unique IDs of the emails that are marked for deletion.
+	 * @return the unique IDs
+	 */
+	public int[] getDeletedUids() {
+		int deletedUids[] = new int[deleted.cardinality()];
+		int i = 0;
+		for (int index = deleted.nextSetBit(0); index >= 0; index = deleted.nextSetBit(index + 1)) {
+			deletedUids[i++] = uids[index];
+		}
+		return deletedUids;
+	}
+
+	/**
+	 * Removes the emails that are marked for deletion. The emails after them
+	 * move down to fill the gaps, so their message sequence numbers change.
+	 * @return the message sequence numbers that the removed emails had,
+	 * highest first (this is the order in which IMAP "EXPUNGE" responses must
+	 * be sent in so that each number is still valid when the client receives
+	 * it)
+	 */
+	public int[] expunge() {
+		int expunged[] = new int[deleted.cardinality()];
+		int e = expunged.length;
+		int to = 0;
+		for (int from = 0; from < count; from++) {
+			if (deleted.get(from)) {
+				expunged[--e] = from + 1;
+				continue;
+			}
+
+			if (to != from) {
+				uids[to] = uids[from];
+				emailIds[to] = emailIds[from];
+				sizes[to] = sizes[from];
+				received[to] = received[from];
+				dataKeys[to] = dataKeys[from];
+				seen.set(to, seen.get(from));
+			}
+			to++;
+		}
+
+		Arrays.fill(dataKeys, to, count, null);
+		seen.clear(to, count);
+		deleted.clear();
+		count = to;
+		return expunged;
+	}
+
+	private int index(int seqNum) {
+		if (!exists(seqNum)) {
+			throw new IndexOutOfBoundsException("Invalid message sequence number: " + seqNum);
+		}
+		return seqNum - 1;
+	}
+}
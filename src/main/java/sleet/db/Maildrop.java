@@ -0,0 +1,191 @@
+package sleet.db;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The emails in a user's inbox, as seen by a POP3 session. Instead of one
+ * object per email, the information on each email is kept in parallel arrays
+ * that are indexed by the email's POP3 message number (minus one), so even
+ * large mailboxes take up little memory and every lookup is constant time.
+ * The message count and total size are kept up to date as emails are marked
+ * for deletion, so they never have to be recomputed.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class Maildrop {
+	private int count = 0;
+	private int[] dbIds;
+	private long[] sizes;
+	private long[] headerLengths;
+	private String[] dataKeys;
+	private String[] uids;
+	private final BitSet deleted = new BitSet();
+
+	private long totalSize = 0;
+	private int deletedCount = 0;
+	private long deletedSize = 0;
+
+	public Maildrop() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity the number of emails to allocate room for
+	 */
+	public Maildrop(int capacity) {
+		capacity = Math.max(capacity, 1);
+		dbIds = new int[capacity];
+		sizes = new long[capacity];
+		headerLengths = new long[capacity];
+		dataKeys = new String[capacity];
+		uids = new String[capacity];
+	}
+
+	/**
+	 * Adds an email to the end of the maildrop.
+	 * @param dbId the database ID of the email
+	 * @param size the size of the email (in octets)
+	 * @param headerLength the length of the email's header section or -1 if
+	 * not known
+	 * @param dataKey the key of the email's data in the message store or null
+	 * if the data is stored in the database
+	 * @param uid the unique ID of the email
+	 * @return the message number of the email
+	 */
+	public int add(int dbId, long size, long headerLength, String dataKey, String uid) {
+		if (count == dbIds.length) {
+			int capacity = count * 2;
+			dbIds = Arrays.copyOf(dbIds, capacity);
+			sizes = Arrays.copyOf(sizes, capacity);
+			headerLengths = Arrays.copyOf(headerLengths, capacity);
+			dataKeys = Arrays.copyOf(dataKeys, capacity);
+			uids = Arrays.copyOf(uids, capacity);
+		}
+
+		dbIds[count] = dbId;
+		sizes[count] = size;
+		headerLengths[count] = headerLength;
+		dataKeys[count] = dataKey;
+		uids[count] = uid;
+		totalSize += size;
+		count++;
+		return count;
+	}
+
+	/**
+	 * Gets the number of emails in the maildrop, including the ones that are
+	 * marked for deletion. This is also the highest valid message number.
+	 * @return the number of emails
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Determines if a message number refers to an email in the maildrop.
+	 * @param msgNum the message number
+	 * @return true if it's valid, false if not
+	 */
+	public boolean exists(int msgNum) {
+		return msgNum >= 1 && msgNum <= count;
+	}
+
+	public int getDbId(int msgNum) {
+		return dbIds[index(msgNum)];
+	}
+
+	public long getSize(int msgNum) {
+		return sizes[index(msgNum)];
+	}
+
+	/**
+	 * Gets the length of an email's header section, including the empty line
+	 * that separates it from the body.
+	 * @param msgNum the message number
+	 * @return the header length (in octets) or -1 if it was never recorded
+	 */
+	public long getHeaderLength(int msgNum) {
+		return headerLengths[index(msgNum)];
+	}
+
+	/**
+	 * Gets the key of an email's data in the message store.
+	 * @param msgNum the message number
+	 * @return the key or null if the data is stored in the database
+	 */
+	public String getDataKey(int msgNum) {
+		return dataKeys[index(msgNum)];
+	}
+
+	/**
+	 * Gets the unique ID of an email, which is used by the POP3 "UIDL"
+	 * command.
+	 * @param msgNum the message number
+	 * @return the unique ID
+	 */
+	public String getUid(int msgNum) {
+		return uids[index(msgNum)];
+	}
+
+	public boolean isDeleted(int msgNum) {
+		return deleted.get(index(msgNum));
+	}
+
+	/**
+	 * Marks an email for deletion.
+	 * @param msgNum the message number
+	 */
+	public void delete(int msgNum) {
+		int index = index(msgNum);
+		if (!deleted.get(index)) {
+			deleted.set(index);
+			deletedCount++;
+			deletedSize += sizes[index];
+		}
+	}
+
+	/**
+	 * Unmarks all emails that are marked for deletion.
+	 */
+	public void reset() {
+		deleted.clear();
+		deletedCount = 0;
+		deletedSize = 0;
+	}
+
+	/**
+	 * Gets the number of emails that are not marked for deletion.
+	 * @return the number of emails
+	 */
+	public int getMessageCount() {
+		return count - deletedCount;
+	}
+
+	/**
+	 * Gets the total size of the emails that are not marked for deletion.
+	 * @return the total size (in octets)
+	 */
+	public long getTotalSize() {
+		return totalSize - deletedSize;
+	}
+
+	/**
+	 * Gets the database IDs of the emails that are marked for deletion.
+	 * @return the database IDs
+	 */
+	public int[] getDeletedDbIds() {
+		int ids[] = new int[deletedCount];
+		int i = 0;
+		for (int index = deleted.nextSetBit(0); index >= 0; index = deleted.nextSetBit(index + 1)) {
+			ids[i++] = dbIds[index];
+		}
+		return ids;
+	}
+
+	private int index(int msgNum) {
+		if (!exists(msgNum)) {
+			throw new IndexOutOfBoundsException("Invalid message number: " + msgNum);
+		}
+		return msgNum - 1;
+	}
+}
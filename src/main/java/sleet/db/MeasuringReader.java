@@ -0,0 +1,127 @@
+package sleet.db;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Measures email data as it is read, so that its size can be saved without
+ * reading it a second time. The data must be in the form that it is sent over
+ * the wire (CRLF newlines, dot-stuffing applied, and one character per byte).
+ * The measurements are only complete once the end of the data has been
+ * reached.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class MeasuringReader extends FilterReader {
+	private long length = 0;
+	private long stuffedDots = 0;
+	private long headerLength = -1;
+
+	/**
+	 * The number of characters in the current line, not counting the CR.
+	 */
+	private long lineLength = 0;
+	private char prev = 0;
+
+	/**
+	 * @param in the email data
+	 */
+	public MeasuringReader(Reader in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		int c = super.read();
+		if (c >= 0) {
+			measure((char) c);
+		}
+		return c;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		int read = super.read(cbuf, off, len);
+		for (int i = 0; i < read; i++) {
+			measure(cbuf[off + i]);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		//the skipped characters have to be measured too
+		char buffer[] = new char[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+			if (read < 0) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readAheadLimit) throws IOException {
+		throw new IOException("mark() not supported.");
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("reset() not supported.");
+	}
+
+	private void measure(char c) {
+		if (lineLength == 0 && c == '.') {
+			//lines that start with "." are dot-stuffed, so the first "." isn't part of the email
+			stuffedDots++;
+		}
+
+		length++;
+		if (c == '\n' && prev == '\r') {
+			if (lineLength == 0 && headerLength < 0) {
+				//an empty line separates the headers from the body
+				headerLength = length;
+			}
+			lineLength = 0;
+		} else if (c != '\r') {
+			lineLength++;
+		}
+		prev = c;
+	}
+
+	/**
+	 * Reads the rest of the data, so that the measurements are complete.
+	 * @throws IOException if there's a problem reading the data
+	 */
+	public void readToEnd() throws IOException {
+		skip(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Gets the size of the email as a POP3 client sees it: dot-stuffing
+	 * removed, plus the CRLF that ends the last line (the data itself does not
+	 * end with one).
+	 * @return the size (in octets)
+	 */
+	public long getSize() {
+		return length - stuffedDots + 2;
+	}
+
+	/**
+	 * Gets the length of the header section of the data, including the empty
+	 * line that separates it from the body. Dot-stuffing is not removed, so
+	 * this is the offset at which the body starts in the data.
+	 * @return the header length (in octets)
+	 */
+	public long getHeaderLength() {
+		return (headerLength < 0) ? length : headerLength;
+	}
+}
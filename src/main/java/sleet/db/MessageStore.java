@@ -0,0 +1,86 @@
+package sleet.db;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stores the data of emails outside of the database. Each email is stored
+ * under a key that is derived from its contents, so an email that is stored
+ * more than once (for example, a copy of the same email for each member of a
+ * mailing list) only takes up space once. The database only holds the key.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public interface MessageStore {
+	/**
+	 * Stores the data of an email. If the same data is already stored, then
+	 * nothing new is saved.
+	 * @param data the email data, exactly as it is sent over the wire (with
+	 * dot-stuffing still applied)
+	 * @return the key
+	 * @throws IOException if the data could not be read or saved
+	 */
+	String put(Reader data) throws IOException;
+
+	/**
+	 * Determines if data is stored under the given key.
+	 * @param key the key
+	 * @return true if it exists, false if not
+	 */
+	boolean contains(String key);
+
+	/**
+	 * Opens the data of an email.
+	 * @param key the key
+	 * @return the reader (the caller is responsible for closing it)
+	 * @throws IOException if the data doesn't exist or couldn't be opened
+	 */
+	Reader open(String key) throws IOException;
+
+	/**
+	 * Opens the data of an email, starting part of the way through it.
+	 * @param key the key
+	 * @param offset the number of bytes to skip
+	 * @return the reader (the caller is responsible for closing it)
+	 * @throws IOException if the data doesn't exist or couldn't be opened
+	 */
+	Reader open(String key, long offset) throws IOException;
+
+	/**
+	 * Gets the size of an email's data.
+	 * @param key the key
+	 * @return the size (in bytes)
+	 * @throws IOException if the data doesn't exist
+	 */
+	long size(String key) throws IOException;
+
+	/**
+	 * Writes the data of an email to a channel. Where possible, the data is
+	 * copied by the operating system without passing through the JVM.
+	 * @param key the key
+	 * @param channel the channel to write to (must be in blocking mode)
+	 * @return the number of bytes written
+	 * @throws IOException if the data doesn't exist or couldn't be written
+	 */
+	long transferTo(String key, WritableByteChannel channel) throws IOException;
+
+	/**
+	 * Writes part of the data of an email to a channel. Where possible, the
+	 * data is copied by the operating system without passing through the JVM.
+	 * @param key the key
+	 * @param position the byte to start at
+	 * @param count the maximum number of bytes to write
+	 * @param channel the channel to write to (must be in blocking mode)
+	 * @return the number of bytes written
+	 * @throws IOException if the data doesn't exist or couldn't be written
+	 */
+	long transferTo(String key, long position, long count, WritableByteChannel channel) throws IOException;
+
+	/**
+	 * Deletes the data of an email. This should only be called once nothing
+	 * refers to the key anymore.
+	 * @param key the key
+	 * @throws IOException if the data couldn't be deleted
+	 */
+	void delete(String key) throws IOException;
+}
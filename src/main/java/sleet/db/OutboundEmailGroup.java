@@ -15,5 +15,8 @@ public class OutboundEmailGroup {
 	public int attempts = 0;
 	public Date firstAttempt = null;
 	public Date prevAttempt = null;
+	public Date nextAttempt = null;
+	public String leaseOwner = null;
+	public Date leaseExpires = null;
 	public List<String> failures = new ArrayList<String>();
 }
@@ -1,40 +0,0 @@
-package sleet.db;
-
-public class POPEmail {
-	private int popId;
-	private int dbId;
-	private long size;
-	private boolean deleted = false;
-
-	public int getPopId() {
-		return popId;
-	}
-
-	public void setPopId(int popId) {
-		this.popId = popId;
-	}
-
-	public int getDbId() {
-		return dbId;
-	}
-
-	public void setDbId(int dbId) {
-		this.dbId = dbId;
-	}
-
-	public long getSize() {
-		return size;
-	}
-
-	public void setSize(long size) {
-		this.size = size;
-	}
-
-	public boolean isDeleted() {
-		return deleted;
-	}
-
-	public void setDeleted(boolean deleted) {
-		this.deleted = deleted;
-	}
-}
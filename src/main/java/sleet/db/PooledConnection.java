@@ -0,0 +1,188 @@
+package sleet.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection that belongs to a {@link ConnectionPool}. Prepared statements
+ * are cached by their SQL text so that they only have to be compiled once per
+ * connection. The least recently used statements are closed once the cache
+ * fills up.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class PooledConnection {
+	private final Connection connection;
+	private final AtomicLong hits, misses;
+
+	/**
+	 * The cached statements (key = SQL text and generated keys flag).
+	 */
+	private final Map<String, PreparedStatement> cache;
+
+	/**
+	 * The statements that are currently being used (value = the statement's
+	 * key in the cache or null if the statement is not cached).
+	 */
+	private final Map<Statement, String> checkedOut = new IdentityHashMap<Statement, String>();
+
+	/**
+	 * @param connection the JDBC connection
+	 * @param cacheSize the maximum number of prepared statements to cache
+	 * @param hits incremented every time a cached statement is re-used
+	 * @param misses incremented every time a statement has to be prepared
+	 */
+	public PooledConnection(Connection connection, final int cacheSize, AtomicLong hits, AtomicLong misses) {
+		this.connection = connection;
+		this.hits = hits;
+		this.misses = misses;
+
+		cache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 3226148101395573215L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= cacheSize) {
+					return false;
+				}
+
+				//if the statement is being used, it will be closed when it is returned
+				PreparedStatement statement = eldest.getValue();
+				if (!checkedOut.containsKey(statement)) {
+					close(statement);
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Gets a prepared statement, re-using a cached one if possible. The
+	 * statement must be given back with {@link #closeStatements}.
+	 * @param sql the SQL
+	 * @return the prepared statement
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		return prepareStatement(sql, Statement.NO_GENERATED_KEYS);
+	}
+
+	/**
+	 * Gets a prepared statement, re-using a cached one if possible. The
+	 * statement must be given back with {@link #closeStatements}.
+	 * @param sql the SQL
+	 * @param autoGeneratedKeys {@link Statement#RETURN_GENERATED_KEYS} or
+	 * {@link Statement#NO_GENERATED_KEYS}
+	 * @return the prepared statement
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+		String key = autoGeneratedKeys + ":" + sql;
+		PreparedStatement statement = cache.get(key);
+		if (statement != null && !checkedOut.containsKey(statement)) {
+			hits.incrementAndGet();
+			checkedOut.put(statement, key);
+			return statement;
+		}
+
+		misses.incrementAndGet();
+		statement = connection.prepareStatement(sql, autoGeneratedKeys);
+		if (cache.containsKey(key)) {
+			//the cached statement is being used further up the call stack
+			checkedOut.put(statement, null);
+		} else {
+			cache.put(key, statement);
+			checkedOut.put(statement, key);
+		}
+		return statement;
+	}
+
+	/**
+	 * Creates a statement that is not cached.
+	 * @return the statement
+	 * @throws SQLException
+	 */
+	public Statement createStatement() throws SQLException {
+		Statement statement = connection.createStatement();
+		checkedOut.put(statement, null);
+		return statement;
+	}
+
+	/**
+	 * Gives statements back to the connection once they are no longer needed.
+	 * Cached statements are reset so they can be re-used and all other
+	 * statements are closed.
+	 * @param statements the statements (nulls are ignored)
+	 */
+	public void closeStatements(Statement... statements) {
+		for (Statement statement : statements) {
+			if (statement == null) {
+				continue;
+			}
+
+			String key = checkedOut.remove(statement);
+			if (key == null || cache.get(key) != statement) {
+				close(statement);
+				continue;
+			}
+
+			try {
+				ResultSet rs = statement.getResultSet();
+				if (rs != null) {
+					rs.close();
+				}
+				statement.clearBatch();
+				((PreparedStatement) statement).clearParameters();
+			} catch (SQLException e) {
+				cache.remove(key);
+				close(statement);
+			}
+		}
+	}
+
+	public void setAutoCommit(boolean autoCommit) throws SQLException {
+		connection.setAutoCommit(autoCommit);
+	}
+
+	public void commit() throws SQLException {
+		connection.commit();
+	}
+
+	public void rollback() throws SQLException {
+		connection.rollback();
+	}
+
+	public boolean isClosed() throws SQLException {
+		return connection.isClosed();
+	}
+
+	/**
+	 * Closes all cached statements and the connection.
+	 */
+	public void close() {
+		for (PreparedStatement statement : cache.values()) {
+			close(statement);
+		}
+		cache.clear();
+
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			//ignore
+		}
+	}
+
+	private static void close(Statement statement) {
+		try {
+			statement.close();
+		} catch (SQLException e) {
+			//ignore
+		}
+	}
+}
@@ -30,7 +30,8 @@ public class SQLStatementReader extends BufferedReader {
 			sb.append((char) i);
 		}
 
-		if (sb.length() == 0) {
+		//ignore whitespace after the last statement
+		if (sb.toString().trim().length() == 0) {
 			return null;
 		}
 
@@ -0,0 +1,139 @@
+package sleet.email;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Holds a large block of text, such as the body of an email that is being
+ * received. The text is kept in memory until it grows past a threshold, at
+ * which point it is moved to a temporary file. This keeps the amount of memory
+ * used by each email bounded, no matter how large the email is.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class DataSpool implements Closeable {
+	/**
+	 * The default number of characters that are kept in memory.
+	 */
+	public static final int defaultThreshold = 64 * 1024;
+
+	private static final String charset = "UTF-8";
+
+	private final int threshold;
+	private StringBuilder buffer = new StringBuilder();
+	private File file;
+	private Writer writer;
+	private long length = 0;
+
+	public DataSpool() {
+		this(defaultThreshold);
+	}
+
+	/**
+	 * @param threshold the number of characters to keep in memory before
+	 * moving the text to a temporary file
+	 */
+	public DataSpool(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Adds text to the end of the spool.
+	 * @param text the text to add
+	 * @return this
+	 * @throws IOException if there's a problem writing to the temporary file
+	 */
+	public DataSpool append(CharSequence text) throws IOException {
+		length += text.length();
+
+		if (writer != null) {
+			writer.append(text);
+			return this;
+		}
+
+		buffer.append(text);
+		if (buffer.length() > threshold) {
+			file = File.createTempFile("sleet-data", ".tmp");
+			file.deleteOnExit();
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), charset));
+			writer.write(buffer.toString());
+			buffer = null;
+		}
+
+		return this;
+	}
+
+	/**
+	 * Gets the number of characters in the spool.
+	 * @return the number of characters
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Determines if the text has been moved to a temporary file.
+	 * @return true if it's in a file, false if it's in memory
+	 */
+	public boolean isOnDisk() {
+		return file != null;
+	}
+
+	/**
+	 * Opens a reader for reading the contents of the spool from the
+	 * beginning. The caller is responsible for closing it.
+	 * @return the reader
+	 * @throws IOException if there's a problem opening the temporary file
+	 */
+	public Reader openReader() throws IOException {
+		if (writer == null) {
+			return new StringReader((buffer == null) ? "" : buffer.toString());
+		}
+
+		writer.flush();
+		return new BufferedReader(new InputStreamReader(new FileInputStream(file), charset));
+	}
+
+	/**
+	 * Reads the entire contents of the spool into memory.
+	 * @return the contents
+	 * @throws IOException if there's a problem reading the temporary file
+	 */
+	public String readAll() throws IOException {
+		if (writer == null) {
+			return (buffer == null) ? "" : buffer.toString();
+		}
+
+		Reader reader = openReader();
+		try {
+			return IOUtils.toString(reader);
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Discards the contents of the spool and deletes the temporary file.
+	 */
+	@Override
+	public void close() {
+		buffer = null;
+		IOUtils.closeQuietly(writer);
+		writer = null;
+		if (file != null) {
+			file.delete();
+			file = null;
+		}
+	}
+}
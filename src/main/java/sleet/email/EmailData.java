@@ -1,5 +1,8 @@
 package sleet.email;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.Scanner;
 import java.util.logging.Logger;
 
@@ -7,16 +10,57 @@ import static sleet.email.EmailRaw.CRLF;
 
 /**
  * Represents the DATA portion of an email.
+ * <p>
+ * An email that was received over the wire (or loaded from the database) keeps
+ * its data exactly as it was received. Sending or saving the email writes
+ * this data back out unchanged, instead of rebuilding it from the parsed
+ * headers and body. The headers are only parsed when they are asked for, and
+ * are only rebuilt from the parsed headers if they were changed. Headers that
+ * are added with {@link #prependHeader} or {@link #appendHeader} are added
+ * to the original data without rebuilding it.
+ * </p>
  * @author Mike Angstadt [mike.angstadt@gmail.com]
  */
 public class EmailData {
 	private static final Logger logger = Logger.getLogger(EmailData.class.getName());
 
+	/**
+	 * The parsed headers (null if they haven't been parsed from
+	 * {@link #rawHeaders} yet).
+	 */
 	private EmailHeaders headers;
 
+	/**
+	 * The header section exactly as it was received, where each line is
+	 * followed by a CRLF and dot-stuffing is still applied (null if the email
+	 * was not received over the wire).
+	 */
+	private String rawHeaders;
+
+	/**
+	 * The modification count of {@link #headers} at the time they matched
+	 * {@link #rawHeaders}. If the count changes, then the headers were
+	 * modified and {@link #rawHeaders} can no longer be used.
+	 */
+	private int rawHeadersModCount;
+
 	//TODO MIME parts
 	private String body;
 
+	/**
+	 * The body exactly as it was received, where each line is preceded by a
+	 * CRLF and dot-stuffing is still applied (null if the body is stored in
+	 * {@link #body} or {@link #bodySpool}).
+	 */
+	private String rawBody;
+
+	/**
+	 * The body of an email that was too large to keep in memory, in the same
+	 * form as {@link #rawBody} (null if the body is stored in {@link #body} or
+	 * {@link #rawBody}).
+	 */
+	private DataSpool bodySpool;
+
 	public EmailData() {
 		headers = new EmailHeaders();
 	}
@@ -30,8 +74,38 @@ public class EmailData {
 	 * </ul>
 	 */
 	public EmailData(String data) {
-		headers = parseHeaders(data);
-		body = parseBody(data);
+		if (data.startsWith(CRLF)) {
+			//there are no headers
+			rawHeaders = "";
+			rawBody = data;
+			return;
+		}
+
+		//the first empty line separates the headers from the body
+		int emptyLinePos = data.indexOf(CRLF + CRLF);
+		if (emptyLinePos == -1) {
+			//there is no body
+			rawHeaders = (data.isEmpty() || data.endsWith(CRLF)) ? data : data + CRLF;
+		} else {
+			int bodyPos = emptyLinePos + CRLF.length();
+			rawHeaders = data.substring(0, bodyPos);
+			rawBody = data.substring(bodyPos);
+		}
+	}
+
+	/**
+	 * Creates an email whose body is stored in a spool. The body is not read
+	 * into memory unless {@link #getBody} or {@link #toData} is called.
+	 * @param headerData the header section of the email data exactly as it was
+	 * received, where each line is followed by a CRLF (without the empty line
+	 * that separates the headers from the body)
+	 * @param bodySpool the body of the email exactly as it was received, where
+	 * each line is preceded by a CRLF and dot-stuffing is still applied. Null
+	 * if the email has no body.
+	 */
+	public EmailData(String headerData, DataSpool bodySpool) {
+		rawHeaders = headerData;
+		this.bodySpool = bodySpool;
 	}
 
 	/**
@@ -101,46 +175,120 @@ public class EmailData {
 		return headers;
 	}
 
+	public EmailHeaders getHeaders() {
+		if (headers == null) {
+			headers = parseHeaders(removeDotStuffing(rawHeaders));
+			rawHeadersModCount = headers.getModCount();
+		}
+		return headers;
+	}
+
 	/**
-	 * Parses the body of an email out of an email DATA string.
-	 * @return the body of the email with:
-	 * <ul>
-	 * <li>dot-stuffing REMOVED</li>
-	 * <li>"\r\n" newlines</li>
-	 * <li>does NOT include the "&lt;CRLF&gt;.&lt;CRLF&gt;" terminator on the
-	 * end</li>
-	 * </ul>
+	 * Adds a header to the top of the header section. Trace headers, such as
+	 * "Received", must be added this way (RFC 5321, p.57). If the email was
+	 * received over the wire, then the header is added to the original data,
+	 * leaving the rest of the headers untouched.
+	 * @param name the header name
+	 * @param value the header value
 	 */
-	private String parseBody(String data) {
-		String emptyLine = CRLF + CRLF;
-
-		//the first empty line separates the headers from the body
-		int emptyLinePos = data.indexOf(emptyLine);
+	public void prependHeader(String name, String value) {
+		boolean rawCurrent = isRawHeadersCurrent();
+		if (headers != null) {
+			headers.prependHeader(name, value);
+		}
+		if (rawCurrent) {
+			rawHeaders = headerToData(name, value) + rawHeaders;
+			markRawHeadersCurrent();
+		}
+	}
 
-		if (emptyLinePos == -1) {
-			//there is no body
-			return null;
-		} else {
-			int bodyPos = emptyLinePos + emptyLine.length();
-			if (bodyPos < data.length() - 1) {
-				String body = data.substring(bodyPos);
-				return removeDotStuffing(body);
-			} else {
-				return "";
-			}
+	/**
+	 * Adds a header to the bottom of the header section. If the email was
+	 * received over the wire, then the header is added to the original data,
+	 * leaving the rest of the headers untouched.
+	 * @param name the header name
+	 * @param value the header value
+	 */
+	public void appendHeader(String name, String value) {
+		boolean rawCurrent = isRawHeadersCurrent();
+		if (headers != null) {
+			headers.addHeader(name, value);
+		}
+		if (rawCurrent) {
+			rawHeaders = rawHeaders + headerToData(name, value);
+			markRawHeadersCurrent();
 		}
 	}
 
-	public EmailHeaders getHeaders() {
-		return headers;
+	/**
+	 * Determines if the headers exactly as they were received can still be
+	 * used.
+	 * @return true if they can be used, false if the email was not received
+	 * over the wire or its parsed headers have been modified
+	 */
+	private boolean isRawHeadersCurrent() {
+		return rawHeaders != null && (headers == null || headers.getModCount() == rawHeadersModCount);
+	}
+
+	private void markRawHeadersCurrent() {
+		if (headers != null) {
+			rawHeadersModCount = headers.getModCount();
+		}
 	}
 
 	public String getBody() {
-		return body;
+		String data;
+		if (bodySpool != null) {
+			try {
+				data = bodySpool.readAll();
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		} else if (rawBody != null) {
+			data = rawBody;
+		} else {
+			return body;
+		}
+
+		//remove the CRLF that precedes the first line
+		if (data.startsWith(CRLF)) {
+			data = data.substring(CRLF.length());
+		}
+		return removeDotStuffing(data);
 	}
 
 	public void setBody(String body) {
 		this.body = body;
+		rawBody = null;
+		bodySpool = null;
+	}
+
+	/**
+	 * Creates a copy of this email data. Headers can be added to the copy
+	 * without affecting the original. The body is not copied, so if it is
+	 * stored in a spool, then the spool is shared by both objects and must
+	 * not be closed until both of them are no longer needed.
+	 * @return the copy
+	 */
+	public EmailData copy() {
+		EmailData copy = new EmailData(headersToData(), bodySpool);
+		copy.rawBody = rawBody;
+		copy.body = body;
+		return copy;
+	}
+
+	/**
+	 * Opens a reader that reads the same string that {@link #toData} returns.
+	 * If the body of this email is stored in a spool, then it is streamed from
+	 * the spool instead of being read into memory.
+	 * @return the reader (the caller is responsible for closing it)
+	 * @throws IOException if the spool could not be read
+	 */
+	public Reader toDataReader() throws IOException {
+		if (bodySpool == null) {
+			return new StringReader(toData());
+		}
+		return new SequenceReader(new StringReader(headersToData()), bodySpool.openReader());
 	}
 
 	/**
@@ -149,18 +297,17 @@ public class EmailData {
 	 * @return the string for sending over the wire
 	 */
 	public String toData() {
-		StringBuilder data = new StringBuilder();
+		StringBuilder data = new StringBuilder(headersToData());
 
-		//headers
-		for (EmailHeader header : headers) {
-			String name = header.getName();
-			String value = header.getValue();
-			String line = name + ": " + value;
-			data.append(foldHeader(line, 78));
-			data.append(CRLF);
-		}
-
-		if (body != null) {
+		if (bodySpool != null) {
+			try {
+				data.append(bodySpool.readAll());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		} else if (rawBody != null) {
+			data.append(rawBody);
+		} else if (body != null) {
 			//append the email body
 			Scanner scanner = new Scanner(body);
 			while (scanner.hasNextLine()) {
@@ -185,6 +332,47 @@ public class EmailData {
 		return data.toString();
 	}
 
+	/**
+	 * Converts this object into a string that contains the email message as
+	 * it was written by its sender (dot-stuffing removed). Does not include
+	 * the terminating ".".
+	 * @return the email message
+	 */
+	public String toText() {
+		return removeDotStuffing(toData());
+	}
+
+	/**
+	 * Converts the headers into a string for sending over the wire.
+	 * @return the headers, each followed by a CRLF
+	 */
+	private String headersToData() {
+		if (isRawHeadersCurrent()) {
+			return rawHeaders;
+		}
+
+		StringBuilder data = new StringBuilder();
+		for (EmailHeader header : headers) {
+			data.append(headerToData(header.getName(), header.getValue()));
+		}
+		return data.toString();
+	}
+
+	/**
+	 * Converts a header into a string for sending over the wire.
+	 * @param name the header name
+	 * @param value the header value
+	 * @return the header, followed by a CRLF
+	 */
+	private static String headerToData(String name, String value) {
+		String line = name + ": " + value;
+		if (line.startsWith(".")) {
+			//"dot-stuff" the line
+			line = "." + line;
+		}
+		return foldHeader(line, 78) + CRLF;
+	}
+
 	/**
 	 * Insures that each header line does not exceed a certain length (called
 	 * "folding" the header). This method has "protected" access so it can be
@@ -278,4 +466,38 @@ public class EmailData {
 	protected static String removeDotStuffing(String str) {
 		return str.replaceAll("(^|\\n)\\.\\.", "$1.");
 	}
+
+	/**
+	 * Reads from one reader and then another.
+	 */
+	private static class SequenceReader extends Reader {
+		private final Reader first, second;
+		private boolean firstDone = false;
+
+		public SequenceReader(Reader first, Reader second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (!firstDone) {
+				int read = first.read(cbuf, off, len);
+				if (read != -1) {
+					return read;
+				}
+				firstDone = true;
+			}
+			return second.read(cbuf, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				first.close();
+			} finally {
+				second.close();
+			}
+		}
+	}
 }
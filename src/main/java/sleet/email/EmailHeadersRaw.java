@@ -12,6 +12,11 @@ import java.util.List;
 public class EmailHeadersRaw implements Iterable<EmailHeader> {
 	private final List<EmailHeader> headerList = new LinkedList<EmailHeader>();
 
+	/**
+	 * The number of times the header list has been modified.
+	 */
+	private int modCount = 0;
+
 	/**
 	 * Adds a header to the beginning of the header list.
 	 * @param name the header name
@@ -20,6 +25,7 @@ public class EmailHeadersRaw implements Iterable<EmailHeader> {
 	public void prependHeader(String name, String value) {
 		EmailHeader header = new EmailHeader(name, value);
 		headerList.add(0, header);
+		modCount++;
 	}
 
 	/**
@@ -30,6 +36,7 @@ public class EmailHeadersRaw implements Iterable<EmailHeader> {
 	public void addHeader(String name, String value) {
 		EmailHeader header = new EmailHeader(name, value);
 		headerList.add(header);
+		modCount++;
 	}
 
 	/**
@@ -88,6 +95,16 @@ public class EmailHeadersRaw implements Iterable<EmailHeader> {
 		return values;
 	}
 
+	/**
+	 * Gets the number of times the headers have been added to or changed. This
+	 * allows {@link EmailData} to tell whether the headers it parsed are still
+	 * the same as the ones it received.
+	 * @return the modification count
+	 */
+	int getModCount() {
+		return modCount;
+	}
+
 	/**
 	 * Iterates over all headers.
 	 */
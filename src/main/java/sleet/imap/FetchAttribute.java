@@ -0,0 +1,269 @@
+package sleet.imap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A data item that was requested by an IMAP "FETCH" command.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class FetchAttribute {
+	enum Type {
+		UID, FLAGS, INTERNALDATE, RFC822_SIZE, BODY
+	}
+
+	/**
+	 * The part of the email that a body attribute refers to.
+	 */
+	enum Section {
+		/**
+		 * The entire email.
+		 */
+		ALL,
+
+		/**
+		 * The header section, including the empty line after it.
+		 */
+		HEADER,
+
+		/**
+		 * Only the given header fields.
+		 */
+		HEADER_FIELDS,
+
+		/**
+		 * All header fields except for the given ones.
+		 */
+		HEADER_FIELDS_NOT,
+
+		/**
+		 * The body.
+		 */
+		TEXT
+	}
+
+	private final Type type;
+	private final String name;
+	private final Section section;
+	private final List<String> fieldNames;
+	private final boolean peek;
+	private final long partialStart;
+	private final long partialCount;
+
+	private FetchAttribute(Type type, String name) {
+		this(type, name, null, null, true, -1, -1);
+	}
+
+	private FetchAttribute(Type type, String name, Section section, List<String> fieldNames, boolean peek, long partialStart, long partialCount) {
+		this.type = type;
+		this.name = name;
+		this.section = section;
+		this.fieldNames = fieldNames;
+		this.peek = peek;
+		this.partialStart = partialStart;
+		this.partialCount = partialCount;
+	}
+
+	/**
+	 * Parses the data items of a "FETCH" command.
+	 * @param items the data items (either a single atom or a list of atoms)
+	 * @return the data items
+	 * @throws IllegalArgumentException if any of the data items are malformed
+	 * or not supported
+	 */
+	public static List<FetchAttribute> parse(Object items) {
+		List<FetchAttribute> attributes = new ArrayList<FetchAttribute>();
+		if (items instanceof List) {
+			for (Object item : (List<?>) items) {
+				if (!(item instanceof String)) {
+					throw new IllegalArgumentException("Invalid fetch attribute.");
+				}
+				attributes.add(parse((String) item));
+			}
+		} else if ("FAST".equalsIgnoreCase((String) items)) {
+			attributes.add(new FetchAttribute(Type.FLAGS, "FLAGS"));
+			attributes.add(new FetchAttribute(Type.INTERNALDATE, "INTERNALDATE"));
+			attributes.add(new FetchAttribute(Type.RFC822_SIZE, "RFC822.SIZE"));
+		} else {
+			attributes.add(parse((String) items));
+		}
+		return attributes;
+	}
+
+	private static FetchAttribute parse(String item) {
+		String upper = item.toUpperCase();
+		if ("UID".equals(upper)) {
+			return new FetchAttribute(Type.UID, "UID");
+		}
+		if ("FLAGS".equals(upper)) {
+			return new FetchAttribute(Type.FLAGS, "FLAGS");
+		}
+		if ("INTERNALDATE".equals(upper)) {
+			return new FetchAttribute(Type.INTERNALDATE, "INTERNALDATE");
+		}
+		if ("RFC822.SIZE".equals(upper)) {
+			return new FetchAttribute(Type.RFC822_SIZE, "RFC822.SIZE");
+		}
+		if ("RFC822".equals(upper)) {
+			return new FetchAttribute(Type.BODY, "RFC822", Section.ALL, null, false, -1, -1);
+		}
+		if ("RFC822.HEADER".equals(upper)) {
+			return new FetchAttribute(Type.BODY, "RFC822.HEADER", Section.HEADER, null, true, -1, -1);
+		}
+		if ("RFC822.TEXT".equals(upper)) {
+			return new FetchAttribute(Type.BODY, "RFC822.TEXT", Section.TEXT, null, false, -1, -1);
+		}
+
+		boolean peek;
+		String rest;
+		if (upper.startsWith("BODY[")) {
+			peek = false;
+			rest = item.substring(4);
+		} else if (upper.startsWith("BODY.PEEK[")) {
+			peek = true;
+			rest = item.substring(9);
+		} else {
+			throw new IllegalArgumentException("Unsupported fetch attribute: " + item);
+		}
+
+		int close = rest.lastIndexOf(']');
+		String sectionStr = rest.substring(1, close);
+		String partial = rest.substring(close + 1);
+
+		Section section;
+		List<String> fieldNames = null;
+		String sectionUpper = sectionStr.toUpperCase();
+		if (sectionUpper.isEmpty()) {
+			section = Section.ALL;
+		} else if ("HEADER".equals(sectionUpper)) {
+			section = Section.HEADER;
+		} else if ("TEXT".equals(sectionUpper)) {
+			section = Section.TEXT;
+		} else if (sectionUpper.startsWith("HEADER.FIELDS.NOT ") || sectionUpper.startsWith("HEADER.FIELDS ")) {
+			section = sectionUpper.startsWith("HEADER.FIELDS.NOT ") ? Section.HEADER_FIELDS_NOT : Section.HEADER_FIELDS;
+			String list = sectionStr.substring(sectionStr.indexOf(' ') + 1).trim();
+			if (!list.startsWith("(") || !list.endsWith(")")) {
+				throw new IllegalArgumentException("Invalid header field list: " + item);
+			}
+			fieldNames = new ArrayList<String>();
+			for (String fieldName : Arrays.asList(list.substring(1, list.length() - 1).trim().split("\\s+"))) {
+				if (!fieldName.isEmpty()) {
+					fieldNames.add(fieldName.replace("\"", ""));
+				}
+			}
+		} else {
+			//MIME part numbers require the structure of the email to be parsed
+			throw new IllegalArgumentException("Unsupported body section: " + sectionStr);
+		}
+
+		long partialStart = -1, partialCount = -1;
+		if (!partial.isEmpty()) {
+			int dot = partial.indexOf('.');
+			if (!partial.startsWith("<") || !partial.endsWith(">") || dot < 0) {
+				throw new IllegalArgumentException("Invalid partial range: " + item);
+			}
+			try {
+				partialStart = Long.parseLong(partial.substring(1, dot));
+				partialCount = Long.parseLong(partial.substring(dot + 1, partial.length() - 1));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid partial range: " + item);
+			}
+			if (partialStart < 0 || partialCount <= 0) {
+				throw new IllegalArgumentException("Invalid partial range: " + item);
+			}
+		}
+
+		//the response uses the name without ".PEEK" and only the start of the range
+		String name = "BODY[" + sectionStr + "]" + ((partialStart < 0) ? "" : "<" + partialStart + ">");
+		return new FetchAttribute(Type.BODY, name, section, fieldNames, peek, partialStart, partialCount);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the name that the data item is given in the response.
+	 * @return the name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public Section getSection() {
+		return section;
+	}
+
+	/**
+	 * Gets the header field names of a "HEADER.FIELDS" section.
+	 * @return the field names or null if the section isn't a "HEADER.FIELDS"
+	 * section
+	 */
+	public List<String> getFieldNames() {
+		return fieldNames;
+	}
+
+	/**
+	 * Determines if fetching this data item leaves the "\Seen" flag alone.
+	 * @return true if the flag is left alone, false if it is set
+	 */
+	public boolean isPeek() {
+		return peek;
+	}
+
+	/**
+	 * Gets the offset of the first octet to return.
+	 * @return the offset or -1 if the whole section is requested
+	 */
+	public long getPartialStart() {
+		return partialStart;
+	}
+
+	/**
+	 * Gets the maximum number of octets to return.
+	 * @return the number of octets or -1 if the whole section is requested
+	 */
+	public long getPartialCount() {
+		return partialCount;
+	}
+
+	/**
+	 * Filters the fields of a header section according to a "HEADER.FIELDS"
+	 * or "HEADER.FIELDS.NOT" section.
+	 * @param header the header section
+	 * @return the matching fields, followed by an empty line
+	 */
+	public String filterHeader(String header) {
+		boolean not = (section == Section.HEADER_FIELDS_NOT);
+		StringBuilder sb = new StringBuilder();
+		boolean include = false;
+		for (String line : header.split("\r\n")) {
+			if (line.isEmpty()) {
+				break;
+			}
+
+			if (line.charAt(0) != ' ' && line.charAt(0) != '\t') {
+				//a new field starts (other lines are the folded continuations of the previous field)
+				int colon = line.indexOf(':');
+				String fieldName = (colon < 0) ? line : line.substring(0, colon).trim();
+				include = (containsIgnoreCase(fieldNames, fieldName) != not);
+			}
+
+			if (include) {
+				sb.append(line).append("\r\n");
+			}
+		}
+		sb.append("\r\n");
+		return sb.toString();
+	}
+
+	private static boolean containsIgnoreCase(List<String> list, String value) {
+		for (String item : list) {
+			if (item.equalsIgnoreCase(value)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,885 @@
+package sleet.imap;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.sql.SQLException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+import sleet.ConnectionExecutor;
+import sleet.db.DbDao;
+import sleet.db.DbDao.DataHandler;
+import sleet.db.DbDao.InboxListener;
+import sleet.db.DbDao.UnitOfWork;
+import sleet.db.Mailbox;
+import sleet.db.MessageStore;
+import sleet.db.User;
+
+/**
+ * Listens for and handles IMAP client connections. Each client/server
+ * connection is run by the listener's {@link ConnectionExecutor}. Only the
+ * parts of IMAP4rev1 (RFC 3501) that are needed to read a single inbox are
+ * supported, along with the IDLE extension (RFC 2177), which lets clients be
+ * told about new emails as soon as they arrive instead of polling for them.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class IMAPConnectionListener {
+	private static final Logger logger = Logger.getLogger(IMAPConnectionListener.class.getName());
+	private static final String capabilities = "IMAP4rev1 IDLE LITERAL+";
+
+	/**
+	 * The IDs of the inbox rows are used as unique IDs. They are never
+	 * re-used, so the unique ID validity value never has to change.
+	 */
+	private static final int uidValidity = 1;
+
+	private final DbDao dao;
+	private boolean started = false;
+	private int port = 143;
+	private String hostName;
+	private File transactionLogFile;
+	private ConnectionExecutor executor = ConnectionExecutor.platform("IMAP");
+
+	/**
+	 * The conversations that have the inbox selected (key = username).
+	 */
+	private final Map<String, List<IMAPConversation>> selected = new HashMap<String, List<IMAPConversation>>();
+
+	public IMAPConnectionListener(DbDao dao) {
+		this.dao = dao;
+	}
+
+	public void setPort(int port) {
+		if (started) {
+			throw new IllegalStateException("IMAP server properties cannot be changed once the server starts.");
+		}
+		if (port < 1) {
+			throw new IllegalArgumentException("Port must be a postive integer.");
+		}
+		this.port = port;
+	}
+
+	public void setHostName(String hostName) {
+		if (started) {
+			throw new IllegalStateException("IMAP server properties cannot be changed once the server starts.");
+		}
+		if (hostName == null) {
+			throw new IllegalArgumentException("Host name cannot be null.");
+		}
+		this.hostName = hostName;
+	}
+
+	public void setTransactionLogFile(File transactionLogFile) {
+		if (started) {
+			throw new IllegalStateException("Transaction log file cannot be changed once the server starts.");
+		}
+		this.transactionLogFile = transactionLogFile;
+	}
+
+	/**
+	 * Sets the executor that runs the client connections.
+	 * @param executor the executor (defaults to one new thread per connection)
+	 * @throws IllegalStateException if the listener has already been started
+	 */
+	public void setExecutor(ConnectionExecutor executor) {
+		if (started) {
+			throw new IllegalStateException("IMAP server properties cannot be changed once the server starts.");
+		}
+		this.executor = executor;
+	}
+
+	public void start() throws IOException {
+		if (hostName == null) {
+			throw new IllegalStateException("Host name must be set.");
+		}
+
+		started = true;
+
+		dao.addInboxListener(new InboxListener() {
+			@Override
+			public void emailsReceived(Set<String> usernames) {
+				List<IMAPConversation> conversations = new ArrayList<IMAPConversation>();
+				synchronized (selected) {
+					for (String username : usernames) {
+						List<IMAPConversation> list = selected.get(username);
+						if (list != null) {
+							conversations.addAll(list);
+						}
+					}
+				}
+
+				//this only flags the conversations, so the thread that delivered the emails never waits on a client
+				for (IMAPConversation conversation : conversations) {
+					conversation.emailsReceived();
+				}
+			}
+		});
+
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		logger.info("Ready to receive IMAP requests on port " + port + " (" + executor.getMode().name().toLowerCase() + " threads)...");
+
+		while (true) {
+			SocketChannel channel = serverChannel.accept();
+			logger.info("IMAP connection established with " + channel.socket().getInetAddress().getHostAddress());
+			try {
+				executor.execute(new IMAPConversation(channel));
+			} catch (InterruptedException e) {
+				channel.close();
+				break;
+			}
+		}
+	}
+
+	private class IMAPConversation implements Runnable {
+		private final String remoteAddress;
+		private final IMAPServerSocket serverSocket;
+		private final DateFormat internalDateFormat = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss Z", Locale.US);
+		private User currentUser;
+		private Mailbox mailbox;
+		private boolean readOnly;
+
+		/**
+		 * True if the client is waiting to be told about new emails (the IDLE
+		 * command). While this is true, the conversation's thread is woken up
+		 * when emails arrive.
+		 */
+		private volatile boolean idling = false;
+
+		/**
+		 * True if emails have arrived since the mailbox was last checked for
+		 * new emails. This is the only field that other threads touch.
+		 */
+		private final AtomicBoolean newEmails = new AtomicBoolean();
+
+		public IMAPConversation(SocketChannel channel) {
+			this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+			this.serverSocket = new IMAPServerSocket(channel);
+		}
+
+		@Override
+		public void run() {
+			try {
+				serverSocket.sendUntagged("OK [CAPABILITY " + capabilities + "] Sleet IMAP4rev1 server ready");
+
+				while (true) {
+					IMAPRequest request;
+					try {
+						request = serverSocket.nextRequest();
+					} catch (IllegalArgumentException e) {
+						serverSocket.sendUntagged("BAD " + e.getMessage());
+						continue;
+					}
+					if (request == null) {
+						break;
+					}
+
+					String tag = request.getTag();
+					String cmd = request.getCommand();
+					List<Object> args = request.getArguments();
+
+					try {
+						if ("CAPABILITY".equals(cmd)) {
+							serverSocket.sendUntagged("CAPABILITY " + capabilities);
+							serverSocket.sendTagged(tag, "OK CAPABILITY completed.");
+						} else if ("NOOP".equals(cmd) || "CHECK".equals(cmd)) {
+							if ("CHECK".equals(cmd) && mailbox == null) {
+								serverSocket.sendTagged(tag, "BAD Please select a mailbox first.");
+								continue;
+							}
+							if (mailbox != null) {
+								checkForNewEmails(true);
+							}
+							serverSocket.sendTagged(tag, "OK " + cmd + " completed.");
+						} else if ("LOGOUT".equals(cmd)) {
+							serverSocket.sendUntagged("BYE Sleet IMAP4rev1 server signing off");
+							serverSocket.sendTagged(tag, "OK LOGOUT completed.");
+							break;
+						} else if ("LOGIN".equals(cmd)) {
+							if (currentUser != null) {
+								serverSocket.sendTagged(tag, "BAD Already authenticated.");
+								continue;
+							}
+							if (args.size() != 2) {
+								serverSocket.sendTagged(tag, "BAD Invalid syntax of LOGIN command.");
+								continue;
+							}
+
+							String username = string(args.get(0));
+							String password = string(args.get(1));
+							User user = dao.selectUser(username);
+							if (user == null || !user.password.equals(password)) {
+								serverSocket.sendTagged(tag, "NO Wrong username or password.");
+								continue;
+							}
+
+							currentUser = user;
+							serverSocket.sendTagged(tag, "OK [CAPABILITY " + capabilities + "] LOGIN completed.");
+						} else if ("AUTHENTICATE".equals(cmd)) {
+							serverSocket.sendTagged(tag, "NO Unsupported authentication mechanism, please use LOGIN.");
+						} else if (currentUser == null) {
+							serverSocket.sendTagged(tag, "NO Please authenticate first.");
+						} else if ("SELECT".equals(cmd) || "EXAMINE".equals(cmd)) {
+							if (args.size() != 1) {
+								serverSocket.sendTagged(tag, "BAD Invalid syntax of " + cmd + " command.");
+								continue;
+							}
+
+							deselect();
+							if (!"INBOX".equalsIgnoreCase(string(args.get(0)))) {
+								serverSocket.sendTagged(tag, "NO Mailbox does not exist.");
+								continue;
+							}
+
+							select("EXAMINE".equals(cmd));
+							serverSocket.sendUntagged("FLAGS (\\Seen \\Deleted)");
+							serverSocket.sendUntagged("OK [PERMANENTFLAGS " + (readOnly ? "()" : "(\\Seen \\Deleted)") + "] Limited");
+							serverSocket.sendUntagged(mailbox.size() + " EXISTS");
+							serverSocket.sendUntagged("0 RECENT");
+							for (int seqNum = 1; seqNum <= mailbox.size(); seqNum++) {
+								if (!mailbox.isSeen(seqNum)) {
+									serverSocket.sendUntagged("OK [UNSEEN " + seqNum + "] First unseen");
+									break;
+								}
+							}
+							serverSocket.sendUntagged("OK [UIDVALIDITY " + uidValidity + "] UIDs valid");
+							serverSocket.sendUntagged("OK [UIDNEXT " + (mailbox.getLastUid() + 1) + "] Predicted next UID");
+							serverSocket.sendTagged(tag, "OK [" + (readOnly ? "READ-ONLY" : "READ-WRITE") + "] " + cmd + " completed.");
+						} else if ("LIST".equals(cmd) || "LSUB".equals(cmd)) {
+							if (args.size() != 2) {
+								serverSocket.sendTagged(tag, "BAD Invalid syntax of " + cmd + " command.");
+								continue;
+							}
+
+							String pattern = string(args.get(1));
+							if (pattern.isEmpty()) {
+								//the client is asking for the hierarchy delimiter
+								serverSocket.sendUntagged(cmd + " (\\Noselect) \"/\" \"\"");
+							} else if ("*".equals(pattern) || "%".equals(pattern) || "INBOX".equalsIgnoreCase(pattern)) {
+								serverSocket.sendUntagged(cmd + " (\\HasNoChildren) \"/\" INBOX");
+							}
+							serverSocket.sendTagged(tag, "OK " + cmd + " completed.");
+						} else if ("STATUS".equals(cmd)) {
+							if (args.size() != 2 || !(args.get(1) instanceof List)) {
+								serverSocket.sendTagged(tag, "BAD Invalid syntax of STATUS command.");
+								continue;
+							}
+							if (!"INBOX".equalsIgnoreCase(string(args.get(0)))) {
+								serverSocket.sendTagged(tag, "NO Mailbox does not exist.");
+								continue;
+							}
+
+							Mailbox inbox = new Mailbox();
+							dao.selectInboxEmails(currentUser, inbox);
+
+							StringBuilder sb = new StringBuilder();
+							for (Object item : (List<?>) args.get(1)) {
+								String name = string(item).toUpperCase();
+								long value;
+								if ("MESSAGES".equals(name)) {
+									value = inbox.size();
+								} else if ("RECENT".equals(name)) {
+									value = 0;
+								} else if ("UIDNEXT".equals(name)) {
+									value = inbox.getLastUid() + 1;
+								} else if ("UIDVALIDITY".equals(name)) {
+									value = uidValidity;
+								} else if ("UNSEEN".equals(name)) {
+									value = inbox.getUnseenCount();
+								} else {
+									sb = null;
+									break;
+								}
+								if (sb.length() > 0) {
+									sb.append(' ');
+								}
+								sb.append(name).append(' ').append(value);
+							}
+							if (sb == null) {
+								serverSocket.sendTagged(tag, "BAD Unknown status item.");
+								continue;
+							}
+
+							serverSocket.sendUntagged("STATUS INBOX (" + sb + ")");
+							serverSocket.sendTagged(tag, "OK STATUS completed.");
+						} else if ("IDLE".equals(cmd)) {
+							idle(tag);
+						} else if ("CREATE".equals(cmd) || "DELETE".equals(cmd) || "RENAME".equals(cmd) || "APPEND".equals(cmd) || "COPY".equals(cmd)) {
+							serverSocket.sendTagged(tag, "NO Only the INBOX is supported.");
+						} else if ("SUBSCRIBE".equals(cmd) || "UNSUBSCRIBE".equals(cmd)) {
+							serverSocket.sendTagged(tag, "OK " + cmd + " completed.");
+						} else if (mailbox == null) {
+							serverSocket.sendTagged(tag, "BAD Please select a mailbox first.");
+						} else if ("UID".equals(cmd)) {
+							if (args.isEmpty()) {
+								serverSocket.sendTagged(tag, "BAD Invalid syntax of UID command.");
+								continue;
+							}
+
+							String uidCmd = string(args.get(0)).toUpperCase();
+							List<Object> uidArgs = args.subList(1, args.size());
+							if ("FETCH".equals(uidCmd)) {
+								fetch(tag, uidArgs, true);
+							} else if ("STORE".equals(uidCmd)) {
+								store(tag, uidArgs, true);
+							} else if ("SEARCH".equals(uidCmd)) {
+								search(tag, uidArgs, true);
+							} else {
+								serverSocket.sendTagged(tag, "BAD Unknown UID command " + uidCmd);
+							}
+						} else if ("FETCH".equals(cmd)) {
+							fetch(tag, args, false);
+						} else if ("STORE".equals(cmd)) {
+							store(tag, args, false);
+						} else if ("SEARCH".equals(cmd)) {
+							search(tag, args, false);
+						} else if ("EXPUNGE".equals(cmd)) {
+							if (readOnly) {
+								serverSocket.sendTagged(tag, "NO Mailbox is read-only.");
+								continue;
+							}
+
+							for (int seqNum : expunge()) {
+								serverSocket.sendUntagged(seqNum + " EXPUNGE");
+							}
+							serverSocket.sendTagged(tag, "OK EXPUNGE completed.");
+						} else if ("CLOSE".equals(cmd)) {
+							if (!readOnly) {
+								expunge();
+							}
+							deselect();
+							serverSocket.sendTagged(tag, "OK CLOSE completed.");
+						} else {
+							serverSocket.sendTagged(tag, "BAD Unknown command " + cmd);
+						}
+					} catch (IllegalArgumentException e) {
+						serverSocket.sendTagged(tag, "BAD " + e.getMessage());
+					} catch (SQLException e) {
+						serverSocket.sendTagged(tag, "NO Server database error, sorry.");
+						logger.log(Level.SEVERE, "Database error handling IMAP " + cmd + " command.", e);
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				deselect();
+				serverSocket.close();
+
+				//write transaction log to file
+				if (transactionLogFile != null) {
+					synchronized (transactionLogFile) {
+						try {
+							serverSocket.getTransactionLog().writeToFile(transactionLogFile);
+						} catch (IOException e) {
+							logger.log(Level.WARNING, "Problem writing to transaction log file.", e);
+						}
+					}
+				}
+
+				logger.info("IMAP connection with " + remoteAddress + " terminated.");
+			}
+		}
+
+		/**
+		 * Loads the user's inbox and registers the conversation to be told
+		 * about new emails.
+		 * @param readOnly true if the inbox can't be changed (the EXAMINE
+		 * command), false if it can
+		 * @throws SQLException
+		 */
+		private void select(boolean readOnly) throws SQLException {
+			Mailbox mailbox = new Mailbox();
+			newEmails.set(false);
+			dao.selectInboxEmails(currentUser, mailbox);
+
+			this.mailbox = mailbox;
+			this.readOnly = readOnly;
+			synchronized (selected) {
+				List<IMAPConversation> list = selected.get(currentUser.username);
+				if (list == null) {
+					list = new ArrayList<IMAPConversation>();
+					selected.put(currentUser.username, list);
+				}
+				list.add(this);
+			}
+		}
+
+		private void deselect() {
+			if (mailbox == null) {
+				return;
+			}
+
+			synchronized (selected) {
+				List<IMAPConversation> list = selected.get(currentUser.username);
+				list.remove(this);
+				if (list.isEmpty()) {
+					selected.remove(currentUser.username);
+				}
+			}
+			mailbox = null;
+		}
+
+		/**
+		 * Called when emails arrive in the user's inbox. This is called from
+		 * the thread that delivered the emails, so it only flags the mailbox
+		 * and, if the client is idling, wakes up the conversation's thread. The
+		 * conversation's thread queries the new emails and tells the client.
+		 * Otherwise, the client is told the next time it checks.
+		 */
+		public void emailsReceived() {
+			newEmails.set(true);
+			if (idling) {
+				serverSocket.wakeup();
+			}
+		}
+
+		/**
+		 * Adds any new emails to the mailbox and tells the client how many
+		 * emails the mailbox now has.
+		 * @param force true to query the database even if no emails have been
+		 * delivered since the last check, false to only query it if emails
+		 * have been delivered
+		 * @throws SQLException
+		 * @throws IOException
+		 */
+		private void checkForNewEmails(boolean force) throws SQLException, IOException {
+			boolean received = newEmails.getAndSet(false);
+			if (!force && !received) {
+				return;
+			}
+
+			if (dao.selectInboxEmails(currentUser, mailbox) > 0) {
+				serverSocket.sendUntagged(mailbox.size() + " EXISTS");
+			}
+		}
+
+		/**
+		 * Waits for the client to end the IDLE command, telling it about new
+		 * emails as they arrive.
+		 * @param tag the tag of the IDLE command
+		 * @throws IOException
+		 * @throws SQLException
+		 */
+		private void idle(String tag) throws IOException, SQLException {
+			if (mailbox != null) {
+				checkForNewEmails(true);
+			}
+			serverSocket.sendContinuation("idling");
+
+			String line;
+			idling = (mailbox != null);
+			try {
+				while (true) {
+					//also catches emails that arrived before the flag was set
+					if (idling) {
+						checkForNewEmails(false);
+					}
+
+					line = serverSocket.pollLine();
+					if (line != null) {
+						break;
+					}
+
+					//wait for the client to end the command or for emails to arrive
+					if (!serverSocket.await()) {
+						return;
+					}
+				}
+			} finally {
+				idling = false;
+			}
+
+			if ("DONE".equalsIgnoreCase(line.trim())) {
+				serverSocket.sendTagged(tag, "OK IDLE terminated.");
+			} else {
+				serverSocket.sendTagged(tag, "BAD Expected DONE.");
+			}
+		}
+
+		/**
+		 * Handles the FETCH command.
+		 * @param tag the command tag
+		 * @param args the command arguments
+		 * @param uid true if the sequence set contains unique IDs, false if it
+		 * contains message sequence numbers
+		 * @throws IOException
+		 * @throws SQLException
+		 */
+		private void fetch(String tag, List<Object> args, boolean uid) throws IOException, SQLException {
+			if (args.size() != 2) {
+				serverSocket.sendTagged(tag, "BAD Invalid syntax of FETCH command.");
+				return;
+			}
+
+			BitSet seqNums = SequenceSet.parse(string(args.get(0)), uid, mailbox);
+			List<FetchAttribute> attributes = FetchAttribute.parse(args.get(1));
+
+			boolean hasUid = false;
+			boolean hasFlags = false;
+			for (FetchAttribute attribute : attributes) {
+				hasUid |= (attribute.getType() == FetchAttribute.Type.UID);
+				hasFlags |= (attribute.getType() == FetchAttribute.Type.FLAGS);
+			}
+
+			List<Integer> seen = new ArrayList<Integer>();
+			for (int seqNum = seqNums.nextSetBit(0); seqNum >= 0; seqNum = seqNums.nextSetBit(seqNum + 1)) {
+				serverSocket.write("* " + seqNum + " FETCH (");
+				boolean first = true;
+				if (uid && !hasUid) {
+					//UID FETCH responses always include the unique ID
+					serverSocket.write("UID " + mailbox.getUid(seqNum));
+					first = false;
+				}
+
+				boolean markSeen = false;
+				for (FetchAttribute attribute : attributes) {
+					if (!first) {
+						serverSocket.write(" ");
+					}
+					first = false;
+
+					switch (attribute.getType()) {
+					case UID:
+						serverSocket.write("UID " + mailbox.getUid(seqNum));
+						break;
+					case FLAGS:
+						serverSocket.write("FLAGS " + flags(seqNum));
+						break;
+					case INTERNALDATE:
+						serverSocket.write("INTERNALDATE \"" + internalDateFormat.format(new Date(mailbox.getReceived(seqNum))) + "\"");
+						break;
+					case RFC822_SIZE:
+						serverSocket.write("RFC822.SIZE " + mailbox.getSize(seqNum));
+						break;
+					case BODY:
+						serverSocket.write(attribute.getName() + " ");
+						if (!sendBody(seqNum, attribute)) {
+							serverSocket.write("NIL");
+						}
+						if (!attribute.isPeek() && !readOnly && !mailbox.isSeen(seqNum)) {
+							markSeen = true;
+						}
+						break;
+					}
+				}
+
+				if (markSeen) {
+					mailbox.setSeen(seqNum, true);
+					seen.add(mailbox.getUid(seqNum));
+					if (!hasFlags) {
+						serverSocket.write(" FLAGS " + flags(seqNum));
+					}
+				}
+
+				serverSocket.write(")");
+				serverSocket.endLine();
+			}
+
+			if (!seen.isEmpty()) {
+				updateSeen(toArray(seen), true);
+			}
+
+			serverSocket.sendTagged(tag, "OK " + (uid ? "UID " : "") + "FETCH completed.");
+		}
+
+		/**
+		 * Sends a body section of an email as a literal.
+		 * @param seqNum the message sequence number of the email
+		 * @param attribute the body section
+		 * @return true if it was sent, false if the email data no longer
+		 * exists
+		 * @throws IOException
+		 * @throws SQLException
+		 */
+		private boolean sendBody(int seqNum, final FetchAttribute attribute) throws IOException, SQLException {
+			final long size = mailbox.getSize(seqNum);
+			DataHandler handler = new DataHandler() {
+				@Override
+				public void handle(Reader data) throws IOException {
+					MessageReader reader = new MessageReader(data);
+					long start = Math.max(attribute.getPartialStart(), 0);
+					long count = (attribute.getPartialCount() < 0) ? Long.MAX_VALUE : attribute.getPartialCount();
+
+					String text;
+					switch (attribute.getSection()) {
+					case ALL:
+						reader.skip(start);
+						serverSocket.writeLiteral(reader, range(size, start, count));
+						return;
+					case TEXT:
+						String header = reader.readHeader();
+						reader.skip(start);
+						serverSocket.writeLiteral(reader, range(size - header.length(), start, count));
+						return;
+					case HEADER:
+						text = reader.readHeader();
+						break;
+					default:
+						text = attribute.filterHeader(reader.readHeader());
+						break;
+					}
+
+					int from = (int) Math.min(start, text.length());
+					int to = (int) Math.min(from + Math.min(count, Integer.MAX_VALUE), text.length());
+					serverSocket.writeLiteral(text.substring(from, to));
+				}
+			};
+
+			MessageStore messageStore = dao.getMessageStore();
+			String dataKey = mailbox.getDataKey(seqNum);
+			if (dataKey != null && messageStore != null) {
+				Reader data;
+				try {
+					data = messageStore.open(dataKey);
+				} catch (FileNotFoundException e) {
+					logger.log(Level.WARNING, "Data of email " + mailbox.getEmailId(seqNum) + " is missing from the message store.", e);
+					return false;
+				}
+				try {
+					handler.handle(data);
+				} finally {
+					IOUtils.closeQuietly(data);
+				}
+				return true;
+			}
+
+			return dao.selectEmailData(mailbox.getEmailId(seqNum), handler);
+		}
+
+		/**
+		 * Handles the STORE command.
+		 * @param tag the command tag
+		 * @param args the command arguments
+		 * @param uid true if the sequence set contains unique IDs, false if it
+		 * contains message sequence numbers
+		 * @throws IOException
+		 * @throws SQLException
+		 */
+		private void store(String tag, List<Object> args, boolean uid) throws IOException, SQLException {
+			if (args.size() != 3) {
+				serverSocket.sendTagged(tag, "BAD Invalid syntax of STORE command.");
+				return;
+			}
+			if (readOnly) {
+				serverSocket.sendTagged(tag, "NO Mailbox is read-only.");
+				return;
+			}
+
+			BitSet seqNums = SequenceSet.parse(string(args.get(0)), uid, mailbox);
+
+			String item = string(args.get(1)).toUpperCase();
+			boolean silent = item.endsWith(".SILENT");
+			if (silent) {
+				item = item.substring(0, item.length() - ".SILENT".length());
+			}
+			int mode; //1 = add, -1 = remove, 0 = replace
+			if ("+FLAGS".equals(item)) {
+				mode = 1;
+			} else if ("-FLAGS".equals(item)) {
+				mode = -1;
+			} else if ("FLAGS".equals(item)) {
+				mode = 0;
+			} else {
+				serverSocket.sendTagged(tag, "BAD Unknown STORE item " + item);
+				return;
+			}
+
+			//other flags aren't stored, so they are ignored
+			boolean seenFlag = false, deletedFlag = false;
+			Object flagsArg = args.get(2);
+			List<?> flags = (flagsArg instanceof List) ? (List<?>) flagsArg : Collections.singletonList(flagsArg);
+			for (Object flag : flags) {
+				String flagStr = string(flag);
+				seenFlag |= "\\Seen".equalsIgnoreCase(flagStr);
+				deletedFlag |= "\\Deleted".equalsIgnoreCase(flagStr);
+			}
+
+			List<Integer> seen = new ArrayList<Integer>();
+			List<Integer> unseen = new ArrayList<Integer>();
+			for (int seqNum = seqNums.nextSetBit(0); seqNum >= 0; seqNum = seqNums.nextSetBit(seqNum + 1)) {
+				if (mode == 0 || seenFlag) {
+					boolean value = (mode == 0) ? seenFlag : (mode > 0);
+					if (value != mailbox.isSeen(seqNum)) {
+						mailbox.setSeen(seqNum, value);
+						(value ? seen : unseen).add(mailbox.getUid(seqNum));
+					}
+				}
+				if (mode == 0 || deletedFlag) {
+					mailbox.setDeleted(seqNum, (mode == 0) ? deletedFlag : (mode > 0));
+				}
+
+				if (!silent) {
+					serverSocket.sendUntagged(seqNum + " FETCH (" + (uid ? "UID " + mailbox.getUid(seqNum) + " " : "") + "FLAGS " + flags(seqNum) + ")");
+				}
+			}
+
+			if (!seen.isEmpty()) {
+				updateSeen(toArray(seen), true);
+			}
+			if (!unseen.isEmpty()) {
+				updateSeen(toArray(unseen), false);
+			}
+
+			serverSocket.sendTagged(tag, "OK " + (uid ? "UID " : "") + "STORE completed.");
+		}
+
+		/**
+		 * Handles the SEARCH command. Only searches on flags, sizes, and
+		 * sequence sets are supported, since they don't require the email data
+		 * to be read.
+		 * @param tag the command tag
+		 * @param args the command arguments
+		 * @param uid true to respond with unique IDs, false to respond with
+		 * message sequence numbers
+		 * @throws IOException
+		 */
+		private void search(String tag, List<Object> args, boolean uid) throws IOException {
+			BitSet results = new BitSet();
+			results.set(1, mailbox.size() + 1);
+
+			for (int i = 0; i < args.size(); i++) {
+				String key = string(args.get(i)).toUpperCase();
+				BitSet matches = new BitSet();
+				if ("CHARSET".equals(key)) {
+					//there are no text searches, so the character set doesn't matter
+					i++;
+					continue;
+				} else if ("ALL".equals(key)) {
+					continue;
+				} else if ("SEEN".equals(key) || "UNSEEN".equals(key) || "DELETED".equals(key) || "UNDELETED".equals(key)) {
+					for (int seqNum = 1; seqNum <= mailbox.size(); seqNum++) {
+						boolean match = key.endsWith("SEEN") ? mailbox.isSeen(seqNum) : mailbox.isDeleted(seqNum);
+						if (match != key.startsWith("UN")) {
+							matches.set(seqNum);
+						}
+					}
+				} else if ("LARGER".equals(key) || "SMALLER".equals(key)) {
+					long size;
+					try {
+						size = Long.parseLong(string(args.get(++i)));
+					} catch (IndexOutOfBoundsException e) {
+						throw new IllegalArgumentException("Missing size.");
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid size.");
+					}
+					for (int seqNum = 1; seqNum <= mailbox.size(); seqNum++) {
+						long emailSize = mailbox.getSize(seqNum);
+						if ("LARGER".equals(key) ? emailSize > size : emailSize < size) {
+							matches.set(seqNum);
+						}
+					}
+				} else if ("UID".equals(key)) {
+					if (i + 1 >= args.size()) {
+						throw new IllegalArgumentException("Missing sequence set.");
+					}
+					matches = SequenceSet.parse(string(args.get(++i)), true, mailbox);
+				} else if (!key.isEmpty() && (Character.isDigit(key.charAt(0)) || key.charAt(0) == '*')) {
+					matches = SequenceSet.parse(key, false, mailbox);
+				} else {
+					throw new IllegalArgumentException("Unsupported search key: " + key);
+				}
+				results.and(matches);
+			}
+
+			StringBuilder sb = new StringBuilder("SEARCH");
+			for (int seqNum = results.nextSetBit(0); seqNum >= 0; seqNum = results.nextSetBit(seqNum + 1)) {
+				sb.append(' ').append(uid ? mailbox.getUid(seqNum) : seqNum);
+			}
+			serverSocket.sendUntagged(sb.toString());
+			serverSocket.sendTagged(tag, "OK " + (uid ? "UID " : "") + "SEARCH completed.");
+		}
+
+		/**
+		 * Permanently removes the emails that are marked for deletion.
+		 * @return the message sequence numbers of the removed emails, in the
+		 * order that they must be reported to the client
+		 * @throws SQLException
+		 */
+		private int[] expunge() throws SQLException {
+			final int uids[] = mailbox.getDeletedUids();
+			if (uids.length == 0) {
+				return uids;
+			}
+
+			final User user = currentUser;
+			dao.transaction(new UnitOfWork<Void>() {
+				@Override
+				public Void execute() throws SQLException {
+					dao.deleteInboxEmailsByUid(user, uids);
+					return null;
+				}
+			});
+			return mailbox.expunge();
+		}
+
+		private void updateSeen(final int uids[], final boolean seen) throws SQLException {
+			final User user = currentUser;
+			dao.transaction(new UnitOfWork<Void>() {
+				@Override
+				public Void execute() throws SQLException {
+					dao.updateInboxSeen(user, uids, seen);
+					return null;
+				}
+			});
+		}
+
+		private String flags(int seqNum) {
+			StringBuilder sb = new StringBuilder("(");
+			if (mailbox.isSeen(seqNum)) {
+				sb.append("\\Seen");
+			}
+			if (mailbox.isDeleted(seqNum)) {
+				if (sb.length() > 1) {
+					sb.append(' ');
+				}
+				sb.append("\\Deleted");
+			}
+			return sb.append(')').toString();
+		}
+	}
+
+	/**
+	 * Gets the length of a partial range of a section.
+	 * @param length the length of the section
+	 * @param start the offset of the range
+	 * @param count the maximum length of the range
+	 * @return the length of the range
+	 */
+	private static long range(long length, long start, long count) {
+		return Math.max(Math.min(count, length - start), 0);
+	}
+
+	private static String string(Object arg) {
+		if (!(arg instanceof String)) {
+			throw new IllegalArgumentException("Expected a string, but found a list.");
+		}
+		return (String) arg;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int array[] = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+}
@@ -0,0 +1,164 @@
+package sleet.imap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents an IMAP request sent from the client to the server.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class IMAPRequest {
+	/**
+	 * The tag that the client uses to match the server's response to the
+	 * request.
+	 */
+	private final String tag;
+
+	/**
+	 * The command (e.g. "FETCH").
+	 */
+	private final String command;
+
+	/**
+	 * The command arguments.
+	 */
+	private final List<Object> arguments;
+
+	/**
+	 * @param tag the tag
+	 * @param command the command (e.g. "FETCH")
+	 * @param arguments the command arguments (see {@link #parseArguments})
+	 */
+	public IMAPRequest(String tag, String command, List<Object> arguments) {
+		this.tag = tag;
+		this.command = command;
+		this.arguments = arguments;
+	}
+
+	/**
+	 * Parses a request line.
+	 * @param line the request line (any literals must already be converted to
+	 * quoted strings)
+	 * @return the request
+	 * @throws IllegalArgumentException if the line is malformed
+	 */
+	public static IMAPRequest parse(String line) {
+		int space = line.indexOf(' ');
+		if (space <= 0) {
+			throw new IllegalArgumentException("Missing command.");
+		}
+		String tag = line.substring(0, space);
+
+		String rest = line.substring(space + 1);
+		space = rest.indexOf(' ');
+		String command = (space < 0) ? rest : rest.substring(0, space);
+		String args = (space < 0) ? "" : rest.substring(space + 1);
+
+		return new IMAPRequest(tag, command.toUpperCase(), parseArguments(args));
+	}
+
+	/**
+	 * Splits the arguments of a command into tokens. Atoms and quoted strings
+	 * are returned as strings, and parenthesized lists are returned as lists.
+	 * Square brackets are treated as part of the atom that they are in (for
+	 * example, "BODY[HEADER.FIELDS (FROM)]" is a single atom).
+	 * @param args the arguments
+	 * @return the tokens
+	 * @throws IllegalArgumentException if the arguments are malformed
+	 */
+	public static List<Object> parseArguments(String args) {
+		return parseList(args, new int[] { 0 }, false);
+	}
+
+	private static List<Object> parseList(String args, int pos[], boolean nested) {
+		List<Object> tokens = new ArrayList<Object>();
+		while (true) {
+			while (pos[0] < args.length() && args.charAt(pos[0]) == ' ') {
+				pos[0]++;
+			}
+			if (pos[0] >= args.length()) {
+				if (nested) {
+					throw new IllegalArgumentException("Unclosed parenthesis.");
+				}
+				return tokens;
+			}
+
+			char c = args.charAt(pos[0]);
+			if (c == '(') {
+				pos[0]++;
+				tokens.add(parseList(args, pos, true));
+			} else if (c == ')') {
+				if (!nested) {
+					throw new IllegalArgumentException("Unexpected closing parenthesis.");
+				}
+				pos[0]++;
+				return tokens;
+			} else if (c == '"') {
+				tokens.add(parseQuoted(args, pos));
+			} else {
+				tokens.add(parseAtom(args, pos));
+			}
+		}
+	}
+
+	private static String parseQuoted(String args, int pos[]) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = pos[0] + 1; i < args.length(); i++) {
+			char c = args.charAt(i);
+			if (c == '\\' && i + 1 < args.length()) {
+				sb.append(args.charAt(++i));
+			} else if (c == '"') {
+				pos[0] = i + 1;
+				return sb.toString();
+			} else {
+				sb.append(c);
+			}
+		}
+		throw new IllegalArgumentException("Unclosed quoted string.");
+	}
+
+	private static String parseAtom(String args, int pos[]) {
+		int start = pos[0];
+		int brackets = 0;
+		int i;
+		for (i = start; i < args.length(); i++) {
+			char c = args.charAt(i);
+			if (c == '[') {
+				brackets++;
+			} else if (c == ']') {
+				brackets--;
+			} else if (brackets == 0 && (c == ' ' || c == '(' || c == ')')) {
+				break;
+			}
+		}
+		if (brackets != 0) {
+			throw new IllegalArgumentException("Unclosed bracket.");
+		}
+		pos[0] = i;
+		return args.substring(start, i);
+	}
+
+	/**
+	 * Gets the tag.
+	 * @return the tag
+	 */
+	public String getTag() {
+		return tag;
+	}
+
+	/**
+	 * Gets the command.
+	 * @return the command (in upper case)
+	 */
+	public String getCommand() {
+		return command;
+	}
+
+	/**
+	 * Gets the command arguments.
+	 * @return the arguments (each one is either a string or a list)
+	 */
+	public List<Object> getArguments() {
+		return arguments;
+	}
+}
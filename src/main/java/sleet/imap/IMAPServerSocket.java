@@ -0,0 +1,361 @@
+package sleet.imap;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import sleet.LineCodec;
+import sleet.LineTooLongException;
+import sleet.TransactionLog;
+
+/**
+ * Interface used by an IMAP server to communicate with an IMAP client.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class IMAPServerSocket {
+	private static final Logger logger = Logger.getLogger(IMAPServerSocket.class.getName());
+	private static final byte[] crlf = { '\r', '\n' };
+
+	/**
+	 * Matches a literal at the end of a request line (for example, "{12}").
+	 * A "+" after the number means that the client won't wait for the server
+	 * to tell it to continue (the LITERAL+ extension).
+	 */
+	private static final Pattern literalRegex = Pattern.compile("\\{(\\d+)(\\+?)\\}$");
+
+	/**
+	 * The size of the buffers that email data is streamed through.
+	 */
+	private static final int bufferSize = 8192;
+
+	/**
+	 * The maximum length of a request line. IMAP commands can be a lot longer
+	 * than SMTP commands (for example, a FETCH with a long sequence set), so
+	 * this is the limit that RFC 7162 p.45 recommends.
+	 */
+	private static final int maxLineLength = 8192;
+
+	/**
+	 * The connection to the client.
+	 */
+	private final SocketChannel channel;
+
+	/**
+	 * Waits for data from the client while the client is idling, so that the
+	 * wait can be cut short by {@link #wakeup} (created the first time it is
+	 * needed).
+	 */
+	private Selector selector;
+
+	/**
+	 * Splits the received data into lines and queues the responses.
+	 */
+	private final LineCodec codec = new LineCodec(2048, maxLineLength);
+
+	/**
+	 * Records conversation for logging purposes.
+	 */
+	private final TransactionLog transactionLog = new TransactionLog();
+
+	/**
+	 * The text of the response line that is being built.
+	 */
+	private final StringBuilder pending = new StringBuilder();
+
+	/**
+	 * @param channel the connection to the client (must be in blocking mode,
+	 * except while {@link #await} is waiting)
+	 */
+	public IMAPServerSocket(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Sends an untagged response (a response that starts with "*").
+	 * @param msg the response text
+	 * @throws IOException
+	 */
+	public void sendUntagged(String msg) throws IOException {
+		sendLine("* " + msg);
+	}
+
+	/**
+	 * Sends the tagged response that completes a command.
+	 * @param tag the tag of the command
+	 * @param msg the response text (e.g. "OK FETCH completed")
+	 * @throws IOException
+	 */
+	public void sendTagged(String tag, String msg) throws IOException {
+		sendLine(tag + " " + msg);
+	}
+
+	/**
+	 * Sends a continuation request (a response that starts with "+").
+	 * @param msg the response text
+	 * @throws IOException
+	 */
+	public void sendContinuation(String msg) throws IOException {
+		sendLine("+ " + msg);
+	}
+
+	private void sendLine(String line) throws IOException {
+		transactionLog.server(line);
+		codec.writeLine(line);
+		codec.flush(channel);
+	}
+
+	/**
+	 * Adds text to the response line that is being built. The line isn't sent
+	 * until {@link #endLine} is called.
+	 * @param text the text
+	 */
+	public void write(String text) {
+		pending.append(text);
+		codec.write(ByteBuffer.wrap(text.getBytes(LineCodec.charset)));
+	}
+
+	/**
+	 * Adds a literal to the response line that is being built. The literal is
+	 * streamed to the client in small chunks, so it is never loaded into
+	 * memory all at once.
+	 * @param data the literal data
+	 * @param length the number of characters to send from the reader
+	 * @throws IOException if there's a problem sending the data or the reader
+	 * has fewer characters than the given length (the literal can't be
+	 * finished, so the connection must be closed)
+	 */
+	public void writeLiteral(Reader data, long length) throws IOException {
+		write("{" + length + "}\r\n");
+		transactionLog.server(pending.toString() + "<" + length + " bytes of email data>");
+		pending.setLength(0);
+		codec.flush(channel);
+
+		char chars[] = new char[bufferSize];
+		ByteBuffer bytes = ByteBuffer.allocate(bufferSize);
+		long remaining = length;
+		while (remaining > 0) {
+			int read = data.read(chars, 0, (int) Math.min(chars.length, remaining));
+			if (read < 0) {
+				throw new IOException("Email data was " + remaining + " bytes shorter than its recorded size.");
+			}
+
+			for (int i = 0; i < read; i++) {
+				char c = chars[i];
+				bytes.put((c <= 0xFF) ? (byte) c : (byte) '?');
+			}
+			drain(bytes);
+			remaining -= read;
+		}
+	}
+
+	/**
+	 * Adds a literal to the response line that is being built.
+	 * @param data the literal data
+	 * @throws IOException
+	 */
+	public void writeLiteral(String data) throws IOException {
+		write("{" + data.length() + "}\r\n");
+		transactionLog.server(pending.toString() + "<" + data.length() + " bytes of email data>");
+		pending.setLength(0);
+		codec.write(ByteBuffer.wrap(data.getBytes(LineCodec.charset)));
+	}
+
+	/**
+	 * Ends the response line that is being built and sends it.
+	 * @throws IOException
+	 */
+	public void endLine() throws IOException {
+		if (pending.length() > 0) {
+			transactionLog.server(pending.toString());
+			pending.setLength(0);
+		}
+		codec.write(ByteBuffer.wrap(crlf));
+		codec.flush(channel);
+	}
+
+	private void drain(ByteBuffer bytes) throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		bytes.clear();
+	}
+
+	/**
+	 * Gets the next request from the client. If the request contains
+	 * literals, the client is told to continue sending, and each literal is
+	 * converted to a quoted string.
+	 * @return the request or null if the client closed the connection
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the request is malformed or too
+	 * long
+	 */
+	public IMAPRequest nextRequest() throws IOException {
+		try {
+			return readRequest();
+		} catch (LineTooLongException e) {
+			transactionLog.client("<line too long>");
+			throw new IllegalArgumentException("Line too long.");
+		}
+	}
+
+	private IMAPRequest readRequest() throws IOException {
+		String line = nextLine();
+		if (line == null) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		Matcher m;
+		while ((m = literalRegex.matcher(line)).find()) {
+			sb.append(line, 0, m.start());
+
+			int length = Integer.parseInt(m.group(1));
+			if (m.group(2).isEmpty()) {
+				sendContinuation("Ready for literal data");
+			}
+
+			//the literal may contain newlines, so read lines until there is enough data
+			StringBuilder literal = new StringBuilder();
+			while (literal.length() < length) {
+				String next = nextLine();
+				if (next == null) {
+					return null;
+				}
+				if (literal.length() > 0) {
+					literal.append("\r\n");
+				}
+				literal.append(next);
+			}
+
+			sb.append('"');
+			for (int i = 0; i < length; i++) {
+				char c = literal.charAt(i);
+				if (c == '"' || c == '\\') {
+					sb.append('\\');
+				}
+				sb.append(c);
+			}
+			sb.append('"');
+
+			line = literal.substring(length);
+		}
+		sb.append(line);
+
+		return IMAPRequest.parse(sb.toString());
+	}
+
+	/**
+	 * Gets the next line from the client.
+	 * @return the line or null if the client closed the connection
+	 * @throws LineTooLongException if the line was too long
+	 * @throws IOException
+	 */
+	public String nextLine() throws IOException {
+		String line;
+		while ((line = pollLine()) == null) {
+			if (codec.read(channel) == -1) {
+				return null;
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * Gets the next line from the client if it has already been received.
+	 * @return the line or null if a complete line hasn't been received yet
+	 * @throws LineTooLongException if the line was too long
+	 */
+	public String pollLine() throws LineTooLongException {
+		ByteBuffer bytes = codec.nextLine();
+		if (bytes == null) {
+			return null;
+		}
+
+		String line = LineCodec.toString(bytes);
+		transactionLog.client(line);
+		return line;
+	}
+
+	/**
+	 * Waits for the client to send more data. Unlike {@link #nextLine}, the
+	 * wait can be cut short by another thread with {@link #wakeup}. Any lines
+	 * that were received can then be retrieved with {@link #pollLine}.
+	 * @return false if the client closed the connection, true if not
+	 * @throws IOException
+	 */
+	public boolean await() throws IOException {
+		Selector selector = selector();
+		channel.configureBlocking(false);
+		SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		try {
+			selector.select();
+			selector.selectedKeys().clear();
+
+			//nothing is read if the wait was cut short
+			return codec.read(channel) != -1;
+		} finally {
+			//the channel has to be deregistered before it can be put back in blocking mode
+			key.cancel();
+			selector.selectNow();
+			channel.configureBlocking(true);
+		}
+	}
+
+	/**
+	 * Cuts short the current or next call to {@link #await}. This method can
+	 * be called from any thread and does not block.
+	 */
+	public void wakeup() {
+		try {
+			selector().wakeup();
+		} catch (ClosedChannelException e) {
+			//the connection was closed, so there's nothing to wake up
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Problem waking up IMAP connection.", e);
+		}
+	}
+
+	private synchronized Selector selector() throws IOException {
+		if (selector == null) {
+			if (!channel.isOpen()) {
+				throw new ClosedChannelException();
+			}
+			selector = Selector.open();
+		}
+		return selector;
+	}
+
+	/**
+	 * Closes the connection.
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Problem closing connection to IMAP client.", e);
+		}
+
+		synchronized (this) {
+			if (selector != null) {
+				try {
+					selector.close();
+				} catch (IOException e) {
+					logger.log(Level.WARNING, "Problem closing selector.", e);
+				}
+			}
+		}
+	}
+
+	public TransactionLog getTransactionLog() {
+		return transactionLog;
+	}
+}
@@ -0,0 +1,132 @@
+package sleet.imap;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Converts email data from the form that it is stored in (the way it is sent
+ * over the wire in SMTP and POP3) to the form that IMAP clients see it in. The
+ * dot-stuffing is removed and a CRLF is added to the end of the last line, so
+ * the number of characters that are read matches the size that was recorded
+ * when the email was saved.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class MessageReader extends FilterReader {
+	private static final String end = "\r\n";
+
+	private boolean lineStart = true;
+	private char prev = 0;
+
+	/**
+	 * The number of characters of the final CRLF that have been read, or -1
+	 * if the end of the data hasn't been reached yet.
+	 */
+	private int endRead = -1;
+
+	/**
+	 * @param in the email data (with dot-stuffing applied)
+	 */
+	public MessageReader(Reader in) {
+		super(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (endRead >= 0) {
+			return (endRead < end.length()) ? end.charAt(endRead++) : -1;
+		}
+
+		int c = super.read();
+		if (c < 0) {
+			endRead = 0;
+			return read();
+		}
+
+		if (lineStart && c == '.') {
+			//remove the dot-stuffing
+			lineStart = false;
+			c = super.read();
+			if (c < 0) {
+				endRead = 0;
+				return read();
+			}
+		}
+
+		lineStart = (c == '\n' && prev == '\r');
+		prev = (char) c;
+		return c;
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+
+		int read = 0;
+		while (read < len) {
+			int c = read();
+			if (c < 0) {
+				break;
+			}
+			cbuf[off + read++] = (char) c;
+		}
+		return (read == 0) ? -1 : read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n && read() >= 0) {
+			skipped++;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void mark(int readAheadLimit) throws IOException {
+		throw new IOException("mark() not supported.");
+	}
+
+	@Override
+	public void reset() throws IOException {
+		throw new IOException("reset() not supported.");
+	}
+
+	@Override
+	public boolean ready() throws IOException {
+		return endRead >= 0 || super.ready();
+	}
+
+	/**
+	 * Reads the header section of the email, including the empty line that
+	 * separates it from the body. The reader is left at the start of the
+	 * body.
+	 * @return the header section (if the email has no body, then this is the
+	 * entire email)
+	 * @throws IOException if there's a problem reading the data
+	 */
+	public String readHeader() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = read()) >= 0) {
+			sb.append((char) c);
+
+			int length = sb.length();
+			if (length >= 4 && c == '\n' && sb.charAt(length - 2) == '\r' && sb.charAt(length - 3) == '\n' && sb.charAt(length - 4) == '\r') {
+				break;
+			}
+			if (length == 2 && c == '\n' && sb.charAt(0) == '\r') {
+				//there are no headers
+				break;
+			}
+		}
+		return sb.toString();
+	}
+}
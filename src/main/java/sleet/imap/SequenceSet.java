@@ -0,0 +1,78 @@
+package sleet.imap;
+
+import java.util.BitSet;
+
+import sleet.db.Mailbox;
+
+/**
+ * Parses IMAP sequence sets (for example, "1:4,7,10:*").
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class SequenceSet {
+	private SequenceSet() {
+		//hide
+	}
+
+	/**
+	 * Resolves a sequence set to the message sequence numbers it refers to.
+	 * @param set the sequence set
+	 * @param uid true if the set contains unique IDs, false if it contains
+	 * message sequence numbers
+	 * @param mailbox the mailbox
+	 * @return the message sequence numbers (unique IDs that aren't in the
+	 * mailbox are ignored)
+	 * @throws IllegalArgumentException if the sequence set is malformed or (if
+	 * it contains message sequence numbers) refers to messages that don't
+	 * exist
+	 */
+	public static BitSet parse(String set, boolean uid, Mailbox mailbox) {
+		BitSet seqNums = new BitSet();
+		for (String part : set.split(",", -1)) {
+			int colon = part.indexOf(':');
+			long first, last;
+			if (colon < 0) {
+				first = last = parseNumber(part, uid, mailbox);
+			} else {
+				first = parseNumber(part.substring(0, colon), uid, mailbox);
+				last = parseNumber(part.substring(colon + 1), uid, mailbox);
+				if (first > last) {
+					long temp = first;
+					first = last;
+					last = temp;
+				}
+			}
+
+			if (uid) {
+				//the range may include IDs that belong to other users or to deleted emails
+				int from = mailbox.ceiling((int) Math.min(first, Integer.MAX_VALUE));
+				for (int seqNum = from; seqNum <= mailbox.size() && mailbox.getUid(seqNum) <= last; seqNum++) {
+					seqNums.set(seqNum);
+				}
+			} else {
+				if (first < 1 || last > mailbox.size()) {
+					throw new IllegalArgumentException("Invalid message sequence number.");
+				}
+				seqNums.set((int) first, (int) last + 1);
+			}
+		}
+		return seqNums;
+	}
+
+	private static long parseNumber(String number, boolean uid, Mailbox mailbox) {
+		if ("*".equals(number)) {
+			//"*" is the largest number in use (0 if the mailbox is empty)
+			return uid ? mailbox.getLastUid() : mailbox.size();
+		}
+
+		long value;
+		try {
+			value = Long.parseLong(number);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid sequence set.");
+		}
+		if (value < 1 || value > 0xFFFFFFFFL) {
+			throw new IllegalArgumentException("Invalid sequence set.");
+		}
+		return value;
+	}
+}
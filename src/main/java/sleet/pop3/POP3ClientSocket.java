@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -15,6 +16,7 @@ import java.util.regex.Pattern;
 
 import org.apache.commons.codec.digest.DigestUtils;
 
+import sleet.LineCodec;
 import sleet.TransactionLog;
 
 /**
@@ -54,8 +56,8 @@ public class POP3ClientSocket {
 	 * @param toServer the output stream to the server
 	 */
 	public POP3ClientSocket(InputStream fromServer, OutputStream toServer) {
-		this.fromServer = new BufferedReader(new InputStreamReader(fromServer));
-		this.toServer = new PrintWriter(toServer);
+		this.fromServer = new BufferedReader(new InputStreamReader(fromServer, LineCodec.charset));
+		this.toServer = new PrintWriter(new OutputStreamWriter(toServer, LineCodec.charset));
 	}
 
 	/**
@@ -1,30 +1,32 @@
 package sleet.pop3;
 
-import static sleet.email.EmailRaw.CRLF;
-
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.codec.digest.DigestUtils;
 
+import sleet.ConnectionExecutor;
 import sleet.db.DbDao;
-import sleet.db.POPEmail;
+import sleet.db.DbDao.DataHandler;
+import sleet.db.DbDao.UnitOfWork;
+import sleet.db.Maildrop;
+import sleet.db.MessageStore;
 import sleet.db.User;
-import sleet.email.EmailData;
 /**
- * Listens for and handles POP3 client connections. Forks each client/server
- * connection into its own thread.
+ * Listens for and handles POP3 client connections. Each client/server
+ * connection is run by the listener's {@link ConnectionExecutor}.
  * @author Mike Angstadt [mike.angstadt@gmail.com]
  */
 public class POP3ConnectionListener {
@@ -34,6 +36,7 @@ public class POP3ConnectionListener {
 	private int port = 110;
 	private String hostName;
 	private File transactionLogFile;
+	private ConnectionExecutor executor = ConnectionExecutor.platform("POP3");
 	private final Map<String, User> loggedInUsers = Collections.synchronizedMap(new HashMap<String, User>());
 
 	public POP3ConnectionListener(DbDao dao) {
@@ -67,6 +70,18 @@ public class POP3ConnectionListener {
 		this.transactionLogFile = transactionLogFile;
 	}
 
+	/**
+	 * Sets the executor that runs the client connections.
+	 * @param executor the executor (defaults to one new thread per connection)
+	 * @throws IllegalStateException if the listener has already been started
+	 */
+	public void setExecutor(ConnectionExecutor executor) {
+		if (started) {
+			throw new IllegalStateException("POP3 server properties cannot be changed once the server starts.");
+		}
+		this.executor = executor;
+	}
+
 	public void start() throws IOException {
 		if (hostName == null) {
 			throw new IllegalStateException("Host name must be set.");
@@ -74,34 +89,39 @@ public class POP3ConnectionListener {
 
 		started = true;
 
-		ServerSocket serverSocket = new ServerSocket(port);
-		logger.info("Ready to receive POP3 requests on port " + port + "...");
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		logger.info("Ready to receive POP3 requests on port " + port + " (" + executor.getMode().name().toLowerCase() + " threads)...");
 
 		while (true) {
-			Socket socket = serverSocket.accept();
-			logger.info("POP3 connection established with " + socket.getInetAddress().getHostAddress());
-			POP3Conversation thread = new POP3Conversation(socket);
-			thread.start();
+			SocketChannel channel = serverChannel.accept();
+			logger.info("POP3 connection established with " + channel.socket().getInetAddress().getHostAddress());
+			try {
+				executor.execute(new POP3Conversation(channel));
+			} catch (InterruptedException e) {
+				channel.close();
+				break;
+			}
 		}
 	}
 
-	private class POP3Conversation extends Thread {
-		private final Socket socket;
+	private class POP3Conversation implements Runnable {
+		private final String remoteAddress;
 		private final POP3ServerSocket serverSocket;
-		private List<POPEmail> popEmails;
+		private Maildrop maildrop;
 		private User currentUser;
 		private boolean authenticated = false;
 
-		public POP3Conversation(Socket socket) throws IOException {
-			this.socket = socket;
-			this.serverSocket = new POP3ServerSocket(socket.getInputStream(), socket.getOutputStream());
+		public POP3Conversation(SocketChannel channel) {
+			this.remoteAddress = channel.socket().getInetAddress().getHostAddress();
+			this.serverSocket = new POP3ServerSocket(channel);
 		}
 
 		@Override
 		public void run() {
 			try {
 				//send welcome message
-				long pid = getId();
+				long pid = Thread.currentThread().getId();
 				long clock = System.currentTimeMillis();
 				String hashString = "<" + pid + "." + clock + "@" + hostName + ">";
 				serverSocket.sendSuccess("Sleet POP3 server ready " + hashString);
@@ -146,7 +166,7 @@ public class POP3ConnectionListener {
 								continue;
 							}
 
-							popEmails = dao.selectEmailsForPOP(user);
+							maildrop = dao.selectMaildrop(user);
 
 							serverSocket.sendSuccess("Authentication successful.");
 							authenticated = true;
@@ -211,7 +231,7 @@ public class POP3ConnectionListener {
 						}
 
 						try {
-							popEmails = dao.selectEmailsForPOP(currentUser);
+							maildrop = dao.selectMaildrop(currentUser);
 						} catch (SQLException e) {
 							serverSocket.sendError("Database error, sorry.");
 							logger.log(Level.SEVERE, "Problem getting emails for POP from database.", e);
@@ -228,15 +248,7 @@ public class POP3ConnectionListener {
 							continue;
 						}
 
-						long totalEmails = 0;
-						long totalSize = 0;
-						for (POPEmail email : popEmails) {
-							if (!email.isDeleted()) {
-								totalSize += email.getSize();
-								totalEmails++;
-							}
-						}
-						serverSocket.sendSuccess(totalEmails + " " + totalSize);
+						serverSocket.sendSuccess(maildrop.getMessageCount() + " " + maildrop.getTotalSize());
 					} else if ("LIST".equals(cmd)) {
 						//RFC 1939, p.6
 						if (!authenticated) {
@@ -245,33 +257,27 @@ public class POP3ConnectionListener {
 						}
 
 						if (params == null) {
-							List<String> msgs = new ArrayList<String>();
-
-							long totalSize = 0;
-							long totalEmails = 0;
-							for (int i = 0; i < popEmails.size(); i++) {
-								POPEmail email = popEmails.get(i);
-								if (!email.isDeleted()) {
-									totalSize += email.getSize();
-									totalEmails++;
-									msgs.add(email.getPopId() + " " + email.getSize());
+							List<String> msgs = new ArrayList<String>(maildrop.getMessageCount() + 1);
+							msgs.add(maildrop.getMessageCount() + " messages (" + maildrop.getTotalSize() + " octets)");
+							for (int msgNum = 1; msgNum <= maildrop.size(); msgNum++) {
+								if (!maildrop.isDeleted(msgNum)) {
+									msgs.add(msgNum + " " + maildrop.getSize(msgNum));
 								}
 							}
-							msgs.add(0, totalEmails + " messages (" + totalSize + " octets)");
 
 							serverSocket.sendSuccess(msgs);
 						} else {
-							POPEmail email = getPOPEmail(params);
-							if (email == null) {
+							int msgNum = getMessageNumber(params);
+							if (msgNum == 0) {
 								continue;
 							}
 
-							if (email.isDeleted()) {
+							if (maildrop.isDeleted(msgNum)) {
 								serverSocket.sendError("Message is marked for deletion.");
 								continue;
 							}
 
-							serverSocket.sendSuccess(email.getPopId() + " " + email.getSize());
+							serverSocket.sendSuccess(msgNum + " " + maildrop.getSize(msgNum));
 						}
 					} else if ("UIDL".equals(cmd)) {
 						//RFC 1939, p.12
@@ -281,29 +287,29 @@ public class POP3ConnectionListener {
 						}
 
 						if (params == null) {
-							List<String> msgs = new ArrayList<String>();
+							List<String> msgs = new ArrayList<String>(maildrop.getMessageCount() + 1);
 
 							msgs.add(""); //first line is empty
 
-							for (POPEmail email : popEmails) {
-								if (!email.isDeleted()) {
-									msgs.add(email.getPopId() + " " + email.getDbId());
+							for (int msgNum = 1; msgNum <= maildrop.size(); msgNum++) {
+								if (!maildrop.isDeleted(msgNum)) {
+									msgs.add(msgNum + " " + maildrop.getUid(msgNum));
 								}
 							}
 
 							serverSocket.sendSuccess(msgs);
 						} else {
-							POPEmail email = getPOPEmail(params);
-							if (email == null) {
+							int msgNum = getMessageNumber(params);
+							if (msgNum == 0) {
 								continue;
 							}
 
-							if (email.isDeleted()) {
+							if (maildrop.isDeleted(msgNum)) {
 								serverSocket.sendError("Message is marked for deletion.");
 								continue;
 							}
 
-							serverSocket.sendSuccess(email.getPopId() + " " + email.getDbId());
+							serverSocket.sendSuccess(msgNum + " " + maildrop.getUid(msgNum));
 						}
 					} else if ("RETR".equals(cmd)) {
 						//RFC 1939, p.8
@@ -319,19 +325,18 @@ public class POP3ConnectionListener {
 							continue;
 						}
 
-						POPEmail email = getPOPEmail(popId);
-						if (email == null) {
+						int msgNum = getMessageNumber(popId);
+						if (msgNum == 0) {
 							continue;
 						}
 
-						if (email.isDeleted()) {
+						if (maildrop.isDeleted(msgNum)) {
 							serverSocket.sendError("Message is marked for deletion.");
 							continue;
 						}
 
 						try {
-							String data = dao.selectEmailData(email.getDbId());
-							serverSocket.sendSuccess(email.getSize() + " octets" + CRLF + data);
+							sendEmailData(msgNum, maildrop.getSize(msgNum) + " octets", -1);
 						} catch (SQLException e) {
 							serverSocket.sendError("Database error, sorry.");
 							logger.log(Level.SEVERE, "Database error getting email body.", e);
@@ -366,39 +371,18 @@ public class POP3ConnectionListener {
 							continue;
 						}
 
-						POPEmail email = getPOPEmail(popId);
-						if (email == null) {
+						int msgNum = getMessageNumber(popId);
+						if (msgNum == 0) {
 							continue;
 						}
 
-						if (email.isDeleted()) {
+						if (maildrop.isDeleted(msgNum)) {
 							serverSocket.sendError("Message is marked for deletion.");
 							continue;
 						}
 
 						try {
-							EmailData data = new EmailData(dao.selectEmailData(email.getDbId()));
-							String dataStr = data.toData();
-							Scanner scanner = new Scanner(dataStr);
-							StringBuilder response = new StringBuilder(CRLF);
-							boolean inBody = false;
-							int curBodyLine = 0;
-							while (scanner.hasNextLine() && (!inBody || curBodyLine < lines)){
-								String line = scanner.nextLine();
-								if (line.isEmpty()){
-									//an empty line separates the headers from the body
-									inBody = true;
-								} else {
-									if (inBody){
-										curBodyLine++;
-									}
-								}
-								
-								response.append(line);
-								response.append(CRLF);
-							}
-							
-							serverSocket.sendSuccess(response.toString());
+							sendEmailData(msgNum, null, lines);
 						} catch (SQLException e) {
 							serverSocket.sendError("Database error, sorry.");
 							logger.log(Level.SEVERE, "Database error getting email body.", e);
@@ -412,17 +396,17 @@ public class POP3ConnectionListener {
 
 						//mark email for deletion
 
-						POPEmail email = getPOPEmail(params);
-						if (email == null) {
+						int msgNum = getMessageNumber(params);
+						if (msgNum == 0) {
 							continue;
 						}
 
-						if (email.isDeleted()) {
+						if (maildrop.isDeleted(msgNum)) {
 							serverSocket.sendError("Message is marked for deletion.");
 							continue;
 						}
 
-						email.setDeleted(true);
+						maildrop.delete(msgNum);
 						serverSocket.sendSuccess("message " + params + " marked for deletion.");
 					} else if ("NOOP".equals(cmd)) {
 						//RFC 1939, p.9
@@ -435,40 +419,35 @@ public class POP3ConnectionListener {
 						}
 
 						//unmark all emails that are marked for deletion
-						for (POPEmail email : popEmails) {
-							email.setDeleted(false);
-						}
+						maildrop.reset();
 						serverSocket.sendSuccess();
 					} else if ("QUIT".equals(cmd)) {
 						//RFC 1939, p.5,10
-						if (popEmails == null) {
+						if (maildrop == null) {
 							serverSocket.sendSuccess("Ok, bye.");
 						} else {
 							//get the database IDs of the emails marked for deletion
-							List<Integer> ids = new ArrayList<Integer>();
-							for (POPEmail email : popEmails) {
-								if (email.isDeleted()) {
-									ids.add(email.getDbId());
-								}
-							}
+							final int ids[] = maildrop.getDeletedDbIds();
 
 							//delete emails from database
-							if (!ids.isEmpty()) {
-								synchronized (dao) {
-									try {
-										dao.deleteInboxEmails(currentUser, ids);
-										dao.commit();
-									} catch (Exception e) {
-										serverSocket.sendError("Database error, sorry.");
-										logger.log(Level.SEVERE, "Error deleting emails via POP3 connection.", e);
-
-										dao.rollback();
-										continue;
-									}
+							if (ids.length > 0) {
+								final User user = currentUser;
+								try {
+									dao.transaction(new UnitOfWork<Void>() {
+										@Override
+										public Void execute() throws SQLException {
+											dao.deleteInboxEmails(user, ids);
+											return null;
+										}
+									});
+								} catch (Exception e) {
+									serverSocket.sendError("Database error, sorry.");
+									logger.log(Level.SEVERE, "Error deleting emails via POP3 connection.", e);
+									continue;
 								}
 							}
 
-							serverSocket.sendSuccess("Ok, bye (" + ids.size() + " emails deleted).");
+							serverSocket.sendSuccess("Ok, bye (" + ids.length + " emails deleted).");
 						}
 
 						break;
@@ -479,11 +458,7 @@ public class POP3ConnectionListener {
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			} finally {
-				try {
-					socket.close();
-				} catch (IOException e) {
-					logger.log(Level.WARNING, "Problem closing socket.", e);
-				}
+				serverSocket.close();
 
 				if (currentUser != null) {
 					loggedInUsers.remove(currentUser.username);
@@ -500,34 +475,64 @@ public class POP3ConnectionListener {
 					}
 				}
 				
-				logger.info("POP3 connection with " + socket.getInetAddress().getHostAddress() + " terminated.");
+				logger.info("POP3 connection with " + remoteAddress + " terminated.");
 			}
 		}
 
 		/**
-		 * Gets info on an email, sending an error response if there's a problem
-		 * with the input supplied by the client.
-		 * @param popIdStr the POP email ID (client input)
-		 * @return the email or null if there was an error with the input
+		 * Sends the data of an email to the client, streaming it from
+		 * wherever it is stored.
+		 * @param msgNum the message number of the email
+		 * @param msg the text of the success response (can be null)
+		 * @param bodyLines the number of lines of the body to send (for the
+		 * "TOP" command) or -1 to send the whole email
 		 * @throws IOException
+		 * @throws SQLException
 		 */
-		private POPEmail getPOPEmail(String popIdStr) throws IOException {
-			int popId = 0;
+		private void sendEmailData(int msgNum, final String msg, final int bodyLines) throws IOException, SQLException {
+			MessageStore messageStore = dao.getMessageStore();
+			String dataKey = maildrop.getDataKey(msgNum);
+			if (dataKey != null && messageStore != null) {
+				serverSocket.sendData(msg, messageStore, dataKey, maildrop.getHeaderLength(msgNum), bodyLines);
+				return;
+			}
+
+			boolean found = dao.selectEmailData(maildrop.getDbId(msgNum), new DataHandler() {
+				@Override
+				public void handle(Reader data) throws IOException {
+					serverSocket.sendData(msg, data, bodyLines);
+				}
+			});
+			if (!found) {
+				serverSocket.sendError("Message no longer exists.");
+			}
+		}
+
+		/**
+		 * Parses a message number, sending an error response if there's a
+		 * problem with the input supplied by the client.
+		 * @param msgNumStr the message number (client input)
+		 * @return the message number or 0 if there was an error with the input
+		 * @throws IOException
+		 */
+		private int getMessageNumber(String msgNumStr) throws IOException {
+			int msgNum;
 			try {
-				popId = Integer.parseInt(popIdStr);
-				if (popId <= 0) {
+				msgNum = Integer.parseInt(msgNumStr);
+				if (msgNum <= 0) {
 					throw new NumberFormatException();
-				} else if (popId > popEmails.size()) {
-					serverSocket.sendError("No such message.");
-					return null;
 				}
 			} catch (NumberFormatException e) {
-				serverSocket.sendError("Invalid email ID " + popIdStr + ".");
-				return null;
+				serverSocket.sendError("Invalid email ID " + msgNumStr + ".");
+				return 0;
+			}
+
+			if (!maildrop.exists(msgNum)) {
+				serverSocket.sendError("No such message.");
+				return 0;
 			}
 
-			POPEmail email = popEmails.get(popId - 1);
-			return email;
+			return msgNum;
 		}
 	}
 }
@@ -1,36 +1,43 @@
 package sleet.pop3;
 
-import static sleet.email.EmailRaw.CRLF;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.commons.io.IOUtils;
+
+import sleet.LineCodec;
+import sleet.LineTooLongException;
 import sleet.TransactionLog;
+import sleet.db.MessageStore;
 /**
  * Interface used by a POP3 server to communicate with a POP3 client.
  * @author Mike Angstadt [mike.angstadt@gmail.com]
  */
 public class POP3ServerSocket {
 	private static final Logger logger = Logger.getLogger(POP3ServerSocket.class.getName());
+	private static final byte[] crlf = { '\r', '\n' };
+
+	/**
+	 * The size of the buffers that email data is streamed through.
+	 */
+	private static final int bufferSize = 8192;
 
 	/**
-	 * Input stream from the client.
+	 * The connection to the client.
 	 */
-	private final BufferedReader fromClient;
+	private final ByteChannel channel;
 
 	/**
-	 * Output stream to the client.
+	 * Splits the received data into lines and queues the responses.
 	 */
-	private final PrintWriter toClient;
+	private final LineCodec codec = new LineCodec();
 
 	/**
 	 * Records conversation for logging purposes.
@@ -38,18 +45,16 @@ public class POP3ServerSocket {
 	private final TransactionLog transactionLog = new TransactionLog();
 
 	/**
-	 * @param fromClient the input stream from the client.
-	 * @param toClient the output stream to the client.
+	 * @param channel the connection to the client (must be in blocking mode)
 	 */
-	public POP3ServerSocket(InputStream fromClient, OutputStream toClient) {
-		this.fromClient = new BufferedReader(new InputStreamReader(fromClient));
-		this.toClient = new PrintWriter(toClient);
+	public POP3ServerSocket(ByteChannel channel) {
+		this.channel = channel;
 	}
 
 	/**
 	 * Sends a success ("+OK") response without any message text.
 	 */
-	public void sendSuccess() {
+	public void sendSuccess() throws IOException {
 		sendSuccess(new ArrayList<String>(0));
 	}
 
@@ -57,7 +62,7 @@ public class POP3ServerSocket {
 	 * Sends a success ("+OK") response.
 	 * @param msg the message text
 	 */
-	public void sendSuccess(String msg) {
+	public void sendSuccess(String msg) throws IOException {
 		String split[] = msg.split("\\r\\n|\\n");
 		sendSuccess(Arrays.asList(split));
 	}
@@ -66,12 +71,11 @@ public class POP3ServerSocket {
 	 * Sends a multi-lined success ("+OK") response.
 	 * @param lines the multi-lined message
 	 */
-	public void sendSuccess(List<String> lines) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("+OK");
-
-		if (!lines.isEmpty()) {
-			sb.append(" " + lines.get(0));
+	public void sendSuccess(List<String> lines) throws IOException {
+		if (lines.isEmpty()) {
+			sendLine("+OK");
+		} else {
+			sendLine("+OK " + lines.get(0));
 			if (lines.size() > 1) {
 				for (int i = 1; i < lines.size(); i++) {
 					String msg = lines.get(i);
@@ -81,19 +85,205 @@ public class POP3ServerSocket {
 						msg = "." + msg;
 					}
 
-					sb.append(CRLF + msg);
+					sendLine(msg);
 				}
-				sb.append(CRLF).append(".");
+				sendLine(".");
+			}
+		}
+
+		//the whole response is written at once
+		codec.flush(channel);
+	}
+
+	/**
+	 * Sends a success ("+OK") response, followed by the data of an email that
+	 * is in the message store. Whole emails are written straight from the
+	 * message store to the connection.
+	 * @param msg the message text
+	 * @param messageStore the message store
+	 * @param key the key of the email data
+	 * @param headerLength the length of the email's header section, including
+	 * the empty line after it, or -1 if not known
+	 * @param bodyLines the number of lines of the body to send (for the "TOP"
+	 * command) or -1 to send the whole email
+	 * @throws IOException
+	 */
+	public void sendData(String msg, MessageStore messageStore, String key, long headerLength, int bodyLines) throws IOException {
+		sendDataStart(msg);
+
+		long size;
+		if (bodyLines < 0) {
+			size = messageStore.transferTo(key, channel);
+		} else if (headerLength < 0) {
+			//the end of the headers has to be found by reading them
+			Reader data = messageStore.open(key);
+			try {
+				size = writeData(data, false, bodyLines);
+			} finally {
+				IOUtils.closeQuietly(data);
+			}
+		} else if (bodyLines == 0) {
+			//the CRLF of the empty line is sent as part of the terminator
+			size = messageStore.transferTo(key, 0, Math.max(headerLength - 2, 0), channel);
+		} else {
+			size = messageStore.transferTo(key, 0, headerLength, channel);
+			Reader body = messageStore.open(key, headerLength);
+			try {
+				size += writeData(body, true, bodyLines);
+			} finally {
+				IOUtils.closeQuietly(body);
 			}
 		}
 
-		sb.append(CRLF);
+		sendDataEnd(size);
+	}
+
+	/**
+	 * Sends a success ("+OK") response, followed by the data of an email. The
+	 * data is streamed to the connection in small chunks, so it is never
+	 * loaded into memory all at once.
+	 * @param msg the message text
+	 * @param data the email data (must already be dot-stuffed, which it is if
+	 * it was stored as it was received over SMTP)
+	 * @param bodyLines the number of lines of the body to send (for the "TOP"
+	 * command) or -1 to send the whole email
+	 * @throws IOException
+	 */
+	public void sendData(String msg, Reader data, int bodyLines) throws IOException {
+		sendDataStart(msg);
+		long size = writeData(data, false, bodyLines);
+		sendDataEnd(size);
+	}
+
+	private void sendDataStart(String msg) throws IOException {
+		sendLine((msg == null) ? "+OK" : "+OK " + msg);
+		codec.flush(channel);
+	}
 
-		String response = sb.toString();
-		toClient.print(response);
-		toClient.flush();
+	private void sendDataEnd(long size) throws IOException {
+		transactionLog.server("<" + size + " bytes of email data>");
 
-		transactionLog.server(response);
+		//the data does not end in a newline
+		codec.write(ByteBuffer.wrap(crlf));
+		sendLine(".");
+		codec.flush(channel);
+	}
+
+	/**
+	 * Writes email data to the connection. The data is read and written in
+	 * fixed-size chunks. Dot-stuffing is not applied, since the data is
+	 * already dot-stuffed.
+	 * @param data the email data
+	 * @param inBody true if the reader starts at the beginning of the body,
+	 * false if it starts at the beginning of the headers
+	 * @param bodyLines the number of lines of the body to write or -1 to
+	 * write everything
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	private long writeData(Reader data, boolean inBody, int bodyLines) throws IOException {
+		char chars[] = new char[bufferSize];
+		ByteBuffer bytes = ByteBuffer.allocate(bufferSize);
+		long written = 0;
+		int lineLength = 0;
+		int linesWritten = 0;
+
+		//a CR is held back until it is known whether it starts a CRLF
+		boolean cr = false;
+
+		/*
+		 * The CRLF at the end of each line is held back until the next line
+		 * starts. This way, it can be left off of the last line that is
+		 * written, since the terminator starts with a CRLF of its own.
+		 */
+		boolean newline = false;
+
+		int read;
+		reading: while ((read = data.read(chars)) != -1) {
+			for (int i = 0; i < read; i++) {
+				if (bytes.remaining() < 4) {
+					written += drain(bytes);
+				}
+
+				char c = chars[i];
+				if (c == '\n' && cr) {
+					cr = false;
+					if (newline) {
+						bytes.put(crlf);
+						newline = false;
+					}
+
+					if (!inBody) {
+						if (lineLength == 0) {
+							//an empty line separates the headers from the body
+							inBody = true;
+							if (bodyLines == 0) {
+								break reading;
+							}
+						}
+					} else {
+						linesWritten++;
+						if (bodyLines >= 0 && linesWritten >= bodyLines) {
+							break reading;
+						}
+					}
+
+					newline = true;
+					lineLength = 0;
+					continue;
+				}
+
+				if (newline) {
+					bytes.put(crlf);
+					newline = false;
+				}
+				if (cr) {
+					//a CR that isn't part of a CRLF
+					bytes.put((byte) '\r');
+					lineLength++;
+					cr = false;
+				}
+				if (c == '\r') {
+					cr = true;
+					continue;
+				}
+
+				bytes.put((c <= 0xFF) ? (byte) c : (byte) '?');
+				lineLength++;
+			}
+		}
+
+		if (read == -1) {
+			//the end of the data was reached, so send everything that was held back
+			if (bytes.remaining() < 4) {
+				written += drain(bytes);
+			}
+			if (newline) {
+				bytes.put(crlf);
+			}
+			if (cr) {
+				bytes.put((byte) '\r');
+			}
+		}
+
+		written += drain(bytes);
+		return written;
+	}
+
+	/**
+	 * Writes the contents of a buffer to the connection and clears the buffer.
+	 * @param bytes the buffer
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	private long drain(ByteBuffer bytes) throws IOException {
+		bytes.flip();
+		int size = bytes.remaining();
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+		bytes.clear();
+		return size;
 	}
 
 	/**
@@ -102,10 +292,17 @@ public class POP3ServerSocket {
 	 * @throws IOException
 	 */
 	public void sendError(String msg) throws IOException {
-		String response = "-ERR " + msg + CRLF;
-		toClient.print(response);
-		toClient.flush();
-		transactionLog.server(response);
+		sendLine("-ERR " + msg);
+		codec.flush(channel);
+	}
+
+	/**
+	 * Queues a line of data to send to the client.
+	 * @param line the line
+	 */
+	private void sendLine(String line) {
+		transactionLog.server(line);
+		codec.writeLine(line);
 	}
 
 	/**
@@ -114,10 +311,24 @@ public class POP3ServerSocket {
 	 * @throws IOException
 	 */
 	public POP3Request nextRequest() throws IOException {
-		String line = fromClient.readLine();
-		if (line == null) {
-			return null;
+		ByteBuffer bytes;
+		while (true) {
+			try {
+				bytes = codec.nextLine();
+			} catch (LineTooLongException e) {
+				transactionLog.client("<line too long>");
+				sendError("Line too long.");
+				continue;
+			}
+			if (bytes != null) {
+				break;
+			}
+			if (codec.read(channel) == -1) {
+				return null;
+			}
 		}
+
+		String line = LineCodec.toString(bytes);
 		transactionLog.client(line);
 		line = line.trim();
 
@@ -140,12 +351,10 @@ public class POP3ServerSocket {
 	 */
 	public void close() {
 		try {
-			fromClient.close();
+			channel.close();
 		} catch (IOException e) {
-			logger.log(Level.WARNING, "Problem closing input stream from POP3 client.", e);
+			logger.log(Level.WARNING, "Problem closing connection to POP3 client.", e);
 		}
-
-		toClient.close();
 	}
 
 	public TransactionLog getTransactionLog() {
@@ -0,0 +1,154 @@
+package sleet.smtp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of which email hosts can't be reached, so that emails going to
+ * those hosts can be held back instead of each one paying for its own MX
+ * lookup and connection attempt.
+ * <p>
+ * After a certain number of consecutive connection failures, a host's
+ * circuit "opens" and emails going to it are held back for a while. When that
+ * time is up, a single email is allowed through as a probe. If the probe
+ * connects, the circuit closes and all emails are allowed through again. If
+ * not, the circuit opens again for twice as long.
+ * </p>
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class CircuitBreaker {
+	private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+	private final int failureThreshold;
+	private final long openDuration;
+	private final long maxOpenDuration;
+	private final long probeTimeout;
+
+	/**
+	 * The hosts that have had connection failures (key = host). Hosts that are
+	 * working fine are not in this map.
+	 */
+	private final Map<String, Circuit> circuits = new HashMap<String, Circuit>();
+
+	/**
+	 * @param failureThreshold the number of consecutive connection failures
+	 * that open a circuit
+	 * @param openDuration how long a circuit stays open the first time (in
+	 * milliseconds)
+	 * @param maxOpenDuration the longest a circuit can stay open (in
+	 * milliseconds)
+	 * @param probeTimeout how long to wait for a probe to finish before
+	 * allowing another one (in milliseconds)
+	 */
+	public CircuitBreaker(int failureThreshold, long openDuration, long maxOpenDuration, long probeTimeout) {
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+		this.maxOpenDuration = maxOpenDuration;
+		this.probeTimeout = probeTimeout;
+	}
+
+	/**
+	 * Determines if an email can be sent to a host. If the host's circuit is
+	 * ready to be tested, then the email becomes the probe.
+	 * @param host the email host (e.g. "gmail.com")
+	 * @return 0 if the email can be sent or the time the email should be held
+	 * until (in milliseconds since the epoch)
+	 */
+	public synchronized long check(String host) {
+		Circuit circuit = circuits.get(host);
+		if (circuit == null || circuit.openUntil == 0) {
+			return 0;
+		}
+
+		long now = System.currentTimeMillis();
+		if (now < circuit.openUntil) {
+			return circuit.openUntil;
+		}
+
+		if (now < circuit.probeDeadline) {
+			//wait to see how the probe does
+			return now + Math.min(probeTimeout, 1000 * 30);
+		}
+
+		circuit.probeDeadline = now + probeTimeout;
+		return 0;
+	}
+
+	/**
+	 * Records that a connection was made to one of a host's SMTP servers.
+	 * This closes the host's circuit.
+	 * @param host the email host
+	 */
+	public synchronized void success(String host) {
+		Circuit circuit = circuits.remove(host);
+		if (circuit != null && circuit.openUntil != 0) {
+			logger.info("Host \"" + host + "\" is reachable again.");
+		}
+	}
+
+	/**
+	 * Records that none of a host's SMTP servers could be reached.
+	 * @param host the email host
+	 */
+	public synchronized void failure(String host) {
+		long now = System.currentTimeMillis();
+		Circuit circuit = circuits.get(host);
+		if (circuit == null) {
+			circuit = new Circuit();
+			circuits.put(host, circuit);
+		}
+
+		if (circuit.openUntil == 0) {
+			circuit.failures++;
+			if (circuit.failures >= failureThreshold) {
+				circuit.duration = openDuration;
+				circuit.openUntil = now + circuit.duration;
+				logger.info("Host \"" + host + "\" could not be reached " + circuit.failures + " times in a row.  Holding its emails for " + (circuit.duration / 1000) + " seconds.");
+			}
+			return;
+		}
+
+		if (circuit.probeDeadline != 0 && now >= circuit.openUntil) {
+			//the probe failed
+			circuit.duration = Math.min(circuit.duration * 2, maxOpenDuration);
+			circuit.openUntil = now + circuit.duration;
+			circuit.probeDeadline = 0;
+			logger.info("Host \"" + host + "\" is still unreachable.  Holding its emails for " + (circuit.duration / 1000) + " seconds.");
+		}
+	}
+
+	/**
+	 * Determines if a host's circuit is open.
+	 * @param host the email host
+	 * @return true if emails to the host are being held back, false if not
+	 */
+	public synchronized boolean isOpen(String host) {
+		Circuit circuit = circuits.get(host);
+		return circuit != null && circuit.openUntil != 0;
+	}
+
+	private static class Circuit {
+		/**
+		 * The number of consecutive connection failures.
+		 */
+		private int failures;
+
+		/**
+		 * When the circuit can be probed (in milliseconds since the epoch) or
+		 * 0 if the circuit is closed.
+		 */
+		private long openUntil;
+
+		/**
+		 * How long the circuit was last opened for.
+		 */
+		private long duration;
+
+		/**
+		 * When the probe that is in progress times out or 0 if no probe is in
+		 * progress.
+		 */
+		private long probeDeadline;
+	}
+}
@@ -0,0 +1,287 @@
+package sleet.smtp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Limits how quickly emails are sent to a destination (such as an email host
+ * or an SMTP server) and learns how much each destination is willing to
+ * accept.
+ * <p>
+ * Each destination has a token bucket that limits the number of emails sent
+ * per second and a limit on the number of deliveries that can be in progress
+ * at once. Both limits are adjusted as we go: they are cut in half whenever
+ * the destination defers an email (responds with a 4xx code, which large
+ * email providers use to tell senders to slow down) and grow back slowly with
+ * each email that is accepted (additive increase, multiplicative decrease).
+ * </p>
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class DeliveryThrottle {
+	private static final Logger logger = Logger.getLogger(DeliveryThrottle.class.getName());
+
+	/**
+	 * Destinations that are idle and back at their initial limits are purged
+	 * when the map grows past this size.
+	 */
+	private static final int purgeSize = 10000;
+
+	/**
+	 * The lowest the rate limit can go (in emails per second).
+	 */
+	private static final double minRate = 1.0 / 60;
+
+	private final double initialRate;
+	private final double maxRate;
+	private final int initialConcurrency;
+	private final int maxConcurrency;
+
+	/**
+	 * The limits of each destination (key = destination). Destinations that
+	 * have not been sent anything yet are not in this map.
+	 */
+	private final Map<String, Limits> limits = new HashMap<String, Limits>();
+
+	/**
+	 * @param initialRate the number of emails per second that a destination
+	 * starts out with
+	 * @param maxRate the highest the rate limit can grow to (in emails per
+	 * second)
+	 * @param initialConcurrency the number of deliveries that a destination
+	 * starts out with
+	 * @param maxConcurrency the highest the concurrency limit can grow to
+	 */
+	public DeliveryThrottle(double initialRate, double maxRate, int initialConcurrency, int maxConcurrency) {
+		this.initialRate = initialRate;
+		this.maxRate = maxRate;
+		this.initialConcurrency = initialConcurrency;
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/**
+	 * Starts a delivery to a destination if the destination's concurrency
+	 * limit allows it. Each successful call must be followed by a call to
+	 * {@link #release}.
+	 * @param destination the destination
+	 * @return true if the delivery can start, false if the destination already
+	 * has as many deliveries in progress as it can handle
+	 */
+	public synchronized boolean tryAcquire(String destination) {
+		Limits entry = get(destination);
+		if (entry.active > 0 && entry.active >= (int) entry.concurrency) {
+			return false;
+		}
+		entry.active++;
+		return true;
+	}
+
+	/**
+	 * Finishes a delivery that was started with {@link #tryAcquire}.
+	 * @param destination the destination
+	 */
+	public synchronized void release(String destination) {
+		Limits entry = limits.get(destination);
+		if (entry != null && entry.active > 0) {
+			entry.active--;
+		}
+	}
+
+	/**
+	 * Takes a token from a destination's bucket, which allows one email to be
+	 * sent.
+	 * @param destination the destination
+	 * @return 0 if the token was taken or, if the bucket is empty, how long to
+	 * wait until a token is available (in milliseconds)
+	 */
+	public synchronized long tryTake(String destination) {
+		Limits entry = get(destination);
+		entry.refill();
+		if (entry.tokens >= 1) {
+			entry.tokens--;
+			return 0;
+		}
+		return (long) Math.ceil((1 - entry.tokens) / entry.rate * 1000);
+	}
+
+	/**
+	 * Puts back a token that was taken with {@link #tryTake}, but not used.
+	 * @param destination the destination
+	 */
+	public synchronized void giveBack(String destination) {
+		Limits entry = limits.get(destination);
+		if (entry != null) {
+			entry.tokens = Math.min(entry.tokens + 1, entry.burst());
+		}
+	}
+
+	/**
+	 * Records that a destination accepted an email. This raises its limits a
+	 * little.
+	 * @param destination the destination
+	 */
+	public synchronized void success(String destination) {
+		Limits entry = get(destination);
+
+		//the concurrency limit grows by about one for every full "window" of emails that are accepted
+		entry.concurrency = Math.min(entry.concurrency + 1 / entry.concurrency, maxConcurrency);
+		entry.rate = Math.min(entry.rate + initialRate / 10, maxRate);
+	}
+
+	/**
+	 * Records that a destination deferred an email (responded with a 4xx code).
+	 * This cuts its limits in half.
+	 * @param destination the destination
+	 */
+	public synchronized void deferral(String destination) {
+		Limits entry = get(destination);
+		entry.refill();
+		entry.concurrency = Math.max(entry.concurrency / 2, 1);
+		entry.rate = Math.max(entry.rate / 2, minRate);
+		entry.tokens = Math.min(entry.tokens, 0);
+		entry.deferrals++;
+		logger.info("\"" + destination + "\" deferred an email.  Slowing down to " + String.format("%.2f", entry.rate) + " email(s)/sec and " + (int) entry.concurrency + " delivery(s) at once.");
+	}
+
+	/**
+	 * Gets the current limits of the destinations that are either being sent
+	 * to or that have been slowed down.
+	 * @return the limits, sorted by destination
+	 */
+	public synchronized List<Status> getStatus() {
+		List<Status> status = new ArrayList<Status>();
+		for (Map.Entry<String, Limits> entry : limits.entrySet()) {
+			Limits value = entry.getValue();
+			if (value.active == 0 && value.deferrals == 0) {
+				continue;
+			}
+			status.add(new Status(entry.getKey(), value.active, (int) value.concurrency, value.rate, value.deferrals));
+		}
+
+		Collections.sort(status);
+		return status;
+	}
+
+	private Limits get(String destination) {
+		Limits entry = limits.get(destination);
+		if (entry == null) {
+			if (limits.size() >= purgeSize) {
+				purgeIdle();
+			}
+			entry = new Limits();
+			limits.put(destination, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes the destinations that can be forgotten without losing anything
+	 * that was learned about them.
+	 */
+	private void purgeIdle() {
+		Iterator<Limits> it = limits.values().iterator();
+		while (it.hasNext()) {
+			Limits entry = it.next();
+			if (entry.active == 0 && entry.concurrency >= initialConcurrency && entry.rate >= initialRate) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * The limits of a single destination.
+	 */
+	private class Limits {
+		private int active;
+		private double concurrency = initialConcurrency;
+		private double rate = initialRate;
+		private double tokens = burst();
+		private long lastRefill = System.currentTimeMillis();
+		private int deferrals;
+
+		/**
+		 * Gets the maximum number of tokens the bucket can hold.
+		 * @return the number of tokens
+		 */
+		public double burst() {
+			return Math.max(rate, 1);
+		}
+
+		/**
+		 * Adds the tokens that have accumulated since the last refill.
+		 */
+		public void refill() {
+			long now = System.currentTimeMillis();
+			tokens = Math.min(tokens + (now - lastRefill) / 1000.0 * rate, burst());
+			lastRefill = now;
+		}
+	}
+
+	/**
+	 * A snapshot of a destination's limits.
+	 */
+	public static class Status implements Comparable<Status> {
+		private final String destination;
+		private final int active;
+		private final int concurrency;
+		private final double rate;
+		private final int deferrals;
+
+		public Status(String destination, int active, int concurrency, double rate, int deferrals) {
+			this.destination = destination;
+			this.active = active;
+			this.concurrency = concurrency;
+			this.rate = rate;
+			this.deferrals = deferrals;
+		}
+
+		/**
+		 * @return the destination
+		 */
+		public String getDestination() {
+			return destination;
+		}
+
+		/**
+		 * @return the number of deliveries in progress
+		 */
+		public int getActive() {
+			return active;
+		}
+
+		/**
+		 * @return the number of deliveries that can be in progress at once
+		 */
+		public int getConcurrency() {
+			return concurrency;
+		}
+
+		/**
+		 * @return the number of emails that can be sent per second
+		 */
+		public double getRate() {
+			return rate;
+		}
+
+		/**
+		 * @return the number of times the destination has deferred an email
+		 */
+		public int getDeferrals() {
+			return deferrals;
+		}
+
+		@Override
+		public int compareTo(Status that) {
+			return destination.compareTo(that.destination);
+		}
+
+		@Override
+		public String toString() {
+			return destination + ": " + active + "/" + concurrency + " deliveries, " + String.format("%.2f", rate) + " emails/sec, " + deferrals + " deferral(s)";
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package sleet.smtp;
+
+import java.util.Random;
+
+/**
+ * A retry policy that doubles the delay after each failed attempt, up to a
+ * maximum. A random amount of extra time is added to each delay, so that
+ * emails which failed at the same time (for example, because a large email
+ * provider was down) do not all retry at the same time.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class ExponentialBackoff implements RetryPolicy {
+	private final long initialDelay;
+	private final long maxDelay;
+	private final double jitter;
+	private final Random random = new Random();
+
+	/**
+	 * Creates a policy that starts at 30 minutes (RFC 5321 p.64) and goes up
+	 * to 4 hours, with up to 20% jitter.
+	 */
+	public ExponentialBackoff() {
+		this(1000 * 60 * 30, 1000 * 60 * 60 * 4, 0.2);
+	}
+
+	/**
+	 * @param initialDelay the delay after the first failed attempt (in
+	 * milliseconds)
+	 * @param maxDelay the longest delay (in milliseconds), not including the
+	 * jitter
+	 * @param jitter the maximum amount of extra time to add to each delay, as
+	 * a fraction of the delay (e.g. "0.2" to add up to 20%)
+	 */
+	public ExponentialBackoff(long initialDelay, long maxDelay, double jitter) {
+		if (initialDelay < 1 || maxDelay < initialDelay) {
+			throw new IllegalArgumentException("Delays must be positive and the max delay cannot be less than the initial delay.");
+		}
+		if (jitter < 0) {
+			throw new IllegalArgumentException("Jitter cannot be negative.");
+		}
+
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.jitter = jitter;
+	}
+
+	@Override
+	public long getRetryDelay(int attempts) {
+		long delay = initialDelay;
+		for (int i = 1; i < attempts && delay < maxDelay; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, maxDelay);
+
+		return delay + (long) (delay * jitter * random.nextDouble());
+	}
+}
@@ -0,0 +1,72 @@
+package sleet.smtp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Looks up MX records using Java's built-in JNDI DNS provider.
+ * <p>
+ * The JNDI DNS provider does not expose the TTLs of the records it returns,
+ * so every record is given the same, configurable TTL.
+ * </p>
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ * @see http://www.rgagnon.com/javadetails/java-0452.html
+ * @see http://stackoverflow.com/questions/9475073/java-sockets-over-the-internet-connectexception-operation-timed-out
+ */
+public class JndiMxResolver implements MxResolver {
+	private final Hashtable<String, String> dirContextEnv;
+	private final int ttl;
+
+	/**
+	 * Creates a resolver that gives each record a TTL of one hour.
+	 */
+	public JndiMxResolver() {
+		this(60 * 60);
+	}
+
+	/**
+	 * @param ttl the TTL to give each record (in seconds)
+	 */
+	public JndiMxResolver(int ttl) {
+		this.ttl = ttl;
+
+		dirContextEnv = new Hashtable<String, String>();
+		dirContextEnv.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+
+		//don't let a slow DNS server hold up delivery for too long (defaults are 1 second and 4 retries, with the timeout doubling each time)
+		dirContextEnv.put("com.sun.jndi.dns.timeout.initial", "2000");
+		dirContextEnv.put("com.sun.jndi.dns.timeout.retries", "2");
+	}
+
+	@Override
+	public List<MxRecord> resolve(String host) throws NamingException {
+		DirContext ictx = new InitialDirContext(dirContextEnv);
+		try {
+			Attributes attrs = ictx.getAttributes(host, new String[] { "MX" });
+			Attribute mxAttr = attrs.get("MX");
+			if (mxAttr == null || mxAttr.size() == 0) {
+				return Collections.emptyList();
+			}
+
+			List<MxRecord> mxRecords = new ArrayList<MxRecord>(mxAttr.size());
+			for (int i = 0; i < mxAttr.size(); i++) {
+				String mx = (String) mxAttr.get(i);
+				int space = mx.indexOf(' ');
+				int preference = Integer.parseInt(mx.substring(0, space));
+				String server = mx.substring(space + 1);
+				mxRecords.add(new MxRecord(preference, server, ttl));
+			}
+			return mxRecords;
+		} finally {
+			ictx.close();
+		}
+	}
+}
@@ -2,24 +2,39 @@ package sleet.smtp;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
 import sleet.db.DbDao;
+import sleet.db.DbDao.UnitOfWork;
 import sleet.db.DirbyMemoryDbDao;
 import sleet.db.OutboundEmailGroup;
 import sleet.email.Email;
 import sleet.email.EmailAddress;
+import sleet.email.EmailData;
+import sleet.email.EmailDateFormat;
 import sleet.email.EmailHeaders;
 import sleet.email.EmailRaw;
 
@@ -32,22 +47,27 @@ public class MailSender {
 	private static final Logger logger = Logger.getLogger(MailSender.class.getName());
 
 	/**
-	 * The interval in seconds that the database will be polled at to see if
-	 * there are any emails that need to be sent or re-tried.
+	 * The maximum number of emails that are loaded from the database at once
+	 * when emails are due to be sent.
 	 */
-	private long heartBeat = 10000;
+	private static final int maxDispatchSize = 500;
 
 	/**
-	 * Emails will be re-tried *more* frequently the first couple times it
-	 * attempts to send them.
+	 * Decides how long to wait before re-trying an email that couldn't be
+	 * sent.
 	 */
-	private long transientRetryInterval = 1000 * 60 * 30;
+	private RetryPolicy retryPolicy = new ExponentialBackoff();
 
 	/**
-	 * Emails will be re-tried *less* frequently after the first couple times it
-	 * attempts to send them.
+	 * How long to wait before re-trying an email that couldn't be sent due to
+	 * a problem on our end (such as a database error).
 	 */
-	private long retryInterval = 1000 * 60 * 60;
+	private long errorRetryDelay = 1000 * 60 * 5;
+
+	/**
+	 * Holds back emails that are going to hosts that can't be reached.
+	 */
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(3, 1000 * 60 * 5, 1000 * 60 * 60 * 2, 1000 * 60 * 5);
 
 	/**
 	 * If an email couldn't be sent after this amount of time, then give up
@@ -55,6 +75,121 @@ public class MailSender {
 	 */
 	private long giveUpInterval = 1000 * 60 * 60 * 24 * 5;
 
+	/**
+	 * How long a connection to a remote SMTP server is kept open when it is not
+	 * being used.
+	 */
+	private long connectionIdleTimeout = 1000 * 60;
+
+	/**
+	 * The number of emails that are sent over a connection to a remote SMTP
+	 * server before it is closed.
+	 */
+	private int maxEmailsPerConnection = 100;
+
+	/**
+	 * The maximum number of idle connections to keep open to each remote SMTP
+	 * server.
+	 */
+	private int maxIdleConnectionsPerServer = 2;
+
+	/**
+	 * The maximum number of connections that can be open to each remote SMTP
+	 * server at once.
+	 */
+	private int maxConnectionsPerServer = 5;
+
+	/**
+	 * The number of threads that deliver emails.
+	 */
+	private int deliveryThreads = 20;
+
+	/**
+	 * How long to wait before trying again when all of a host's SMTP servers
+	 * already have the maximum number of connections open.
+	 */
+	private long serverBusyRetryDelay = 1000 * 5;
+
+	/**
+	 * Limits how quickly emails are sent to each email host and how many
+	 * deliveries to each host can be in progress at once (created when the
+	 * mail sender starts).
+	 */
+	private DeliveryThrottle hostThrottle;
+
+	/**
+	 * Limits how quickly emails are sent to each remote SMTP server and how
+	 * many connections can be used to send to it at once (created when the
+	 * mail sender starts).
+	 */
+	private DeliveryThrottle serverThrottle;
+
+	/**
+	 * The number of emails per second that each host and SMTP server starts
+	 * out with. This grows as emails are accepted and shrinks when emails are
+	 * deferred.
+	 */
+	private double initialSendRate = 5;
+
+	/**
+	 * The highest number of emails per second that can be sent to each host or
+	 * SMTP server.
+	 */
+	private double maxSendRate = 50;
+
+	/**
+	 * The longest a delivery thread will wait for a host's or SMTP server's
+	 * rate limit before putting the rest of its emails back in the queue.
+	 */
+	private long maxThrottleWait = 1000;
+
+	/**
+	 * How long to wait before sending the rest of a batch of emails to a host
+	 * after the host defers one of them.
+	 */
+	private long deferralRetryDelay = 1000 * 60;
+
+	/**
+	 * How long to wait on remote SMTP servers.
+	 */
+	private SMTPTimeouts timeouts = new SMTPTimeouts();
+
+	/**
+	 * How long to wait for a connection attempt to an SMTP server before
+	 * starting an attempt to another SMTP server (or another IP address of the
+	 * same server) alongside it.
+	 */
+	private long connectionAttemptDelay = 1000 * 2;
+
+	/**
+	 * Opens connections to remote SMTP servers (created when the mail sender
+	 * starts).
+	 */
+	private MxConnector mxConnector;
+
+	/**
+	 * Runs the connection attempts of the {@link MxConnector} (created when
+	 * the mail sender starts).
+	 */
+	private ExecutorService connectExecutor;
+
+	/**
+	 * Runs the delivery tasks (created when the mail sender starts). Tasks
+	 * wait in line and are run in the order they were submitted.
+	 */
+	private ExecutorService deliveryExecutor;
+
+	/**
+	 * Finds the SMTP servers of each email host.
+	 */
+	private MxRecordResolver mxRecordResolver = new MxRecordResolver();
+
+	/**
+	 * Re-uses connections to remote SMTP servers (created when the mail sender
+	 * starts).
+	 */
+	private OutboundConnectionPool connectionPool;
+
 	/**
 	 * The address that all error emails will be from.
 	 */
@@ -76,9 +211,29 @@ public class MailSender {
 	private final DbDao dao;
 
 	/**
-	 * The emails that are currently being sent.
+	 * The emails that are waiting to be sent, ordered by when they should be
+	 * sent next. Only the IDs are held in memory--the emails themselves are
+	 * loaded from the database when it's time to send them.
+	 */
+	private final DelayQueue<QueuedGroup> queue = new DelayQueue<QueuedGroup>();
+
+	/**
+	 * The IDs of the emails that this server is currently sending.
+	 */
+	private final Set<Integer> beingSent = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+	/**
+	 * How long this server has to send an email once it has claimed it.
+	 * After this, another server (or this one, after a restart) is allowed
+	 * to claim it.
+	 */
+	private long leaseDuration = 1000 * 60 * 30;
+
+	/**
+	 * Identifies this server when it claims emails (created when the mail
+	 * sender starts).
 	 */
-	private final Collection<OutboundEmailGroup> beingSentGroups = new LinkedList<OutboundEmailGroup>();
+	private String leaseOwner;
 
 	public static void main(String args[]) throws Exception {
 		Email email = new Email();
@@ -92,8 +247,7 @@ public class MailSender {
 
 		MailSender mailSender = new MailSender(new DirbyMemoryDbDao());
 		mailSender.setHostName("mangstadt.dyndns.org");
-		mailSender.setTansientRetryInterval(5000);
-		mailSender.setRetryInterval(5000);
+		mailSender.setRetryPolicy(new ExponentialBackoff(5000, 60000, 0.2));
 		mailSender.setTransactionLogFile(new File("smtp-client-transactions.log"));
 		mailSender.sendEmail(email);
 		mailSender.start();
@@ -137,35 +291,143 @@ public class MailSender {
 	}
 
 	/**
-	 * The frequency at which the database will be polled for emails to send.
-	 * @param heartBeat the poll interval in milliseconds
+	 * Sets how long to wait before re-trying an email that couldn't be sent.
+	 * Defaults to an {@link ExponentialBackoff}.
+	 * @param retryPolicy the retry policy
 	 */
-	public void setHeartBeat(long heartBeat) {
-		if (heartBeat < 1) {
-			throw new IllegalArgumentException("Heartbeat must be a positive integer.");
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		if (retryPolicy == null) {
+			throw new IllegalArgumentException("Retry policy cannot be null.");
 		}
-		this.heartBeat = heartBeat;
+		this.retryPolicy = retryPolicy;
 	}
 
-	public void setTansientRetryInterval(long transientRetryInterval) {
-		if (transientRetryInterval < 1) {
+	public void setGiveUpInterval(long giveUpInterval) {
+		if (giveUpInterval < 1) {
 			throw new IllegalArgumentException("Must be a positive integer.");
 		}
-		this.transientRetryInterval = transientRetryInterval;
+		this.giveUpInterval = giveUpInterval;
 	}
 
-	public void setRetryInterval(long retryInterval) {
-		if (retryInterval < 1) {
+	/**
+	 * Sets how long a connection to a remote SMTP server is kept open for
+	 * re-use when it is not being used.
+	 * @param connectionIdleTimeout the timeout in milliseconds
+	 */
+	public void setConnectionIdleTimeout(long connectionIdleTimeout) {
+		if (connectionIdleTimeout < 0) {
+			throw new IllegalArgumentException("Cannot be negative.");
+		}
+		this.connectionIdleTimeout = connectionIdleTimeout;
+	}
+
+	/**
+	 * Sets the number of emails that are sent over a connection to a remote
+	 * SMTP server before it is closed.
+	 * @param maxEmailsPerConnection the number of emails
+	 */
+	public void setMaxEmailsPerConnection(int maxEmailsPerConnection) {
+		if (maxEmailsPerConnection < 1) {
 			throw new IllegalArgumentException("Must be a positive integer.");
 		}
-		this.retryInterval = retryInterval;
+		this.maxEmailsPerConnection = maxEmailsPerConnection;
 	}
 
-	public void setGiveUpInterval(long giveUpInterval) {
-		if (giveUpInterval < 1) {
+	/**
+	 * Sets the maximum number of idle connections to keep open to each remote
+	 * SMTP server.
+	 * @param maxIdleConnectionsPerServer the number of connections (zero to
+	 * close each connection after it is used)
+	 */
+	public void setMaxIdleConnectionsPerServer(int maxIdleConnectionsPerServer) {
+		if (maxIdleConnectionsPerServer < 0) {
+			throw new IllegalArgumentException("Cannot be negative.");
+		}
+		this.maxIdleConnectionsPerServer = maxIdleConnectionsPerServer;
+	}
+
+	/**
+	 * Sets the maximum number of connections that can be open to each remote
+	 * SMTP server at once.
+	 * @param maxConnectionsPerServer the number of connections
+	 */
+	public void setMaxConnectionsPerServer(int maxConnectionsPerServer) {
+		if (maxConnectionsPerServer < 1) {
 			throw new IllegalArgumentException("Must be a positive integer.");
 		}
-		this.giveUpInterval = giveUpInterval;
+		this.maxConnectionsPerServer = maxConnectionsPerServer;
+	}
+
+	/**
+	 * Sets how long to wait on remote SMTP servers when connecting to them and
+	 * sending commands to them.
+	 * @param timeouts the timeouts
+	 */
+	public void setTimeouts(SMTPTimeouts timeouts) {
+		if (timeouts == null) {
+			throw new IllegalArgumentException("Timeouts cannot be null.");
+		}
+		this.timeouts = timeouts;
+	}
+
+	/**
+	 * Sets how long to wait for a connection attempt to an SMTP server before
+	 * starting an attempt to another SMTP server alongside it.
+	 * @param connectionAttemptDelay the delay in milliseconds
+	 */
+	public void setConnectionAttemptDelay(long connectionAttemptDelay) {
+		if (connectionAttemptDelay < 1) {
+			throw new IllegalArgumentException("Must be a positive integer.");
+		}
+		this.connectionAttemptDelay = connectionAttemptDelay;
+	}
+
+	/**
+	 * Sets the number of threads that deliver emails. This is the maximum
+	 * number of hosts that emails can be sent to at once.
+	 * @param deliveryThreads the number of threads
+	 */
+	public void setDeliveryThreads(int deliveryThreads) {
+		if (deliveryThreads < 1) {
+			throw new IllegalArgumentException("Must be a positive integer.");
+		}
+		this.deliveryThreads = deliveryThreads;
+	}
+
+	/**
+	 * Sets the number of emails per second that are sent to each host and
+	 * remote SMTP server. Sending speeds up from here as emails are accepted
+	 * and slows down when a server defers emails (responds with a 4xx code).
+	 * @param initialSendRate the number of emails per second
+	 * @param maxSendRate the highest the rate can grow to
+	 */
+	public void setSendRate(double initialSendRate, double maxSendRate) {
+		if (initialSendRate <= 0 || maxSendRate < initialSendRate) {
+			throw new IllegalArgumentException("Rates must be positive and the maximum cannot be less than the initial rate.");
+		}
+		this.initialSendRate = initialSendRate;
+		this.maxSendRate = maxSendRate;
+	}
+
+	/**
+	 * Sets how long this server has to send an email once it has claimed it.
+	 * After this, another server is allowed to claim it. This should be
+	 * longer than it could ever take to send a batch of emails.
+	 * @param leaseDuration the lease duration in milliseconds
+	 */
+	public void setLeaseDuration(long leaseDuration) {
+		if (leaseDuration < 1) {
+			throw new IllegalArgumentException("Must be a positive integer.");
+		}
+		this.leaseDuration = leaseDuration;
+	}
+
+	/**
+	 * Sets the object that finds the SMTP servers of each email host.
+	 * @param mxRecordResolver the MX record resolver
+	 */
+	public void setMxRecordResolver(MxRecordResolver mxRecordResolver) {
+		this.mxRecordResolver = mxRecordResolver;
 	}
 
 	/**
@@ -179,45 +441,241 @@ public class MailSender {
 			throw new IllegalStateException("Host name must be set.");
 		}
 
+		leaseOwner = hostName + "/" + UUID.randomUUID();
+		connectionPool = new OutboundConnectionPool(hostName, 25, connectionIdleTimeout, maxEmailsPerConnection, maxIdleConnectionsPerServer, maxConnectionsPerServer, timeouts);
+		hostThrottle = new DeliveryThrottle(initialSendRate, maxSendRate, Math.min(2, deliveryThreads), deliveryThreads);
+		serverThrottle = new DeliveryThrottle(initialSendRate, maxSendRate, Math.min(2, maxConnectionsPerServer), maxConnectionsPerServer);
+		connectExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "SMTP connector " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mxConnector = new MxConnector(connectionPool, serverThrottle, connectExecutor, connectionAttemptDelay);
+		deliveryExecutor = Executors.newFixedThreadPool(deliveryThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				return new Thread(task, "Mail sender " + count.incrementAndGet());
+			}
+		});
+
+		//rebuild the queue from the database
+		for (OutboundEmailGroup group : dao.selectOutboundQueue()) {
+			enqueue(group);
+		}
+		logger.info(queue.size() + " email(s) in the outbound queue.");
+
+		//wake up periodically to close idle SMTP connections, even if there is nothing to send
+		long idleCheckInterval = Math.max(connectionIdleTimeout, 1000);
+
 		while (true) {
-			Map<String, List<OutboundEmailGroup>> groupsByHost = dao.selectOutboundEmailGroupsToSend(transientRetryInterval, retryInterval);
-			for (Map.Entry<String, List<OutboundEmailGroup>> groupByHost : groupsByHost.entrySet()) {
-				String host = groupByHost.getKey();
-				List<OutboundEmailGroup> groups = groupByHost.getValue();
-
-				//check to see if any of the emails returned from the database query are already in the process of being sent
-				List<OutboundEmailGroup> toSend = new LinkedList<OutboundEmailGroup>();
-				synchronized (beingSentGroups) {
-					for (OutboundEmailGroup group : groups) {
-						boolean found = false;
-						for (OutboundEmailGroup beingSentGroup : beingSentGroups) {
-							if (group.id == beingSentGroup.id) {
-								found = true;
-								break;
-							}
-						}
+			List<QueuedGroup> due = new ArrayList<QueuedGroup>();
+			try {
+				QueuedGroup next = queue.poll(idleCheckInterval, TimeUnit.MILLISECONDS);
+				if (next != null) {
+					due.add(next);
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
 
-						if (!found) {
-							toSend.add(group);
-							beingSentGroups.add(group);
-						}
-					}
+			connectionPool.evictIdle();
+			if (due.isEmpty()) {
+				continue;
+			}
+
+			//send everything else that is due too, so that emails going to the same host can share a connection
+			//the rest is picked up on the next loop iteration, so a large backlog is loaded a piece at a time
+			queue.drainTo(due, maxDispatchSize - 1);
+			dispatch(due);
+		}
+
+		deliveryExecutor.shutdown();
+		connectExecutor.shutdown();
+		connectionPool.close();
+	}
+
+	/**
+	 * Loads emails that are due to be sent from the database and hands them
+	 * to the delivery threads.
+	 * @param due the emails that are due
+	 */
+	private void dispatch(List<QueuedGroup> due) {
+		long now = System.currentTimeMillis();
+		Map<Integer, QueuedGroup> entries = new HashMap<Integer, QueuedGroup>();
+		List<Integer> ids = new ArrayList<Integer>(due.size());
+		for (QueuedGroup entry : due) {
+			//skip the emails that this server is already sending
+			if (!beingSent.add(entry.id)) {
+				continue;
+			}
+
+			//hold back the emails going to hosts that can't be reached
+			//but let through the ones that have been tried for so long that it's time to give up on them
+			boolean givingUp = entry.firstAttempt > 0 && now - entry.firstAttempt > giveUpInterval;
+			if (!givingUp) {
+				long holdUntil = circuitBreaker.check(entry.host);
+				if (holdUntil > 0) {
+					queue.put(new QueuedGroup(entry, holdUntil));
+					beingSent.remove(entry.id);
+					continue;
 				}
+			}
+
+			entries.put(entry.id, entry);
+			ids.add(entry.id);
+		}
+		if (ids.isEmpty()) {
+			return;
+		}
 
-				if (!toSend.isEmpty()){
-					SenderThread t = new SenderThread(host, toSend);
-					t.start();
+		Map<String, List<OutboundEmailGroup>> groupsByHost;
+		Set<Integer> claimed = new HashSet<Integer>();
+		try {
+			//claim the emails so that no other server sends them at the same time
+			Date leaseExpires = new Date(System.currentTimeMillis() + leaseDuration);
+			for (OutboundEmailGroup group : dao.claimOutboundEmailGroups(ids, leaseOwner, leaseExpires)) {
+				if (leaseOwner.equals(group.leaseOwner)) {
+					claimed.add(group.id);
+					continue;
 				}
+
+				//another server is sending it, so check back once its lease expires
+				long retry = group.nextAttempt.getTime();
+				if (group.leaseExpires != null) {
+					retry = Math.max(retry, group.leaseExpires.getTime());
+				}
+				queue.put(new QueuedGroup(entries.get(group.id), retry));
 			}
 
-			try {
-				Thread.sleep(heartBeat);
-			} catch (InterruptedException e) {
-				break;
+			groupsByHost = dao.selectOutboundEmailGroups(claimed);
+		} catch (Exception e) {
+			logger.log(Level.SEVERE, "Problem loading outbound emails from the database.  Will try again in " + (errorRetryDelay / 1000) + " seconds.", e);
+			long retry = System.currentTimeMillis() + errorRetryDelay;
+			for (Integer id : ids) {
+				queue.put(new QueuedGroup(entries.get(id), retry));
+			}
+			releaseLeases(claimed);
+			beingSent.removeAll(ids);
+			return;
+		}
+
+		//forget about the emails that weren't claimed or no longer exist
+		Set<Integer> loaded = new HashSet<Integer>();
+		for (List<OutboundEmailGroup> groups : groupsByHost.values()) {
+			for (OutboundEmailGroup group : groups) {
+				loaded.add(group.id);
+			}
+		}
+		for (Integer id : ids) {
+			if (!loaded.contains(id)) {
+				beingSent.remove(id);
 			}
 		}
+
+		for (Map.Entry<String, List<OutboundEmailGroup>> groupByHost : groupsByHost.entrySet()) {
+			String host = groupByHost.getKey();
+			List<OutboundEmailGroup> groups = groupByHost.getValue();
+
+			//look up the host's SMTP servers while the task waits for a delivery thread
+			mxRecordResolver.prefetch(host);
+			deliveryExecutor.execute(new DeliveryTask(host, groups));
+		}
+	}
+
+	/**
+	 * Gets the sending limits that have been learned for the hosts and remote
+	 * SMTP servers that are being sent to or that have deferred emails.
+	 * @return a description of each limit
+	 */
+	public List<String> getDeliveryLimits() {
+		List<String> lines = new ArrayList<String>();
+		if (hostThrottle == null) {
+			return lines;
+		}
+
+		lines.add("Hosts:");
+		for (DeliveryThrottle.Status status : hostThrottle.getStatus()) {
+			lines.add("  " + status);
+		}
+		lines.add("SMTP servers:");
+		for (DeliveryThrottle.Status status : serverThrottle.getStatus()) {
+			lines.add("  " + status);
+		}
+		return lines;
+	}
+
+	/**
+	 * Puts emails back in the queue without counting it as a delivery
+	 * attempt.
+	 * @param groups the emails
+	 * @param delay how long to wait before sending them (in milliseconds)
+	 */
+	private void postpone(List<OutboundEmailGroup> groups, long delay) {
+		long retry = System.currentTimeMillis() + delay;
+		List<Integer> ids = new ArrayList<Integer>(groups.size());
+		for (OutboundEmailGroup group : groups) {
+			ids.add(group.id);
+			queue.put(new QueuedGroup(group, retry));
+		}
+
+		releaseLeases(ids);
+		beingSent.removeAll(ids);
+	}
+
+	/**
+	 * Gives up this server's lease on emails that it claimed, but did not
+	 * send or update.
+	 * @param ids the IDs of the emails
+	 */
+	private void releaseLeases(Collection<Integer> ids) {
+		if (ids.isEmpty()) {
+			return;
+		}
+
+		try {
+			dao.releaseOutboundEmailGroups(ids, leaseOwner);
+		} catch (SQLException e) {
+			//the leases will expire on their own
+			logger.log(Level.WARNING, "Problem releasing leases on outbound emails.", e);
+		}
 	}
-	
+
+	/**
+	 * Forgets about an email whose lease expired while it was being sent and
+	 * was claimed by someone else. It is checked on again once the other
+	 * lease expires, in case the other server stops before it finishes.
+	 * @param group the email
+	 */
+	private void leaseLost(OutboundEmailGroup group) {
+		logger.warning("Lease on outbound email " + group.id + " expired and was claimed by someone else.  Leaving it to them.");
+		queue.put(new QueuedGroup(group, System.currentTimeMillis() + leaseDuration));
+	}
+
+	/**
+	 * Adds an email to the in-memory queue, to be sent when its next attempt
+	 * is due.
+	 * @param group the email
+	 */
+	private void enqueue(OutboundEmailGroup group) {
+		queue.put(new QueuedGroup(group, group.nextAttempt.getTime()));
+	}
+
+	/**
+	 * Calculates when an email that could not be sent should be tried again.
+	 * @param group the email
+	 * @return the time of the next attempt
+	 */
+	private Date nextAttempt(OutboundEmailGroup group) {
+		return new Date(group.prevAttempt.getTime() + retryPolicy.getRetryDelay(group.attempts));
+	}
+
 	/**
 	 * Queues an email for sending.
 	 * @param email the email to send
@@ -231,66 +689,139 @@ public class MailSender {
 	 * @param email the email to send
 	 */
 	public void sendEmail(EmailRaw email) throws SQLException {
-		EmailHeaders headers = email.getData().getHeaders();
-		
+		//the email was created by this server
+		sendEmail(email, null, null);
+	}
+
+	/**
+	 * Queues an email that was submitted by a client for sending.
+	 * @param email the email to send
+	 * @param remoteHostName the host name the client gave in its greeting
+	 * (can be null)
+	 * @param remoteAddress the address of the client or null if the email was
+	 * created by this server
+	 */
+	public void sendEmail(EmailRaw email, String remoteHostName, InetAddress remoteAddress) throws SQLException {
+		EmailData data = email.getData();
+		EmailHeaders headers = data.getHeaders();
+
+		//the headers are added to the end of the email's original data, so the rest of the data is sent exactly as it was submitted
+
 		//set the "Date" header if it's not already set
 		//see RFC-6409, p.14
-		Date date = headers.getDate();
-		if (date == null) {
-			date = new Date();
-			headers.setDate(date);
+		if (headers.getHeader("Date") == null) {
+			data.appendHeader("Date", new EmailDateFormat().format(new Date()));
 		}
 
 		//"Message-ID" header must be set on all emails
 		//give the email an ID if it doesn't have one already
 		//see RFC-6409, p.14
-		String id = headers.getMessageId();
-		if (id == null) {
-			id = UUID.randomUUID().toString();
-			headers.setMessageId(id + "@" + hostName);
+		if (headers.getMessageId() == null) {
+			data.appendHeader("Message-ID", "<" + UUID.randomUUID() + "@" + hostName + ">");
 		}
 
 		//create database email object
-		sleet.db.Email dbEmail = new sleet.db.Email();
+		final sleet.db.Email dbEmail = new sleet.db.Email();
 		dbEmail.sender = email.getMailFrom();
 		dbEmail.recipients = email.getRecipients();
 		dbEmail.data = email.getData();
 
-		//group recipients by host
-		Map<String, OutboundEmailGroup> groups = new HashMap<String, OutboundEmailGroup>();
+		//recipients with mailboxes on this server are delivered straight to their inboxes instead of through an SMTP connection to ourselves
+		//local recipients whose mailboxes don't exist are still sent over SMTP, so they are bounced the same way as before
+		//the local copy is saved as its own email, so it has its own trace headers and isn't deleted along with the outbound copy if delivery is given up on
+		final sleet.db.Email localEmail = new sleet.db.Email();
+		localEmail.sender = dbEmail.sender;
+
+		//group remote recipients by host
+		final Map<String, OutboundEmailGroup> groups = new HashMap<String, OutboundEmailGroup>();
 		for (EmailAddress recipient : email.getRecipients()) {
 			String host = recipient.getHost();
+			if (hostName.equalsIgnoreCase(host) && dao.doesMailboxExist(recipient.getMailbox())) {
+				localEmail.recipients.add(recipient);
+				continue;
+			}
+
 			OutboundEmailGroup group = groups.get(host);
 			if (group == null) {
 				group = new OutboundEmailGroup();
 				group.email = dbEmail;
 				group.host = host;
+				group.nextAttempt = new Date();
 				groups.put(host, group);
 			}
 			group.recipients.add(recipient);
 		}
 
-		//insert email into database and add to outbound queue
-		synchronized (dao) {
-			try {
-				dao.insertEmail(dbEmail);
-				for (OutboundEmailGroup group : groups.values()) {
-					dao.insertOutboundEmailGroup(group);
+		if (!localEmail.recipients.isEmpty()) {
+			//the email is delivered here, so it gets the same trace headers it would get if it came in over SMTP
+			//the body is shared, so the copy must be saved before the caller discards the original
+			localEmail.data = data.copy();
+			addTraceHeaders(localEmail.data, dbEmail.sender, remoteHostName, remoteAddress, hostName);
+		}
+
+		//add the email to the local inboxes and to the outbound queue
+		dao.transaction(new UnitOfWork<Void>() {
+			@Override
+			public Void execute() throws SQLException {
+				if (!localEmail.recipients.isEmpty()) {
+					dao.insertInboxEmail(localEmail);
+
+					//the email has been delivered to these recipients, so it belongs in the sender's outbox
+					dao.insertOutboxEmail(dbEmail);
+				}
+				if (!groups.isEmpty()) {
+					dao.insertOutboundEmailGroups(groups.values());
 				}
-				dao.commit();
-			} catch (SQLException e) {
-				dao.rollback();
-				throw e;
+				return null;
 			}
+		});
+
+		//wake up the sender
+		for (OutboundEmailGroup group : groups.values()) {
+			enqueue(group);
 		}
 	}
 
+	/**
+	 * Adds the trace headers that the server that delivers an email to a
+	 * mailbox must add (see RFC 5321 p.57-58).
+	 * @param data the email data
+	 * @param mailFrom the sender given in the "MAIL FROM" command
+	 * @param remoteHostName the host name the client gave in its greeting
+	 * (can be null)
+	 * @param remoteAddress the address of the client or null if the email was
+	 * created by this server
+	 * @param hostName the host name of our server
+	 */
+	static void addTraceHeaders(EmailData data, EmailAddress mailFrom, String remoteHostName, InetAddress remoteAddress, String hostName) {
+		//trace info--from clause
+		//existing "Received" headers in the email must not be modified or removed
+		// see RFC 5321 p.57
+		StringBuilder sb = new StringBuilder();
+		sb.append("from ");
+		if (remoteAddress == null) {
+			sb.append(hostName);
+		} else {
+			String remoteIp = remoteAddress.getHostAddress();
+			if (remoteHostName == null) {
+				sb.append(remoteIp);
+			} else {
+				sb.append(remoteHostName + " ([" + remoteIp + "])");
+			}
+		}
+		sb.append(" by " + hostName + "; " + new EmailDateFormat().format(new Date()));
+		data.prependHeader("Received", sb.toString());
+
+		//RFC 5321 p.58 - the delivery server adds "Return-Path" above all of the other trace headers
+		data.prependHeader("Return-Path", "<" + ((mailFrom == null) ? "" : mailFrom.getAddress()) + ">");
+	}
+
 	/**
 	 * Sends an email and then updates the database according to whether it was
 	 * successfully sent or not.
 	 * @author Mike Angstadt [mike.angstadt@gmail.com]
 	 */
-	private class SenderThread extends Thread {
+	private class DeliveryTask implements Runnable {
 		private final String host;
 		private final List<OutboundEmailGroup> groups;
 
@@ -298,58 +829,152 @@ public class MailSender {
 		 * @param host the email host (e.g. "gmail.com")
 		 * @param groups the emails that are destined for this host
 		 */
-		public SenderThread(String host, List<OutboundEmailGroup> groups) {
+		public DeliveryTask(String host, List<OutboundEmailGroup> groups) {
 			this.host = host;
 			this.groups = groups;
 		}
 
 		@Override
 		public void run() {
+			//don't start more deliveries to the host than it can currently handle
+			//this does not count as a delivery attempt
+			if (!hostThrottle.tryAcquire(host)) {
+				logger.fine("\"" + host + "\" is at its delivery limit.  Will try again in " + (serverBusyRetryDelay / 1000) + " seconds.");
+				postpone(groups, serverBusyRetryDelay);
+				return;
+			}
+
+			try {
+				deliver();
+			} finally {
+				hostThrottle.release(host);
+			}
+		}
+
+		private void deliver() {
 			//get SMTP server addresses
-			List<String> smtpHosts = MxRecordResolver.resolveSmtpServers(host);
+			MxRecordResolver.Result lookup = mxRecordResolver.resolve(host);
+			if (lookup.hostNotFound) {
+				//the emails can never be delivered, so send them back to their senders right away
+				logger.info("Host \"" + host + "\" does not exist.  Giving up on its emails.");
+				for (OutboundEmailGroup group : groups) {
+					try {
+						giveUp(group);
+						beingSent.remove(group.id);
+					} catch (SQLException e) {
+						logger.log(Level.SEVERE, "Problem deleting OutboundEmailGroup from database.  Will try again in " + (errorRetryDelay / 1000) + " seconds.", e);
+						postpone(Collections.singletonList(group), errorRetryDelay);
+					}
+				}
+				return;
+			}
+
+			List<MxRecord> mxRecords = lookup.mxRecords;
+			List<String> smtpHosts = new ArrayList<String>(mxRecords.size());
+			for (MxRecord mxRecord : mxRecords) {
+				smtpHosts.add(mxRecord.smtpHost);
+			}
 
 			//open SMTP connection
-			SMTPOutboundConnection smtpClient = null;
-			for (String smtpHost : smtpHosts) {
-				try {
-					smtpClient = new SMTPOutboundConnection(hostName, smtpHost, 25);
-					break;
-				} catch (Exception e) {
-					//this SMTP address didn't work, try the next one
-					logger.log(Level.INFO, "Problem connecting to SMTP server \"" + smtpHost + "\".", e);
-				}
+			MxConnector.Result connectResult;
+			try {
+				connectResult = mxConnector.connect(mxRecords);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				postpone(groups, errorRetryDelay);
+				return;
+			}
+			SMTPOutboundConnection smtpClient = connectResult.connection;
+
+			//a server that is reachable, but is telling us to slow down (e.g. "421 Too many connections") has been deferring our emails
+			boolean deferred = !connectResult.deferred.isEmpty();
+			for (String smtpHost : connectResult.deferred) {
+				deferral(smtpHost);
+			}
+
+			//if the SMTP servers are busy with our other connections, then wait for them to free up
+			//this does not count as a delivery attempt
+			if (smtpClient == null && connectResult.busy) {
+				logger.fine("SMTP servers for \"" + host + "\" are at their connection limit.  Will try again in " + (serverBusyRetryDelay / 1000) + " seconds.");
+				postpone(groups, serverBusyRetryDelay);
+				return;
 			}
 
 			//if none of the SMTP addresses worked, then we can't send the email
 			if (smtpClient == null) {
-				logger.info("All SMTP servers down for \"" + host + "\".");
+				if (lookup.failed) {
+					logger.info("Could not look up the SMTP servers for \"" + host + "\".");
+				} else {
+					logger.info("All SMTP servers down for \"" + host + "\".");
+				}
+				if (!deferred && !lookup.failed) {
+					//a deferral means the servers are up, so it shouldn't hold back the host's other emails
+					//a failed DNS lookup says nothing about the servers either
+					circuitBreaker.failure(host);
+				}
 
 				//update each group
+				final List<OutboundEmailGroup> retrying = new ArrayList<OutboundEmailGroup>();
+				List<OutboundEmailGroup> givingUp = new ArrayList<OutboundEmailGroup>();
 				for (OutboundEmailGroup group : groups) {
-					if (group.attempts == 0) {
+					if (group.attempts == 0 || group.firstAttempt == null) {
 						group.firstAttempt = new Date();
+						retrying.add(group);
+					} else if (System.currentTimeMillis() - group.firstAttempt.getTime() > giveUpInterval) {
+						givingUp.add(group);
+					} else {
+						retrying.add(group);
 					}
 					group.attempts++;
 					group.prevAttempt = new Date();
-					group.failures.add("Could not connect to any SMTP servers: " + smtpHosts);
+					group.nextAttempt = nextAttempt(group);
+					if (lookup.failed) {
+						group.failures.add("Could not look up the SMTP servers for host " + host + ".");
+					} else {
+						group.failures.add(smtpHosts.isEmpty() ? "Could not find any SMTP servers for host " + host + "." : "Could not connect to any SMTP servers: " + smtpHosts);
+					}
 				}
 
 				//persist groups to database
-				synchronized (dao) {
-					try {
-						for (OutboundEmailGroup group : groups) {
-							//update the outbound email group in the database
-							dao.updateOutboundEmailGroup(group);
+				final Set<OutboundEmailGroup> lost = new HashSet<OutboundEmailGroup>();
+				try {
+					dao.transaction(new UnitOfWork<Void>() {
+						@Override
+						public Void execute() throws SQLException {
+							for (OutboundEmailGroup group : retrying) {
+								//update the outbound email group in the database
+								if (!dao.updateOutboundEmailGroup(group, leaseOwner)) {
+									lost.add(group);
+								}
+							}
+							return null;
 						}
-						dao.commit();
+					});
+				} catch (SQLException e) {
+					logger.log(Level.SEVERE, "Problem updating OutboundEmailGroups in database.", e);
+				}
+
+				//try again later
+				for (OutboundEmailGroup group : retrying) {
+					if (lost.contains(group)) {
+						leaseLost(group);
+					} else {
+						enqueue(group);
+					}
+				}
+
+				//the emails that have been tried for too long are bounced back to their senders
+				for (OutboundEmailGroup group : givingUp) {
+					try {
+						giveUp(group);
 					} catch (SQLException e) {
-						logger.log(Level.SEVERE, "Problem updating OutboundEmailGroups in database.", e);
-						dao.rollback();
+						logger.log(Level.SEVERE, "Problem deleting OutboundEmailGroup from database.", e);
+						enqueue(group);
 					}
 				}
 
-				synchronized (beingSentGroups) {
-					beingSentGroups.removeAll(groups);
+				for (OutboundEmailGroup group : groups) {
+					beingSent.remove(group.id);
 				}
 
 				//terminate the thread
@@ -357,11 +982,25 @@ public class MailSender {
 			}
 
 			//SMTP connection successfully established
+			circuitBreaker.success(host);
+			String smtpHost = smtpClient.getRemoteHost();
+
+			//how long to wait before sending the emails that this task doesn't get to
+			long unfinishedRetryDelay = errorRetryDelay;
+
 			//so send the email(s)
 			try {
 				for (OutboundEmailGroup group : groups) {
+					//respect the rate limits of the host and the SMTP server
+					long wait = awaitToken(smtpHost);
+					if (wait > 0) {
+						logger.fine("Sending to \"" + host + "\" too quickly.  Will send the remaining emails in " + wait + " ms.");
+						unfinishedRetryDelay = wait;
+						break;
+					}
+
 					boolean lastAttempt = false;
-					if (group.attempts == 0) {
+					if (group.attempts == 0 || group.firstAttempt == null) {
 						group.firstAttempt = new Date();
 					} else {
 						//how long ago the first attempt was
@@ -375,10 +1014,12 @@ public class MailSender {
 					group.attempts++;
 					group.prevAttempt = new Date();
 
-					boolean error = false;
+					boolean error = false, groupDeferred = false;
 					try {
 						//send the email
 						SendResult sendResult = smtpClient.sendEmail(group.recipients, group.email);
+						hostThrottle.success(host);
+						serverThrottle.success(smtpHost);
 
 						if (sendResult.failedAddresses.isEmpty()) {
 							logger.info("Email successfully sent to " + group.recipients);
@@ -411,7 +1052,7 @@ public class MailSender {
 							}
 
 							body.append("\nOriginal message is as follows ===============\n\n");
-							body.append(group.email.data.toData()); //TODO should use raw data, not over-the-wire data
+							body.append(group.email.data.toText());
 							errorEmail.setBody(body.toString());
 
 							sendEmail(errorEmail);
@@ -420,6 +1061,13 @@ public class MailSender {
 						group.failures.add("Problem sending email.\n" + ExceptionUtils.getStackTrace(e));
 						logger.log(Level.INFO, "Cannot send email (attempt # " + group.attempts + ").", e);
 						error = true;
+
+						if (e instanceof SMTPException && ((SMTPException) e).isTransient()) {
+							//the server is telling us to slow down, so hold off on the rest of the emails too
+							groupDeferred = true;
+							deferral(smtpHost);
+							unfinishedRetryDelay = deferralRetryDelay;
+						}
 					}
 
 					if (error) {
@@ -427,80 +1075,49 @@ public class MailSender {
 
 						if (lastAttempt) {
 							//give up trying to send the mail
-							//send an error email to the original sender
-
-							Email errorEmail = new Email();
-							errorEmail.setFrom(errorSender);
-							errorEmail.addTo(group.email.sender);
-							errorEmail.setSubject("Postmaster Notification: Email could not be delivered");
-
-							StringBuilder body = new StringBuilder();
-							body.append("Delivery failed for the following recipient(s): ");
-							for (int i = 0; i < group.recipients.size(); i++) {
-								EmailAddress recipient = group.recipients.get(i);
-								body.append(recipient.getAddress());
-								body.append("\n");
-							}
-							body.append("\nOriginal message is as follows ===============\n\n");
-							body.append(group.email.data.toData()); //TODO should use raw data, not over-the-wire data
-							errorEmail.setBody(body.toString());
-
-							sendEmail(errorEmail);
-
-							synchronized (dao) {
-								try {
-									dao.deleteEmail(group.email);
-									dao.commit();
-								} catch (SQLException e) {
-									dao.rollback();
-									throw e;
-								}
-							}
+							giveUp(group);
 						} else {
 							//update the outbound email group in the database
-							synchronized (dao) {
-								try {
-									dao.updateOutboundEmailGroup(group);
-									dao.commit();
-								} catch (SQLException e) {
-									dao.rollback();
-									throw e;
-								}
+							group.nextAttempt = nextAttempt(group);
+							if (dao.updateOutboundEmailGroup(group, leaseOwner)) {
+								//try again later
+								enqueue(group);
+							} else {
+								leaseLost(group);
 							}
 						}
 					} else {
 						//there were no errors sending the email
 
-						synchronized (dao) {
-							try {
-								//mark the email as having been successfully sent
-								dao.insertOutboxEmail(group.email);
-
+						final OutboundEmailGroup sentGroup = group;
+						boolean deleted = dao.transaction(new UnitOfWork<Boolean>() {
+							@Override
+							public Boolean execute() throws SQLException {
 								//delete it from the outbound queue
-								dao.deleteOutboundEmailGroup(group);
+								if (!dao.deleteOutboundEmailGroup(sentGroup, leaseOwner)) {
+									return false;
+								}
 
-								dao.commit();
-							} catch (SQLException e) {
-								dao.rollback();
-								throw e;
+								//mark the email as having been successfully sent
+								dao.insertOutboxEmail(sentGroup.email);
+								return true;
 							}
+						});
+						if (!deleted) {
+							leaseLost(group);
 						}
 					}
 
-					synchronized (beingSentGroups) {
-						beingSentGroups.remove(group);
+					beingSent.remove(group.id);
+					if (groupDeferred) {
+						break;
 					}
 				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			} catch (Exception e) {
-				logger.log(Level.SEVERE, "Error in SenderThread.", e);
+				logger.log(Level.SEVERE, "Error in DeliveryTask.", e);
 			} finally {
-				//close connection to SMTP server
-				try {
-					smtpClient.close();
-				} catch (Exception e) {
-					logger.log(Level.WARNING, "Problem closing SMTP connection.", e);
-				}
-
 				//log the SMTP communication
 				if (transactionLogFile != null) {
 					synchronized (transactionLogFile) {
@@ -512,10 +1129,169 @@ public class MailSender {
 					}
 				}
 
-				synchronized (beingSentGroups) {
-					beingSentGroups.removeAll(groups);
+				//the connection may be re-used, so start its log over
+				smtpClient.getTransactionLog().clear();
+
+				//return the connection to the pool so it can be used to send more emails to the same SMTP server
+				connectionPool.release(smtpClient);
+				serverThrottle.release(smtpHost);
+
+				//if an error or a rate limit stopped some of the emails from being sent, try them again later
+				List<Integer> unfinished = new ArrayList<Integer>();
+				long retry = System.currentTimeMillis() + unfinishedRetryDelay;
+				for (OutboundEmailGroup group : groups) {
+					if (beingSent.contains(group.id)) {
+						unfinished.add(group.id);
+						queue.put(new QueuedGroup(group, retry));
+					}
+				}
+				if (!unfinished.isEmpty()) {
+					releaseLeases(unfinished);
+					beingSent.removeAll(unfinished);
+				}
+			}
+		}
+
+		/**
+		 * Gives up on sending an email. It is removed from the outbound queue
+		 * and an error email is sent to the original sender.
+		 * @param group the email
+		 * @throws SQLException if there's a problem updating the database
+		 */
+		private void giveUp(final OutboundEmailGroup group) throws SQLException {
+			//the error email is built first, since the email's data may be deleted along with it
+			Email errorEmail = new Email();
+			errorEmail.setFrom(errorSender);
+			errorEmail.addTo(group.email.sender);
+			errorEmail.setSubject("Postmaster Notification: Email could not be delivered");
+
+			StringBuilder body = new StringBuilder();
+			body.append("Delivery failed for the following recipient(s): ");
+			for (int i = 0; i < group.recipients.size(); i++) {
+				EmailAddress recipient = group.recipients.get(i);
+				body.append(recipient.getAddress());
+				body.append("\n");
+			}
+			body.append("\nOriginal message is as follows ===============\n\n");
+			body.append(group.email.data.toText());
+			errorEmail.setBody(body.toString());
+
+			boolean deleted = dao.transaction(new UnitOfWork<Boolean>() {
+				@Override
+				public Boolean execute() throws SQLException {
+					if (!dao.deleteOutboundEmailGroup(group, leaseOwner)) {
+						return false;
+					}
+					//the email is kept if it's still in the outbound queue for other hosts or if it's in the sender's outbox
+					dao.deleteEmailIfUnused(group.email);
+					return true;
 				}
+			});
+
+			if (deleted) {
+				//send an error email to the original sender
+				sendEmail(errorEmail);
+			} else {
+				leaseLost(group);
 			}
 		}
+
+		/**
+		 * Takes a token from the rate limits of both the host and the SMTP
+		 * server, waiting a moment if they are nearly available.
+		 * @param smtpHost the SMTP server
+		 * @return 0 if an email can be sent now or how long to wait before
+		 * sending the next email (in milliseconds)
+		 * @throws InterruptedException if the thread is interrupted while
+		 * waiting
+		 */
+		private long awaitToken(String smtpHost) throws InterruptedException {
+			while (true) {
+				long wait = hostThrottle.tryTake(host);
+				if (wait == 0) {
+					wait = serverThrottle.tryTake(smtpHost);
+					if (wait == 0) {
+						return 0;
+					}
+					hostThrottle.giveBack(host);
+				}
+
+				if (wait > maxThrottleWait) {
+					return wait;
+				}
+				Thread.sleep(wait);
+			}
+		}
+
+		/**
+		 * Slows down sending to the host and to an SMTP server after the
+		 * server deferred an email or connection.
+		 * @param smtpHost the SMTP server
+		 */
+		private void deferral(String smtpHost) {
+			hostThrottle.deferral(host);
+			serverThrottle.deferral(smtpHost);
+		}
+	}
+
+	/**
+	 * An entry in the in-memory outbound queue.
+	 * @author Mike Angstadt [mike.angstadt@gmail.com]
+	 */
+	private static class QueuedGroup implements Delayed {
+		/**
+		 * The ID of the outbound email group.
+		 */
+		private final int id;
+
+		/**
+		 * The host the email is going to.
+		 */
+		private final String host;
+
+		/**
+		 * When the first attempt to send the email was made (in milliseconds
+		 * since the epoch) or 0 if it hasn't been attempted yet.
+		 */
+		private final long firstAttempt;
+
+		/**
+		 * When the email should be sent (in milliseconds since the epoch).
+		 */
+		private final long due;
+
+		/**
+		 * @param group the outbound email group
+		 * @param due when the email should be sent
+		 */
+		public QueuedGroup(OutboundEmailGroup group, long due) {
+			this.id = group.id;
+			this.host = group.host;
+			this.firstAttempt = (group.firstAttempt == null) ? 0 : group.firstAttempt.getTime();
+			this.due = due;
+		}
+
+		/**
+		 * Copies an entry, giving it a new due time.
+		 * @param original the entry to copy
+		 * @param due when the email should be sent
+		 */
+		public QueuedGroup(QueuedGroup original, long due) {
+			this.id = original.id;
+			this.host = original.host;
+			this.firstAttempt = original.firstAttempt;
+			this.due = due;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed that) {
+			long other = ((QueuedGroup) that).due;
+			return (due < other) ? -1 : ((due == other) ? 0 : 1);
+		}
 	}
 }
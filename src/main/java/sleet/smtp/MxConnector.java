@@ -0,0 +1,416 @@
+package sleet.smtp;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Opens a connection to one of an email host's SMTP servers.
+ * <p>
+ * An idle connection from the {@link OutboundConnectionPool} is used if there
+ * is one. Otherwise, new connections are raced against each other, in the
+ * style of "Happy Eyeballs" (RFC 8305): the first attempt is started, and if
+ * it hasn't finished after a short delay (or as soon as it fails), the next
+ * one is started alongside it, and so on. The first attempt to get through
+ * the greeting and EHLO wins and the rest are cancelled. This way, a server
+ * that silently drops connections or never sends its greeting only costs a
+ * short delay instead of tying up the delivery thread until it times out.
+ * </p>
+ * <p>
+ * Only SMTP servers with the same preference indicator are raced against each
+ * other, along with the IP addresses of each server. The servers with the
+ * next preference indicator are only tried once all of these have failed (RFC
+ * 5321, p.70).
+ * </p>
+ * <p>
+ * The IP addresses of an SMTP server are looked up by its first connection
+ * attempt, so a server whose name is slow to resolve only holds up the race
+ * like any other slow attempt. Once they are known, its other addresses join
+ * the race.
+ * </p>
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class MxConnector {
+	private static final Logger logger = Logger.getLogger(MxConnector.class.getName());
+
+	private final OutboundConnectionPool pool;
+	private final DeliveryThrottle serverThrottle;
+	private final Executor executor;
+	private final long attemptDelay;
+
+	/**
+	 * @param pool the connection pool
+	 * @param serverThrottle limits the number of connections to each SMTP
+	 * server
+	 * @param executor runs the connection attempts
+	 * @param attemptDelay how long to wait for a connection attempt before
+	 * starting the next one (in milliseconds)
+	 */
+	public MxConnector(OutboundConnectionPool pool, DeliveryThrottle serverThrottle, Executor executor, long attemptDelay) {
+		this.pool = pool;
+		this.serverThrottle = serverThrottle;
+		this.executor = executor;
+		this.attemptDelay = attemptDelay;
+	}
+
+	/**
+	 * Opens a connection to one of an email host's SMTP servers. If a
+	 * connection is returned, it must be given back to the pool and to the
+	 * server throttle once the caller is done with it.
+	 * @param mxRecords the host's MX records, ordered by preference indicator
+	 * @return the result
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * for the connection attempts
+	 */
+	public Result connect(List<MxRecord> mxRecords) throws InterruptedException {
+		Result result = new Result();
+
+		//re-use an idle connection if there is one
+		for (MxRecord mxRecord : mxRecords) {
+			String smtpHost = mxRecord.smtpHost;
+			if (!serverThrottle.tryAcquire(smtpHost)) {
+				result.busy = true;
+				continue;
+			}
+
+			SMTPOutboundConnection connection = pool.borrowIdle(smtpHost);
+			if (connection != null) {
+				result.connection = connection;
+				return result;
+			}
+			serverThrottle.release(smtpHost);
+		}
+
+		//race new connections, one preference level at a time
+		int i = 0;
+		while (i < mxRecords.size()) {
+			int preference = mxRecords.get(i).preference;
+			List<String> smtpHosts = new ArrayList<String>();
+			while (i < mxRecords.size() && mxRecords.get(i).preference == preference) {
+				smtpHosts.add(mxRecords.get(i).smtpHost);
+				i++;
+			}
+
+			List<Attempt> attempts = new ArrayList<Attempt>(smtpHosts.size());
+			for (String smtpHost : smtpHosts) {
+				attempts.add(new Attempt(smtpHost, result));
+			}
+			result.connection = race(attempts);
+			if (result.connection != null) {
+				return result;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Takes one item from each list at a time until they are all empty.
+	 * @param first the first list
+	 * @param second the second list
+	 * @return the items
+	 */
+	private static <T> List<T> interleave(List<T> first, List<T> second) {
+		List<T> interleaved = new ArrayList<T>(first.size() + second.size());
+		for (int i = 0; i < first.size() || i < second.size(); i++) {
+			if (i < first.size()) {
+				interleaved.add(first.get(i));
+			}
+			if (i < second.size()) {
+				interleaved.add(second.get(i));
+			}
+		}
+		return interleaved;
+	}
+
+	/**
+	 * Runs connection attempts, staggering their start times, until one of
+	 * them succeeds. The attempts for an SMTP server's other IP addresses are
+	 * added to the end of the line as the server's first attempt finds them,
+	 * so the attempts alternate between SMTP servers.
+	 * @param attempts the first connection attempt of each SMTP server
+	 * @return the connection of the attempt that won or null if they all
+	 * failed
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * for the attempts
+	 */
+	private SMTPOutboundConnection race(List<Attempt> attempts) throws InterruptedException {
+		LinkedList<Attempt> waiting = new LinkedList<Attempt>(attempts);
+		BlockingQueue<Attempt> finished = new LinkedBlockingQueue<Attempt>();
+		List<Attempt> started = new ArrayList<Attempt>();
+		Attempt winner = null;
+		try {
+			int running = 0;
+			long startNext = 0;
+			while (!waiting.isEmpty() || running > 0) {
+				if (running == 0) {
+					//nothing is running, so start the next attempt right away
+					start(waiting.poll(), finished, started);
+					running++;
+					startNext = System.currentTimeMillis() + attemptDelay;
+				}
+
+				Attempt attempt;
+				if (waiting.isEmpty()) {
+					attempt = finished.take();
+				} else {
+					long wait = startNext - System.currentTimeMillis();
+					attempt = (wait > 0) ? finished.poll(wait, TimeUnit.MILLISECONDS) : null;
+				}
+
+				if (attempt == null) {
+					//the attempts that are running are taking a while, so start another one alongside them
+					start(waiting.poll(), finished, started);
+					running++;
+					startNext = System.currentTimeMillis() + attemptDelay;
+					continue;
+				}
+
+				if (!attempt.isStarted()) {
+					//an SMTP server's first attempt found another one of its IP addresses
+					waiting.add(attempt);
+					continue;
+				}
+
+				running--;
+				if (attempt.connection != null) {
+					winner = attempt;
+					return attempt.connection;
+				}
+
+				//the attempt failed, so start the next one right away
+				if (!waiting.isEmpty()) {
+					start(waiting.poll(), finished, started);
+					running++;
+					startNext = System.currentTimeMillis() + attemptDelay;
+				}
+			}
+			return null;
+		} finally {
+			for (Attempt attempt : started) {
+				if (attempt != winner) {
+					attempt.cancel();
+				}
+			}
+		}
+	}
+
+	private void start(Attempt attempt, BlockingQueue<Attempt> finished, List<Attempt> started) {
+		attempt.finished = finished;
+		started.add(attempt);
+		executor.execute(attempt);
+	}
+
+	/**
+	 * The outcome of {@link MxConnector#connect}.
+	 */
+	public static class Result {
+		/**
+		 * The connection or null if none of the SMTP servers could be
+		 * connected to.
+		 */
+		public SMTPOutboundConnection connection;
+
+		/**
+		 * True if at least one SMTP server was skipped because the maximum
+		 * number of connections to it are already open.
+		 */
+		public volatile boolean busy;
+
+		/**
+		 * The SMTP servers that deferred the connection (responded to it with
+		 * a 4xx code, such as "421 Too many connections").
+		 */
+		public final List<String> deferred = new CopyOnWriteArrayList<String>();
+	}
+
+	/**
+	 * A connection attempt to one IP address of an SMTP server.
+	 */
+	private class Attempt implements Runnable {
+		private final String smtpHost;
+		private final Result result;
+		private final Socket socket = new Socket();
+
+		/**
+		 * The IP address or null if the attempt has to look up the SMTP
+		 * server's addresses first.
+		 */
+		private InetAddress address;
+
+		/**
+		 * Where the attempt reports itself when it is done (and where the
+		 * first attempt of an SMTP server reports the attempts for the
+		 * server's other IP addresses). Null until it is started.
+		 */
+		private BlockingQueue<Attempt> finished;
+
+		/**
+		 * The connection or null if the attempt failed. Guarded by "this".
+		 */
+		private SMTPOutboundConnection connection;
+
+		/**
+		 * Set when the attempt lost the race. Guarded by "this".
+		 */
+		private boolean cancelled;
+
+		/**
+		 * Creates the first attempt of an SMTP server, which looks up the
+		 * server's IP addresses.
+		 * @param smtpHost the SMTP server
+		 * @param result the result
+		 */
+		public Attempt(String smtpHost, Result result) {
+			this(smtpHost, null, result);
+		}
+
+		/**
+		 * @param smtpHost the SMTP server
+		 * @param address the IP address to connect to
+		 * @param result the result
+		 */
+		public Attempt(String smtpHost, InetAddress address, Result result) {
+			this.smtpHost = smtpHost;
+			this.address = address;
+			this.result = result;
+		}
+
+		/**
+		 * Determines if the attempt has been started. Only called from the
+		 * thread running the race.
+		 * @return true if it was started, false if not
+		 */
+		public boolean isStarted() {
+			return finished != null;
+		}
+
+		@Override
+		public void run() {
+			SMTPOutboundConnection connection = null;
+			try {
+				if (address == null) {
+					address = resolve();
+				}
+				if (address != null) {
+					connection = open();
+				}
+			} finally {
+				synchronized (this) {
+					if (cancelled && connection != null) {
+						//it lost the race, but finished anyway
+						discard(connection);
+						connection = null;
+					}
+					this.connection = connection;
+				}
+				finished.add(this);
+			}
+		}
+
+		/**
+		 * Looks up the SMTP server's IP addresses. The attempts alternate
+		 * between IPv6 and IPv4 addresses, so that a problem with one address
+		 * family doesn't hold up the other. This attempt takes the first
+		 * address and the rest are handed to the race.
+		 * @return the address to connect to or null if the server's name
+		 * could not be resolved
+		 */
+		private InetAddress resolve() {
+			InetAddress addresses[];
+			try {
+				addresses = InetAddress.getAllByName(smtpHost);
+			} catch (UnknownHostException e) {
+				logger.log(Level.INFO, "Could not resolve SMTP server \"" + smtpHost + "\".", e);
+				return null;
+			}
+
+			List<InetAddress> ipv6 = new ArrayList<InetAddress>();
+			List<InetAddress> ipv4 = new ArrayList<InetAddress>();
+			for (InetAddress address : addresses) {
+				if (address instanceof Inet6Address) {
+					ipv6.add(address);
+				} else {
+					ipv4.add(address);
+				}
+			}
+
+			List<InetAddress> interleaved = interleave(ipv6, ipv4);
+			for (InetAddress address : interleaved.subList(1, interleaved.size())) {
+				finished.add(new Attempt(smtpHost, address, result));
+			}
+			return interleaved.get(0);
+		}
+
+		private SMTPOutboundConnection open() {
+			if (!serverThrottle.tryAcquire(smtpHost)) {
+				result.busy = true;
+				return null;
+			}
+
+			if (!pool.reserve(smtpHost)) {
+				serverThrottle.release(smtpHost);
+				result.busy = true;
+				return null;
+			}
+
+			try {
+				return pool.open(smtpHost, address, socket);
+			} catch (SMTPException e) {
+				serverThrottle.release(smtpHost);
+				if (e.isTransient()) {
+					result.deferred.add(smtpHost);
+				}
+				logger.log(Level.INFO, "SMTP server \"" + smtpHost + "\" (" + address.getHostAddress() + ") rejected the connection.", e);
+			} catch (Exception e) {
+				serverThrottle.release(smtpHost);
+				if (!isCancelled()) {
+					logger.log(Level.INFO, "Problem connecting to SMTP server \"" + smtpHost + "\" (" + address.getHostAddress() + ").", e);
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Stops the attempt. If it already succeeded, the connection is
+		 * closed.
+		 */
+		public void cancel() {
+			SMTPOutboundConnection connection;
+			synchronized (this) {
+				cancelled = true;
+				connection = this.connection;
+				this.connection = null;
+			}
+
+			if (connection == null) {
+				//interrupts the attempt if it is still connecting or waiting for the greeting
+				IOUtils.closeQuietly(socket);
+			} else {
+				discard(connection);
+			}
+		}
+
+		private synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		private void discard(SMTPOutboundConnection connection) {
+			pool.discard(connection);
+			serverThrottle.release(smtpHost);
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package sleet.smtp;
+
+/**
+ * Represents an MX record.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class MxRecord implements Comparable<MxRecord> {
+	/**
+	 * The preference indicator.
+	 */
+	public final int preference;
+
+	/**
+	 * The address of the SMTP host.
+	 */
+	public final String smtpHost;
+
+	/**
+	 * How long the record can be cached for (in seconds).
+	 */
+	public final int ttl;
+
+	/**
+	 * @param preference the preference indicator
+	 * @param smtpHost the address of the SMTP host
+	 * @param ttl how long the record can be cached for (in seconds)
+	 */
+	public MxRecord(int preference, String smtpHost, int ttl) {
+		this.preference = preference;
+		this.smtpHost = smtpHost;
+		this.ttl = ttl;
+	}
+
+	@Override
+	public int compareTo(MxRecord that) {
+		return this.preference - that.preference;
+	}
+
+	@Override
+	public String toString() {
+		return preference + " " + smtpHost;
+	}
+}
@@ -2,114 +2,364 @@ package sleet.smtp;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 
 /**
  * Gets the SMTP servers of an email address (the host part of an email address
  * is not always the address of the actual SMTP server).
+ * <p>
+ * Lookups are cached for as long as the TTLs of their MX records allow. Hosts
+ * that do not exist and lookups that fail are cached too, for a shorter time,
+ * so that the DNS server is not asked the same question over and over. If
+ * several threads need the same host at the same time, only one lookup is
+ * made. Hosts that are used often are looked up again in the background
+ * shortly before their records expire, so they never have to wait on DNS.
+ * </p>
+ * <p>
+ * The lookups themselves are done by a {@link MxResolver}, which can be
+ * swapped out (for example, to use a fake DNS server when testing).
+ * </p>
  * @author Mike Angstadt [mike.angstadt@gmail.com]
  */
 public class MxRecordResolver {
 	private static final Logger logger = Logger.getLogger(MxRecordResolver.class.getName());
 
-	private static final Hashtable<String, String> dirContextEnv;
-	static {
-		dirContextEnv = new Hashtable<String, String>();
-		dirContextEnv.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+	/**
+	 * How long to cache hosts that do not exist or that have no MX records (in
+	 * seconds).
+	 */
+	private static final int negativeTtl = 60 * 5;
+
+	/**
+	 * How long to cache lookups that failed (in seconds).
+	 */
+	private static final int failureTtl = 60;
+
+	/**
+	 * A host is refreshed in the background if it is used during this last
+	 * portion of its TTL.
+	 */
+	private static final double refreshAhead = 0.2;
+
+	/**
+	 * The number of times a cached host must be used before it is considered
+	 * popular enough to refresh in the background.
+	 */
+	private static final int popularHits = 3;
+
+	/**
+	 * Expired entries are purged when the cache grows past this size.
+	 */
+	private static final int purgeSize = 10000;
+
+	private final MxResolver resolver;
+
+	/**
+	 * Runs the background lookups.
+	 */
+	private final ExecutorService executor;
+
+	private final ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+
+	/**
+	 * The lookups that are in progress (key = host).
+	 */
+	private final ConcurrentMap<String, FutureTask<CacheEntry>> pending = new ConcurrentHashMap<String, FutureTask<CacheEntry>>();
+
+	/**
+	 * Creates a resolver that uses Java's built-in DNS support.
+	 */
+	public MxRecordResolver() {
+		this(new JndiMxResolver());
 	}
 
 	/**
-	 * Gets the address to the SMTP server of the given email host.
+	 * @param resolver does the actual lookups
+	 */
+	public MxRecordResolver(MxResolver resolver) {
+		this.resolver = resolver;
+		executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "MX resolver " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Gets the addresses of the SMTP servers of the given email host. This
+	 * method blocks if the host is not cached.
 	 * @param host the email host (e.g. "gmail.com")
 	 * @return the SMTP servers of the email host, ordered by preference
 	 * indicator (the servers at the beginning of the list should be tried
-	 * first)
-	 * @see http://www.rgagnon.com/javadetails/java-0452.html
-	 * @see http://stackoverflow.com/questions/9475073/java-sockets-over-the-internet-connectexception-operation-timed-out
+	 * first) or an empty list if the host does not exist or could not be
+	 * looked up
 	 */
-	public static List<String> resolveSmtpServers(String host) {
-		List<String> smtpHosts = new ArrayList<String>();
+	public List<String> resolveSmtpServers(String host) {
+		List<MxRecord> mxRecords = resolveMxRecords(host);
+		List<String> smtpHosts = new ArrayList<String>(mxRecords.size());
+		for (MxRecord mxRecord : mxRecords) {
+			smtpHosts.add(mxRecord.smtpHost);
+		}
+		return smtpHosts;
+	}
 
-		//for testing purposes
-//		if ("mangstadt.dyndns.org".equals(host)) {
-//			host = "localhost";
-//		}
+	/**
+	 * Gets the MX records of the given email host. This method blocks if the
+	 * host is not cached.
+	 * @param host the email host (e.g. "gmail.com")
+	 * @return the MX records, ordered by preference indicator (records with
+	 * the same preference indicator are in random order) or an empty list if
+	 * the host does not exist or could not be looked up. If the host has no MX
+	 * records, then the host itself is returned as the only record.
+	 */
+	public List<MxRecord> resolveMxRecords(String host) {
+		return resolve(host).mxRecords;
+	}
 
-		try {
-			DirContext ictx = new InitialDirContext(dirContextEnv);
-			Attributes attrs = ictx.getAttributes(host, new String[] { "MX" });
-			Attribute mxAttr = attrs.get("MX");
-			if (mxAttr == null || mxAttr.size() == 0) {
-				//there are no MX records, so just use the host name
-				logger.info("No MX records found for host " + host);
-				smtpHosts.add(host);
-			} else {
-				//get the list of SMTP servers, along with their preference indicators
-				List<MxRecord> mxRecords = new ArrayList<MxRecord>(mxAttr.size());
-				for (int i = 0; i < mxAttr.size(); i++) {
-					String mx = (String) mxAttr.get(i);
-					int space = mx.indexOf(' ');
-					int preference = Integer.parseInt(mx.substring(0, space));
-					String server = mx.substring(space + 1);
-					mxRecords.add(new MxRecord(preference, server));
-				}
+	/**
+	 * Gets the MX records of the given email host, along with whether the host
+	 * does not exist or the lookup failed. This method blocks if the host is
+	 * not cached.
+	 * @param host the email host (e.g. "gmail.com")
+	 * @return the result of the lookup
+	 */
+	public Result resolve(String host) {
+		CacheEntry entry = cache.get(host);
+		if (entry == null || entry.isExpired()) {
+			try {
+				entry = lookup(host, false).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new Result(Collections.<MxRecord> emptyList(), false, true);
+			} catch (ExecutionException e) {
+				//should never be thrown, since the lookup task handles its own errors
+				logger.log(Level.SEVERE, "Problem looking up MX records for host " + host + ".", e);
+				return new Result(Collections.<MxRecord> emptyList(), false, true);
+			}
+		} else if (entry.hit()) {
+			lookup(host, true);
+		}
+
+		return new Result(entry.getMxRecords(), entry.hostNotFound, entry.failed);
+	}
 
-				//RPC 5321 p.70 - if there are multiple servers with identical preference indicators, then spread the load evenly amongst all of them by randomizing which one is chosen
-				//shuffling the list before sorting should accomplish this
-				Collections.shuffle(mxRecords);
+	/**
+	 * Starts looking up a host in the background if it is not cached, so that
+	 * the result is ready by the time it's needed.
+	 * @param host the email host (e.g. "gmail.com")
+	 */
+	public void prefetch(String host) {
+		CacheEntry entry = cache.get(host);
+		if (entry == null || entry.isExpired()) {
+			lookup(host, true);
+		}
+	}
 
-				//sort the SMTP servers by preference indicator ascending
-				//RPC 5321 p.70 - the server with the lowest preference indicator should be tried first
-				Collections.sort(mxRecords);
+	/**
+	 * Stops the background lookup threads.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
 
-				for (MxRecord mxRecord : mxRecords) {
-					smtpHosts.add(mxRecord.smtpHost);
+	/**
+	 * Looks up a host, or joins the lookup that is already in progress.
+	 * @param host the email host
+	 * @param async true to do the lookup on a background thread, false to do
+	 * it on the current thread
+	 * @return the lookup
+	 */
+	private FutureTask<CacheEntry> lookup(final String host, boolean async) {
+		final FutureTask<CacheEntry> task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+			@Override
+			public CacheEntry call() {
+				CacheEntry entry = query(host);
+				cache.put(host, entry);
+				if (cache.size() > purgeSize) {
+					purgeExpired();
 				}
+				return entry;
+			}
+		});
+
+		FutureTask<CacheEntry> existing = pending.putIfAbsent(host, task);
+		if (existing != null) {
+			return existing;
+		}
 
-				logger.info("SMTP server(s) for host " + host + " are: " + smtpHosts);
+		Runnable runnable = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.run();
+				} finally {
+					pending.remove(host, task);
+				}
 			}
+		};
+
+		if (async) {
+			executor.execute(runnable);
+		} else {
+			runnable.run();
+		}
+		return task;
+	}
+
+	/**
+	 * Asks the {@link MxResolver} for the MX records of a host.
+	 * @param host the email host
+	 * @return the cache entry
+	 */
+	private CacheEntry query(String host) {
+		List<MxRecord> mxRecords;
+		try {
+			mxRecords = resolver.resolve(host);
+		} catch (NameNotFoundException e) {
+			logger.info("Host " + host + " does not exist.");
+			return new CacheEntry(Collections.<MxRecord> emptyList(), negativeTtl, true, false);
 		} catch (NamingException e) {
-			smtpHosts.add(host);
+			logger.log(Level.WARNING, "Problem looking up MX records for host " + host + ".", e);
+			return new CacheEntry(Collections.<MxRecord> emptyList(), failureTtl, false, true);
 		}
 
-		return smtpHosts;
+		if (mxRecords.isEmpty()) {
+			//RFC 5321 p.69 - if there are no MX records, then the host itself is the SMTP server
+			logger.info("No MX records found for host " + host);
+			return new CacheEntry(Collections.singletonList(new MxRecord(0, host, negativeTtl)), negativeTtl);
+		}
+
+		//the records can only be cached for as long as the one with the shortest TTL
+		int ttl = Integer.MAX_VALUE;
+		for (MxRecord mxRecord : mxRecords) {
+			ttl = Math.min(ttl, mxRecord.ttl);
+		}
+
+		logger.info("MX record(s) for host " + host + " are: " + mxRecords);
+		return new CacheEntry(new ArrayList<MxRecord>(mxRecords), ttl);
+	}
+
+	private void purgeExpired() {
+		Iterator<CacheEntry> it = cache.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isExpired()) {
+				it.remove();
+			}
+		}
 	}
 
 	/**
-	 * Represents an MX record.
-	 * @author Mike Angstadt [mike.angstadt@gmail.com]
+	 * The result of a lookup.
 	 */
-	private static class MxRecord implements Comparable<MxRecord> {
+	public static class Result {
 		/**
-		 * The preference indicator.
+		 * The MX records, ordered by preference indicator (empty if the host
+		 * does not exist or the lookup failed).
 		 */
-		public final int preference;
+		public final List<MxRecord> mxRecords;
 
 		/**
-		 * The address of the SMTP host.
+		 * True if the DNS server said that the host does not exist. This is a
+		 * permanent error, so there is no point in trying again.
 		 */
-		public final String smtpHost;
+		public final boolean hostNotFound;
 
 		/**
-		 * @param preference the preference indicator
-		 * @param smtpHost the address of the SMTP host
+		 * True if the lookup failed for some other reason (for example, the
+		 * DNS server could not be reached). This is a temporary error, so the
+		 * lookup should be tried again later.
 		 */
-		public MxRecord(int preference, String smtpHost) {
-			this.preference = preference;
-			this.smtpHost = smtpHost;
+		public final boolean failed;
+
+		public Result(List<MxRecord> mxRecords, boolean hostNotFound, boolean failed) {
+			this.mxRecords = mxRecords;
+			this.hostNotFound = hostNotFound;
+			this.failed = failed;
 		}
+	}
+
+	/**
+	 * A cached lookup.
+	 */
+	private static class CacheEntry {
+		private final List<MxRecord> mxRecords;
+		private final boolean hostNotFound;
+		private final boolean failed;
+		private final long expires;
+		private final long refreshAfter;
+		private final AtomicInteger hits = new AtomicInteger();
+
+		/**
+		 * @param mxRecords the MX records
+		 * @param ttl how long the entry can be cached (in seconds)
+		 */
+		public CacheEntry(List<MxRecord> mxRecords, int ttl) {
+			this(mxRecords, ttl, false, false);
+		}
+
+		/**
+		 * @param mxRecords the MX records
+		 * @param ttl how long the entry can be cached (in seconds)
+		 * @param hostNotFound true if the host does not exist
+		 * @param failed true if the lookup failed
+		 */
+		public CacheEntry(List<MxRecord> mxRecords, int ttl, boolean hostNotFound, boolean failed) {
+			this.mxRecords = mxRecords;
+			this.hostNotFound = hostNotFound;
+			this.failed = failed;
+
+			long now = System.currentTimeMillis();
+			long ttlMillis = ttl * 1000L;
+			expires = now + ttlMillis;
+			refreshAfter = expires - (long) (ttlMillis * refreshAhead);
+		}
+
+		public boolean isExpired() {
+			return System.currentTimeMillis() >= expires;
+		}
+
+		/**
+		 * Records that the entry was used.
+		 * @return true if the entry should be refreshed in the background,
+		 * false if not
+		 */
+		public boolean hit() {
+			int count = hits.incrementAndGet();
+			return count >= popularHits && System.currentTimeMillis() >= refreshAfter;
+		}
+
+		public List<MxRecord> getMxRecords() {
+			List<MxRecord> sorted = new ArrayList<MxRecord>(mxRecords);
+
+			//RPC 5321 p.70 - if there are multiple servers with identical preference indicators, then spread the load evenly amongst all of them by randomizing which one is chosen
+			//shuffling the list before sorting should accomplish this
+			Collections.shuffle(sorted);
+
+			//sort the SMTP servers by preference indicator ascending
+			//RPC 5321 p.70 - the server with the lowest preference indicator should be tried first
+			Collections.sort(sorted);
 
-		@Override
-		public int compareTo(MxRecord that) {
-			return this.preference - that.preference;
+			return sorted;
 		}
 	}
 }
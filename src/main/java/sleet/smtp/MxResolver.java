@@ -0,0 +1,24 @@
+package sleet.smtp;
+
+import java.util.List;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+/**
+ * Looks up the MX records of an email host. Implementations do not have to do
+ * any caching--that is handled by {@link MxRecordResolver}.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public interface MxResolver {
+	/**
+	 * Looks up the MX records of an email host.
+	 * @param host the email host (e.g. "gmail.com")
+	 * @return the MX records (in any order) or an empty list if the host has
+	 * no MX records
+	 * @throws NameNotFoundException if the host does not exist
+	 * @throws NamingException if the lookup failed for some other reason (for
+	 * example, the DNS server could not be reached)
+	 */
+	List<MxRecord> resolve(String host) throws NamingException;
+}
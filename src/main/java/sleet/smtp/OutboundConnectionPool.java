@@ -0,0 +1,349 @@
+package sleet.smtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps connections to remote SMTP servers open after an email has been sent,
+ * so that the next email going to the same server does not have to pay for a
+ * new TCP connection, greeting, and EHLO. Idle connections are kept per SMTP
+ * server address. A connection is closed once it has been idle for too long or
+ * once it has sent a certain number of emails, and it is checked with a RSET
+ * before it is re-used.
+ * <p>
+ * The pool also limits how many connections can be open to each SMTP server at
+ * once, so that a large backlog of emails does not flood a server with
+ * connections (which can get our server blocklisted).
+ * </p>
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class OutboundConnectionPool {
+	private static final Logger logger = Logger.getLogger(OutboundConnectionPool.class.getName());
+
+	private final String hostName;
+	private final int port;
+	private final long idleTimeout;
+	private final int maxTransactions;
+	private final int maxIdlePerServer;
+	private final int maxPerServer;
+	private final SMTPTimeouts timeouts;
+
+	/**
+	 * The idle connections of each SMTP server (key = SMTP server address). The
+	 * most recently used connection is at the front of each list.
+	 */
+	private final Map<String, LinkedList<IdleConnection>> idle = new HashMap<String, LinkedList<IdleConnection>>();
+
+	/**
+	 * The number of connections that are open to each SMTP server, both idle
+	 * and in use (key = SMTP server address). Guarded by {@link #idle}.
+	 */
+	private final Map<String, Integer> open = new HashMap<String, Integer>();
+
+	/**
+	 * @param hostName the host name of our server
+	 * @param port the port the SMTP servers listen on
+	 * @param idleTimeout how long a connection can sit unused before it is
+	 * closed (in milliseconds)
+	 * @param maxTransactions the number of emails a connection can send before
+	 * it is closed
+	 * @param maxIdlePerServer the maximum number of idle connections to keep
+	 * for each SMTP server
+	 * @param maxPerServer the maximum number of connections that can be open to
+	 * each SMTP server at once
+	 */
+	public OutboundConnectionPool(String hostName, int port, long idleTimeout, int maxTransactions, int maxIdlePerServer, int maxPerServer) {
+		this(hostName, port, idleTimeout, maxTransactions, maxIdlePerServer, maxPerServer, new SMTPTimeouts());
+	}
+
+	/**
+	 * @param hostName the host name of our server
+	 * @param port the port the SMTP servers listen on
+	 * @param idleTimeout how long a connection can sit unused before it is
+	 * closed (in milliseconds)
+	 * @param maxTransactions the number of emails a connection can send before
+	 * it is closed
+	 * @param maxIdlePerServer the maximum number of idle connections to keep
+	 * for each SMTP server
+	 * @param maxPerServer the maximum number of connections that can be open to
+	 * each SMTP server at once
+	 * @param timeouts how long new connections wait on the SMTP servers
+	 */
+	public OutboundConnectionPool(String hostName, int port, long idleTimeout, int maxTransactions, int maxIdlePerServer, int maxPerServer, SMTPTimeouts timeouts) {
+		this.hostName = hostName;
+		this.port = port;
+		this.idleTimeout = idleTimeout;
+		this.maxTransactions = maxTransactions;
+		this.maxIdlePerServer = maxIdlePerServer;
+		this.maxPerServer = maxPerServer;
+		this.timeouts = timeouts;
+	}
+
+	/**
+	 * Gets a connection to an SMTP server, re-using an idle one if possible.
+	 * The connection must be given back with {@link #release}.
+	 * @param smtpHost the address of the SMTP server
+	 * @return the connection or null if the maximum number of connections to
+	 * the server are already in use
+	 * @throws SMTPException if a new connection was rejected by the server
+	 * @throws IOException if a new connection could not be opened
+	 */
+	public SMTPOutboundConnection borrow(String smtpHost) throws SMTPException, IOException {
+		SMTPOutboundConnection connection = borrowIdle(smtpHost);
+		if (connection != null) {
+			return connection;
+		}
+
+		if (!reserve(smtpHost)) {
+			return null;
+		}
+
+		InetAddress address;
+		try {
+			address = InetAddress.getByName(smtpHost);
+		} catch (IOException e) {
+			closed(smtpHost);
+			throw e;
+		}
+		return open(smtpHost, address, new Socket());
+	}
+
+	/**
+	 * Gets an idle connection to an SMTP server. The connection must be given
+	 * back with {@link #release}.
+	 * @param smtpHost the address of the SMTP server
+	 * @return the connection or null if there are no idle connections to the
+	 * server
+	 */
+	public SMTPOutboundConnection borrowIdle(String smtpHost) {
+		while (true) {
+			IdleConnection entry;
+			synchronized (idle) {
+				LinkedList<IdleConnection> connections = idle.get(smtpHost);
+				entry = (connections == null) ? null : connections.poll();
+			}
+
+			if (entry == null) {
+				return null;
+			}
+
+			if (entry.isExpired()) {
+				close(entry.connection);
+				continue;
+			}
+
+			//make sure the connection is still alive and that no mail transaction is in progress
+			try {
+				entry.connection.reset();
+				return entry.connection;
+			} catch (Exception e) {
+				logger.log(Level.FINE, "Discarding stale connection to SMTP server \"" + smtpHost + "\".", e);
+				close(entry.connection);
+			}
+		}
+	}
+
+	/**
+	 * Reserves a slot for a new connection to an SMTP server. The slot must
+	 * then be used with {@link #open} or given back with {@link #unreserve}.
+	 * @param smtpHost the address of the SMTP server
+	 * @return true if the slot was reserved, false if the maximum number of
+	 * connections to the server are already open
+	 */
+	public boolean reserve(String smtpHost) {
+		synchronized (idle) {
+			int count = openCount(smtpHost);
+			if (count >= maxPerServer) {
+				return false;
+			}
+			open.put(smtpHost, count + 1);
+			return true;
+		}
+	}
+
+	/**
+	 * Gives back a slot that was reserved with {@link #reserve}, but not used.
+	 * @param smtpHost the address of the SMTP server
+	 */
+	public void unreserve(String smtpHost) {
+		closed(smtpHost);
+	}
+
+	/**
+	 * Opens a new connection using a slot that was reserved with
+	 * {@link #reserve}. The slot is given back if the connection can't be
+	 * opened. The connection must be given back with {@link #release}.
+	 * @param smtpHost the address of the SMTP server
+	 * @param address the IP address of the SMTP server
+	 * @param socket the unconnected socket to use (closing it from another
+	 * thread cancels the connection attempt)
+	 * @return the connection
+	 * @throws SMTPException if the connection was rejected by the server
+	 * @throws IOException if the connection could not be opened
+	 */
+	public SMTPOutboundConnection open(String smtpHost, InetAddress address, Socket socket) throws SMTPException, IOException {
+		SMTPOutboundConnection connection = null;
+		try {
+			connection = new SMTPOutboundConnection(hostName, smtpHost, socket, new InetSocketAddress(address, port), timeouts);
+			return connection;
+		} finally {
+			if (connection == null) {
+				//the connection could not be opened, so give up the slot
+				closed(smtpHost);
+			}
+		}
+	}
+
+	/**
+	 * Gives a connection back to the pool. The connection is closed if it
+	 * can't or shouldn't be re-used.
+	 * @param connection the connection
+	 */
+	public void release(SMTPOutboundConnection connection) {
+		if (connection.isBroken() || connection.getTransactionCount() >= maxTransactions) {
+			close(connection);
+			return;
+		}
+
+		SMTPOutboundConnection evicted = null;
+		synchronized (idle) {
+			LinkedList<IdleConnection> connections = idle.get(connection.getRemoteHost());
+			if (connections == null) {
+				connections = new LinkedList<IdleConnection>();
+				idle.put(connection.getRemoteHost(), connections);
+			}
+
+			connections.addFirst(new IdleConnection(connection));
+			if (connections.size() > maxIdlePerServer) {
+				evicted = connections.removeLast().connection;
+			}
+		}
+
+		if (evicted != null) {
+			close(evicted);
+		}
+	}
+
+	/**
+	 * Closes the connections that have been idle for too long.
+	 */
+	public void evictIdle() {
+		List<SMTPOutboundConnection> expired = new ArrayList<SMTPOutboundConnection>();
+		synchronized (idle) {
+			Iterator<LinkedList<IdleConnection>> it = idle.values().iterator();
+			while (it.hasNext()) {
+				LinkedList<IdleConnection> connections = it.next();
+				Iterator<IdleConnection> it2 = connections.iterator();
+				while (it2.hasNext()) {
+					IdleConnection entry = it2.next();
+					if (entry.isExpired()) {
+						expired.add(entry.connection);
+						it2.remove();
+					}
+				}
+
+				if (connections.isEmpty()) {
+					it.remove();
+				}
+			}
+		}
+
+		for (SMTPOutboundConnection connection : expired) {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Closes a connection that is not going to be used after all.
+	 * @param connection the connection
+	 */
+	public void discard(SMTPOutboundConnection connection) {
+		close(connection);
+	}
+
+	/**
+	 * Closes all idle connections.
+	 */
+	public void close() {
+		List<SMTPOutboundConnection> connections = new ArrayList<SMTPOutboundConnection>();
+		synchronized (idle) {
+			for (LinkedList<IdleConnection> list : idle.values()) {
+				for (IdleConnection entry : list) {
+					connections.add(entry.connection);
+				}
+			}
+			idle.clear();
+		}
+
+		for (SMTPOutboundConnection connection : connections) {
+			close(connection);
+		}
+	}
+
+	/**
+	 * Gets the number of connections that are open to an SMTP server, both
+	 * idle and in use.
+	 * @param smtpHost the address of the SMTP server
+	 * @return the number of connections
+	 */
+	public int getOpenCount(String smtpHost) {
+		synchronized (idle) {
+			return openCount(smtpHost);
+		}
+	}
+
+	private int openCount(String smtpHost) {
+		Integer count = open.get(smtpHost);
+		return (count == null) ? 0 : count;
+	}
+
+	/**
+	 * Frees up the slot that a connection was using.
+	 * @param smtpHost the address of the SMTP server
+	 */
+	private void closed(String smtpHost) {
+		synchronized (idle) {
+			int count = openCount(smtpHost) - 1;
+			if (count <= 0) {
+				open.remove(smtpHost);
+			} else {
+				open.put(smtpHost, count);
+			}
+		}
+	}
+
+	private void close(SMTPOutboundConnection connection) {
+		closed(connection.getRemoteHost());
+		try {
+			connection.close();
+		} catch (Exception e) {
+			logger.log(Level.FINE, "Problem closing SMTP connection.", e);
+		}
+	}
+
+	/**
+	 * A connection that is waiting to be re-used.
+	 */
+	private class IdleConnection {
+		private final SMTPOutboundConnection connection;
+		private final long since = System.currentTimeMillis();
+
+		public IdleConnection(SMTPOutboundConnection connection) {
+			this.connection = connection;
+		}
+
+		public boolean isExpired() {
+			return System.currentTimeMillis() - since > idleTimeout;
+		}
+	}
+}
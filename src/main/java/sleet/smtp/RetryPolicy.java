@@ -0,0 +1,16 @@
+package sleet.smtp;
+
+/**
+ * Decides how long to wait before trying to send an email again after an
+ * attempt failed.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public interface RetryPolicy {
+	/**
+	 * Gets how long to wait before the next attempt.
+	 * @param attempts the number of attempts that have been made so far (1
+	 * after the first failure)
+	 * @return the delay in milliseconds
+	 */
+	long getRetryDelay(int attempts);
+}
@@ -7,13 +7,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import sleet.LineCodec;
 import sleet.TransactionLog;
 /**
  * Interface that an SMTP client uses to communicate to the SMTP server.
@@ -53,8 +56,8 @@ public class SMTPClientSocket {
 	 * @throws IOException
 	 */
 	public SMTPClientSocket(InputStream in, OutputStream out) throws IOException {
-		fromServer = new BufferedReader(new InputStreamReader(in));
-		toServer = new PrintWriter(out);
+		fromServer = new BufferedReader(new InputStreamReader(in, LineCodec.charset));
+		toServer = new PrintWriter(new OutputStreamWriter(out, LineCodec.charset));
 		transactionLog = new TransactionLog();
 	}
 
@@ -95,6 +98,53 @@ public class SMTPClientSocket {
 		return send("RSET");
 	}
 
+	/**
+	 * Sends a MAIL command, a RCPT command for each recipient, and a DATA
+	 * command all at once, without waiting for the response to each one
+	 * (PIPELINING extension, see RFC 2920). This should only be called if the
+	 * server advertised the PIPELINING extension in its EHLO response.
+	 * @param from the sender
+	 * @param recipients the recipients
+	 * @return the server responses, in the order the commands were sent (the
+	 * MAIL response first and the DATA response last)
+	 * @throws IOException
+	 */
+	public List<SMTPResponse> pipelineTransaction(String from, List<String> recipients) throws IOException {
+		List<String> commands = new ArrayList<String>(recipients.size() + 2);
+		commands.add("MAIL FROM:<" + from + ">");
+		for (String recipient : recipients) {
+			commands.add("RCPT TO:<" + recipient + ">");
+		}
+		commands.add("DATA");
+		return pipeline(commands);
+	}
+
+	/**
+	 * Sends several commands at once and then reads the responses (PIPELINING
+	 * extension, see RFC 2920).
+	 * @param commands the commands to send
+	 * @return the server responses, in the order the commands were sent
+	 * @throws IOException
+	 */
+	public List<SMTPResponse> pipeline(List<String> commands) throws IOException {
+		if (!connected) {
+			throw new IllegalStateException("Call connect() first.");
+		}
+
+		for (String command : commands) {
+			transactionLog.client(command);
+			toServer.print(command);
+			toServer.print(CRLF);
+		}
+		toServer.flush();
+
+		List<SMTPResponse> responses = new ArrayList<SMTPResponse>(commands.size());
+		for (int i = 0; i < commands.size(); i++) {
+			responses.add(receive());
+		}
+		return responses;
+	}
+
 	/**
 	 * Sends the "DATA" command.
 	 * @return the SMTP server response
@@ -119,6 +169,52 @@ public class SMTPClientSocket {
 		return send(data + CRLF + ".");
 	}
 
+	/**
+	 * Sends the email data by streaming it from a reader, so that the email
+	 * never has to be held in memory as one large string. This must be called
+	 * *after* {@link #data()} has been called. The data is sent exactly as it
+	 * is read, so it must already be sanitized for sending over the wire (see
+	 * {@link #data(String)}).
+	 * @param data the <b>already sanitized</b> data. It should not include
+	 * the terminating ".".
+	 * @return the SMTP server response
+	 * @throws IOException
+	 */
+	public SMTPResponse data(Reader data) throws IOException {
+		if (!connected) {
+			throw new IllegalStateException("Call connect() first.");
+		}
+
+		long length = 0;
+		char buffer[] = new char[8192];
+		int read;
+		while ((read = data.read(buffer)) != -1) {
+			toServer.write(buffer, 0, read);
+			length += read;
+		}
+		toServer.print(CRLF + "." + CRLF);
+		toServer.flush();
+		if (toServer.checkError()) {
+			throw new IOException("Problem sending email data.");
+		}
+
+		transactionLog.client("<" + length + " characters of email data>");
+		transactionLog.client(".");
+		return receive();
+	}
+
+	/**
+	 * Sends the "." line that terminates the email data, without sending any
+	 * data. This must be called *after* {@link #data()} has been called. It is
+	 * used to end a transaction whose pipelined DATA command was accepted even
+	 * though all of the recipients were rejected (RFC 2920 p.5).
+	 * @return the SMTP server response
+	 * @throws IOException
+	 */
+	public SMTPResponse dataEnd() throws IOException {
+		return send(".");
+	}
+
 	public SMTPResponse vrfy(String address) throws IOException {
 		return send("VRFY " + address);
 	}
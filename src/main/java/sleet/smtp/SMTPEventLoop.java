@@ -0,0 +1,349 @@
+package sleet.smtp;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drives many SMTP sessions from a single thread using non-blocking I/O. Each
+ * client connection is registered with this loop's {@link Selector} and its
+ * {@link SMTPSession} is stored in the key's attachment, so an idle connection
+ * costs nothing more than the session object and its codec.
+ * <p>
+ * The loop's thread only does the socket I/O. Handling the commands can block
+ * (database queries, writing large emails to disk, queuing emails for
+ * sending), so the lines that are received are handed to a worker thread. The
+ * loop stops reading from the connection until the worker is done, and then
+ * writes the responses.
+ * </p>
+ * <p>
+ * Connections whose clients have not sent or accepted any data for longer
+ * than the idle timeout are closed, so that abandoned connections (or clients
+ * that trickle in data as slowly as possible) don't stay open forever.
+ * </p>
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class SMTPEventLoop implements Runnable {
+	private static final Logger logger = Logger.getLogger(SMTPEventLoop.class.getName());
+
+	private final SMTPConnectionListener listener;
+	private final Selector selector;
+
+	/**
+	 * How long a connection can go without any data being sent or received
+	 * before it is closed (in milliseconds), or zero for no limit.
+	 */
+	private final long idleTimeout;
+
+	/**
+	 * How often the connections are checked for the idle timeout (in
+	 * milliseconds).
+	 */
+	private final long idleCheckInterval;
+
+	/**
+	 * When the connections should next be checked for the idle timeout.
+	 */
+	private long nextIdleCheck;
+
+	/**
+	 * Runs the sessions' commands.
+	 */
+	private final Executor workers;
+
+	/**
+	 * Connections that were accepted by the listener, but have not been
+	 * registered with the selector yet (channels must be registered from the
+	 * thread that is selecting).
+	 */
+	private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+
+	/**
+	 * Connections whose received lines have been handled by a worker thread,
+	 * but whose responses have not been written yet.
+	 */
+	private final Queue<Processed> processed = new ConcurrentLinkedQueue<Processed>();
+
+	/**
+	 * @param listener the listener that accepts the connections
+	 * @param workers runs the sessions' commands
+	 * @param idleTimeout how long a connection can go without any data being
+	 * sent or received before it is closed (in milliseconds), or zero for no
+	 * limit
+	 * @throws IOException if the selector could not be opened
+	 */
+	public SMTPEventLoop(SMTPConnectionListener listener, Executor workers, long idleTimeout) throws IOException {
+		this.listener = listener;
+		this.workers = workers;
+		this.idleTimeout = idleTimeout;
+		idleCheckInterval = Math.min(Math.max(idleTimeout / 10, 100), 10000);
+		nextIdleCheck = System.currentTimeMillis() + idleCheckInterval;
+		selector = Selector.open();
+	}
+
+	/**
+	 * Hands a newly accepted connection over to this loop. This method can be
+	 * called from any thread.
+	 * @param channel the connection
+	 */
+	public void register(SocketChannel channel) {
+		newChannels.add(channel);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				if (idleTimeout > 0) {
+					selector.select(Math.max(nextIdleCheck - System.currentTimeMillis(), 1));
+				} else {
+					selector.select();
+				}
+			} catch (IOException e) {
+				logger.log(Level.SEVERE, "SMTP event loop terminated.", e);
+				return;
+			}
+
+			registerNewChannels();
+			resumeProcessedSessions();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				Connection connection = (Connection) key.attachment();
+				SMTPSession session = connection.session;
+				try {
+					if (key.isReadable()) {
+						connection.lastActivity = System.currentTimeMillis();
+						read(key, session);
+					} else if (key.isWritable()) {
+						connection.lastActivity = System.currentTimeMillis();
+						write(key, session);
+					}
+				} catch (IOException e) {
+					logger.log(Level.INFO, "SMTP connection error.", e);
+					close(key, session);
+				} catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "SMTP error.", e);
+					close(key, session);
+				}
+			}
+
+			if (idleTimeout > 0 && System.currentTimeMillis() >= nextIdleCheck) {
+				closeIdleConnections();
+				nextIdleCheck = System.currentTimeMillis() + idleCheckInterval;
+			}
+		}
+	}
+
+	/**
+	 * Closes the connections whose clients have not sent or accepted any data
+	 * for longer than the idle timeout. Connections whose commands are being
+	 * handled by a worker thread are waiting on this server, not on the client,
+	 * so they are left alone.
+	 */
+	private void closeIdleConnections() {
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : selector.keys()) {
+			if (!key.isValid()) {
+				continue;
+			}
+
+			int interestOps = key.interestOps();
+			if (interestOps == 0) {
+				continue;
+			}
+
+			Connection connection = (Connection) key.attachment();
+			if (now - connection.lastActivity <= idleTimeout) {
+				continue;
+			}
+
+			SMTPSession session = connection.session;
+			SMTPServerSocket serverSocket = session.getServerSocket();
+			logger.info("SMTP connection with " + session.getRemoteAddress().getHostAddress() + " timed out.");
+			if (interestOps == SelectionKey.OP_READ) {
+				//let the client know why, if it's still listening
+				serverSocket.sendResponse(421, "Idle timeout, closing connection.");
+				try {
+					serverSocket.flush((SocketChannel) key.channel());
+				} catch (IOException e) {
+					//ignore
+				}
+			} else {
+				serverSocket.getTransactionLog().server("<client not accepting data, closing connection>");
+			}
+			close(key, session);
+		}
+	}
+
+	private void registerNewChannels() {
+		SocketChannel channel;
+		while ((channel = newChannels.poll()) != null) {
+			SMTPSession session = listener.createSession(channel.socket().getInetAddress());
+			try {
+				channel.configureBlocking(false);
+				SelectionKey key = channel.register(selector, 0, new Connection(session));
+				session.start();
+				write(key, session);
+			} catch (ClosedChannelException e) {
+				listener.sessionClosed(session);
+			} catch (IOException e) {
+				logger.log(Level.INFO, "SMTP connection error.", e);
+				try {
+					channel.close();
+				} catch (IOException e2) {
+					//ignore
+				}
+				listener.sessionClosed(session);
+			}
+		}
+	}
+
+	/**
+	 * Writes the responses of the sessions whose lines have been handled by a
+	 * worker thread and starts reading from them again.
+	 */
+	private void resumeProcessedSessions() {
+		Processed next;
+		while ((next = processed.poll()) != null) {
+			SelectionKey key = next.key;
+			Connection connection = (Connection) key.attachment();
+			SMTPSession session = connection.session;
+
+			//the client's idle time starts once the responses are sent
+			connection.lastActivity = System.currentTimeMillis();
+			try {
+				if (next.terminated) {
+					session.getServerSocket().getTransactionLog().client("<client terminated connection>");
+					close(key, session);
+					continue;
+				}
+
+				write(key, session);
+			} catch (IOException e) {
+				logger.log(Level.INFO, "SMTP connection error.", e);
+				close(key, session);
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "SMTP error.", e);
+				close(key, session);
+			}
+		}
+	}
+
+	/**
+	 * Reads everything the client has sent so far (until the session's input
+	 * buffer is full) before processing it. This way, all of the commands in a
+	 * pipelined batch are handled together and their responses go out in one
+	 * write, even if the batch arrived in several TCP segments.
+	 */
+	private void read(final SelectionKey key, final SMTPSession session) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		SMTPServerSocket serverSocket = session.getServerSocket();
+
+		boolean terminated = false;
+		while (true) {
+			int read = serverSocket.read(channel);
+			if (read == -1) {
+				terminated = true;
+				break;
+			}
+			if (read == 0) {
+				break;
+			}
+		}
+
+		//stop reading from the connection while a worker thread handles the lines
+		//the session is only touched by one thread at a time
+		key.interestOps(0);
+		final boolean clientTerminated = terminated;
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					session.process();
+				} finally {
+					processed.add(new Processed(key, clientTerminated));
+					selector.wakeup();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the session's queued responses. If the client is not accepting
+	 * data fast enough, then the loop stops reading from the connection until
+	 * the responses have been written.
+	 */
+	private void write(SelectionKey key, SMTPSession session) throws IOException {
+		SocketChannel channel = (SocketChannel) key.channel();
+		if (!session.getServerSocket().flush(channel)) {
+			key.interestOps(SelectionKey.OP_WRITE);
+			return;
+		}
+
+		if (session.isClosed()) {
+			close(key, session);
+			return;
+		}
+
+		//free the memory used by a large burst of data while the client is idle
+		session.getServerSocket().trim();
+		key.interestOps(SelectionKey.OP_READ);
+	}
+
+	private void close(SelectionKey key, SMTPSession session) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Problem closing socket.", e);
+		}
+		listener.sessionClosed(session);
+	}
+
+	/**
+	 * The attachment of a connection's selection key.
+	 */
+	private static class Connection {
+		private final SMTPSession session;
+
+		/**
+		 * When the client last sent or accepted data.
+		 */
+		private long lastActivity = System.currentTimeMillis();
+
+		public Connection(SMTPSession session) {
+			this.session = session;
+		}
+	}
+
+	/**
+	 * A connection whose received lines have been handled by a worker
+	 * thread.
+	 */
+	private static class Processed {
+		private final SelectionKey key;
+
+		/**
+		 * True if the client closed the connection after sending the lines.
+		 */
+		private final boolean terminated;
+
+		public Processed(SelectionKey key, boolean terminated) {
+			this.key = key;
+			this.terminated = terminated;
+		}
+	}
+}
@@ -6,7 +6,38 @@ package sleet.smtp;
  */
 @SuppressWarnings("serial")
 public class SMTPException extends RuntimeException {
+	private final int statusCode;
+
 	public SMTPException(String msg){
+		this(msg, 0);
+	}
+
+	/**
+	 * @param msg the exception message
+	 * @param statusCode the status code of the SMTP response that caused the
+	 * exception
+	 */
+	public SMTPException(String msg, int statusCode){
 		super(msg);
+		this.statusCode = statusCode;
+	}
+
+	/**
+	 * Gets the status code of the SMTP response that caused the exception.
+	 * @return the status code or 0 if the exception was not caused by an SMTP
+	 * response
+	 */
+	public int getStatusCode(){
+		return statusCode;
+	}
+
+	/**
+	 * Determines if the exception was caused by a "transient negative" (4xx)
+	 * response, which means that the server wants us to try again later (for
+	 * example, because we are sending too many emails too quickly).
+	 * @return true if the response was a 4xx response, false if not
+	 */
+	public boolean isTransient(){
+		return statusCode >= 400 && statusCode < 500;
 	}
 }
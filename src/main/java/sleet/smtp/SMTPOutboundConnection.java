@@ -1,6 +1,8 @@
 package sleet.smtp;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
@@ -10,11 +12,11 @@ import org.apache.commons.io.IOUtils;
 import sleet.TransactionLog;
 import sleet.email.Email;
 import sleet.email.EmailAddress;
+import sleet.email.EmailData;
 
 //TODO separate mailbox and host names in email addresses
 //TODO create new socket for each host name in the "to" field of the email
 //TODO queue messages that fail and keep trying to send them for ~1 day
-//TODO implement timeout for each client command (p.65)
 //p.67 "Experience suggests that failures are typically transient (the target system or its connection has crashed), favoring a policy of two connection attempts in the first hour the message is in the queue, and then backing off to one every two or three hours."
 //bookmark: p.67
 /*
@@ -43,10 +45,24 @@ public class SMTPOutboundConnection {
 	private final Socket socket;
 	private final SMTPClientSocket client;
 	private final String originatingHost;
+	private final String remoteHost;
+	private final SMTPTimeouts timeouts;
 	private List<String> extensions = new ArrayList<String>();
 
+	/**
+	 * The number of mail transactions that have been attempted on this
+	 * connection.
+	 */
+	private int transactions = 0;
+
+	/**
+	 * True if the connection was left in a state where no more commands can be
+	 * sent.
+	 */
+	private boolean broken = false;
+
 	public static void main(String args[]) throws Exception {
-		SMTPOutboundConnection conn = new SMTPOutboundConnection("mangstadt.dyndns.org", MxRecordResolver.resolveSmtpServers("gmail.com").get(0));
+		SMTPOutboundConnection conn = new SMTPOutboundConnection("mangstadt.dyndns.org", new MxRecordResolver().resolveSmtpServers("gmail.com").get(0));
 		System.out.println(conn.vrfy("mike.angstadt@gmail.com"));
 		
 		conn.close();
@@ -71,10 +87,35 @@ public class SMTPOutboundConnection {
 	 * @throws IOException if there was a socket-related problem
 	 */
 	public SMTPOutboundConnection(String originatingHost, String remoteHost, int port) throws SMTPException, IOException {
+		this(originatingHost, remoteHost, new Socket(), new InetSocketAddress(remoteHost, port), new SMTPTimeouts());
+	}
+
+	/**
+	 * @param originatingHost the name of the originating host
+	 * @param remoteHost the address of the SMTP server to connect to
+	 * @param socket the unconnected socket to use (closing it from another
+	 * thread cancels the connection attempt)
+	 * @param address the IP address and port of the SMTP server
+	 * @param timeouts how long to wait on the SMTP server
+	 * @throws SMTPException if there was a problem initiating the SMTP
+	 * connection
+	 * @throws IOException if there was a socket-related problem, including a
+	 * timeout
+	 */
+	public SMTPOutboundConnection(String originatingHost, String remoteHost, Socket socket, InetSocketAddress address, SMTPTimeouts timeouts) throws SMTPException, IOException {
 		this.originatingHost = originatingHost;
+		this.remoteHost = remoteHost;
+		this.socket = socket;
+		this.timeouts = timeouts;
 
-		socket = new Socket(remoteHost, port);
-		client = new SMTPClientSocket(socket.getInputStream(), socket.getOutputStream());
+		try {
+			socket.connect(address, timeouts.connect);
+			socket.setSoTimeout(timeouts.greeting);
+			client = new SMTPClientSocket(socket.getInputStream(), socket.getOutputStream());
+		} catch (IOException e) {
+			IOUtils.closeQuietly(socket);
+			throw e;
+		}
 
 		try {
 			connect();
@@ -103,6 +144,7 @@ public class SMTPOutboundConnection {
 	 */
 	private void connect() throws SMTPException, IOException {
 		SMTPResponse response = client.connect();
+		socket.setSoTimeout(timeouts.command);
 		if (response.getStatusCode() == 220) {
 			response = client.ehlo(originatingHost);
 			if (response.getStatusCode() == 250) {
@@ -111,57 +153,28 @@ public class SMTPOutboundConnection {
 				//RPC-5321, p.18: if the server doesn't support "EHLO", send "HELO"
 				response = client.helo(originatingHost);
 				if (response.getStatusCode() != 250) {
-					throw new SMTPException("Unexpected server message: " + response);
+					throw new SMTPException("Unexpected server message: " + response, response.getStatusCode());
 				}
 			}
 		} else if (response.getStatusCode() == 554) {
 			//RFC-5321, p.18
-			throw new SMTPException(response.toString());
+			throw new SMTPException(response.toString(), response.getStatusCode());
 		} else {
-			throw new SMTPException("Unexpected server message: " + response);
+			throw new SMTPException("Unexpected server message: " + response, response.getStatusCode());
 		}
 	}
 	
+	/**
+	 * Sends an email from the outbound queue.
+	 * @param recipients the email recipients (see
+	 * {@link #sendEmail(List, Email)})
+	 * @param email the email to send
+	 * @return the result
+	 * @throws SMTPException if an unexpected SMTP message is encountered
+	 * @throws IOException if a socket-related problem occurred
+	 */
 	public SendResult sendEmail(List<EmailAddress> recipients, sleet.db.Email email) throws SMTPException, IOException {
-		SendResult sendResult = new SendResult();
-
-		//from field can be blank (see RPC 5321, p.27-8)
-		String from = (email.sender == null) ? "" : email.sender.getAddress();
-		SMTPResponse response = client.mail(from);
-
-		if (response.getStatusCode() != 250 && response.getStatusCode() != 251 && response.getStatusCode() != 252) {
-			throw new SMTPException("Unexpected server message: " + response);
-		}
-
-		for (EmailAddress recipient : recipients) {
-			response = client.rcpt(recipient.getAddress());
-			if (response.getStatusCode() >= 550 && response.getStatusCode() <= 559) {
-				//SMTP server didn't like that email address
-				sendResult.failedAddresses.add(recipient);
-				sendResult.failedAddressesMessages.add(response.toString());
-			} else if (response.getStatusCode() != 250){
-				throw new SMTPException("Unexpected server message: " + response);
-			} else {
-				sendResult.successfulAddresses.add(recipient);
-			}
-		}
-
-		if (sendResult.failedAddresses.size() == recipients.size()) {
-			//server didn't like any of the email addresses, so don't sent the email body
-			response = client.rset();
-		} else {
-			response = client.data();
-			if (response.getStatusCode() != 354) {
-				throw new SMTPException("Unexpected server message: " + response);
-			}
-			
-			response = client.data(email.data.toData());
-			if (response.getStatusCode() != 250) {
-				throw new SMTPException("Unexpected server message: " + response);
-			}
-		}
-		
-		return sendResult;
+		return sendEmail(recipients, email.sender, email.data);
 	}
 
 	/**
@@ -180,45 +193,215 @@ public class SMTPOutboundConnection {
 	 * @throws SMTPException if an unexpected SMTP message is encountered
 	 * @throws IOException if a socket-related problem occurred
 	 */
-	public synchronized SendResult sendEmail(List<EmailAddress> recipients, Email email) throws SMTPException, IOException {
+	public SendResult sendEmail(List<EmailAddress> recipients, Email email) throws SMTPException, IOException {
+		return sendEmail(recipients, email.getEmailRaw().getMailFrom(), email.getData());
+	}
+
+	/**
+	 * Sends an email. If the server supports the PIPELINING extension, then
+	 * the MAIL, RCPT, and DATA commands are all sent at once (RFC 2920), so
+	 * the email takes two round trips to send, no matter how many recipients
+	 * it has.
+	 * @param recipients the email recipients
+	 * @param sender the sender (can be null)
+	 * @param data the email data
+	 * @return the result
+	 * @throws SMTPException if an unexpected SMTP message is encountered
+	 * @throws IOException if a socket-related problem occurred
+	 */
+	private synchronized SendResult sendEmail(List<EmailAddress> recipients, EmailAddress sender, EmailData data) throws SMTPException, IOException {
+		if (broken) {
+			throw new SMTPException("Connection is no longer usable because a previous email could not be aborted.");
+		}
+
+		transactions++;
+		try {
+			return transaction(recipients, sender, data);
+		} catch (IOException e) {
+			//we don't know what state the conversation is in anymore
+			broken = true;
+			throw e;
+		}
+	}
+
+	private SendResult transaction(List<EmailAddress> recipients, EmailAddress sender, EmailData data) throws SMTPException, IOException {
 		SendResult sendResult = new SendResult();
 
 		//from field can be blank (see RPC 5321, p.27-8)
-		String from = (email.getEmailRaw().getMailFrom() == null) ? "" : email.getEmailRaw().getMailFrom().getAddress();
-		SMTPResponse response = client.mail(from);
+		String from = (sender == null) ? "" : sender.getAddress();
 
-		if (response.getStatusCode() != 250 && response.getStatusCode() != 251 && response.getStatusCode() != 252) {
-			throw new SMTPException("Unexpected server message: " + response);
-		}
+		SMTPResponse mailResponse, dataResponse;
+		List<SMTPResponse> rcptResponses;
+		if (supportsExtension("PIPELINING")) {
+			List<String> addresses = new ArrayList<String>(recipients.size());
+			for (EmailAddress recipient : recipients) {
+				addresses.add(recipient.getAddress());
+			}
 
-		for (EmailAddress recipient : recipients) {
-			response = client.rcpt(recipient.getAddress());
-			if (response.getStatusCode() >= 550 && response.getStatusCode() <= 559) {
-				//SMTP server didn't like that email address
-				sendResult.failedAddresses.add(recipient);
-				sendResult.failedAddressesMessages.add(response.toString());
-			} else if (response.getStatusCode() != 250){
-				throw new SMTPException("Unexpected server message: " + response);
+			List<SMTPResponse> responses = client.pipelineTransaction(from, addresses);
+			mailResponse = responses.get(0);
+			rcptResponses = responses.subList(1, responses.size() - 1);
+			dataResponse = responses.get(responses.size() - 1);
+		} else {
+			mailResponse = client.mail(from);
+			if (!isMailAccepted(mailResponse)) {
+				throw new SMTPException("Unexpected server message: " + mailResponse, mailResponse.getStatusCode());
 			}
+
+			rcptResponses = new ArrayList<SMTPResponse>(recipients.size());
+			for (EmailAddress recipient : recipients) {
+				rcptResponses.add(client.rcpt(recipient.getAddress()));
+			}
+			dataResponse = null;
 		}
 
-		if (sendResult.failedAddresses.size() == recipients.size()) {
-			//server didn't like any of the email addresses, so don't sent the email body
-			response = client.rset();
-		} else {
-			response = client.data();
-			if (response.getStatusCode() != 354) {
-				throw new SMTPException("Unexpected server message: " + response);
+		try {
+			if (!isMailAccepted(mailResponse)) {
+				throw new SMTPException("Unexpected server message: " + mailResponse, mailResponse.getStatusCode());
+			}
+
+			for (int i = 0; i < recipients.size(); i++) {
+				EmailAddress recipient = recipients.get(i);
+				SMTPResponse response = rcptResponses.get(i);
+				if (response.getStatusCode() >= 550 && response.getStatusCode() <= 559) {
+					//SMTP server didn't like that email address
+					sendResult.failedAddresses.add(recipient);
+					sendResult.failedAddressesMessages.add(response.toString());
+				} else if (response.getStatusCode() != 250 && response.getStatusCode() != 251) {
+					throw new SMTPException("Unexpected server message: " + response, response.getStatusCode());
+				} else {
+					sendResult.successfulAddresses.add(recipient);
+				}
 			}
-			response = client.data(email.getData().toData());
-			if (response.getStatusCode() != 250) {
-				throw new SMTPException("Unexpected server message: " + response);
+
+			if (sendResult.failedAddresses.size() == recipients.size()) {
+				//server didn't like any of the email addresses, so don't sent the email body
+				if (dataResponse != null && dataResponse.getStatusCode() == 354) {
+					//the pipelined DATA command was accepted anyway, so the transaction has to be ended with a lone "." (RFC 2920 p.5)
+					//the server should reject it since there are no recipients, so its response doesn't matter
+					client.dataEnd();
+				} else {
+					client.rset();
+				}
+				return sendResult;
+			}
+
+			if (dataResponse == null) {
+				dataResponse = client.data();
 			}
+		} catch (SMTPException e) {
+			abort(dataResponse);
+			throw e;
 		}
-		
+
+		if (dataResponse.getStatusCode() != 354) {
+			client.rset();
+			throw new SMTPException("Unexpected server message: " + dataResponse, dataResponse.getStatusCode());
+		}
+
+		//the server may take a while to process the email once it has all of it
+		SMTPResponse response;
+		Reader reader = data.toDataReader();
+		socket.setSoTimeout(timeouts.dataEnd);
+		try {
+			response = client.data(reader);
+		} finally {
+			socket.setSoTimeout(timeouts.command);
+			IOUtils.closeQuietly(reader);
+		}
+		if (response.getStatusCode() != 250) {
+			throw new SMTPException("Unexpected server message: " + response, response.getStatusCode());
+		}
+
 		return sendResult;
 	}
 
+	/**
+	 * Cancels the current mail transaction so the connection can be used to
+	 * send another email. If the server is already waiting for the email data,
+	 * then the transaction cannot be cancelled and the connection is marked
+	 * as unusable.
+	 * @param dataResponse the response to the DATA command (null if it was not
+	 * sent)
+	 * @throws IOException if a socket-related problem occurred
+	 */
+	private void abort(SMTPResponse dataResponse) throws IOException {
+		if (dataResponse != null && dataResponse.getStatusCode() == 354) {
+			//closing the connection before the data is terminated causes the server to discard the email (RFC 5321, p.53)
+			broken = true;
+			return;
+		}
+		client.rset();
+	}
+
+	/**
+	 * Sends a RSET command, which clears any mail transaction that is in
+	 * progress. This also confirms that the connection is still alive before
+	 * it is re-used.
+	 * @throws SMTPException if the server did not accept the command
+	 * @throws IOException if a socket-related problem occurred
+	 */
+	public synchronized void reset() throws SMTPException, IOException {
+		SMTPResponse response;
+		try {
+			response = client.rset();
+		} catch (IOException e) {
+			broken = true;
+			throw e;
+		}
+
+		if (response.getStatusCode() != 250) {
+			throw new SMTPException("Unexpected server message: " + response, response.getStatusCode());
+		}
+	}
+
+	/**
+	 * Determines if the connection can no longer be used to send emails.
+	 * @return true if it's unusable, false if not
+	 */
+	public synchronized boolean isBroken() {
+		return broken;
+	}
+
+	/**
+	 * Gets the number of mail transactions that have been attempted on this
+	 * connection.
+	 * @return the number of transactions
+	 */
+	public synchronized int getTransactionCount() {
+		return transactions;
+	}
+
+	/**
+	 * Gets the address of the SMTP server this connection is connected to.
+	 * @return the address
+	 */
+	public String getRemoteHost() {
+		return remoteHost;
+	}
+
+	/**
+	 * Determines if the server advertised support for an SMTP extension in
+	 * its EHLO response.
+	 * @param keyword the extension keyword (e.g. "PIPELINING")
+	 * @return true if the extension is supported, false if not
+	 */
+	public boolean supportsExtension(String keyword) {
+		//the first line of the EHLO response is the server greeting
+		for (int i = 1; i < extensions.size(); i++) {
+			String extension = extensions.get(i);
+			if (extension.equalsIgnoreCase(keyword) || extension.toUpperCase().startsWith(keyword.toUpperCase() + " ")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isMailAccepted(SMTPResponse response) {
+		int code = response.getStatusCode();
+		return code == 250 || code == 251 || code == 252;
+	}
+
 	/**
 	 * Verifies whether the host recognizes an email address or not.
 	 * 
@@ -240,7 +423,7 @@ public class SMTPOutboundConnection {
 			}
 			return sb.toString();
 		} else {
-			throw new SMTPException("Unexpected server message: " + response);
+			throw new SMTPException("Unexpected server message: " + response, response.getStatusCode());
 		}
 	}
 
@@ -261,7 +444,7 @@ public class SMTPOutboundConnection {
 			}
 			return emails;
 		} else {
-			throw new SMTPException("Unexpected server message: " + response);
+			throw new SMTPException("Unexpected server message: " + response, response.getStatusCode());
 		}
 	}
 	
@@ -276,10 +459,15 @@ public class SMTPOutboundConnection {
 	 * @throws IOException if a socket-related error occurred
 	 */
 	public synchronized void close() throws SMTPException, IOException {
+		if (broken) {
+			IOUtils.closeQuietly(socket);
+			return;
+		}
+
 		try {
 			SMTPResponse response = client.quit();
 			if (response.getStatusCode() != 221) {
-				throw new SMTPException("Unexpected server message when trying to send QUIT: \"" + response + "\"");
+				throw new SMTPException("Unexpected server message when trying to send QUIT: \"" + response + "\"", response.getStatusCode());
 			}
 		} finally {
 			IOUtils.closeQuietly(socket);
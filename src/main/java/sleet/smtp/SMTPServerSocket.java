@@ -1,53 +1,72 @@
 package sleet.smtp;
 
-import static sleet.email.EmailRaw.CRLF;
-
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.List;
 
+import sleet.LineCodec;
+import sleet.LineTooLongException;
 import sleet.TransactionLog;
 
 /**
- * Interface used by an SMTP server to communicate with an SMTP client.
+ * Interface used by an SMTP server to communicate with an SMTP client. This
+ * class does not decide when I/O happens. Bytes that are received from the
+ * client are passed in with {@link #read(ReadableByteChannel)} or
+ * {@link #decode(ByteBuffer)} and the responses that are queued with the
+ * "sendResponse" methods are written out with
+ * {@link #flush(WritableByteChannel)}. This allows it to be used with both
+ * blocking and non-blocking channels.
  * @author Mike Angstadt [mike.angstadt@gmail.com]
  */
 public class SMTPServerSocket {
 	/**
-	 * Input stream from the client.
+	 * Splits the received data into lines and queues the responses.
 	 */
-	private final BufferedReader fromClient;
+	private final LineCodec codec = new LineCodec();
 
 	/**
-	 * Output stream to the client.
+	 * Records conversation for logging purposes.
 	 */
-	private final PrintWriter toClient;
+	private final TransactionLog transactionLog = new TransactionLog();
 
 	/**
-	 * Records conversation for logging purposes.
+	 * Reads data from the client directly into the codec's buffer. Any
+	 * complete lines can then be retrieved with {@link #nextLine()}.
+	 * @param channel the channel to read from
+	 * @return the number of bytes read or -1 if the client closed the
+	 * connection
+	 * @throws IOException
 	 */
-	private final TransactionLog transactionLog = new TransactionLog();
+	public int read(ReadableByteChannel channel) throws IOException {
+		return codec.read(channel);
+	}
+
+	/**
+	 * Shrinks the codec's input buffer if it has grown and all of its data has
+	 * been consumed.
+	 */
+	public void trim() {
+		codec.trim();
+	}
 
 	/**
-	 * @param fromClient the input stream from the client.
-	 * @param toClient the output stream to the client.
+	 * Decodes data that was received from the client. Any complete lines can
+	 * then be retrieved with {@link #nextLine()}. Incomplete lines are held
+	 * onto until the rest of the line arrives.
+	 * @param in the received data (all remaining bytes are consumed)
 	 */
-	public SMTPServerSocket(InputStream fromClient, OutputStream toClient) {
-		this.fromClient = new BufferedReader(new InputStreamReader(fromClient));
-		this.toClient = new PrintWriter(toClient);
+	public void decode(ByteBuffer in) {
+		codec.decode(in);
 	}
 
 	/**
 	 * Sends a message to the client without any message text.
 	 * @param statusCode the status code
-	 * @throws IOException
 	 */
-	public void sendResponse(int statusCode) throws IOException {
+	public void sendResponse(int statusCode) {
 		sendResponse(statusCode, Arrays.asList(new String[0]));
 	}
 
@@ -55,9 +74,8 @@ public class SMTPServerSocket {
 	 * Sends a message to the client.
 	 * @param statusCode the status code
 	 * @param message the message text
-	 * @throws IOException
 	 */
-	public void sendResponse(int statusCode, String message) throws IOException {
+	public void sendResponse(int statusCode, String message) {
 		sendResponse(statusCode, Arrays.asList(new String[] { message }));
 	}
 
@@ -65,9 +83,8 @@ public class SMTPServerSocket {
 	 * Sends a multi-lined message to the client.
 	 * @param statusCode the status code
 	 * @param messages each line of the message text
-	 * @throws IOException
 	 */
-	public void sendResponse(int statusCode, List<String> messages) throws IOException {
+	public void sendResponse(int statusCode, List<String> messages) {
 		if (messages.isEmpty()) {
 			sendLine(statusCode + "");
 		} else {
@@ -85,28 +102,41 @@ public class SMTPServerSocket {
 	}
 
 	/**
-	 * Sends a line of data to the client.
+	 * Queues a line of data to send to the client.
 	 * @param line the line of text to send
-	 * @throws IOException
 	 */
-	private void sendLine(String line) throws IOException {
+	private void sendLine(String line) {
 		transactionLog.server(line);
-		toClient.print(line);
-		toClient.print(CRLF);
-		toClient.flush();
+		codec.writeLine(line);
 	}
 
 	/**
-	 * Gets the next command from the client.
-	 * @return the next command
+	 * Writes the queued responses to the client.
+	 * @param channel the channel to write to
+	 * @return true if all the queued responses were written, false if the
+	 * channel could not accept all the data (only happens with non-blocking
+	 * channels)
 	 * @throws IOException
 	 */
-	public SMTPRequest nextRequest() throws IOException {
-		String line = nextLine();
-		if (line == null) {
-			throw new IOException("Client terminated connection.");
-		}
+	public boolean flush(WritableByteChannel channel) throws IOException {
+		return codec.flush(channel);
+	}
+
+	/**
+	 * Determines if there are any responses that haven't been written to the
+	 * client yet.
+	 * @return true if there are unwritten responses, false if not
+	 */
+	public boolean hasOutput() {
+		return codec.hasOutput();
+	}
 
+	/**
+	 * Parses a command line that was received from the client.
+	 * @param line the line
+	 * @return the parsed command
+	 */
+	public static SMTPRequest parseRequest(String line) {
 		//messages with just a command and no text part may contain a trailing space character (see RFC 5321 p.32)
 		line = line.trim();
 
@@ -130,39 +160,28 @@ public class SMTPServerSocket {
 	}
 
 	/**
-	 * Gets the next line from a DATA block.
-	 * @return the next line of DATA input from the client or null if there is
-	 * no more DATA
-	 * @throws IOException
+	 * Gets the next line of data from the client. The line is not decoded or
+	 * logged, and it is only valid until more data is received (see
+	 * {@link LineCodec#nextLine()}).
+	 * @return the next line of data or null if a complete line has not been
+	 * received yet
+	 * @throws LineTooLongException if the client sent a line that was too long
+	 * (the line is thrown away)
 	 */
-	public String nextDataLine() throws IOException {
-		String line = nextLine();
-
-		//check for end of DATA
-		if (".".equals(line)) {
-			return null;
-		}
-
-		return line;
+	public ByteBuffer nextLine() throws LineTooLongException {
+		return codec.nextLine();
 	}
 
 	/**
-	 * Reads a line of data from the client.
-	 * @return the next line of data
-	 * @throws IOException
+	 * Decodes a line that was received from the client and records it in the
+	 * transaction log.
+	 * @param line the line
+	 * @return the decoded line
 	 */
-	public String nextLine() throws IOException {
-		String line = fromClient.readLine();
-
-		String msg;
-		if (line == null) {
-			msg = "<client terminated connection>";
-		} else {
-			msg = line;
-		}
-		transactionLog.client(msg);
-
-		return line;
+	public String decodeLine(ByteBuffer line) {
+		String decoded = LineCodec.toString(line);
+		transactionLog.client(decoded);
+		return decoded;
 	}
 
 	/**
@@ -0,0 +1,780 @@
+package sleet.smtp;
+
+import static sleet.email.EmailRaw.CRLF;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Base64;
+
+import sleet.LineCodec;
+import sleet.LineTooLongException;
+import sleet.Sleet;
+import sleet.db.DbDao;
+import sleet.db.DbDao.UnitOfWork;
+import sleet.db.MailingList;
+import sleet.db.MailingListAddress;
+import sleet.db.User;
+import sleet.email.DataSpool;
+import sleet.email.EmailAddress;
+import sleet.email.EmailData;
+import sleet.email.EmailRaw;
+
+/**
+ * The state of a single SMTP client/server conversation. This class does not
+ * do any I/O. The lines that the client sends are read from the
+ * {@link SMTPServerSocket} codec and the responses are queued in it, so a
+ * session can be driven by a dedicated thread or by a non-blocking event loop.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class SMTPSession {
+	private static final Logger logger = Logger.getLogger(SMTPSession.class.getName());
+	private static final Pattern fromPattern = Pattern.compile("FROM:<(.*?)>", Pattern.CASE_INSENSITIVE);
+	private static final Pattern toPattern = Pattern.compile("TO:<(.*?)>", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * The maximum size of an email in bytes (advertised with the SIZE
+	 * extension).
+	 */
+	private static final int maxMessageSize = 1000000;
+
+	/**
+	 * The number of characters of the email body to collect before appending
+	 * them to the spool.
+	 */
+	private static final int spoolChunkSize = 8192;
+
+	/**
+	 * What the session expects the next line from the client to be.
+	 */
+	private enum State {
+		/**
+		 * An SMTP command.
+		 */
+		COMMAND,
+
+		/**
+		 * The credentials of an "AUTH PLAIN" command.
+		 */
+		AUTH,
+
+		/**
+		 * A line of the email message (after a "DATA" command).
+		 */
+		DATA
+	}
+
+	private final DbDao dao;
+	private final MailSender mailSender;
+	private final boolean mta;
+	private final String hostName;
+	private final InetAddress remoteAddress;
+	private final SMTPServerSocket serverSocket;
+
+	private State state = State.COMMAND;
+	private boolean ehloSent = false;
+	private String remoteHostName = null;
+	private EmailRaw email = null;
+	private User authenticatedUser = null;
+	private boolean closed = false;
+
+	/**
+	 * The header section of the email that is being received (null if the
+	 * whole header section has been received).
+	 */
+	private StringBuilder dataHeaders;
+
+	/**
+	 * The body of the email that is being received (null if the body hasn't
+	 * started yet).
+	 */
+	private DataSpool dataBody;
+
+	/**
+	 * Collects the lines of the email body so they can be added to the spool
+	 * in chunks.
+	 */
+	private StringBuilder dataChunk;
+
+	/**
+	 * The number of bytes of the email that has been received so far.
+	 */
+	private long dataSize;
+
+	/**
+	 * The error that occurred while receiving or spooling the email (if any).
+	 */
+	private IOException dataError;
+
+	/**
+	 * @param dao the database DAO
+	 * @param mailSender sends outbound emails (null if this is an MTA session)
+	 * @param hostName the host name of this server
+	 * @param remoteAddress the address of the client
+	 * @param serverSocket the codec used to communicate with the client
+	 */
+	public SMTPSession(DbDao dao, MailSender mailSender, String hostName, InetAddress remoteAddress, SMTPServerSocket serverSocket) {
+		this.dao = dao;
+		this.mailSender = mailSender;
+		this.mta = (mailSender == null);
+		this.hostName = hostName;
+		this.remoteAddress = remoteAddress;
+		this.serverSocket = serverSocket;
+	}
+
+	/**
+	 * Queues the greeting message that is sent when the client first connects.
+	 */
+	public void start() {
+		serverSocket.sendResponse(220, hostName + " " + Sleet.appName + " v" + Sleet.version + " Ready to receive mail.");
+	}
+
+	/**
+	 * Handles every complete line that has been received from the client so
+	 * far. The responses are only queued, so when a client pipelines its
+	 * commands (RFC 2920), all of the responses to the commands that arrived
+	 * together are sent back in a single write once this method returns.
+	 */
+	public void process() {
+		while (!closed) {
+			ByteBuffer line;
+			try {
+				line = serverSocket.nextLine();
+			} catch (LineTooLongException e) {
+				lineTooLong(e);
+				continue;
+			}
+			if (line == null) {
+				break;
+			}
+
+			try {
+				switch (state) {
+				case AUTH:
+					state = State.COMMAND;
+					handleAuthPlain(serverSocket.decodeLine(line));
+					break;
+				case DATA:
+					//lines of the email are only decoded if they need to be saved
+					handleDataLine(line);
+					break;
+				default:
+					handleCommand(serverSocket.decodeLine(line));
+					break;
+				}
+			} catch (RuntimeException e) {
+				logger.log(Level.SEVERE, "SMTP error.", e);
+				closed = true;
+			}
+		}
+	}
+
+	/**
+	 * Handles a line that was too long (RFC 5321 p.64).
+	 * @param e the exception that was thrown when the line was read
+	 */
+	private void lineTooLong(LineTooLongException e) {
+		serverSocket.getTransactionLog().client("<line too long>");
+		switch (state) {
+		case DATA:
+			//the email is rejected once all of its data has been received
+			if (dataError == null) {
+				dataError = e;
+			}
+			break;
+		case AUTH:
+			state = State.COMMAND;
+			serverSocket.sendResponse(500, "Line too long.");
+			break;
+		default:
+			serverSocket.sendResponse(500, "Line too long.");
+			break;
+		}
+	}
+
+	/**
+	 * Determines if the conversation is over (the client sent QUIT or an error
+	 * occurred).
+	 * @return true if the connection should be closed, false if not
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Gets the codec used to communicate with the client.
+	 * @return the codec
+	 */
+	public SMTPServerSocket getServerSocket() {
+		return serverSocket;
+	}
+
+	/**
+	 * Gets the address of the client.
+	 * @return the address
+	 */
+	public InetAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+
+	private void handleCommand(String line) {
+		SMTPRequest clientMsg = SMTPServerSocket.parseRequest(line);
+		ClientCommand cmd;
+		try {
+			cmd = ClientCommand.valueOf(clientMsg.getCommand());
+		} catch (IllegalArgumentException e) {
+			cmd = null;
+		}
+		String params = clientMsg.getParameters();
+
+		try {
+			if (cmd == ClientCommand.HELP) {
+				help();
+			} else if (cmd == ClientCommand.HELO) {
+				remoteHostName = params;
+				serverSocket.sendResponse(250, "Hello " + params);
+				ehloSent = true;
+				email = null;
+			} else if (cmd == ClientCommand.EHLO) {
+				ehlo(params);
+			} else if (cmd == ClientCommand.AUTH && !mta) {
+				auth(params);
+			} else if (cmd == ClientCommand.RSET) {
+				rset(params);
+			} else if (cmd == ClientCommand.NOOP) {
+				serverSocket.sendResponse(250, "Ok");
+			} else if (cmd == ClientCommand.VRFY) {
+				vrfy(params);
+			} else if (cmd == ClientCommand.EXPN) {
+				expn(params);
+			} else if (cmd == ClientCommand.MAIL) {
+				mail(params);
+			} else if (cmd == ClientCommand.RCPT) {
+				rcpt(params);
+			} else if (cmd == ClientCommand.DATA) {
+				data(params);
+			} else if (cmd == ClientCommand.QUIT) {
+				quit(params);
+			} else {
+				serverSocket.sendResponse(500, "Unknown command: " + clientMsg.getCommand());
+			}
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "Database error handling SMTP command.", e);
+			serverSocket.sendResponse(451, "An unexpected server error occurred, sorry: " + e.getMessage());
+		}
+	}
+
+	private void help() {
+		List<String> msgs = new ArrayList<String>();
+		msgs.add("List of available commands:");
+		if (email == null) {
+			if (ehloSent) {
+				if (!mta && authenticatedUser == null) {
+					msgs.add("AUTH PLAIN base64(username/password) - Call this to authenticate with the server.");
+				} else {
+					msgs.add("MAIL FROM:<sender address> - The sender of the email.");
+				}
+			} else {
+				msgs.add("EHLO <client host name> - Call this to start sending emails.");
+			}
+		} else {
+			msgs.add("RCPT TO:<recipient address> - A recipient of the email.");
+			if (!email.getRecipients().isEmpty()) {
+				msgs.add("DATA - Start sending the email message (end with <CRLF>.<CRLF>).");
+			}
+			msgs.add("RSET - Cancel this email and start over.");
+		}
+		msgs.add("VRFY <email address> - Check to see if this address exists on this server.");
+		msgs.add("EXPN <mailing list address> - Get the recipients of a mailing list.");
+		msgs.add("NOOP - Does nothing (always returns 250 Ok response)");
+		msgs.add("HELP - Display list of available commands (varies depending on context).");
+		msgs.add("QUIT - End this SMTP session.");
+		serverSocket.sendResponse(214, msgs);
+	}
+
+	private void ehlo(String params) {
+		remoteHostName = params;
+		ehloSent = true;
+		List<String> messages = new ArrayList<String>();
+		messages.add(hostName + " Hello" + (params == null ? "" : " " + params));
+		messages.add("SIZE " + maxMessageSize);
+		messages.add("PIPELINING");
+		if (!mta) {
+			messages.add("AUTH PLAIN");
+		}
+		messages.add("HELP");
+		//TODO extended status codes should be supported by MSAs (RFC-6409, p.12)
+		//messages.add("EXPN");
+		//TODO RFC-5321 p.25 - say that EXPN is supported
+		serverSocket.sendResponse(250, messages);
+		email = null;
+	}
+
+	private void auth(String params) throws SQLException {
+		if (!ehloSent) {
+			serverSocket.sendResponse(503, "EHLO required before authentication.");
+			return;
+		}
+
+		if (authenticatedUser != null) {
+			//see RFC-4954, p.3
+			serverSocket.sendResponse(503, "Already authenticated.");
+			return;
+		}
+
+		if (params == null || params.isEmpty()) {
+			serverSocket.sendResponse(501, "Invalid syntax for AUTH command.");
+			return;
+		}
+
+		String split[] = params.split(" ");
+		String authMech = split[0];
+		if ("PLAIN".equalsIgnoreCase(authMech)) {
+			//see RFC-4954, p.7-8
+			if (split.length > 1) {
+				//the auth string is on the same line as the AUTH command
+				//see RFC-4964, p.7
+				handleAuthPlain(split[1]);
+			} else {
+				//the auth string is on the next line, after the AUTH command
+				//see RFC-4964, p.8
+				serverSocket.sendResponse(334, " ");
+				state = State.AUTH;
+			}
+		} else {
+			serverSocket.sendResponse(501, "The " + authMech + " authentication mechanism is not supported.");
+		}
+	}
+
+	private void handleAuthPlain(String authStr) {
+		//the auth string that the client sends is a base64-encoded string "username@password"
+		//TODO this probably isn't correct, wanted to get something working
+		authStr = new String(Base64.decodeBase64(authStr));
+
+		int slash = authStr.indexOf('/');
+		if (slash == -1 || slash == authStr.length() - 1) {
+			serverSocket.sendResponse(535, "Authentication credentials invalid.");
+			return;
+		}
+
+		String username = authStr.substring(0, slash);
+		String password = authStr.substring(slash + 1);
+
+		User user;
+		try {
+			user = dao.selectUser(username, password);
+		} catch (SQLException e) {
+			logger.log(Level.SEVERE, "Database error authenticating SMTP client.", e);
+			serverSocket.sendResponse(454, "Temporary authentication failure.");
+			return;
+		}
+
+		if (user == null) {
+			serverSocket.sendResponse(535, "Authentication credentials invalid.");
+		} else {
+			authenticatedUser = user;
+			serverSocket.sendResponse(235, "Authentication successful.");
+		}
+	}
+
+	private void rset(String params) {
+		if (params != null) {
+			//this command does not have parameters (see RFC 5321 p.55)
+			serverSocket.sendResponse(501, "RSET command has no parameters.");
+			return;
+		}
+
+		String msg;
+		if (email == null) {
+			msg = "Ok";
+		} else {
+			email = null;
+			msg = "Ok, email transaction aborted.";
+		}
+		serverSocket.sendResponse(250, msg);
+	}
+
+	private void vrfy(String params) throws SQLException {
+		//RFC-5321, p.14: the address "postmaster" is valid, even though it does not have a host associated with it
+		if ("postmaster".equalsIgnoreCase(params)) {
+			//append host name
+			params = "postmaster@" + hostName;
+		}
+
+		EmailAddress addr = new EmailAddress(params);
+		if (addr.isValid()) {
+			//if an email address was given, then check the host and then see if the user exists
+
+			//check host
+			String host = addr.getHost();
+			if (!hostName.equalsIgnoreCase(host)) {
+				serverSocket.sendResponse(551, "Invalid host name: " + addr);
+				return;
+			}
+
+			//check to see if username exists
+			String username = addr.getMailbox();
+			User user = dao.selectUser(username);
+			if (user == null) {
+				serverSocket.sendResponse(550, "User not found with given address: " + addr);
+			} else {
+				String msg;
+				if (user.fullName == null) {
+					msg = user.username + "@" + hostName;
+				} else {
+					msg = user.fullName + " <" + user.username + "@" + hostName + ">";
+				}
+				serverSocket.sendResponse(250, msg);
+			}
+		} else {
+			//search usernames and full names of users
+
+			List<User> users = dao.findUsers(params);
+			if (users.isEmpty()) {
+				serverSocket.sendResponse(550, "No users found: " + params);
+			} else {
+				List<String> msgs = new ArrayList<String>();
+				msgs.add("User ambiguous.  Possibilities are:");
+				for (User user : users) {
+					String msg = "";
+					if (user.fullName != null) {
+						msg += user.fullName + " ";
+					}
+					msg += "<" + user.username + "@" + hostName + ">";
+					msgs.add(msg);
+				}
+
+				//always use "ambiguous" status code because it's not clear whether the client is searching for a username or the person's real name
+				serverSocket.sendResponse(553, msgs);
+			}
+		}
+	}
+
+	private void expn(String name) throws SQLException {
+		if (name == null || name.isEmpty()) {
+			serverSocket.sendResponse(501, "No mailing list specified.");
+			return;
+		}
+
+		MailingList mailingList = dao.selectMailingList(name);
+		if (mailingList == null || mailingList.addresses.isEmpty()) {
+			serverSocket.sendResponse(550, "Mailing list doesn't exist: " + name);
+		} else {
+			List<String> lines = new ArrayList<String>();
+			for (MailingListAddress address : mailingList.addresses) {
+				String msg;
+				if (address.name == null) {
+					msg = address.address;
+				} else {
+					msg = address.name + " <" + address.address + ">";
+				}
+				lines.add(msg);
+			}
+			serverSocket.sendResponse(250, lines);
+		}
+	}
+
+	private void mail(String params) {
+		//TODO "from" address can be empty, RFC-6409 p.7
+		if (!ehloSent) {
+			serverSocket.sendResponse(503, "EHLO required before emails can be received.");
+			return;
+		}
+
+		if (!mta && authenticatedUser == null) {
+			//user must authenticate first
+			//see RFC-6409, p.10,12
+			serverSocket.sendResponse(530, "You must authenticate first.");
+			return;
+		}
+
+		//get "from" address
+		Matcher m = fromPattern.matcher(params == null ? "" : params);
+		if (!m.find()) {
+			serverSocket.sendResponse(501, "MAIL command must look like: \"MAIL FROM:<mailbox@host>\"");
+			return;
+		}
+
+		if (email != null && email.getMailFrom() != null) {
+			serverSocket.sendResponse(503, "\"From\" address already specified.  Use RCPT to define recipients and DATA to define the message body.");
+			return;
+		}
+
+		String addrStr = m.group(1);
+		EmailAddress addr = new EmailAddress(addrStr);
+		if (!addr.isValid()) {
+			serverSocket.sendResponse(501, "Invalid syntax of email address: " + addrStr);
+			return;
+		}
+
+		if (!mta) {
+			if (!hostName.equals(addr.getHost()) || !authenticatedUser.username.equals(addr.getMailbox())) {
+				//user can only send emails that are from herself
+				//see RFC-6409, p.10
+				serverSocket.sendResponse(550, "The \"from\" address must be from *your* email account.");
+				return;
+			}
+		}
+
+		email = new EmailRaw();
+		email.setMailFrom(addr);
+
+		serverSocket.sendResponse(250, "Ok");
+	}
+
+	private void rcpt(String params) throws SQLException {
+		if (email == null) {
+			serverSocket.sendResponse(503, "MAIL command must be used before RCPT can be used");
+			return;
+		}
+
+		if (!mta && authenticatedUser == null) {
+			//user must authenticate first
+			//see RFC-6409, p.10,12
+			serverSocket.sendResponse(530, "You must authenticate first.");
+			return;
+		}
+
+		Matcher m = toPattern.matcher(params == null ? "" : params);
+		if (!m.find()) {
+			//invalid syntax
+			serverSocket.sendResponse(501, "RCPT command must look like: \"RCPT TO:<mailbox@" + hostName + ">\"");
+			return;
+		}
+
+		String addrStr = m.group(1);
+
+		//RFC-5321, p.14: the address "postmaster" is valid, even though it does not have a host associated with it
+		if ("postmaster".equalsIgnoreCase(addrStr)) {
+			//append host name
+			addrStr = "postmaster@" + hostName;
+		}
+
+		EmailAddress addr = new EmailAddress(addrStr);
+
+		//check syntax
+		if (!addr.isValid()) {
+			serverSocket.sendResponse(501, "Invalid syntax of email address: " + addrStr);
+			return;
+		}
+
+		if (mta) {
+			//check host name
+			String host = addr.getHost();
+			if (!hostName.equalsIgnoreCase(host)) {
+				serverSocket.sendResponse(551, "Invalid host name: " + host);
+				return;
+			}
+
+			//check mailbox
+			String mailbox = addr.getMailbox();
+			if (!dao.doesMailboxExist(mailbox)) {
+				serverSocket.sendResponse(550, "Mailbox not found: " + mailbox);
+				return;
+			}
+		}
+
+		email.addRecipient(addr);
+		serverSocket.sendResponse(250, "Ok");
+	}
+
+	private void data(String params) {
+		if (email == null) {
+			serverSocket.sendResponse(503, "MAIL command must be used before DATA can be sent.");
+			return;
+		}
+
+		if (params != null) {
+			//this command does not have parameters (see RFC 5321 p.55)
+			serverSocket.sendResponse(501, "DATA command has no parameters.");
+			return;
+		}
+
+		if (email.getRecipients().isEmpty()) {
+			serverSocket.sendResponse(503, "At least one RCPT (recipient) is required before DATA can be sent.");
+			return;
+		}
+
+		//get mail message body
+		serverSocket.sendResponse(354, "Ready.");
+		dataHeaders = new StringBuilder();
+		dataBody = null;
+		dataSize = 0;
+		dataError = null;
+		state = State.DATA;
+	}
+
+	private void handleDataLine(ByteBuffer line) {
+		//check for end of DATA
+		if (!LineCodec.isTerminator(line)) {
+			spoolDataLine(line);
+			return;
+		}
+
+		serverSocket.getTransactionLog().client("<" + dataSize + " bytes of email data>");
+		serverSocket.getTransactionLog().client(".");
+
+		state = State.COMMAND;
+		try {
+			finishData();
+		} finally {
+			discardData();
+			email = null;
+		}
+	}
+
+	/**
+	 * Adds a line of the email that is being received. The headers are kept in
+	 * memory, but the body is written to a spool, which moves it to disk if it
+	 * gets too large. The lines are saved exactly as they were received (with
+	 * dot-stuffing still applied), so that they can be sent over the wire
+	 * again without being converted.
+	 * @param line the line (still dot-stuffed)
+	 */
+	private void spoolDataLine(ByteBuffer line) {
+		dataSize += line.remaining() + CRLF.length();
+		if (dataSize > maxMessageSize || dataError != null) {
+			//keep reading until the end of the DATA, but don't save anything
+			return;
+		}
+
+		if (dataBody == null) {
+			if (line.hasRemaining()) {
+				LineCodec.appendTo(line, dataHeaders).append(CRLF);
+			} else {
+				//an empty line separates the headers from the body
+				dataBody = new DataSpool();
+				dataChunk = new StringBuilder();
+			}
+			return;
+		}
+
+		LineCodec.appendTo(line, dataChunk.append(CRLF));
+		if (dataChunk.length() >= spoolChunkSize) {
+			flushDataChunk();
+		}
+	}
+
+	/**
+	 * Appends the collected lines of the email body to the spool.
+	 */
+	private void flushDataChunk() {
+		if (dataChunk == null || dataChunk.length() == 0 || dataError != null) {
+			return;
+		}
+
+		try {
+			dataBody.append(dataChunk);
+		} catch (IOException e) {
+			logger.log(Level.SEVERE, "Problem spooling email body.", e);
+			dataError = e;
+		}
+		dataChunk.setLength(0);
+	}
+
+	/**
+	 * Saves or sends the email once all of its data has been received.
+	 */
+	private void finishData() {
+		flushDataChunk();
+		if (dataSize > maxMessageSize) {
+			serverSocket.sendResponse(552, "Message size exceeds fixed maximum message size (" + maxMessageSize + " bytes).");
+			return;
+		}
+		if (dataError instanceof LineTooLongException) {
+			serverSocket.sendResponse(500, "Line too long.");
+			return;
+		}
+		if (dataError != null) {
+			serverSocket.sendResponse(451, "An unexpected server error occurred while receiving the email, sorry: " + dataError.getMessage());
+			return;
+		}
+
+		email.setData(new EmailData(dataHeaders.toString(), dataBody));
+
+		if (mta) {
+			//receiving email from the Internet
+
+			MailSender.addTraceHeaders(email.getData(), email.getMailFrom(), remoteHostName, remoteAddress, hostName);
+
+			//add mail message to database
+			Exception error = null;
+			final sleet.db.Email dbEmail = new sleet.db.Email();
+			dbEmail.sender = email.getMailFrom();
+			dbEmail.recipients = email.getRecipients();
+			dbEmail.data = email.getData();
+			try {
+				dao.transaction(new UnitOfWork<Void>() {
+					@Override
+					public Void execute() throws SQLException {
+						dao.insertInboxEmail(dbEmail);
+						return null;
+					}
+				});
+			} catch (Exception e) {
+				error = e;
+				logger.log(Level.SEVERE, "Error saving email to database.", e);
+			}
+
+			if (error == null) {
+				serverSocket.sendResponse(250, "Ok: queued as " + dbEmail.id);
+			} else {
+				serverSocket.sendResponse(451, "An unexpected server error occurred while saving the email, sorry: " + error.getMessage());
+			}
+		} else {
+			//sending email to the Internet
+			try {
+				mailSender.sendEmail(email, remoteHostName, remoteAddress);
+				serverSocket.sendResponse(250, "Ok: queued for sending.");
+			} catch (SQLException e) {
+				serverSocket.sendResponse(451, "An unexpected server error occurred while sending the email, sorry: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Throws away the data of the email that is being received.
+	 */
+	private void discardData() {
+		if (dataBody != null) {
+			dataBody.close();
+		}
+		dataBody = null;
+		dataChunk = null;
+		dataHeaders = null;
+		dataError = null;
+	}
+
+	/**
+	 * Frees any resources the session is holding onto. Must be called when the
+	 * connection is closed.
+	 */
+	public void release() {
+		discardData();
+	}
+
+	private void quit(String params) {
+		if (params != null) {
+			//this command does not have parameters (see RFC 5321 p.55)
+			serverSocket.sendResponse(501, "QUIT command has no parameters.");
+			return;
+		}
+
+		String msg;
+		if (email == null) {
+			msg = "Bye";
+		} else {
+			msg = "Email transaction aborted.  Bye";
+		}
+		serverSocket.sendResponse(221, msg);
+		closed = true;
+	}
+}
@@ -0,0 +1,62 @@
+package sleet.smtp;
+
+/**
+ * How long an outbound SMTP connection waits on the remote server before
+ * giving up. Without these, a server that accepts the TCP connection but never
+ * responds (or a network that silently drops packets) would tie up a delivery
+ * thread forever.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class SMTPTimeouts {
+	/**
+	 * How long to wait for the TCP connection to be established (in
+	 * milliseconds).
+	 */
+	public final int connect;
+
+	/**
+	 * How long to wait for the server's greeting once connected (in
+	 * milliseconds).
+	 */
+	public final int greeting;
+
+	/**
+	 * How long to wait for the response to each command (in milliseconds).
+	 */
+	public final int command;
+
+	/**
+	 * How long to wait for the response after the email data has been sent (in
+	 * milliseconds). The server may be scanning or delivering the email while
+	 * we wait, so this is longer than the others.
+	 */
+	public final int dataEnd;
+
+	/**
+	 * Creates timeouts using the values recommended by RFC 5321 (p.65-66),
+	 * plus a 30 second connect timeout.
+	 */
+	public SMTPTimeouts() {
+		this(1000 * 30, 1000 * 60 * 5, 1000 * 60 * 5, 1000 * 60 * 10);
+	}
+
+	/**
+	 * @param connect how long to wait for the TCP connection to be established
+	 * (in milliseconds)
+	 * @param greeting how long to wait for the server's greeting (in
+	 * milliseconds)
+	 * @param command how long to wait for the response to each command (in
+	 * milliseconds)
+	 * @param dataEnd how long to wait for the response after the email data
+	 * has been sent (in milliseconds)
+	 */
+	public SMTPTimeouts(int connect, int greeting, int command, int dataEnd) {
+		if (connect < 1 || greeting < 1 || command < 1 || dataEnd < 1) {
+			throw new IllegalArgumentException("Timeouts must be positive integers.");
+		}
+		this.connect = connect;
+		this.greeting = greeting;
+		this.command = command;
+		this.dataEnd = dataEnd;
+	}
+}
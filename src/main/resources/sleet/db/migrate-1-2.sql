@@ -1 +1,19 @@
---SQL code for updating the database schema from version 1 to 2 would go here
\ No newline at end of file
+/*
+ * Adds the "next_attempt" column to the outbound queue, so the time of each
+ * email's next attempt is stored instead of being calculated every time the
+ * queue is loaded.
+ */
+
+ALTER TABLE outbound_email_groups ADD COLUMN next_attempt TIMESTAMP;
+
+--emails that were already queued keep their existing retry schedule (30 minutes for the first couple of attempts, an hour after that)
+UPDATE outbound_email_groups SET next_attempt =
+	CASE
+		WHEN prev_attempt IS NULL THEN CURRENT_TIMESTAMP
+		WHEN attempts < 3 THEN {fn TIMESTAMPADD(SQL_TSI_MINUTE, 30, prev_attempt)}
+		ELSE {fn TIMESTAMPADD(SQL_TSI_MINUTE, 60, prev_attempt)}
+	END;
+
+ALTER TABLE outbound_email_groups ALTER COLUMN next_attempt NOT NULL;
+
+CREATE INDEX outbound_email_groups_next_attempt ON outbound_email_groups(next_attempt);
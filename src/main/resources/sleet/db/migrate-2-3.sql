@@ -0,0 +1,8 @@
+/*
+ * Adds leases to the outbound queue, so that each email is only sent by one
+ * thread (or server) at a time.
+ */
+
+ALTER TABLE outbound_email_groups ADD COLUMN lease_owner VARCHAR(100);
+
+ALTER TABLE outbound_email_groups ADD COLUMN lease_expires TIMESTAMP;
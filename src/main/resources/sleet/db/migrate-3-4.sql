@@ -0,0 +1,11 @@
+/*
+ * Allows the data of emails to be saved in a message store on the file
+ * system instead of in the database. Emails that are already in the database
+ * stay there.
+ */
+
+ALTER TABLE emails ADD COLUMN data_key CHAR(64);
+
+ALTER TABLE emails ALTER COLUMN data NULL;
+
+CREATE INDEX emails_data_key ON emails(data_key);
@@ -0,0 +1,21 @@
+/*
+ * Records the size, header length, and unique ID of each email when it is
+ * saved, so that POP3 clients can list their inboxes without the email data
+ * being read.
+ */
+
+ALTER TABLE emails ADD COLUMN size BIGINT;
+
+ALTER TABLE emails ADD COLUMN header_length BIGINT;
+
+ALTER TABLE emails ADD COLUMN uid VARCHAR(70);
+
+--the sizes of existing emails are left NULL, and each email is measured the first time it is listed
+--(the data is dot-stuffed, so its length is not the same as the size a client sees)
+
+--existing emails keep the unique ID they had before (their row ID), so POP3 clients don't download them again
+UPDATE emails SET uid = TRIM(CHAR(id));
+
+ALTER TABLE emails ALTER COLUMN uid NOT NULL;
+
+CREATE INDEX inbox_emails_user_received ON inbox_emails(user_id, received);
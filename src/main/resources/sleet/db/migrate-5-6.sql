@@ -0,0 +1,8 @@
+/*
+ * Records whether each inbox email has been read, so that IMAP clients can
+ * keep track of which emails are new.
+ */
+
+ALTER TABLE inbox_emails ADD COLUMN seen SMALLINT DEFAULT 0 NOT NULL;
+
+CREATE INDEX inbox_emails_user_id ON inbox_emails(user_id, id);
@@ -3,7 +3,7 @@
  * recent version of the database.
  * 
  * Every time the schema changes:
- * 1. Create a migration script (e.g. "migrate-5-6.sql").
+ * 1. Create a migration script (e.g. "migrate-6-7.sql").
  * 2. Update the version number in DirbyDbDao.
  */
 
@@ -47,8 +47,24 @@ INSERT INTO mailing_list_addresses (mailing_list_id, address, name) VALUES (1, '
 CREATE TABLE emails(
 	id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY,
 	sender VARCHAR(100) NOT NULL,
-	data CLOB(1000 K) NOT NULL
+	
+	--the email data, if it is stored in the database
+	data CLOB(1000 K),
+	
+	--the SHA-256 hash of the email data, if it is stored in the message store
+	--emails with the same data share the same file
+	data_key CHAR(64),
+	
+	--the size of the email as reported by POP3, in octets (dot-stuffing removed)
+	size BIGINT,
+	
+	--the length of the header section of the data, including the empty line after it
+	header_length BIGINT,
+	
+	--the unique ID reported by the POP3 UIDL command
+	uid VARCHAR(70) NOT NULL
 );
+CREATE INDEX emails_data_key ON emails(data_key);
 
 /**
  * The recipients of each email (linked to the "emails" table).
@@ -64,8 +80,15 @@ CREATE TABLE inbox_emails(
 	id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY,
 	user_id INTEGER NOT NULL REFERENCES users(id) ON DELETE CASCADE,
 	email_id INTEGER NOT NULL REFERENCES emails(id) ON DELETE CASCADE,
-	received TIMESTAMP NOT NULL
+	received TIMESTAMP NOT NULL,
+	
+	--whether the user has read the email (the IMAP "\Seen" flag)
+	seen SMALLINT DEFAULT 0 NOT NULL
 );
+CREATE INDEX inbox_emails_user_received ON inbox_emails(user_id, received);
+
+--the row IDs are used as IMAP unique IDs, so each user's inbox is read in ID order
+CREATE INDEX inbox_emails_user_id ON inbox_emails(user_id, id);
 
 /* The emails that were successfully sent from the SMTP server. */
 CREATE TABLE outbox_emails(
@@ -93,8 +116,17 @@ CREATE TABLE outbound_email_groups(
 	first_attempt TIMESTAMP,
 	
 	--the time of the previous attempt
-	prev_attempt TIMESTAMP
+	prev_attempt TIMESTAMP,
+	
+	--the time of the next attempt
+	next_attempt TIMESTAMP NOT NULL,
+	
+	--who is currently sending the email, so that it isn't sent twice at the same time
+	--the lease is ignored once it expires (for example, if the server that claimed it crashed)
+	lease_owner VARCHAR(100),
+	lease_expires TIMESTAMP
 );
+CREATE INDEX outbound_email_groups_next_attempt ON outbound_email_groups(next_attempt);
 
 CREATE TABLE outbound_email_recipients(
 	id INTEGER PRIMARY KEY GENERATED ALWAYS AS IDENTITY,
@@ -0,0 +1,120 @@
+package sleet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import sleet.ConnectionExecutor.Mode;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class ConnectionExecutorTest {
+	@Test
+	public void maxConnections() throws Exception {
+		final ConnectionExecutor executor = new ConnectionExecutor(Mode.POOLED, "test", 5, 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch running = new CountDownLatch(2);
+		Runnable conversation = new Runnable() {
+			@Override
+			public void run() {
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					//ignore
+				}
+			}
+		};
+
+		executor.execute(conversation);
+		executor.execute(conversation);
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+
+		//the third connection must wait until one of the others finishes
+		final CountDownLatch thirdRan = new CountDownLatch(1);
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							thirdRan.countDown();
+						}
+					});
+				} catch (InterruptedException e) {
+					//ignore
+				}
+			}
+		};
+		acceptor.start();
+		assertFalse(thirdRan.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue(thirdRan.await(5, TimeUnit.SECONDS));
+		acceptor.join();
+	}
+
+	@Test
+	public void pooled_limited_to_pool_size() throws Exception {
+		//no limit was given, so the pool size is the limit
+		final ConnectionExecutor executor = new ConnectionExecutor(Mode.POOLED, "test", 1, 0);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch running = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					//ignore
+				}
+			}
+		});
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+
+		//the second connection is not accepted until the first one finishes
+		final CountDownLatch accepted = new CountDownLatch(1);
+		final CountDownLatch secondRan = new CountDownLatch(1);
+		Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							secondRan.countDown();
+						}
+					});
+					accepted.countDown();
+				} catch (InterruptedException e) {
+					//ignore
+				}
+			}
+		};
+		acceptor.start();
+		assertFalse(accepted.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue(secondRan.await(5, TimeUnit.SECONDS));
+		acceptor.join();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalid_pool_size() {
+		new ConnectionExecutor(Mode.POOLED, "test", 0, 0);
+	}
+
+	@Test
+	public void platform() {
+		ConnectionExecutor executor = ConnectionExecutor.platform("test");
+		assertEquals(Mode.PLATFORM, executor.getMode());
+	}
+}
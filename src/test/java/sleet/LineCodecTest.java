@@ -0,0 +1,188 @@
+package sleet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class LineCodecTest {
+	@Test
+	public void nextLine() throws Exception {
+		LineCodec codec = new LineCodec();
+		codec.decode(bytes("HELO foo\r\nMAIL FROM:<a@b.com>\nRCPT"));
+
+		assertEquals("HELO foo", LineCodec.toString(codec.nextLine()));
+		assertEquals("MAIL FROM:<a@b.com>", LineCodec.toString(codec.nextLine()));
+		assertNull(codec.nextLine());
+		assertTrue(codec.hasInput());
+
+		codec.decode(bytes(" TO:<c@d.com>\r\n"));
+		assertEquals("RCPT TO:<c@d.com>", LineCodec.toString(codec.nextLine()));
+		assertNull(codec.nextLine());
+		assertFalse(codec.hasInput());
+	}
+
+	@Test
+	public void grows() throws Exception {
+		LineCodec codec = new LineCodec(4);
+		codec.decode(bytes("one two "));
+		codec.decode(bytes("three four\r\n"));
+		assertEquals("one two three four", LineCodec.toString(codec.nextLine()));
+	}
+
+	@Test
+	public void line_too_long() throws Exception {
+		LineCodec codec = new LineCodec(4, 8);
+		codec.decode(bytes("12345678\r\n123"));
+		assertEquals("12345678", LineCodec.toString(codec.nextLine()));
+		assertNull(codec.nextLine());
+
+		//the partial line is thrown away as soon as it is too long
+		codec.decode(bytes("4567890"));
+		assertNull(codec.nextLine());
+		assertFalse(codec.hasInput());
+		codec.decode(bytes("0123456789"));
+		assertNull(codec.nextLine());
+		assertFalse(codec.hasInput());
+
+		codec.decode(bytes("end\r\nNOOP\r\n"));
+		try {
+			codec.nextLine();
+			fail();
+		} catch (LineTooLongException e) {
+			//expected
+		}
+		assertEquals("NOOP", LineCodec.toString(codec.nextLine()));
+
+		//a line that is received all at once
+		codec.decode(bytes("123456789\r\nQUIT\r\n"));
+		try {
+			codec.nextLine();
+			fail();
+		} catch (LineTooLongException e) {
+			//expected
+		}
+		assertEquals("QUIT", LineCodec.toString(codec.nextLine()));
+		assertNull(codec.nextLine());
+	}
+
+	@Test
+	public void read() throws Exception {
+		LineCodec codec = new LineCodec(16);
+		byte data[] = "first line\r\nsecond line\r\n".getBytes("ISO-8859-1");
+		ByteArrayInputStream in = new ByteArrayInputStream(data);
+
+		int total = 0, read;
+		while ((read = codec.read(Channels.newChannel(in))) != -1) {
+			total += read;
+		}
+		assertEquals(data.length, total);
+
+		assertEquals("first line", LineCodec.toString(codec.nextLine()));
+		assertEquals("second line", LineCodec.toString(codec.nextLine()));
+		assertNull(codec.nextLine());
+	}
+
+	@Test
+	public void read_bounded() throws Exception {
+		LineCodec codec = new LineCodec(16, 8);
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("NOOP\r\n");
+		}
+		byte data[] = sb.toString().getBytes("ISO-8859-1");
+		ByteArrayInputStream in = new ByteArrayInputStream(data);
+
+		//once the buffer is full of lines, nothing more is read until they are consumed
+		int total = 0, read;
+		while ((read = codec.read(Channels.newChannel(in))) > 0) {
+			total += read;
+		}
+		assertEquals(0, read);
+		assertTrue(total < data.length);
+
+		int lines = 0;
+		while (true) {
+			while (codec.nextLine() != null) {
+				lines++;
+			}
+			if (codec.read(Channels.newChannel(in)) == -1) {
+				break;
+			}
+		}
+		assertEquals(1000, lines);
+
+		//the buffer shrinks once it is empty
+		codec.trim();
+		codec.decode(bytes("QUIT\r\n"));
+		assertEquals("QUIT", LineCodec.toString(codec.nextLine()));
+	}
+
+	@Test
+	public void dot_stuffing() throws Exception {
+		LineCodec codec = new LineCodec();
+		codec.decode(bytes("..leading dot\r\nno dot\r\n.\r\n"));
+
+		ByteBuffer line = codec.nextLine();
+		assertFalse(LineCodec.isTerminator(line));
+		assertEquals(".leading dot", LineCodec.toString(LineCodec.unstuff(line)));
+
+		line = codec.nextLine();
+		assertFalse(LineCodec.isTerminator(line));
+		assertEquals("no dot", LineCodec.toString(LineCodec.unstuff(line)));
+
+		assertTrue(LineCodec.isTerminator(codec.nextLine()));
+	}
+
+	@Test
+	public void eight_bit() throws Exception {
+		LineCodec codec = new LineCodec();
+		byte data[] = { (byte) 0xc3, (byte) 0xa9, '\r', '\n' };
+		codec.decode(ByteBuffer.wrap(data));
+
+		String line = LineCodec.toString(codec.nextLine());
+		assertEquals(2, line.length());
+
+		//the original bytes are preserved
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		codec.writeLine(line);
+		assertTrue(flush(codec, out));
+		assertEquals(ByteBuffer.wrap(data), ByteBuffer.wrap(out.toByteArray()));
+	}
+
+	@Test
+	public void flush() {
+		LineCodec codec = new LineCodec();
+		codec.writeLine("250-one");
+		codec.writeLine("250 two");
+		assertTrue(codec.hasOutput());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(flush(codec, out));
+		assertFalse(codec.hasOutput());
+		assertEquals("250-one\r\n250 two\r\n", new String(out.toByteArray()));
+	}
+
+	private static boolean flush(LineCodec codec, ByteArrayOutputStream out) {
+		try {
+			return codec.flush(Channels.newChannel(out));
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static ByteBuffer bytes(String str) {
+		return ByteBuffer.wrap(str.getBytes(LineCodec.charset));
+	}
+}
@@ -0,0 +1,198 @@
+package sleet.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import sleet.db.DbDao.DataHandler;
+import sleet.db.DbDao.EmailHandler;
+import sleet.db.DbDao.UnitOfWork;
+import sleet.email.EmailAddress;
+import sleet.email.EmailData;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class DirbyDbDaoTest {
+	private static final AtomicInteger databases = new AtomicInteger();
+	private DirbyDbDao dao;
+
+	@Before
+	public void before() throws Exception {
+		//every test gets its own database
+		dao = new DirbyMemoryDbDao("DirbyDbDaoTest" + databases.incrementAndGet(), 2);
+	}
+
+	@Test
+	public void transaction_inside_auto_commit_call() throws Exception {
+		dao.insertInboxEmail(email("test"));
+
+		dao.foreachInboxEmail(dao.selectUser("test"), new EmailHandler() {
+			@Override
+			public void handleRow(final Email email) {
+				try {
+					dao.transaction(new UnitOfWork<Void>() {
+						@Override
+						public Void execute() throws SQLException {
+							dao.insertInboxEmail(email("mike"));
+							throw new SQLException("Rolled back.");
+						}
+					});
+					fail();
+				} catch (SQLException e) {
+					//expected
+				}
+			}
+		});
+
+		//the email must not have been committed by the connection of the "foreach" call
+		assertEquals(0, dao.selectMaildrop(dao.selectUser("mike")).size());
+		assertEquals(1, dao.selectMaildrop(dao.selectUser("test")).size());
+	}
+
+	@Test
+	public void outbound_leases() throws Exception {
+		OutboundEmailGroup group = new OutboundEmailGroup();
+		group.email = email("bob");
+		group.host = "example.com";
+		group.recipients.add(new EmailAddress("bob@example.com"));
+		dao.insertOutboundEmailGroup(group);
+		List<Integer> ids = Arrays.asList(group.id);
+
+		//claim it
+		Date future = new Date(System.currentTimeMillis() + 60000);
+		assertEquals("one", dao.claimOutboundEmailGroups(ids, "one", future).get(0).leaseOwner);
+
+		//nobody else can claim it while the lease is held
+		assertEquals("one", dao.claimOutboundEmailGroups(ids, "two", future).get(0).leaseOwner);
+
+		//the lease can be released and claimed by someone else
+		dao.releaseOutboundEmailGroups(ids, "two");
+		assertEquals("one", dao.claimOutboundEmailGroups(ids, "two", future).get(0).leaseOwner);
+		dao.releaseOutboundEmailGroups(ids, "one");
+		assertEquals("two", dao.claimOutboundEmailGroups(ids, "two", future).get(0).leaseOwner);
+
+		//an expired lease can be claimed by someone else
+		Date past = new Date(System.currentTimeMillis() - 1000);
+		assertEquals("two", dao.claimOutboundEmailGroups(ids, "two", past).get(0).leaseOwner);
+		assertEquals("one", dao.claimOutboundEmailGroups(ids, "one", future).get(0).leaseOwner);
+
+		//the owner of the expired lease can no longer change it
+		group.attempts = 1;
+		group.prevAttempt = new Date();
+		group.nextAttempt = future;
+		assertFalse(dao.updateOutboundEmailGroup(group, "two"));
+		assertFalse(dao.deleteOutboundEmailGroup(group, "two"));
+		assertEquals("one", dao.claimOutboundEmailGroups(ids, "two", future).get(0).leaseOwner);
+
+		//the current owner can
+		assertTrue(dao.updateOutboundEmailGroup(group, "one"));
+		OutboundEmailGroup updated = dao.claimOutboundEmailGroups(ids, "one", future).get(0);
+		assertEquals(future, updated.nextAttempt);
+		assertTrue(dao.deleteOutboundEmailGroup(group, "one"));
+		assertTrue(dao.claimOutboundEmailGroups(ids, "one", future).isEmpty());
+	}
+
+	@Test
+	public void connection_not_held_while_email_data_is_read() throws Exception {
+		//only one connection, so any other query has to wait if it is held
+		final DirbyDbDao dao = new DirbyMemoryDbDao("DirbyDbDaoTest" + databases.incrementAndGet(), 1);
+		Email email = email("mike");
+		dao.insertEmail(email);
+
+		final AtomicReference<User> user = new AtomicReference<User>();
+		final StringBuilder sb = new StringBuilder();
+		boolean found = dao.selectEmailData(email.id, new DataHandler() {
+			@Override
+			public void handle(Reader data) throws IOException {
+				Thread thread = new Thread() {
+					@Override
+					public void run() {
+						try {
+							user.set(dao.selectUser("mike"));
+						} catch (SQLException e) {
+							//ignore
+						}
+					}
+				};
+				thread.start();
+				try {
+					thread.join(5000);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+
+				sb.append(IOUtils.toString(data));
+			}
+		});
+
+		assertTrue(found);
+		assertEquals("mike", user.get().username);
+		assertEquals(email.data.toData(), sb.toString());
+	}
+
+	@Test
+	public void unmeasured_email_measured_when_listed() throws Exception {
+		String name = "DirbyDbDaoTest" + databases.incrementAndGet();
+		DirbyDbDao dao = new DirbyMemoryDbDao(name, 2);
+		Email email = email("mike");
+		email.data = new EmailData("Subject: Test\r\n\r\n..dot\r\nHello.");
+		dao.insertInboxEmail(email);
+		User user = dao.selectUser("mike");
+		long expected = dao.selectMaildrop(user).getSize(1);
+
+		//emails saved before sizes were recorded
+		Connection connection = DriverManager.getConnection("jdbc:derby:memory:" + name);
+		try {
+			Statement statement = connection.createStatement();
+			assertEquals(1, statement.executeUpdate("UPDATE emails SET size = NULL, header_length = NULL"));
+			statement.close();
+		} finally {
+			connection.close();
+		}
+
+		//the email is measured (dot-stuffing removed, plus the final CRLF)
+		assertEquals("Subject: Test\r\n\r\n.dot\r\nHello.\r\n".length(), expected);
+		Maildrop maildrop = dao.selectMaildrop(user);
+		assertEquals(expected, maildrop.getSize(1));
+
+		//the measurements are saved
+		maildrop = dao.selectMaildrop(user);
+		assertEquals(expected, maildrop.getSize(1));
+		assertEquals("Subject: Test\r\n\r\n".length(), maildrop.getHeaderLength(1));
+
+		Mailbox mailbox = new Mailbox();
+		dao.selectInboxEmails(user, mailbox);
+		assertEquals(expected, mailbox.getSize(1));
+	}
+
+	/**
+	 * Creates an email.
+	 * @param recipient the username of the recipient
+	 * @return the email
+	 */
+	static Email email(String recipient) {
+		Email email = new Email();
+		email.sender = new EmailAddress("sender@example.com");
+		email.recipients.add(new EmailAddress(recipient + "@localhost"));
+		email.data = new EmailData("Subject: Test\r\n\r\nHello.");
+		return email;
+	}
+}
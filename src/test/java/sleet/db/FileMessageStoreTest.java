@@ -0,0 +1,90 @@
+package sleet.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class FileMessageStoreTest {
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private File root;
+	private FileMessageStore store;
+
+	@Before
+	public void before() throws Exception {
+		root = temp.newFolder("messages");
+		store = new FileMessageStore(root);
+	}
+
+	@Test
+	public void put() throws Exception {
+		//8-bit characters are saved as single bytes
+		String data = "Subject: caf\u00e9\r\n\r\n..dot";
+		String key = store.put(new StringReader(data));
+		assertEquals(DigestUtils.sha256Hex(data.getBytes("ISO-8859-1")), key);
+
+		File file = new File(root, key.substring(0, 2) + "/" + key.substring(2, 4) + "/" + key);
+		assertTrue(file.isFile());
+		assertEquals(data.length(), file.length());
+		assertEquals(data.length(), store.size(key));
+
+		Reader reader = store.open(key);
+		try {
+			assertEquals(data, IOUtils.toString(reader));
+		} finally {
+			reader.close();
+		}
+
+		//no temporary files are left behind
+		assertEquals(0, new File(root, "tmp").list().length);
+	}
+
+	@Test
+	public void same_data_stored_once() throws Exception {
+		String key1 = store.put(new StringReader("Subject: one\r\n\r\nbody"));
+		String key2 = store.put(new StringReader("Subject: one\r\n\r\nbody"));
+		String key3 = store.put(new StringReader("Subject: two\r\n\r\nbody"));
+		assertEquals(key1, key2);
+		assertFalse(key1.equals(key3));
+
+		store.delete(key1);
+		assertFalse(store.contains(key1));
+		assertTrue(store.contains(key3));
+	}
+
+	@Test
+	public void transferTo() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append("\r\nline ").append(i);
+		}
+		String data = sb.toString();
+		String key = store.put(new StringReader(data));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(data.length(), store.transferTo(key, Channels.newChannel(out)));
+		assertEquals(data, out.toString("ISO-8859-1"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void invalid_key() throws Exception {
+		store.open("../../etc/passwd");
+	}
+}
@@ -0,0 +1,62 @@
+package sleet.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class MailboxTest {
+	@Test
+	public void find() {
+		Mailbox mailbox = new Mailbox(1);
+		mailbox.add(5, 50, 100, 0, null, true);
+		mailbox.add(7, 70, 200, 0, "key", false);
+		mailbox.add(12, 120, 300, 0, null, false);
+
+		assertEquals(3, mailbox.size());
+		assertEquals(12, mailbox.getLastUid());
+		assertEquals(2, mailbox.find(7));
+		assertEquals(0, mailbox.find(6));
+		assertEquals(2, mailbox.ceiling(6));
+		assertEquals(4, mailbox.ceiling(13));
+		assertEquals("key", mailbox.getDataKey(2));
+		assertEquals(2, mailbox.getUnseenCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void add_out_of_order() {
+		Mailbox mailbox = new Mailbox();
+		mailbox.add(5, 50, 100, 0, null, false);
+		mailbox.add(5, 51, 100, 0, null, false);
+	}
+
+	@Test
+	public void expunge() {
+		Mailbox mailbox = new Mailbox();
+		mailbox.add(1, 10, 100, 0, null, false);
+		mailbox.add(2, 20, 200, 0, null, true);
+		mailbox.add(3, 30, 300, 0, null, false);
+		mailbox.add(4, 40, 400, 0, null, true);
+
+		mailbox.setDeleted(1, true);
+		mailbox.setDeleted(3, true);
+		assertArrayEquals(new int[] { 1, 3 }, mailbox.getDeletedUids());
+
+		//highest first, so each number is still valid when the client receives it
+		assertArrayEquals(new int[] { 3, 1 }, mailbox.expunge());
+
+		assertEquals(2, mailbox.size());
+		assertEquals(2, mailbox.getUid(1));
+		assertEquals(200, mailbox.getSize(1));
+		assertTrue(mailbox.isSeen(1));
+		assertEquals(4, mailbox.getUid(2));
+		assertTrue(mailbox.isSeen(2));
+		assertFalse(mailbox.isDeleted(1));
+		assertArrayEquals(new int[0], mailbox.getDeletedUids());
+	}
+}
@@ -0,0 +1,66 @@
+package sleet.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class MaildropTest {
+	@Test
+	public void add() {
+		Maildrop maildrop = new Maildrop(1);
+		assertEquals(1, maildrop.add(10, 100, 20, "key", "uid1"));
+		assertEquals(2, maildrop.add(11, 200, -1, null, "uid2"));
+		assertEquals(3, maildrop.add(12, 300, 30, "key", "uid3"));
+
+		assertEquals(3, maildrop.size());
+		assertEquals(3, maildrop.getMessageCount());
+		assertEquals(600, maildrop.getTotalSize());
+
+		assertEquals(11, maildrop.getDbId(2));
+		assertEquals(200, maildrop.getSize(2));
+		assertEquals(-1, maildrop.getHeaderLength(2));
+		assertNull(maildrop.getDataKey(2));
+		assertEquals("uid2", maildrop.getUid(2));
+
+		assertFalse(maildrop.exists(0));
+		assertTrue(maildrop.exists(3));
+		assertFalse(maildrop.exists(4));
+	}
+
+	@Test
+	public void delete() {
+		Maildrop maildrop = new Maildrop();
+		maildrop.add(10, 100, 20, null, "uid1");
+		maildrop.add(11, 200, 20, null, "uid2");
+		maildrop.add(12, 300, 20, null, "uid3");
+
+		maildrop.delete(3);
+		maildrop.delete(1);
+		maildrop.delete(1);
+		assertTrue(maildrop.isDeleted(1));
+		assertFalse(maildrop.isDeleted(2));
+		assertEquals(1, maildrop.getMessageCount());
+		assertEquals(200, maildrop.getTotalSize());
+		assertArrayEquals(new int[] { 10, 12 }, maildrop.getDeletedDbIds());
+
+		maildrop.reset();
+		assertFalse(maildrop.isDeleted(1));
+		assertEquals(3, maildrop.getMessageCount());
+		assertEquals(600, maildrop.getTotalSize());
+		assertArrayEquals(new int[0], maildrop.getDeletedDbIds());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void invalid_message_number() {
+		Maildrop maildrop = new Maildrop();
+		maildrop.add(10, 100, 20, null, "uid1");
+		maildrop.getSize(2);
+	}
+}
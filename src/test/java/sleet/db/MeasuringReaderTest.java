@@ -0,0 +1,35 @@
+package sleet.db;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class MeasuringReaderTest {
+	@Test
+	public void measure() throws Exception {
+		String headers = "Subject: test\r\n\r\n";
+		String data = headers + "..dot\r\nline\r\n..";
+		MeasuringReader reader = new MeasuringReader(new StringReader(data));
+		assertEquals(data, IOUtils.toString(reader));
+
+		//the two stuffed dots aren't counted, but the final CRLF is
+		assertEquals(data.length() - 2 + 2, reader.getSize());
+		assertEquals(headers.length(), reader.getHeaderLength());
+	}
+
+	@Test
+	public void no_body() throws Exception {
+		String data = "Subject: test\r\nFrom: foo@bar.com\r\n";
+		MeasuringReader reader = new MeasuringReader(new StringReader(data));
+		reader.readToEnd();
+
+		assertEquals(data.length() + 2, reader.getSize());
+		assertEquals(data.length(), reader.getHeaderLength());
+	}
+}
@@ -0,0 +1,85 @@
+package sleet.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class PooledConnectionTest {
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	private PooledConnection connection;
+
+	@Before
+	public void before() throws Exception {
+		Class.forName("org.apache.derby.jdbc.EmbeddedDriver");
+		connection = new PooledConnection(DriverManager.getConnection("jdbc:derby:memory:PooledConnectionTest;create=true"), 2, hits, misses);
+	}
+
+	@After
+	public void after() {
+		connection.close();
+	}
+
+	@Test
+	public void reuse() throws Exception {
+		PreparedStatement first = connection.prepareStatement("VALUES 1");
+		connection.closeStatements(first);
+		PreparedStatement second = connection.prepareStatement("VALUES 1");
+		connection.closeStatements(second);
+
+		assertSame(first, second);
+		assertEquals(1, hits.get());
+		assertEquals(1, misses.get());
+	}
+
+	@Test
+	public void generated_keys_flag_is_part_of_key() throws Exception {
+		PreparedStatement first = connection.prepareStatement("VALUES 1");
+		connection.closeStatements(first);
+		PreparedStatement second = connection.prepareStatement("VALUES 1", Statement.RETURN_GENERATED_KEYS);
+		connection.closeStatements(second);
+
+		assertNotSame(first, second);
+		assertEquals(0, hits.get());
+		assertEquals(2, misses.get());
+	}
+
+	@Test
+	public void statement_in_use() throws Exception {
+		PreparedStatement outer = connection.prepareStatement("VALUES 1");
+		PreparedStatement inner = connection.prepareStatement("VALUES 1");
+		assertNotSame(outer, inner);
+		connection.closeStatements(inner);
+		assertTrue(inner.isClosed());
+		connection.closeStatements(outer);
+
+		assertSame(outer, connection.prepareStatement("VALUES 1"));
+	}
+
+	@Test
+	public void lru_eviction() throws Exception {
+		PreparedStatement one = connection.prepareStatement("VALUES 1");
+		PreparedStatement two = connection.prepareStatement("VALUES 2");
+		connection.closeStatements(one, two);
+
+		//"VALUES 2" is now the least recently used
+		connection.closeStatements(connection.prepareStatement("VALUES 1"));
+		PreparedStatement three = connection.prepareStatement("VALUES 3");
+		connection.closeStatements(three);
+
+		assertTrue(two.isClosed());
+		assertSame(one, connection.prepareStatement("VALUES 1"));
+	}
+}
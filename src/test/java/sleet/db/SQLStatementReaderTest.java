@@ -34,4 +34,13 @@ public class SQLStatementReaderTest {
 		Assert.assertNull(in.readStatement());
 		in.close();
 	}
+
+	@Test
+	public void testTrailingWhitespace() throws Exception {
+		StringReader sr = new StringReader("insert into myTable (foo, bar) values (1, 'bar');\n\n");
+		SQLStatementReader in = new SQLStatementReader(sr);
+		Assert.assertEquals("insert into myTable (foo, bar) values (1, 'bar')", in.readStatement());
+		Assert.assertNull(in.readStatement());
+		in.close();
+	}
 }
@@ -1,7 +1,12 @@
 package sleet.email;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.Reader;
+
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 public class EmailDataTest {
@@ -39,4 +44,91 @@ public class EmailDataTest {
 		actual = EmailData.wrapBody(input, 15);
 		assertEquals(expected, actual);
 	}
+
+	@Test
+	public void spooled_body() throws Exception {
+		DataSpool spool = new DataSpool(10);
+		spool.append("\r\nHello world.").append("\r\n..dot").append("\r\n");
+		assertTrue(spool.isOnDisk());
+
+		try {
+			EmailData data = new EmailData("Subject: Hi\r\nFrom: <foo@bar.com>\r\n", spool);
+			assertEquals("Hi", data.getHeaders().getSubject());
+			assertEquals("Hello world.\r\n.dot\r\n", data.getBody());
+
+			String expected = "Subject: Hi\r\nFrom: <foo@bar.com>\r\n\r\nHello world.\r\n..dot\r\n";
+			assertEquals(expected, data.toData());
+
+			Reader reader = data.toDataReader();
+			try {
+				assertEquals(expected, IOUtils.toString(reader));
+			} finally {
+				reader.close();
+			}
+		} finally {
+			spool.close();
+		}
+	}
+
+	@Test
+	public void original_data_preserved() {
+		//unusual folding and a long body line would both be changed if the data was rebuilt
+		String data = "Subject: A\r\n  folded subject\r\nX-Long: " + repeat('x', 100) + "\r\n\r\n" + repeat('y', 100) + "\r\n..dot";
+		EmailData email = new EmailData(data);
+		assertEquals(data, email.toData());
+
+		//reading the headers doesn't change anything
+		assertEquals("A folded subject", email.getHeaders().getSubject());
+		assertEquals(data, email.toData());
+		assertEquals(repeat('y', 100) + "\r\n.dot", email.getBody());
+	}
+
+	@Test
+	public void prependHeader() {
+		String data = "Subject: A\r\n  folded subject\r\n\r\nbody";
+		EmailData email = new EmailData(data);
+		email.prependHeader("Received", "from foo by bar");
+		assertEquals("Received: from foo by bar\r\n" + data, email.toData());
+
+		//the parsed headers include it too
+		email.getHeaders();
+		email.prependHeader("Return-Path", "<a@b.com>");
+		assertEquals("Return-Path: <a@b.com>\r\nReceived: from foo by bar\r\n" + data, email.toData());
+		assertEquals("<a@b.com>", email.getHeaders().getHeader("Return-Path"));
+	}
+
+	@Test
+	public void copy() {
+		String data = "Subject: A\r\n  folded subject\r\n\r\n..body";
+		EmailData email = new EmailData(data);
+		EmailData copy = email.copy();
+		copy.prependHeader("Return-Path", "<a@b.com>");
+		assertEquals("Return-Path: <a@b.com>\r\n" + data, copy.toData());
+		assertEquals(data, email.toData());
+
+		//an email that was not received over the wire
+		email = new EmailData();
+		email.getHeaders().setSubject("Test");
+		email.setBody(".body");
+		copy = email.copy();
+		copy.prependHeader("Return-Path", "<a@b.com>");
+		assertEquals("Return-Path: <a@b.com>\r\n" + email.toData(), copy.toData());
+		assertNull(email.getHeaders().getHeader("Return-Path"));
+		assertEquals("Test", copy.getHeaders().getSubject());
+	}
+
+	@Test
+	public void modified_headers_rebuilt() {
+		EmailData email = new EmailData("Subject: A\r\n  folded subject\r\n\r\nbody");
+		email.getHeaders().setSubject("B");
+		assertEquals("Subject: B\r\n\r\nbody", email.toData());
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder sb = new StringBuilder(count);
+		for (int i = 0; i < count; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
 }
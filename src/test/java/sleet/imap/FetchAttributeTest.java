@@ -0,0 +1,75 @@
+package sleet.imap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import sleet.imap.FetchAttribute.Section;
+import sleet.imap.FetchAttribute.Type;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class FetchAttributeTest {
+	@Test
+	public void parse() {
+		List<FetchAttribute> attributes = FetchAttribute.parse(Arrays.<Object> asList("uid", "RFC822.SIZE", "BODY.PEEK[TEXT]<10.20>", "BODY[]", "RFC822.HEADER"));
+		assertEquals(5, attributes.size());
+		assertEquals(Type.UID, attributes.get(0).getType());
+		assertEquals(Type.RFC822_SIZE, attributes.get(1).getType());
+
+		FetchAttribute body = attributes.get(2);
+		assertEquals(Type.BODY, body.getType());
+		assertEquals(Section.TEXT, body.getSection());
+		assertEquals("BODY[TEXT]<10>", body.getName());
+		assertTrue(body.isPeek());
+		assertEquals(10, body.getPartialStart());
+		assertEquals(20, body.getPartialCount());
+
+		body = attributes.get(3);
+		assertEquals(Section.ALL, body.getSection());
+		assertEquals("BODY[]", body.getName());
+		assertFalse(body.isPeek());
+		assertEquals(-1, body.getPartialStart());
+
+		body = attributes.get(4);
+		assertEquals(Section.HEADER, body.getSection());
+		assertEquals("RFC822.HEADER", body.getName());
+		assertTrue(body.isPeek());
+	}
+
+	@Test
+	public void parse_macro() {
+		List<FetchAttribute> attributes = FetchAttribute.parse("FAST");
+		assertEquals(3, attributes.size());
+		assertEquals(Type.FLAGS, attributes.get(0).getType());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_unsupported() {
+		FetchAttribute.parse("BODYSTRUCTURE");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_part_number() {
+		FetchAttribute.parse("BODY[1.2]");
+	}
+
+	@Test
+	public void filterHeader() {
+		String header = "From: a@b.com\r\nSubject: one\r\n two\r\nTo: c@d.com\r\n\r\n";
+
+		FetchAttribute attribute = FetchAttribute.parse("BODY.PEEK[HEADER.FIELDS (subject TO)]").get(0);
+		assertEquals(Section.HEADER_FIELDS, attribute.getSection());
+		assertEquals("Subject: one\r\n two\r\nTo: c@d.com\r\n\r\n", attribute.filterHeader(header));
+
+		attribute = FetchAttribute.parse("BODY.PEEK[HEADER.FIELDS.NOT (SUBJECT)]").get(0);
+		assertEquals(Section.HEADER_FIELDS_NOT, attribute.getSection());
+		assertEquals("From: a@b.com\r\nTo: c@d.com\r\n\r\n", attribute.filterHeader(header));
+	}
+}
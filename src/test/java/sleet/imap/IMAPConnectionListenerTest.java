@@ -0,0 +1,183 @@
+package sleet.imap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sleet.db.DirbyDbDao;
+import sleet.db.DirbyMemoryDbDao;
+import sleet.db.Email;
+import sleet.email.EmailAddress;
+import sleet.email.EmailData;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class IMAPConnectionListenerTest {
+	private static final AtomicInteger databases = new AtomicInteger();
+	private static final Pattern literalRegex = Pattern.compile("\\{(\\d+)\\}$");
+
+	private DirbyDbDao dao;
+	private Socket socket;
+	private InputStream in;
+	private OutputStream out;
+
+	@Before
+	public void before() throws Exception {
+		//every test gets its own database
+		dao = new DirbyMemoryDbDao("IMAPConnectionListenerTest" + databases.incrementAndGet(), 2);
+
+		final IMAPConnectionListener listener = new IMAPConnectionListener(dao);
+		listener.setHostName("localhost");
+		int port = freePort();
+		listener.setPort(port);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					listener.start();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+
+		//wait for the listener to start
+		long giveUp = System.currentTimeMillis() + 10000;
+		while (true) {
+			try {
+				socket = new Socket("localhost", port);
+				break;
+			} catch (ConnectException e) {
+				if (System.currentTimeMillis() > giveUp) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+		socket.setSoTimeout(10000);
+		in = socket.getInputStream();
+		out = socket.getOutputStream();
+	}
+
+	@After
+	public void after() throws Exception {
+		socket.close();
+	}
+
+	@Test
+	public void login_select_fetch_idle() throws Exception {
+		deliver("Subject: First\r\n\r\nHello.");
+
+		assertTrue(readLine().startsWith("* OK "));
+
+		send("a LOGIN mike mike");
+		assertTrue(readLine().startsWith("a OK "));
+
+		send("b SELECT INBOX");
+		String line;
+		boolean exists = false;
+		while (!(line = readLine()).startsWith("b ")) {
+			if (line.equals("* 1 EXISTS")) {
+				exists = true;
+			}
+		}
+		assertTrue(exists);
+		assertEquals("b OK [READ-WRITE] SELECT completed.", line);
+
+		send("c FETCH 1 (BODY.PEEK[])");
+		line = readLine();
+		Matcher m = literalRegex.matcher(line);
+		assertTrue(line, line.startsWith("* 1 FETCH (") && m.find());
+		assertEquals("Subject: First\r\n\r\nHello.\r\n", read(Integer.parseInt(m.group(1))));
+		assertEquals(")", readLine());
+		assertEquals("c OK FETCH completed.", readLine());
+
+		send("d IDLE");
+		assertEquals("+ idling", readLine());
+
+		//the client is told about the new email without having to ask
+		deliver("Subject: Second\r\n\r\nHello again.");
+		assertEquals("* 2 EXISTS", readLine());
+
+		send("DONE");
+		assertEquals("d OK IDLE terminated.", readLine());
+
+		send("e FETCH 2 (BODY.PEEK[HEADER.FIELDS (SUBJECT)])");
+		line = readLine();
+		m = literalRegex.matcher(line);
+		assertTrue(line, m.find());
+		assertEquals("Subject: Second\r\n\r\n", read(Integer.parseInt(m.group(1))));
+		assertEquals(")", readLine());
+		assertEquals("e OK FETCH completed.", readLine());
+
+		send("f LOGOUT");
+		assertTrue(readLine().startsWith("* BYE "));
+		assertEquals("f OK LOGOUT completed.", readLine());
+	}
+
+	private void deliver(String data) throws Exception {
+		Email email = new Email();
+		email.sender = new EmailAddress("bob@example.com");
+		email.recipients.add(new EmailAddress("mike@localhost"));
+		email.data = new EmailData(data);
+		dao.insertInboxEmail(email);
+	}
+
+	private void send(String line) throws IOException {
+		out.write((line + "\r\n").getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new IOException("Connection closed.");
+			}
+			line.write(b);
+		}
+
+		String s = new String(line.toByteArray(), "ISO-8859-1");
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	private String read(int length) throws IOException {
+		byte buffer[] = new byte[length];
+		int read = 0;
+		while (read < length) {
+			int r = in.read(buffer, read, length - read);
+			if (r < 0) {
+				throw new IOException("Connection closed.");
+			}
+			read += r;
+		}
+		return new String(buffer, "ISO-8859-1");
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0);
+		try {
+			return serverSocket.getLocalPort();
+		} finally {
+			serverSocket.close();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package sleet.imap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class IMAPRequestTest {
+	@Test
+	public void parse() {
+		IMAPRequest request = IMAPRequest.parse("a1 fetch 1:* (UID BODY.PEEK[HEADER.FIELDS (FROM SUBJECT)]<0.100>)");
+		assertEquals("a1", request.getTag());
+		assertEquals("FETCH", request.getCommand());
+
+		List<Object> expected = Arrays.<Object> asList("1:*", Arrays.<Object> asList("UID", "BODY.PEEK[HEADER.FIELDS (FROM SUBJECT)]<0.100>"));
+		assertEquals(expected, request.getArguments());
+	}
+
+	@Test
+	public void parse_quoted() {
+		IMAPRequest request = IMAPRequest.parse("a2 LOGIN \"test\" \"pass \\\"word\\\\\"");
+		assertEquals(Arrays.<Object> asList("test", "pass \"word\\"), request.getArguments());
+	}
+
+	@Test
+	public void parse_no_arguments() {
+		IMAPRequest request = IMAPRequest.parse("a3 NOOP");
+		assertEquals("NOOP", request.getCommand());
+		assertEquals(Arrays.asList(), request.getArguments());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_unclosed() {
+		IMAPRequest.parse("a4 FETCH 1 (UID FLAGS");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parse_no_command() {
+		IMAPRequest.parse("a5");
+	}
+}
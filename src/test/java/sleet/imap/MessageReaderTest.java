@@ -0,0 +1,40 @@
+package sleet.imap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class MessageReaderTest {
+	@Test
+	public void unstuff() throws Exception {
+		MessageReader reader = new MessageReader(new StringReader(".Subject: test\r\n\r\n..dot\r\nline.\r\n.."));
+		assertEquals("Subject: test\r\n\r\n.dot\r\nline.\r\n.\r\n", IOUtils.toString(reader));
+	}
+
+	@Test
+	public void readHeader() throws Exception {
+		MessageReader reader = new MessageReader(new StringReader("Subject: test\r\n\r\n..body"));
+		assertEquals("Subject: test\r\n\r\n", reader.readHeader());
+		assertEquals(".body\r\n", IOUtils.toString(reader));
+	}
+
+	@Test
+	public void readHeader_no_body() throws Exception {
+		MessageReader reader = new MessageReader(new StringReader("Subject: test"));
+		assertEquals("Subject: test\r\n", reader.readHeader());
+		assertEquals("", IOUtils.toString(reader));
+	}
+
+	@Test
+	public void readHeader_no_headers() throws Exception {
+		MessageReader reader = new MessageReader(new StringReader("\r\nbody"));
+		assertEquals("\r\n", reader.readHeader());
+		assertEquals("body\r\n", IOUtils.toString(reader));
+	}
+}
@@ -0,0 +1,58 @@
+package sleet.imap;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.BitSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import sleet.db.Mailbox;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class SequenceSetTest {
+	private Mailbox mailbox;
+
+	@Before
+	public void before() {
+		mailbox = new Mailbox();
+		mailbox.add(3, 1, 100, 0, null, false);
+		mailbox.add(8, 2, 100, 0, null, false);
+		mailbox.add(9, 3, 100, 0, null, false);
+		mailbox.add(20, 4, 100, 0, null, false);
+	}
+
+	@Test
+	public void sequence_numbers() {
+		assertEquals(bits(1, 2, 4), SequenceSet.parse("1:2,4", false, mailbox));
+		assertEquals(bits(2, 3, 4), SequenceSet.parse("*:2", false, mailbox));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void sequence_numbers_out_of_range() {
+		SequenceSet.parse("1:5", false, mailbox);
+	}
+
+	@Test
+	public void uids() {
+		assertEquals(bits(2, 3), SequenceSet.parse("4:10", true, mailbox));
+		assertEquals(bits(1, 4), SequenceSet.parse("3,20,25", true, mailbox));
+		assertEquals(bits(4), SequenceSet.parse("10:*", true, mailbox));
+		assertEquals(bits(), SequenceSet.parse("21:30", true, mailbox));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void malformed() {
+		SequenceSet.parse("1:a", false, mailbox);
+	}
+
+	private static BitSet bits(int... values) {
+		BitSet bits = new BitSet();
+		for (int value : values) {
+			bits.set(value);
+		}
+		return bits;
+	}
+}
@@ -0,0 +1,124 @@
+package sleet.pop3;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import sleet.db.FileMessageStore;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class POP3ServerSocketTest {
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private static final String headers = "Subject: test\r\n\r\n";
+	private static final String data = headers + "line 1\r\n..dot\r\n\r\nline 4";
+
+	private FileMessageStore store;
+	private String key;
+
+	@Before
+	public void before() throws Exception {
+		store = new FileMessageStore(temp.newFolder("messages"));
+		key = store.put(new StringReader(data));
+	}
+
+	@Test
+	public void retr() throws Exception {
+		//dot-stuffing is not applied a second time
+		String expected = "+OK 40 octets\r\n" + data + "\r\n.\r\n";
+		assertEquals(expected, sendFromReader("40 octets", data, -1));
+		assertEquals(expected, sendFromStore("40 octets", data.length(), -1));
+	}
+
+	@Test
+	public void top() throws Exception {
+		assertTop("+OK\r\nSubject: test\r\n\r\n.\r\n", 0);
+		assertTop("+OK\r\nSubject: test\r\n\r\nline 1\r\n.\r\n", 1);
+		assertTop("+OK\r\nSubject: test\r\n\r\nline 1\r\n..dot\r\n\r\n.\r\n", 3);
+		assertTop("+OK\r\n" + data + "\r\n.\r\n", 4);
+		assertTop("+OK\r\n" + data + "\r\n.\r\n", 100);
+	}
+
+	@Test
+	public void top_no_body() throws Exception {
+		String data = "Subject: test\r\n";
+		assertEquals("+OK\r\nSubject: test\r\n\r\n.\r\n", sendFromReader(null, data, 0));
+		assertEquals("+OK\r\nSubject: test\r\n\r\n.\r\n", sendFromReader(null, data, 5));
+	}
+
+	@Test
+	public void large() throws Exception {
+		StringBuilder sb = new StringBuilder(headers);
+		for (int i = 0; i < 10000; i++) {
+			sb.append("\r\n.line ").append(i);
+		}
+		String data = sb.toString();
+		assertEquals("+OK\r\n" + data + "\r\n.\r\n", sendFromReader(null, data, -1));
+	}
+
+	private void assertTop(String expected, int lines) throws Exception {
+		assertEquals(expected, sendFromReader(null, data, lines));
+		assertEquals(expected, sendFromStore(null, headers.length(), lines));
+		assertEquals(expected, sendFromStore(null, -1, lines));
+	}
+
+	private String sendFromReader(String msg, String data, int lines) throws Exception {
+		BufferChannel channel = new BufferChannel();
+		new POP3ServerSocket(channel).sendData(msg, new StringReader(data), lines);
+		return channel.toString();
+	}
+
+	private String sendFromStore(String msg, long headerLength, int lines) throws Exception {
+		BufferChannel channel = new BufferChannel();
+		new POP3ServerSocket(channel).sendData(msg, store, key, headerLength, lines);
+		return channel.toString();
+	}
+
+	private static class BufferChannel implements ByteChannel {
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		@Override
+		public int write(ByteBuffer src) {
+			int length = src.remaining();
+			while (src.hasRemaining()) {
+				out.write(src.get());
+			}
+			return length;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			return -1;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+			//empty
+		}
+
+		@Override
+		public String toString() {
+			try {
+				return out.toString("ISO-8859-1");
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class CircuitBreakerTest {
+	@Test
+	public void opens_after_threshold() {
+		CircuitBreaker breaker = new CircuitBreaker(2, 60000, 60000, 60000);
+
+		breaker.failure("example.com");
+		assertFalse(breaker.isOpen("example.com"));
+		assertEquals(0, breaker.check("example.com"));
+
+		breaker.failure("example.com");
+		assertTrue(breaker.isOpen("example.com"));
+		assertTrue(breaker.check("example.com") > System.currentTimeMillis());
+
+		//other hosts are not affected
+		assertEquals(0, breaker.check("other.com"));
+	}
+
+	@Test
+	public void success_resets_count() {
+		CircuitBreaker breaker = new CircuitBreaker(2, 60000, 60000, 60000);
+
+		breaker.failure("example.com");
+		breaker.success("example.com");
+		breaker.failure("example.com");
+		assertFalse(breaker.isOpen("example.com"));
+	}
+
+	@Test
+	public void single_probe() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(1, 10, 1000, 60000);
+		breaker.failure("example.com");
+		Thread.sleep(20);
+
+		//the first email is the probe, the rest wait
+		assertEquals(0, breaker.check("example.com"));
+		assertTrue(breaker.check("example.com") > 0);
+
+		//the probe succeeded
+		breaker.success("example.com");
+		assertFalse(breaker.isOpen("example.com"));
+		assertEquals(0, breaker.check("example.com"));
+	}
+
+	@Test
+	public void failed_probe_doubles_open_time() throws Exception {
+		CircuitBreaker breaker = new CircuitBreaker(1, 10, 1000, 60000);
+		breaker.failure("example.com");
+		Thread.sleep(20);
+
+		assertEquals(0, breaker.check("example.com"));
+		long before = System.currentTimeMillis();
+		breaker.failure("example.com");
+
+		long holdUntil = breaker.check("example.com");
+		assertTrue(holdUntil >= before + 20);
+		assertTrue(breaker.isOpen("example.com"));
+	}
+}
@@ -0,0 +1,83 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class DeliveryThrottleTest {
+	@Test
+	public void concurrency() {
+		DeliveryThrottle throttle = new DeliveryThrottle(5, 50, 2, 10);
+
+		assertTrue(throttle.tryAcquire("example.com"));
+		assertTrue(throttle.tryAcquire("example.com"));
+		assertFalse(throttle.tryAcquire("example.com"));
+		assertTrue(throttle.tryAcquire("other.com"));
+
+		throttle.release("example.com");
+		assertTrue(throttle.tryAcquire("example.com"));
+	}
+
+	@Test
+	public void rate() {
+		DeliveryThrottle throttle = new DeliveryThrottle(2, 50, 2, 10);
+
+		//the bucket starts out full
+		assertEquals(0, throttle.tryTake("example.com"));
+		assertEquals(0, throttle.tryTake("example.com"));
+
+		long wait = throttle.tryTake("example.com");
+		assertTrue(wait > 0 && wait <= 500);
+
+		throttle.giveBack("example.com");
+		assertEquals(0, throttle.tryTake("example.com"));
+	}
+
+	@Test
+	public void deferral_cuts_limits_in_half() {
+		DeliveryThrottle throttle = new DeliveryThrottle(4, 50, 4, 10);
+
+		throttle.deferral("example.com");
+		List<DeliveryThrottle.Status> status = throttle.getStatus();
+		assertEquals(1, status.size());
+		assertEquals("example.com", status.get(0).getDestination());
+		assertEquals(2, status.get(0).getConcurrency());
+		assertEquals(2.0, status.get(0).getRate(), 0.001);
+		assertEquals(1, status.get(0).getDeferrals());
+
+		//the bucket is emptied
+		assertTrue(throttle.tryTake("example.com") > 0);
+
+		//the concurrency limit never drops below one
+		throttle.deferral("example.com");
+		throttle.deferral("example.com");
+		assertEquals(1, throttle.getStatus().get(0).getConcurrency());
+		assertTrue(throttle.tryAcquire("example.com"));
+		assertFalse(throttle.tryAcquire("example.com"));
+	}
+
+	@Test
+	public void success_grows_limits_slowly() {
+		DeliveryThrottle throttle = new DeliveryThrottle(1, 2, 4, 6);
+		throttle.deferral("example.com");
+
+		throttle.success("example.com");
+		DeliveryThrottle.Status status = throttle.getStatus().get(0);
+		assertEquals(2, status.getConcurrency());
+		assertEquals(0.6, status.getRate(), 0.001);
+
+		for (int i = 0; i < 100; i++) {
+			throttle.success("example.com");
+		}
+		status = throttle.getStatus().get(0);
+		assertEquals(6, status.getConcurrency());
+		assertEquals(2.0, status.getRate(), 0.001);
+	}
+}
@@ -0,0 +1,36 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class ExponentialBackoffTest {
+	@Test
+	public void doubles() {
+		ExponentialBackoff policy = new ExponentialBackoff(1000, 10000, 0);
+		assertEquals(1000, policy.getRetryDelay(1));
+		assertEquals(2000, policy.getRetryDelay(2));
+		assertEquals(4000, policy.getRetryDelay(3));
+		assertEquals(8000, policy.getRetryDelay(4));
+		assertEquals(10000, policy.getRetryDelay(5));
+		assertEquals(10000, policy.getRetryDelay(100));
+	}
+
+	@Test
+	public void jitter() {
+		ExponentialBackoff policy = new ExponentialBackoff(1000, 10000, 0.5);
+		for (int i = 0; i < 100; i++) {
+			long delay = policy.getRetryDelay(2);
+			assertTrue(delay >= 2000 && delay <= 3000);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void max_less_than_initial() {
+		new ExponentialBackoff(1000, 500, 0);
+	}
+}
@@ -0,0 +1,228 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import sleet.db.DbDao.EmailHandler;
+import sleet.db.DbDao.UnitOfWork;
+import sleet.db.DirbyDbDao;
+import sleet.db.DirbyMemoryDbDao;
+import sleet.db.Email;
+import sleet.db.OutboundEmailGroup;
+import sleet.email.EmailAddress;
+import sleet.email.EmailData;
+import sleet.email.EmailRaw;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class MailSenderTest {
+	private static final AtomicInteger databases = new AtomicInteger();
+	private DirbyDbDao dao;
+	private MailSender mailSender;
+
+	@Before
+	public void before() throws Exception {
+		//every test gets its own database
+		dao = new DirbyMemoryDbDao("MailSenderTest" + databases.incrementAndGet(), 2);
+		mailSender = new MailSender(dao);
+		mailSender.setHostName("localhost");
+	}
+
+	@Test
+	public void local_and_remote_recipients() throws Exception {
+		EmailRaw email = email("mike@localhost", "bob@example.com");
+		mailSender.sendEmail(email, "client.example.com", InetAddress.getByName("10.0.0.1"));
+
+		//the local recipient gets it right away, with the trace headers a delivery server adds
+		List<Email> inbox = inbox("mike");
+		assertEquals(1, inbox.size());
+		Email local = inbox.get(0);
+		assertEquals("<test@localhost>", local.data.getHeaders().getHeader("Return-Path"));
+		assertTrue(local.data.getHeaders().getHeader("Received").startsWith("from client.example.com ([10.0.0.1]) by localhost;"));
+		assertEquals("Test", local.data.getHeaders().getSubject());
+		assertEquals("Hello.", local.data.getBody());
+
+		//the remote recipient is queued, without the trace headers
+		OutboundEmailGroup group = outboundGroup();
+		assertEquals("example.com", group.host);
+		assertEquals(1, group.recipients.size());
+		assertEquals("bob@example.com", group.recipients.get(0).getAddress());
+		assertFalse(local.id.equals(group.email.id));
+		assertNull(group.email.data.getHeaders().getHeader("Return-Path"));
+
+		//give up on the remote recipient
+		assertFalse(giveUp(group));
+
+		//the email is still in the sender's outbox and the local recipient's inbox
+		assertNotNull(dao.selectEmail(group.email.id));
+		inbox = inbox("mike");
+		assertEquals(1, inbox.size());
+		assertEquals(local.id, inbox.get(0).id);
+	}
+
+	@Test
+	public void remote_recipients_only() throws Exception {
+		mailSender.sendEmail(email("bob@example.com"));
+		OutboundEmailGroup group = outboundGroup();
+
+		//nothing else refers to the email, so it is deleted when delivery is given up on
+		assertTrue(giveUp(group));
+		assertNull(dao.selectEmail(group.email.id));
+	}
+
+	@Test
+	public void local_recipients_only() throws Exception {
+		mailSender.sendEmail(email("mike@localhost", "test@localhost"));
+
+		assertTrue(dao.selectOutboundQueue().isEmpty());
+		assertEquals(1, inbox("mike").size());
+		assertEquals(1, inbox("test").size());
+	}
+
+	@Test
+	public void give_up_when_servers_unreachable() throws Exception {
+		mailSender.setMxRecordResolver(new MxRecordResolver(new MxResolver() {
+			@Override
+			public List<MxRecord> resolve(String host) throws NamingException {
+				throw new NamingException("DNS server unreachable.");
+			}
+		}));
+		mailSender.setGiveUpInterval(60000);
+
+		//the email has been failing for longer than the give up interval
+		mailSender.sendEmail(email("bob@example.com"));
+		OutboundEmailGroup group = outboundGroup();
+		List<Integer> ids = new ArrayList<Integer>();
+		ids.add(group.id);
+		dao.claimOutboundEmailGroups(ids, "owner", new Date(System.currentTimeMillis() + 60000));
+		group.attempts = 1;
+		group.firstAttempt = new Date(System.currentTimeMillis() - 120000);
+		group.prevAttempt = group.firstAttempt;
+		group.nextAttempt = new Date();
+		assertTrue(dao.updateOutboundEmailGroup(group, "owner"));
+
+		start();
+
+		//the email is bounced back to the sender, even though a connection was never made
+		awaitBounce(group);
+	}
+
+	@Test
+	public void give_up_when_host_not_found() throws Exception {
+		mailSender.setMxRecordResolver(new MxRecordResolver(new MxResolver() {
+			@Override
+			public List<MxRecord> resolve(String host) throws NamingException {
+				throw new NameNotFoundException(host);
+			}
+		}));
+
+		//the email is bounced back to the sender on the first attempt
+		mailSender.sendEmail(email("bob@example.com"));
+		OutboundEmailGroup group = outboundGroup();
+		start();
+		awaitBounce(group);
+	}
+
+	/**
+	 * Starts the mail sender in the background.
+	 */
+	private void start() {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					mailSender.start();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits for the mail sender to give up on an email and send an error email
+	 * to its sender.
+	 * @param group the email
+	 */
+	private void awaitBounce(OutboundEmailGroup group) throws Exception {
+		long giveUp = System.currentTimeMillis() + 10000;
+		while (inbox("test").isEmpty()) {
+			assertTrue(System.currentTimeMillis() < giveUp);
+			Thread.sleep(50);
+		}
+		assertTrue(dao.selectOutboundQueue().isEmpty());
+		assertNull(dao.selectEmail(group.email.id));
+		assertEquals("Postmaster Notification: Email could not be delivered", inbox("test").get(0).data.getHeaders().getSubject());
+	}
+
+	/**
+	 * Does what the mail sender does when it gives up on delivering an email.
+	 * @param group the email
+	 * @return true if the email was deleted, false if it was kept
+	 */
+	private boolean giveUp(final OutboundEmailGroup group) throws SQLException {
+		List<Integer> ids = new ArrayList<Integer>();
+		ids.add(group.id);
+		dao.claimOutboundEmailGroups(ids, "owner", new Date(System.currentTimeMillis() + 60000));
+
+		return dao.transaction(new UnitOfWork<Boolean>() {
+			@Override
+			public Boolean execute() throws SQLException {
+				assertTrue(dao.deleteOutboundEmailGroup(group, "owner"));
+				return dao.deleteEmailIfUnused(group.email);
+			}
+		});
+	}
+
+	private OutboundEmailGroup outboundGroup() throws Exception {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (OutboundEmailGroup group : dao.selectOutboundQueue()) {
+			ids.add(group.id);
+		}
+		assertEquals(1, ids.size());
+
+		Map<String, List<OutboundEmailGroup>> groups = dao.selectOutboundEmailGroups(ids);
+		return groups.values().iterator().next().get(0);
+	}
+
+	private List<Email> inbox(String username) throws Exception {
+		final List<Email> emails = new ArrayList<Email>();
+		dao.foreachInboxEmail(dao.selectUser(username), new EmailHandler() {
+			@Override
+			public void handleRow(Email email) {
+				emails.add(email);
+			}
+		});
+		return emails;
+	}
+
+	private static EmailRaw email(String... recipients) {
+		EmailRaw email = new EmailRaw();
+		email.setMailFrom(new EmailAddress("test@localhost"));
+		for (String recipient : recipients) {
+			email.addRecipient(new EmailAddress(recipient));
+		}
+		email.setData(new EmailData("Subject: Test\r\n\r\nHello."));
+		return email;
+	}
+}
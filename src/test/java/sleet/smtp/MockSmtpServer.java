@@ -0,0 +1,55 @@
+package sleet.smtp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+
+/**
+ * A fake SMTP server that tests can connect to. By default, it responds to
+ * every command with a 250 response. Override {@link #respond} to change
+ * this.
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+class MockSmtpServer {
+	/**
+	 * Sends the greeting and responds to the client's commands until the
+	 * client sends QUIT or hangs up.
+	 * @param socket the client connection
+	 */
+	public void serve(Socket socket) {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			PrintWriter out = new PrintWriter(socket.getOutputStream());
+			out.print("220 ready\r\n");
+			out.flush();
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				out.print(respond(line) + "\r\n");
+				out.flush();
+				if (line.equals("QUIT")) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			//ignore
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+	}
+
+	/**
+	 * Generates the response to a command.
+	 * @param line the command
+	 * @return the response (without the trailing newline)
+	 */
+	protected String respond(String line) {
+		return line.equals("QUIT") ? "221 bye" : "250 ok";
+	}
+}
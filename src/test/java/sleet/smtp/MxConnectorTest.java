@@ -0,0 +1,173 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class MxConnectorTest {
+	private ServerSocket goodServer, tarpitServer;
+	private final CountDownLatch tarpitClosed = new CountDownLatch(1);
+	private ExecutorService executor;
+	private OutboundConnectionPool pool;
+
+	@Before
+	public void before() throws Exception {
+		//both servers must listen on the same port, since the pool only connects to one port
+		goodServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.2"));
+		tarpitServer = new ServerSocket(goodServer.getLocalPort(), 50, InetAddress.getByName("127.0.0.1"));
+
+		listen(goodServer, false);
+		listen(tarpitServer, true);
+
+		executor = Executors.newCachedThreadPool();
+		pool = new OutboundConnectionPool("sleet.com", goodServer.getLocalPort(), 60000, 100, 2, 5, new SMTPTimeouts(1000 * 10, 1000 * 10, 1000 * 10, 1000 * 10));
+	}
+
+	@After
+	public void after() throws Exception {
+		pool.close();
+		executor.shutdownNow();
+		goodServer.close();
+		tarpitServer.close();
+	}
+
+	@Test
+	public void slow_server_is_raced() throws Exception {
+		MxConnector connector = new MxConnector(pool, new DeliveryThrottle(5, 50, 2, 5), executor, 100);
+
+		long start = System.currentTimeMillis();
+		MxConnector.Result result = connector.connect(Arrays.asList(new MxRecord(10, "127.0.0.1", 300), new MxRecord(10, "127.0.0.2", 300)));
+		long time = System.currentTimeMillis() - start;
+
+		assertNotNull(result.connection);
+		assertEquals("127.0.0.2", result.connection.getRemoteHost());
+		assertTrue(time < 1000 * 5);
+
+		//the losing attempt is cancelled, and gives up its slot once its thread notices
+		assertTrue(tarpitClosed.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 50 && pool.getOpenCount("127.0.0.1") > 0; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(0, pool.getOpenCount("127.0.0.1"));
+		assertEquals(1, pool.getOpenCount("127.0.0.2"));
+	}
+
+	@Test
+	public void backup_server_used_when_preferred_servers_fail() throws Exception {
+		tarpitServer.close();
+		MxConnector connector = new MxConnector(pool, new DeliveryThrottle(5, 50, 2, 5), executor, 1000 * 5);
+
+		MxConnector.Result result = connector.connect(Arrays.asList(new MxRecord(10, "127.0.0.1", 300), new MxRecord(20, "127.0.0.2", 300)));
+		assertNotNull(result.connection);
+		assertEquals("127.0.0.2", result.connection.getRemoteHost());
+	}
+
+	@Test
+	public void unresolvable_server_skipped() throws Exception {
+		MxConnector connector = new MxConnector(pool, new DeliveryThrottle(5, 50, 2, 5), executor, 100);
+
+		//the name is looked up by the attempt, so it doesn't hold up the other server
+		MxConnector.Result result = connector.connect(Arrays.asList(new MxRecord(10, "nowhere.invalid", 300), new MxRecord(10, "127.0.0.2", 300)));
+		assertNotNull(result.connection);
+		assertEquals("127.0.0.2", result.connection.getRemoteHost());
+	}
+
+	@Test
+	public void idle_connection_reused() throws Exception {
+		DeliveryThrottle throttle = new DeliveryThrottle(5, 50, 2, 5);
+		MxConnector connector = new MxConnector(pool, throttle, executor, 100);
+		MxConnector.Result result = connector.connect(Arrays.asList(new MxRecord(10, "127.0.0.2", 300)));
+		SMTPOutboundConnection first = result.connection;
+		pool.release(first);
+		throttle.release("127.0.0.2");
+
+		result = connector.connect(Arrays.asList(new MxRecord(10, "127.0.0.2", 300)));
+		assertEquals(first, result.connection);
+	}
+
+	@Test
+	public void all_fail() throws Exception {
+		tarpitServer.close();
+		goodServer.close();
+		MxConnector connector = new MxConnector(pool, new DeliveryThrottle(5, 50, 2, 5), executor, 100);
+
+		MxConnector.Result result = connector.connect(Arrays.asList(new MxRecord(10, "127.0.0.1", 300), new MxRecord(10, "127.0.0.2", 300)));
+		assertNull(result.connection);
+		assertEquals(false, result.busy);
+		assertEquals(0, pool.getOpenCount("127.0.0.1"));
+		assertEquals(0, pool.getOpenCount("127.0.0.2"));
+	}
+
+	/**
+	 * Accepts connections in the background.
+	 * @param serverSocket the server socket
+	 * @param tarpit true to never send a greeting, false to respond to every
+	 * command with a 250 response
+	 */
+	private void listen(final ServerSocket serverSocket, final boolean tarpit) {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				while (true) {
+					final Socket socket;
+					try {
+						socket = serverSocket.accept();
+					} catch (IOException e) {
+						return;
+					}
+
+					new Thread() {
+						@Override
+						public void run() {
+							if (tarpit) {
+								tarpit(socket);
+							} else {
+								new MockSmtpServer().serve(socket);
+							}
+						}
+					}.start();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Never sends a greeting, and waits for the client to hang up.
+	 */
+	private void tarpit(Socket socket) {
+		try {
+			while (socket.getInputStream().read() != -1) {
+				//ignore
+			}
+		} catch (IOException e) {
+			//ignore
+		} finally {
+			tarpitClosed.countDown();
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//ignore
+			}
+		}
+	}
+}
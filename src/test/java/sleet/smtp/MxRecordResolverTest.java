@@ -0,0 +1,168 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class MxRecordResolverTest {
+	@Test
+	public void preference_order() {
+		FakeDns dns = new FakeDns();
+		dns.add("example.com", new MxRecord(20, "backup.example.com", 300), new MxRecord(10, "mx.example.com", 300));
+		MxRecordResolver resolver = new MxRecordResolver(dns);
+
+		assertEquals(Arrays.asList("mx.example.com", "backup.example.com"), resolver.resolveSmtpServers("example.com"));
+	}
+
+	@Test
+	public void cached() {
+		FakeDns dns = new FakeDns();
+		dns.add("example.com", new MxRecord(10, "mx.example.com", 300));
+		MxRecordResolver resolver = new MxRecordResolver(dns);
+
+		resolver.resolveSmtpServers("example.com");
+		resolver.resolveSmtpServers("example.com");
+		assertEquals(1, dns.lookups.get());
+	}
+
+	@Test
+	public void ttl_expired() {
+		FakeDns dns = new FakeDns();
+		dns.add("example.com", new MxRecord(10, "mx.example.com", 0));
+		MxRecordResolver resolver = new MxRecordResolver(dns);
+
+		resolver.resolveSmtpServers("example.com");
+		resolver.resolveSmtpServers("example.com");
+		assertEquals(2, dns.lookups.get());
+	}
+
+	@Test
+	public void no_mx_records() {
+		FakeDns dns = new FakeDns();
+		dns.add("example.com");
+		MxRecordResolver resolver = new MxRecordResolver(dns);
+
+		assertEquals(Arrays.asList("example.com"), resolver.resolveSmtpServers("example.com"));
+	}
+
+	@Test
+	public void negative_cached() {
+		FakeDns dns = new FakeDns();
+		MxRecordResolver resolver = new MxRecordResolver(dns);
+
+		assertEquals(Collections.emptyList(), resolver.resolveSmtpServers("nowhere.com"));
+		assertEquals(Collections.emptyList(), resolver.resolveSmtpServers("nowhere.com"));
+		assertEquals(1, dns.lookups.get());
+	}
+
+	@Test
+	public void host_not_found() {
+		MxRecordResolver resolver = new MxRecordResolver(new FakeDns());
+
+		MxRecordResolver.Result result = resolver.resolve("nowhere.com");
+		assertEquals(Collections.emptyList(), result.mxRecords);
+		assertTrue(result.hostNotFound);
+		assertFalse(result.failed);
+	}
+
+	@Test
+	public void lookup_failed() {
+		MxRecordResolver resolver = new MxRecordResolver(new MxResolver() {
+			@Override
+			public List<MxRecord> resolve(String host) throws NamingException {
+				throw new NamingException("DNS server unreachable.");
+			}
+		});
+
+		MxRecordResolver.Result result = resolver.resolve("example.com");
+		assertEquals(Collections.emptyList(), result.mxRecords);
+		assertFalse(result.hostNotFound);
+		assertTrue(result.failed);
+
+		//the failure is cached too
+		result = resolver.resolve("example.com");
+		assertTrue(result.failed);
+	}
+
+	@Test
+	public void concurrent_lookups_coalesced() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger lookups = new AtomicInteger();
+		final MxRecordResolver resolver = new MxRecordResolver(new MxResolver() {
+			@Override
+			public List<MxRecord> resolve(String host) throws NamingException {
+				lookups.incrementAndGet();
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return Arrays.asList(new MxRecord(10, "mx.example.com", 300));
+			}
+		});
+
+		final List<List<String>> results = Collections.synchronizedList(new ArrayList<List<String>>());
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 3; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					results.add(resolver.resolveSmtpServers("example.com"));
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		started.await();
+		Thread.sleep(100);
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(1, lookups.get());
+		assertEquals(3, results.size());
+		for (List<String> result : results) {
+			assertEquals(Arrays.asList("mx.example.com"), result);
+		}
+	}
+
+	private static class FakeDns implements MxResolver {
+		private final Map<String, List<MxRecord>> records = new HashMap<String, List<MxRecord>>();
+		private final AtomicInteger lookups = new AtomicInteger();
+
+		public void add(String host, MxRecord... mxRecords) {
+			records.put(host, Arrays.asList(mxRecords));
+		}
+
+		@Override
+		public List<MxRecord> resolve(String host) throws NamingException {
+			lookups.incrementAndGet();
+			List<MxRecord> mxRecords = records.get(host);
+			if (mxRecords == null) {
+				throw new NameNotFoundException(host);
+			}
+			return mxRecords;
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class OutboundConnectionPoolTest {
+	private ServerSocket serverSocket;
+	private final AtomicInteger connections = new AtomicInteger();
+
+	@Before
+	public void before() throws Exception {
+		serverSocket = new ServerSocket(0);
+		Thread server = new Thread() {
+			@Override
+			public void run() {
+				while (true) {
+					final Socket socket;
+					try {
+						socket = serverSocket.accept();
+					} catch (IOException e) {
+						return;
+					}
+
+					connections.incrementAndGet();
+					new Thread() {
+						@Override
+						public void run() {
+							new MockSmtpServer().serve(socket);
+						}
+					}.start();
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		serverSocket.close();
+	}
+
+	@Test
+	public void reuse() throws Exception {
+		OutboundConnectionPool pool = new OutboundConnectionPool("sleet.com", serverSocket.getLocalPort(), 60000, 100, 2, 5);
+
+		SMTPOutboundConnection first = pool.borrow("localhost");
+		pool.release(first);
+		SMTPOutboundConnection second = pool.borrow("localhost");
+		pool.release(second);
+
+		assertSame(first, second);
+		assertEquals(1, connections.get());
+		pool.close();
+	}
+
+	@Test
+	public void idle_timeout() throws Exception {
+		OutboundConnectionPool pool = new OutboundConnectionPool("sleet.com", serverSocket.getLocalPort(), 0, 100, 2, 5);
+
+		SMTPOutboundConnection first = pool.borrow("localhost");
+		pool.release(first);
+		Thread.sleep(10);
+		SMTPOutboundConnection second = pool.borrow("localhost");
+		pool.release(second);
+
+		assertNotSame(first, second);
+		assertEquals(2, connections.get());
+		pool.close();
+	}
+
+	@Test
+	public void max_idle() throws Exception {
+		OutboundConnectionPool pool = new OutboundConnectionPool("sleet.com", serverSocket.getLocalPort(), 60000, 100, 0, 5);
+
+		SMTPOutboundConnection first = pool.borrow("localhost");
+		pool.release(first);
+		SMTPOutboundConnection second = pool.borrow("localhost");
+		pool.release(second);
+
+		assertNotSame(first, second);
+		assertEquals(2, connections.get());
+	}
+
+	@Test
+	public void max_per_server() throws Exception {
+		OutboundConnectionPool pool = new OutboundConnectionPool("sleet.com", serverSocket.getLocalPort(), 60000, 100, 1, 2);
+
+		SMTPOutboundConnection first = pool.borrow("localhost");
+		SMTPOutboundConnection second = pool.borrow("localhost");
+		assertNull(pool.borrow("localhost"));
+		assertEquals(2, pool.getOpenCount("localhost"));
+
+		//idle connections count toward the limit, but can be re-used
+		pool.release(first);
+		assertSame(first, pool.borrow("localhost"));
+
+		//closing a connection frees up its slot
+		pool.release(first);
+		pool.release(second);
+		assertEquals(1, pool.getOpenCount("localhost"));
+		assertSame(second, pool.borrow("localhost"));
+		assertNotNull(pool.borrow("localhost"));
+		assertEquals(3, connections.get());
+
+		pool.close();
+	}
+}
@@ -6,6 +6,8 @@ import static org.junit.Assert.fail;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Test;
@@ -158,6 +160,26 @@ public class SMTPClientSocketTest {
 		out.reset();
 	}
 
+	@Test
+	public void pipelineTransaction() throws Exception {
+		String input = "220 ready\r\n250 ok\r\n250 ok\r\n550 no such user\r\n354 go ahead\r\n";
+		InputStream in = IOUtils.toInputStream(input);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		SMTPClientSocket client = new SMTPClientSocket(in, out);
+		client.connect();
+
+		List<SMTPResponse> responses = client.pipelineTransaction("a@b.com", Arrays.asList("c@d.com", "e@f.com"));
+		String request = new String(out.toByteArray());
+		assertEquals("MAIL FROM:<a@b.com>\r\nRCPT TO:<c@d.com>\r\nRCPT TO:<e@f.com>\r\nDATA\r\n", request);
+
+		assertEquals(4, responses.size());
+		assertEquals(250, responses.get(0).getStatusCode());
+		assertEquals(250, responses.get(1).getStatusCode());
+		assertEquals(550, responses.get(2).getStatusCode());
+		assertEquals("no such user", responses.get(2).getMessage());
+		assertEquals(354, responses.get(3).getStatusCode());
+	}
+
 	/**
 	 * Returns the same server message every time.
 	 * @author Mike Angstadt [mike.angstadt@gmail.com]
@@ -0,0 +1,132 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sleet.db.DirbyDbDao;
+import sleet.db.DirbyMemoryDbDao;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class SMTPConnectionListenerTest {
+	private static final AtomicInteger databases = new AtomicInteger();
+
+	private DirbyDbDao dao;
+	private File transactionLogFile;
+	private Socket socket;
+
+	@Before
+	public void before() throws Exception {
+		//every test gets its own database
+		dao = new DirbyMemoryDbDao("SMTPConnectionListenerTest" + databases.incrementAndGet(), 2);
+		transactionLogFile = File.createTempFile("sleet", ".log");
+	}
+
+	@After
+	public void after() throws Exception {
+		if (socket != null) {
+			socket.close();
+		}
+		transactionLogFile.delete();
+	}
+
+	@Test
+	public void idle_connection_closed() throws Exception {
+		SMTPConnectionListener listener = new SMTPConnectionListener(dao);
+		listener.setIdleTimeout(500);
+		listener.setTransactionLogFile(transactionLogFile);
+		InputStream in = connect(listener);
+
+		assertTrue(readLine(in).startsWith("220 "));
+
+		//the client doesn't send anything, so the server hangs up
+		long start = System.currentTimeMillis();
+		assertEquals("421 Idle timeout, closing connection.", readLine(in));
+		assertEquals(-1, in.read());
+		assertTrue(System.currentTimeMillis() - start < 5000);
+
+		//the transaction log is written in the background
+		long giveUp = System.currentTimeMillis() + 5000;
+		while (!FileUtils.readFileToString(transactionLogFile).contains("421 Idle timeout")) {
+			assertTrue(System.currentTimeMillis() < giveUp);
+			Thread.sleep(50);
+		}
+	}
+
+	/**
+	 * Starts the listener in the background and connects to it.
+	 * @param listener the listener
+	 * @return the connection's input stream
+	 */
+	private InputStream connect(final SMTPConnectionListener listener) throws Exception {
+		listener.setHostName("localhost");
+		int port = freePort();
+		listener.setPort(port);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					listener.start();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+
+		//wait for the listener to start
+		long giveUp = System.currentTimeMillis() + 10000;
+		while (true) {
+			try {
+				socket = new Socket("localhost", port);
+				break;
+			} catch (ConnectException e) {
+				if (System.currentTimeMillis() > giveUp) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+		socket.setSoTimeout(10000);
+		return socket.getInputStream();
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				throw new IOException("Connection closed.");
+			}
+			line.write(b);
+		}
+
+		String s = new String(line.toByteArray(), "ISO-8859-1");
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket serverSocket = new ServerSocket(0);
+		try {
+			return serverSocket.getLocalPort();
+		} finally {
+			serverSocket.close();
+		}
+	}
+}
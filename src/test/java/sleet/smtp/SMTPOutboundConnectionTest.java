@@ -0,0 +1,99 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import sleet.db.Email;
+import sleet.email.EmailAddress;
+import sleet.email.EmailData;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class SMTPOutboundConnectionTest {
+	private ServerSocket serverSocket;
+
+	/**
+	 * The lines that the mock server received.
+	 */
+	private final List<String> received = new CopyOnWriteArrayList<String>();
+
+	@Before
+	public void before() throws Exception {
+		serverSocket = new ServerSocket(0);
+		Thread server = new Thread() {
+			@Override
+			public void run() {
+				try {
+					new RejectingServer().serve(serverSocket.accept());
+				} catch (IOException e) {
+					//ignore
+				}
+			}
+		};
+		server.setDaemon(true);
+		server.start();
+	}
+
+	@After
+	public void after() throws Exception {
+		serverSocket.close();
+	}
+
+	@Test
+	public void pipelined_data_accepted_after_all_recipients_rejected() throws Exception {
+		SMTPOutboundConnection connection = new SMTPOutboundConnection("sleet.com", "localhost", serverSocket.getLocalPort());
+
+		Email email = new Email();
+		email.sender = new EmailAddress("mike@sleet.com");
+		email.data = new EmailData("Subject: Test\r\n\r\nHello.");
+		List<EmailAddress> recipients = Arrays.asList(new EmailAddress("bob@localhost"), new EmailAddress("joe@localhost"));
+		SendResult result = connection.sendEmail(recipients, email);
+
+		//the recipients were rejected permanently, so they must be bounced
+		assertEquals(recipients, result.failedAddresses);
+		assertTrue(result.successfulAddresses.isEmpty());
+
+		//the transaction was ended with a lone "." and the connection can still be used
+		assertEquals(Arrays.asList("MAIL FROM:<mike@sleet.com>", "RCPT TO:<bob@localhost>", "RCPT TO:<joe@localhost>", "DATA", "."), received.subList(1, received.size()));
+		assertFalse(connection.isBroken());
+		connection.reset();
+
+		connection.close();
+	}
+
+	/**
+	 * Supports pipelining, rejects every recipient, but accepts the DATA
+	 * command anyway.
+	 */
+	private class RejectingServer extends MockSmtpServer {
+		@Override
+		protected String respond(String line) {
+			received.add(line);
+			if (line.startsWith("EHLO")) {
+				return "250-hello\r\n250 PIPELINING";
+			}
+			if (line.startsWith("RCPT")) {
+				return "550 no such user";
+			}
+			if (line.equals("DATA")) {
+				return "354 go ahead";
+			}
+			if (line.equals(".")) {
+				return "554 no valid recipients";
+			}
+			return super.respond(line);
+		}
+	}
+}
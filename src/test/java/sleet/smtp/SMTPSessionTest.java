@@ -0,0 +1,203 @@
+package sleet.smtp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Before;
+import org.junit.Test;
+
+import sleet.LineCodec;
+import sleet.db.DbDao.EmailHandler;
+import sleet.db.DirbyDbDao;
+import sleet.db.DirbyMemoryDbDao;
+import sleet.db.Email;
+
+/**
+ * @author Mike Angstadt [mike.angstadt@gmail.com]
+ */
+public class SMTPSessionTest {
+	private static final AtomicInteger databases = new AtomicInteger();
+	private DirbyDbDao dao;
+
+	@Before
+	public void before() throws Exception {
+		//every test gets its own database
+		dao = new DirbyMemoryDbDao("SMTPSessionTest" + databases.incrementAndGet(), 2);
+	}
+
+	@Test
+	public void greeting() throws Exception {
+		SMTPSession session = mta();
+		session.start();
+		List<String> replies = replies(session);
+		assertEquals(1, replies.size());
+		assertTrue(replies.get(0).startsWith("220 localhost "));
+	}
+
+	@Test
+	public void pipelined_batch() throws Exception {
+		SMTPSession session = mta();
+
+		//all of the responses to a batch are queued together
+		List<String> replies = send(session, "EHLO client.example.com\r\nMAIL FROM:<bob@example.com>\r\nRCPT TO:<mike@localhost>\r\nRCPT TO:<nobody@localhost>\r\nRCPT TO:<bob@example.com>\r\nDATA\r\n");
+		assertEquals(Arrays.asList("250-localhost Hello client.example.com", "250-SIZE 1000000", "250-PIPELINING", "250 HELP", "250 Ok", "250 Ok", "550 Mailbox not found: nobody", "551 Invalid host name: example.com", "354 Ready."), replies);
+
+		replies = send(session, "Subject: Test\r\n\r\nHello.\r\n..dot\r\n.\r\n");
+		assertEquals(1, replies.size());
+		assertTrue(replies.get(0), replies.get(0).startsWith("250 Ok: queued as "));
+
+		List<Email> inbox = inbox("mike");
+		assertEquals(1, inbox.size());
+		Email email = inbox.get(0);
+		assertEquals("<bob@example.com>", email.data.getHeaders().getHeader("Return-Path"));
+		assertTrue(email.data.getHeaders().getHeader("Received").startsWith("from client.example.com ([127.0.0.1]) by localhost;"));
+		assertEquals("Test", email.data.getHeaders().getSubject());
+		assertEquals("Hello.\r\n.dot", email.data.getBody());
+
+		assertEquals(Arrays.asList("221 Bye"), send(session, "QUIT\r\n"));
+		assertTrue(session.isClosed());
+	}
+
+	@Test
+	public void lines_split_across_reads() throws Exception {
+		SMTPSession session = mta();
+
+		assertEquals(Arrays.asList(), send(session, "HELO cli"));
+		assertEquals(Arrays.asList("250 Hello client"), send(session, "ent\r\nMAIL FROM:<bob@exa"));
+		assertEquals(Arrays.asList("250 Ok", "250 Ok", "354 Ready."), send(session, "mple.com>\r\nRCPT TO:<mike@localhost>\r\nDATA\r\nSubject: Test\r\n"));
+		assertEquals(Arrays.asList(), send(session, "\r\nHello.\r\n."));
+		assertEquals(1, send(session, "\r\n").size());
+
+		List<Email> inbox = inbox("mike");
+		assertEquals(1, inbox.size());
+		assertEquals("Hello.", inbox.get(0).data.getBody());
+	}
+
+	@Test
+	public void data_line_too_long() throws Exception {
+		SMTPSession session = mta();
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < LineCodec.defaultMaxLineLength + 10; i++) {
+			sb.append('x');
+		}
+
+		send(session, "HELO client\r\nMAIL FROM:<bob@example.com>\r\nRCPT TO:<mike@localhost>\r\nDATA\r\n");
+
+		//the email is rejected once all of its data has been received
+		assertEquals(Arrays.asList(), send(session, "Subject: Test\r\n\r\n" + sb + "\r\nHello.\r\n"));
+		assertEquals(Arrays.asList("500 Line too long."), send(session, ".\r\n"));
+		assertEquals(0, inbox("mike").size());
+
+		//the session can still be used
+		assertEquals(Arrays.asList("250 Ok"), send(session, "NOOP\r\n"));
+	}
+
+	@Test
+	public void auth() throws Exception {
+		SMTPSession session = msa();
+		send(session, "EHLO client\r\n");
+
+		//the user must authenticate before sending
+		assertEquals(Arrays.asList("530 You must authenticate first."), send(session, "MAIL FROM:<mike@localhost>\r\n"));
+
+		//credentials on the same line
+		assertEquals(Arrays.asList("535 Authentication credentials invalid."), send(session, "AUTH PLAIN " + credentials("mike", "wrong") + "\r\n"));
+
+		//credentials on the next line
+		assertEquals(Arrays.asList("334  "), send(session, "AUTH PLAIN\r\n"));
+		assertEquals(Arrays.asList("235 Authentication successful."), send(session, credentials("mike", "mike") + "\r\n"));
+		assertEquals(Arrays.asList("503 Already authenticated."), send(session, "AUTH PLAIN " + credentials("mike", "mike") + "\r\n"));
+
+		//users can only send emails from themselves
+		assertEquals(Arrays.asList("550 The \"from\" address must be from *your* email account."), send(session, "MAIL FROM:<test@localhost>\r\n"));
+		assertEquals(Arrays.asList("250 Ok"), send(session, "MAIL FROM:<mike@localhost>\r\n"));
+	}
+
+	@Test
+	public void auth_pipelined_with_mail() throws Exception {
+		SMTPSession session = msa();
+
+		List<String> replies = send(session, "EHLO client\r\nAUTH PLAIN\r\n" + credentials("mike", "mike") + "\r\nMAIL FROM:<mike@localhost>\r\nRCPT TO:<test@localhost>\r\nDATA\r\n");
+		assertEquals(Arrays.asList("334  ", "235 Authentication successful.", "250 Ok", "250 Ok", "354 Ready."), replies.subList(replies.size() - 5, replies.size()));
+
+		//the email is delivered to the local recipient
+		replies = send(session, "Subject: Test\r\n\r\nHello.\r\n.\r\n");
+		assertEquals(Arrays.asList("250 Ok: queued for sending."), replies);
+
+		List<Email> inbox = inbox("test");
+		assertEquals(1, inbox.size());
+		assertEquals("<mike@localhost>", inbox.get(0).data.getHeaders().getHeader("Return-Path"));
+		assertTrue(inbox.get(0).data.getHeaders().getHeader("Received").startsWith("from client ([127.0.0.1]) by localhost;"));
+	}
+
+	@Test
+	public void unknown_command() throws Exception {
+		SMTPSession session = mta();
+		assertEquals(Arrays.asList("500 Unknown command: FOO", "503 MAIL command must be used before DATA can be sent."), send(session, "FOO bar\r\nDATA\r\n"));
+		assertFalse(session.isClosed());
+	}
+
+	private SMTPSession mta() throws Exception {
+		return new SMTPSession(dao, null, "localhost", InetAddress.getByName("127.0.0.1"), new SMTPServerSocket());
+	}
+
+	private SMTPSession msa() throws Exception {
+		MailSender mailSender = new MailSender(dao);
+		mailSender.setHostName("localhost");
+		return new SMTPSession(dao, mailSender, "localhost", InetAddress.getByName("127.0.0.1"), new SMTPServerSocket());
+	}
+
+	/**
+	 * Passes data from the client to the session and gets the responses that
+	 * the session queued.
+	 * @param session the session
+	 * @param data the data the client sent
+	 * @return the response lines
+	 */
+	private static List<String> send(SMTPSession session, String data) throws Exception {
+		session.getServerSocket().decode(ByteBuffer.wrap(data.getBytes(LineCodec.charset)));
+		session.process();
+		return replies(session);
+	}
+
+	private static List<String> replies(SMTPSession session) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(session.getServerSocket().flush(Channels.newChannel(out)));
+
+		List<String> lines = new ArrayList<String>();
+		String output = new String(out.toByteArray(), LineCodec.charset);
+		if (output.isEmpty()) {
+			return lines;
+		}
+		assertTrue(output.endsWith("\r\n"));
+		lines.addAll(Arrays.asList(output.substring(0, output.length() - 2).split("\r\n", -1)));
+		return lines;
+	}
+
+	private static String credentials(String username, String password) {
+		return new String(Base64.encodeBase64((username + "/" + password).getBytes()));
+	}
+
+	private List<Email> inbox(String username) throws Exception {
+		final List<Email> emails = new ArrayList<Email>();
+		dao.foreachInboxEmail(dao.selectUser(username), new EmailHandler() {
+			@Override
+			public void handleRow(Email email) {
+				emails.add(email);
+			}
+		});
+		return emails;
+	}
+}